@@ -0,0 +1,126 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.core.accessors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that the {@link ConnectionPool} hands the same connection to a thread until it has been released as often as
+ * it was borrowed, and to nobody else in the meantime.
+ */
+public class ConnectionPoolTest {
+
+	private ConnectionPool	pool;
+
+
+	@Before
+	public void setUp() throws Exception {
+		TestDatabase.init();
+		pool = new ConnectionPool( DB.getUrl(), "sa", "", 2, 1, 1, 0, 200 );
+	}
+
+
+	@After
+	public void tearDown() {
+		pool.close();
+	}
+
+
+	@Test
+	public void sameThreadGetsSameConnection() throws SQLException {
+		final Connection outer = pool.borrow();
+		final Connection inner = pool.borrow();
+		assertSame( outer, inner );
+
+		final Connection independent = pool.borrowIndependent();
+		assertNotSame( outer, independent );
+
+		pool.release( independent );
+		pool.release( inner );
+		pool.release( outer );
+	}
+
+
+	@Test
+	public void sharedUntilReleasedAsOftenAsBorrowed() throws Exception {
+		final Connection outer = pool.borrow();
+		pool.borrow();
+		final Connection independent = pool.borrowIndependent();
+
+		// Both connections are taken.
+		assertTrue( borrowInOtherThread() instanceof SQLException );
+
+		pool.release( outer );
+		assertTrue( borrowInOtherThread() instanceof SQLException );
+
+		pool.release( outer );
+		assertSame( outer, borrowInOtherThread() );
+
+		pool.release( independent );
+	}
+
+
+	@Test
+	public void rollsBackOnRelease() throws SQLException {
+		final Connection conn = pool.borrow();
+		conn.setAutoCommit( false );
+		final Statement statement = conn.createStatement();
+		statement.execute( "INSERT INTO tags (tag) VALUES ('uncommitted')" );
+		statement.close();
+		pool.release( conn );
+
+		assertEquals( -1, TestDatabase.query( "SELECT tagid FROM tags WHERE tag = 'uncommitted'" ) );
+
+		final Connection again = pool.borrow();
+		assertTrue( again.getAutoCommit() );
+		pool.release( again );
+	}
+
+
+	/**
+	 * Borrows a connection in another thread and releases it right away.
+	 * 
+	 * @return The connection or the exception thrown when borrowing
+	 */
+	private Object borrowInOtherThread() throws InterruptedException {
+		final Object[] result = new Object[1];
+		final Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					final Connection conn = pool.borrow();
+					pool.release( conn );
+					result[0] = conn;
+				} catch ( final SQLException e ) {
+					result[0] = e;
+				}
+			}
+		};
+		thread.start();
+		thread.join();
+		return result[0];
+	}
+
+}
@@ -0,0 +1,80 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.core.accessors;
+
+import static org.junit.Assert.assertEquals;
+
+import org.atomictagging.core.accessors.OrphanCollector.Report;
+import org.atomictagging.core.services.impl.Dictionaries;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that the {@link OrphanCollector} removes unreferenced rows, but leaves rows alone that were created since its
+ * previous run.
+ */
+public class OrphanCollectorTest {
+
+	@Before
+	public void setUp() throws Exception {
+		TestDatabase.init();
+		// Move the watermark behind everything that is left from other tests.
+		OrphanCollector.collect();
+	}
+
+
+	@Test
+	public void removesOrphansOnTheRunAfterTheirCreation() throws Exception {
+		final long orphan = Dictionaries.tags().save( "orphan" );
+
+		Report report = OrphanCollector.collect();
+		assertEquals( 0, report.getTags() );
+		assertEquals( orphan, TestDatabase.query( "SELECT tagid FROM tags WHERE tag = 'orphan'" ) );
+
+		report = OrphanCollector.collect();
+		assertEquals( 1, report.getTags() );
+		assertEquals( 0, report.getErrors() );
+		assertEquals( -1, TestDatabase.query( "SELECT tagid FROM tags WHERE tag = 'orphan'" ) );
+
+		// Saving again creates the tag anew instead of using the cached ID.
+		final long created = Dictionaries.tags().save( "orphan" );
+		assertEquals( created, TestDatabase.query( "SELECT tagid FROM tags WHERE tag = 'orphan'" ) );
+	}
+
+
+	@Test
+	public void keepsReferencedRows() throws Exception {
+		TestDatabase.execute( "INSERT INTO atoms (atomid, data, refcount) VALUES (1, 'linked', 1)" );
+		TestDatabase.execute( "INSERT INTO atoms (atomid, data) VALUES (2, 'orphan')" );
+		final long used = Dictionaries.types().save( "used" );
+		final long unused = Dictionaries.types().save( "unused" );
+		TestDatabase.execute( "INSERT INTO atom_has_types (atoms_atomid, types_typeid) VALUES (1, ?)", used );
+		final long linked = Dictionaries.tags().save( "linked" );
+		TestDatabase.execute( "UPDATE tags SET refcount = 1 WHERE tagid = ?", linked );
+
+		OrphanCollector.collect();
+		final Report report = OrphanCollector.collect();
+
+		assertEquals( 1, report.getAtoms() );
+		assertEquals( 0, report.getTags() );
+		assertEquals( 1, report.getTypes() );
+		assertEquals( 0, report.getErrors() );
+
+		assertEquals( 1, TestDatabase.query( "SELECT COUNT(*) FROM atoms" ) );
+		assertEquals( linked, TestDatabase.query( "SELECT tagid FROM tags WHERE tag = 'linked'" ) );
+		assertEquals( used, TestDatabase.query( "SELECT typeid FROM types WHERE type = 'used'" ) );
+		assertEquals( -1, TestDatabase.query( "SELECT typeid FROM types WHERE typeid = ?", unused ) );
+	}
+
+}
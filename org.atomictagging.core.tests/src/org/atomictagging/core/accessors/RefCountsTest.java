@@ -0,0 +1,91 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.core.accessors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.atomictagging.core.services.impl.Dictionaries;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that {@link RefCounts} adds up the changes to the counts and notices rows that have been removed.
+ */
+public class RefCountsTest {
+
+	@Before
+	public void setUp() throws Exception {
+		TestDatabase.init();
+	}
+
+
+	@Test
+	public void writesTheSumOfTheChanges() throws SQLException {
+		TestDatabase.execute( "INSERT INTO atoms (atomid, data) VALUES (1, 'first')" );
+		TestDatabase.execute( "INSERT INTO atoms (atomid, data, refcount) VALUES (2, 'second', 3)" );
+		final long tagId = Dictionaries.tags().save( "red" );
+
+		final RefCounts counts = new RefCounts();
+		counts.atom( 1, 2 );
+		counts.atom( 1, -1 );
+		counts.atom( 2, -1 );
+		counts.tag( tagId, 1 );
+		write( counts );
+
+		assertEquals( 1, TestDatabase.query( "SELECT refcount FROM atoms WHERE atomid = 1" ) );
+		assertEquals( 2, TestDatabase.query( "SELECT refcount FROM atoms WHERE atomid = 2" ) );
+		assertEquals( 1, TestDatabase.query( "SELECT refcount FROM tags WHERE tagid = ?", tagId ) );
+
+		// Written changes are forgotten.
+		write( counts );
+		assertEquals( 1, TestDatabase.query( "SELECT refcount FROM atoms WHERE atomid = 1" ) );
+	}
+
+
+	@Test
+	public void forgetsRemovedTags() throws SQLException {
+		final long tagId = Dictionaries.tags().save( "gone" );
+		TestDatabase.execute( "DELETE FROM tags WHERE tagid = ?", tagId );
+
+		final RefCounts counts = new RefCounts();
+		counts.tag( tagId, 1 );
+		try {
+			write( counts );
+			fail( "The tag was removed." );
+		} catch ( final SQLException e ) {
+			// Expected
+		}
+
+		// Saving again creates the tag anew instead of using the cached ID.
+		final long created = Dictionaries.tags().save( "gone" );
+		assertEquals( created, TestDatabase.query( "SELECT tagid FROM tags WHERE tag = 'gone'" ) );
+		assertFalse( created == tagId );
+	}
+
+
+	private static void write( final RefCounts counts ) throws SQLException {
+		final Connection conn = DB.getConnection();
+		try {
+			counts.write( conn );
+		} finally {
+			DB.release( conn );
+		}
+	}
+
+}
@@ -0,0 +1,156 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.core.accessors;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.atomictagging.core.configuration.Configuration;
+import org.atomictagging.core.services.impl.Dictionaries;
+import org.atomictagging.core.services.impl.Dictionary;
+
+/**
+ * An embedded H2 database in a temporary directory for tests that need a database. It is created once per run and
+ * emptied before every test.
+ */
+public final class TestDatabase {
+
+	private final static String[]	TABLES	= { "molecule_has_tags", "molecule_has_atoms", "atom_has_types",
+			"molecules", "tags", "atoms", "types" };
+
+	private static File				dir		= null;
+
+
+	private TestDatabase() {
+		// Utility class
+	}
+
+
+	/**
+	 * Creates and initializes the database on the first call and removes all rows from the catalog tables on every
+	 * call. The sequences are left alone, IDs are never handed out twice.
+	 * 
+	 * @throws Exception
+	 */
+	public static synchronized void init() throws Exception {
+		if ( dir == null ) {
+			dir = File.createTempFile( "atomictagging", "" );
+			dir.delete();
+			dir.mkdir();
+
+			final File conf = new File( dir, "atomictagging.conf" );
+			final Writer out = new FileWriter( conf );
+			try {
+				out.write( "[base]\ndir = " + dir.getAbsolutePath() + "\n\n" );
+				out.write( "[database]\ntype = h2\ndb = test\nidblocksize = 10\n\n" );
+				out.write( "[collector]\nthrottle = 0\n" );
+			} finally {
+				out.close();
+			}
+
+			Configuration.addFile( conf );
+			DB.init();
+		}
+
+		clear();
+	}
+
+
+	/**
+	 * Executes a statement on a connection of its own.
+	 * 
+	 * @param sql
+	 * @param parameters
+	 * @throws SQLException
+	 */
+	public static void execute( final String sql, final Object... parameters ) throws SQLException {
+		Connection conn = null;
+		PreparedStatement statement = null;
+
+		try {
+			conn = DB.getIndependentConnection();
+			statement = conn.prepareStatement( sql );
+			for ( int i = 0; i < parameters.length; i++ ) {
+				statement.setObject( i + 1, parameters[i] );
+			}
+			statement.execute();
+		} finally {
+			DB.release( conn, statement );
+		}
+	}
+
+
+	/**
+	 * Reads a single number on a connection of its own.
+	 * 
+	 * @param sql
+	 * @param parameters
+	 * @return The first column of the first row or -1 if there is no row
+	 * @throws SQLException
+	 */
+	public static long query( final String sql, final Object... parameters ) throws SQLException {
+		Connection conn = null;
+		PreparedStatement statement = null;
+
+		try {
+			conn = DB.getIndependentConnection();
+			statement = conn.prepareStatement( sql );
+			for ( int i = 0; i < parameters.length; i++ ) {
+				statement.setObject( i + 1, parameters[i] );
+			}
+			final ResultSet result = statement.executeQuery();
+			return result.next() ? result.getLong( 1 ) : -1;
+		} finally {
+			DB.release( conn, statement );
+		}
+	}
+
+
+	/**
+	 * Empties the catalog tables and drops the removed tags and types from the dictionaries.
+	 */
+	private static void clear() throws SQLException {
+		Connection conn = null;
+		Statement statement = null;
+
+		try {
+			conn = DB.getIndependentConnection();
+			statement = conn.createStatement();
+
+			forget( statement.executeQuery( "SELECT tagid FROM tags" ), Dictionaries.tags() );
+			forget( statement.executeQuery( "SELECT typeid FROM types" ), Dictionaries.types() );
+
+			for ( final String table : TABLES ) {
+				statement.execute( "DELETE FROM " + table );
+			}
+		} finally {
+			DB.release( conn, statement );
+		}
+	}
+
+
+	private static void forget( final ResultSet ids, final Dictionary dictionary ) throws SQLException {
+		while ( ids.next() ) {
+			dictionary.remove( ids.getLong( 1 ) );
+		}
+		ids.close();
+	}
+
+}
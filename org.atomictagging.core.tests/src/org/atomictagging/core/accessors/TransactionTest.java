@@ -0,0 +1,124 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.core.accessors;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that a {@link Transaction} joins an open one through a savepoint and holds back the changes to what is kept in
+ * memory until the outermost transaction commits.
+ */
+public class TransactionTest {
+
+	private final List<String>	applied	= new ArrayList<String>();
+	private Connection			conn;
+
+
+	@Before
+	public void setUp() throws Exception {
+		TestDatabase.init();
+		conn = DB.getConnection();
+	}
+
+
+	@After
+	public void tearDown() {
+		DB.release( conn );
+	}
+
+
+	@Test
+	public void innerRollbackKeepsOuterWork() throws SQLException {
+		final Transaction outer = Transaction.begin( conn );
+		insertTag( "outer" );
+		afterCommit( "outer" );
+
+		final Transaction inner = Transaction.begin( conn );
+		insertTag( "inner" );
+		afterCommit( "inner" );
+		inner.rollback();
+
+		assertEquals( 0, applied.size() );
+		outer.commit();
+
+		assertEquals( "[outer]", applied.toString() );
+		assertEquals( 1, TestDatabase.query( "SELECT COUNT(*) FROM tags WHERE tag = 'outer'" ) );
+		assertEquals( 0, TestDatabase.query( "SELECT COUNT(*) FROM tags WHERE tag = 'inner'" ) );
+	}
+
+
+	@Test
+	public void appliesChangesOnOutermostCommit() throws SQLException {
+		final Transaction outer = Transaction.begin( conn );
+		final Transaction inner = Transaction.begin( conn );
+		afterCommit( "inner" );
+		inner.commit();
+
+		assertEquals( 0, applied.size() );
+		afterCommit( "outer" );
+		outer.commit();
+
+		assertEquals( "[inner, outer]", applied.toString() );
+		assertEquals( true, conn.getAutoCommit() );
+
+		// Without a transaction changes are applied right away.
+		afterCommit( "single" );
+		assertEquals( "[inner, outer, single]", applied.toString() );
+	}
+
+
+	@Test
+	public void outerRollbackDropsEverything() throws SQLException {
+		final Transaction outer = Transaction.begin( conn );
+		final Transaction inner = Transaction.begin( conn );
+		insertTag( "inner" );
+		afterCommit( "inner" );
+		inner.commit();
+		outer.rollback();
+
+		assertEquals( 0, applied.size() );
+		assertEquals( 0, TestDatabase.query( "SELECT COUNT(*) FROM tags WHERE tag = 'inner'" ) );
+	}
+
+
+	private void insertTag( final String tag ) throws SQLException {
+		final Statement statement = conn.createStatement();
+		try {
+			statement.execute( "INSERT INTO tags (tag) VALUES ('" + tag + "')" );
+		} finally {
+			statement.close();
+		}
+	}
+
+
+	private void afterCommit( final String name ) throws SQLException {
+		Transaction.afterCommit( conn, new Runnable() {
+			@Override
+			public void run() {
+				applied.add( name );
+			}
+		} );
+	}
+
+}
@@ -0,0 +1,102 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.core.services.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.atomictagging.core.accessors.TestDatabase;
+import org.atomictagging.utils.collections.LongList;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that the {@link IdAllocator} hands out unique IDs from its blocks. The test database reserves blocks of ten.
+ */
+public class IdAllocatorTest {
+
+	@Before
+	public void setUp() throws Exception {
+		TestDatabase.init();
+		TestDatabase.execute( "DELETE FROM sequences WHERE name = 'test'" );
+		TestDatabase.execute( "INSERT INTO sequences (name, next_id) VALUES ('test', 1)" );
+	}
+
+
+	@Test
+	public void consecutiveWithinBlock() throws Exception {
+		final IdAllocator allocator = new IdAllocator( "test" );
+
+		assertIds( allocator.next( 3 ), 1, 2, 3 );
+		assertIds( allocator.next( 2 ), 4, 5 );
+		assertEquals( 11, nextInSequence() );
+	}
+
+
+	@Test
+	public void continuesBehindOtherReservations() throws Exception {
+		final IdAllocator allocator = new IdAllocator( "test" );
+		allocator.next( 8 );
+
+		// Another process reserves a block meanwhile.
+		TestDatabase.execute( "UPDATE sequences SET next_id = 21 WHERE name = 'test'" );
+
+		assertIds( allocator.next( 4 ), 9, 10, 21, 22 );
+		assertEquals( 31, nextInSequence() );
+	}
+
+
+	@Test
+	public void reservesLargerBlocksOnDemand() throws Exception {
+		final IdAllocator allocator = new IdAllocator( "test" );
+
+		assertEquals( 25, allocator.next( 25 ).size() );
+		assertEquals( 26, nextInSequence() );
+	}
+
+
+	@Test
+	public void allocatorsDoNotShareIds() throws Exception {
+		final IdAllocator first = new IdAllocator( "test" );
+		final IdAllocator second = new IdAllocator( "test" );
+		final Set<Long> ids = new HashSet<Long>();
+
+		for ( int i = 0; i < 5; i++ ) {
+			ids.addAll( first.next( 7 ).asList() );
+			ids.addAll( second.next( 7 ).asList() );
+		}
+
+		assertEquals( 70, ids.size() );
+		for ( final Long id : ids ) {
+			assertTrue( id < nextInSequence() );
+		}
+	}
+
+
+	private static long nextInSequence() throws Exception {
+		return TestDatabase.query( "SELECT next_id FROM sequences WHERE name = ?", "test" );
+	}
+
+
+	private static void assertIds( final LongList ids, final long... expected ) {
+		assertEquals( expected.length, ids.size() );
+		for ( int i = 0; i < expected.length; i++ ) {
+			assertEquals( expected[i], ids.get( i ) );
+		}
+	}
+
+}
@@ -0,0 +1,257 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.core.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.atomictagging.core.types.Atom;
+import org.atomictagging.core.types.IAtom;
+import org.atomictagging.core.types.IMolecule;
+import org.atomictagging.core.types.Molecule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that the {@link LogStore} gets back to the same catalog after a restart, from the log, from snapshots and
+ * from a log that was cut off in the middle of a record.
+ */
+public class LogStoreTest {
+
+	private File	dir;
+
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile( "logstore", "" );
+		dir.delete();
+	}
+
+
+	@After
+	public void tearDown() {
+		LogStore.close();
+
+		final File[] files = dir.listFiles();
+		if ( files != null ) {
+			for ( final File file : files ) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+
+	@Test
+	public void replaysTheLog() throws IOException {
+		LogStore store = LogStore.open( dir, false, 1000 );
+		final long first = saveMolecule( store, "first", "text", "red" );
+		final long second = saveMolecule( store, "second", "text", "blue" );
+		store.removeMolecules( Arrays.asList( second ) );
+
+		final IMolecule molecule = store.getMolecule( first );
+		store.modifyMolecule( Molecule.build().withId( first ).withAtoms( molecule.getAtoms() ).withTag( "green" )
+				.buildWithAtomsAndTags() );
+
+		store = LogStore.open( dir, false, 1000 );
+
+		assertEquals( Arrays.asList( "green" ), store.getMolecule( first ).getTags() );
+		assertEquals( "first", store.getMolecule( first ).getAtoms().get( 0 ).getData() );
+		assertNull( store.getMolecule( second ) );
+		assertNull( store.findAtom( "second" ) );
+		assertEquals( 1, store.findMolecules( Arrays.asList( "green" ) ).cardinality() );
+		assertTrue( store.findMolecules( Arrays.asList( "red" ) ).isEmpty() );
+	}
+
+
+	@Test
+	public void continuesWithNewIdsAfterReplay() throws IOException {
+		LogStore store = LogStore.open( dir, false, 1000 );
+		final long first = saveMolecule( store, "first", "text", "red" );
+		final long atomId = store.findAtom( "first" ).getId();
+
+		store = LogStore.open( dir, false, 1000 );
+		final long second = saveMolecule( store, "second", "text", "red" );
+
+		assertTrue( second > first );
+		assertTrue( store.findAtom( "second" ).getId() > atomId );
+	}
+
+
+	@Test
+	public void cutsOffTornRecordAtTheEndOfTheLog() throws IOException {
+		LogStore store = LogStore.open( dir, false, 1000 );
+		final long first = saveMolecule( store, "first", "text", "red" );
+		LogStore.close();
+
+		final File log = new File( dir, "log.0" );
+		final long valid = log.length();
+
+		// The length of a record and its checksum, but only a part of the record itself.
+		final FileOutputStream out = new FileOutputStream( log, true );
+		try {
+			out.write( new byte[] { 0, 0, 0, 100, 1, 2, 3, 4, 5, 6 } );
+		} finally {
+			out.close();
+		}
+
+		store = LogStore.open( dir, false, 1000 );
+		assertEquals( valid, log.length() );
+		assertNotNull( store.getMolecule( first ) );
+
+		// Records written after the repair are found again.
+		final long second = saveMolecule( store, "second", "text", "blue" );
+		store = LogStore.open( dir, false, 1000 );
+		assertNotNull( store.getMolecule( first ) );
+		assertNotNull( store.getMolecule( second ) );
+	}
+
+
+	@Test
+	public void cutsOffRecordWithWrongChecksum() throws IOException {
+		LogStore store = LogStore.open( dir, false, 1000 );
+		final long first = saveMolecule( store, "first", "text", "red" );
+		final File log = new File( dir, "log.0" );
+		final long valid = log.length();
+
+		store.saveTag( "lonely" );
+		LogStore.close();
+
+		// Damage the last byte of the tag record.
+		final RandomAccessFile file = new RandomAccessFile( log, "rw" );
+		try {
+			file.seek( file.length() - 1 );
+			final int last = file.read();
+			file.seek( file.length() - 1 );
+			file.write( last ^ 0xff );
+		} finally {
+			file.close();
+		}
+
+		store = LogStore.open( dir, false, 1000 );
+		assertEquals( valid, log.length() );
+		assertNotNull( store.getMolecule( first ) );
+		assertFalse( store.getTags().contains( "lonely" ) );
+	}
+
+
+	@Test
+	public void snapshotStartsNewGeneration() throws IOException {
+		LogStore store = LogStore.open( dir, false, 1000 );
+		final long first = saveMolecule( store, "first", "text", "red" );
+		store.snapshot();
+		final long second = saveMolecule( store, "second", "text", "blue" );
+
+		assertEquals( Arrays.asList( "log.1", "snapshot.1" ), files() );
+
+		store = LogStore.open( dir, false, 1000 );
+		assertEquals( "first", store.getMolecule( first ).getAtoms().get( 0 ).getData() );
+		assertEquals( "second", store.getMolecule( second ).getAtoms().get( 0 ).getData() );
+		assertEquals( Arrays.asList( "text" ), store.getAtom( store.findAtom( "second" ).getId() ).getTypes() );
+	}
+
+
+	@Test
+	public void snapshotsAreWrittenAutomatically() throws IOException {
+		LogStore store = LogStore.open( dir, false, 5 );
+		final List<Long> ids = new ArrayList<Long>();
+		for ( int i = 0; i < 20; i++ ) {
+			ids.add( saveMolecule( store, "atom " + i, "text", "tag " + i % 3 ) );
+		}
+
+		// Only the latest generation is kept.
+		final List<String> files = files();
+		assertEquals( 2, files.size() );
+		assertTrue( files.get( 0 ).startsWith( "log." ) );
+		assertEquals( files.get( 0 ).substring( 4 ), files.get( 1 ).substring( 9 ) );
+
+		store = LogStore.open( dir, false, 5 );
+		for ( int i = 0; i < 20; i++ ) {
+			assertEquals( "atom " + i, store.getMolecule( ids.get( i ) ).getAtoms().get( 0 ).getData() );
+		}
+		assertEquals( 7, store.findMolecules( Arrays.asList( "tag 0" ) ).cardinality() );
+	}
+
+
+	@Test
+	public void snapshotLeavesOutUnusedTagsAndTypes() throws IOException {
+		LogStore store = LogStore.open( dir, false, 1000 );
+		final long kept = saveMolecule( store, "kept", "text", "red" );
+		final long removed = saveMolecule( store, "removed", "image", "blue" );
+		store.removeMolecules( Arrays.asList( removed ) );
+		store.snapshot();
+
+		store = LogStore.open( dir, false, 1000 );
+		assertEquals( Arrays.asList( "red" ), store.getTags() );
+		assertEquals( Arrays.asList( "text" ), store.getTypes() );
+		assertNotNull( store.getMolecule( kept ) );
+	}
+
+
+	@Test
+	public void damagedSnapshotIsAnError() throws IOException {
+		final LogStore store = LogStore.open( dir, false, 1000 );
+		saveMolecule( store, "first", "text", "red" );
+		store.snapshot();
+		LogStore.close();
+
+		final File snapshot = new File( dir, "snapshot.1" );
+		final RandomAccessFile file = new RandomAccessFile( snapshot, "rw" );
+		try {
+			file.setLength( file.length() - 1 );
+		} finally {
+			file.close();
+		}
+
+		try {
+			LogStore.open( dir, false, 1000 );
+			fail( "A damaged snapshot must not be read silently." );
+		} catch ( final IOException e ) {
+			// Expected, only the tail of the log may be cut off.
+		}
+	}
+
+
+	private static long saveMolecule( final LogStore store, final String data, final String type, final String tag )
+			throws IOException {
+		final IAtom atom = Atom.build().withData( data ).withType( type ).buildWithDataAndType();
+		final IMolecule molecule = Molecule.build().withAtom( atom ).withTag( tag ).buildWithAtomsAndTags();
+		return store.saveMolecules( Arrays.asList( molecule ) ).get( 0 );
+	}
+
+
+	/**
+	 * @return The names of the files in the store directory in alphabetical order
+	 */
+	private List<String> files() {
+		final List<String> names = new ArrayList<String>( Arrays.asList( dir.list() ) );
+		Collections.sort( names );
+		return names;
+	}
+
+}
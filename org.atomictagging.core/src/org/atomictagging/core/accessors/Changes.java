@@ -0,0 +1,114 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.core.accessors;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the changes committed to the catalog in a row of the sequences table. Copies of the catalog kept outside of
+ * the database, like the snapshot file of the read model, remember the count they are based on and can tell whether
+ * they are outdated, no matter which application changed the database.
+ * <p>
+ * Writers {@link #count(Connection)} every change on the connection they wrote it on. Within a {@link Transaction}
+ * the counter is updated once right before the outermost transaction commits, so the row is locked only briefly.
+ * The changes committed by this application are counted in memory as well, see {@link #own()}.
+ * </p>
+ */
+public final class Changes {
+
+	/**
+	 * Name of the row in the sequences table.
+	 */
+	final static String				SEQUENCE	= "changes";
+
+	private final static String		UPDATE		= "UPDATE sequences SET next_id = next_id + 1 WHERE name = ?";
+	private final static String		READ		= "SELECT next_id FROM sequences WHERE name = ?";
+
+	private final static AtomicLong	OWN			= new AtomicLong();
+
+
+	private Changes() {
+		// Utility class
+	}
+
+
+	/**
+	 * Counts a change written on the connection. Within a transaction the change is counted when the transaction
+	 * commits, otherwise right away.
+	 * 
+	 * @param conn
+	 * @throws SQLException
+	 */
+	public static void count( final Connection conn ) throws SQLException {
+		if ( !Transaction.changed( conn ) ) {
+			increment( conn );
+			committed();
+		}
+	}
+
+
+	/**
+	 * @return The number of changes committed to the database by anybody
+	 * @throws SQLException
+	 */
+	public static long read() throws SQLException {
+		Connection conn = null;
+		PreparedStatement statement = null;
+
+		try {
+			conn = DB.getConnection();
+			statement = conn.prepareStatement( READ );
+			statement.setString( 1, SEQUENCE );
+			final ResultSet result = statement.executeQuery();
+			return result.next() ? result.getLong( 1 ) : 0;
+		} finally {
+			DB.release( conn, statement );
+		}
+	}
+
+
+	/**
+	 * @return The number of changes committed by this application since it started
+	 */
+	public static long own() {
+		return OWN.get();
+	}
+
+
+	/**
+	 * Updates the counter as part of the transaction open on the connection.
+	 */
+	static void increment( final Connection conn ) throws SQLException {
+		final PreparedStatement statement = conn.prepareStatement( UPDATE );
+		try {
+			statement.setString( 1, SEQUENCE );
+			statement.execute();
+		} finally {
+			statement.close();
+		}
+	}
+
+
+	/**
+	 * Called once an incremented counter has been committed.
+	 */
+	static void committed() {
+		OWN.incrementAndGet();
+	}
+
+}
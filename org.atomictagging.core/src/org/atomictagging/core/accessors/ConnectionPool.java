@@ -0,0 +1,293 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.core.accessors;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed size pool of JDBC connections.
+ * <p>
+ * Connections are handed out per thread. A thread that borrows a connection while it already holds one gets the same
+ * connection again and has to release it just as often. This way a service can open a transaction and call other
+ * services which will then take part in that transaction, while independent threads work on connections of their own.
+ * </p>
+ * <p>
+ * Idle connections are validated before they are handed out. Broken connections are thrown away and replaced by a new
+ * one, retrying a configurable number of times if the database can't be reached.
+ * </p>
+ */
+public class ConnectionPool {
+
+	private final String							url;
+	private final String							user;
+	private final String							pass;
+	private final int								size;
+	private final int								validationTimeout;
+	private final int								reconnectAttempts;
+	private final long								reconnectDelay;
+	private final long								borrowTimeout;
+
+	private final LinkedBlockingQueue<Connection>	idle		= new LinkedBlockingQueue<Connection>();
+	private final AtomicInteger						open		= new AtomicInteger();
+	private final ThreadLocal<Lease>				leases		= new ThreadLocal<Lease>();
+	private final Map<Connection, Boolean>			independent	= new ConcurrentHashMap<Connection, Boolean>();
+	private volatile boolean						closed		= false;
+
+
+	/**
+	 * Create a new pool. No connection is opened until the first one is borrowed.
+	 * 
+	 * @param url
+	 *            JDBC URL of the database
+	 * @param user
+	 * @param pass
+	 * @param size
+	 *            Maximum number of open connections, at least two since a thread that holds its shared connection may
+	 *            need an independent one as well
+	 * @param validationTimeout
+	 *            Seconds to wait for an idle connection to prove that it is still alive
+	 * @param reconnectAttempts
+	 *            How often to try to open a new connection before giving up
+	 * @param reconnectDelay
+	 *            Milliseconds to wait between two reconnect attempts
+	 * @param borrowTimeout
+	 *            Milliseconds to wait for a connection if all connections are in use
+	 */
+	public ConnectionPool( final String url, final String user, final String pass, final int size,
+			final int validationTimeout, final int reconnectAttempts, final long reconnectDelay,
+			final long borrowTimeout ) {
+		if ( size < 2 ) {
+			throw new IllegalArgumentException( "The connection pool must hold at least two connections." );
+		}
+
+		this.url = url;
+		this.user = user;
+		this.pass = pass;
+		this.size = size;
+		this.validationTimeout = validationTimeout;
+		this.reconnectAttempts = Math.max( 1, reconnectAttempts );
+		this.reconnectDelay = reconnectDelay;
+		this.borrowTimeout = borrowTimeout;
+	}
+
+
+	/**
+	 * Borrow a connection from the pool. If the calling thread already holds a connection, this very connection is
+	 * returned. Every call must be matched by a call to {@link #release(Connection)}.
+	 * 
+	 * @return A valid connection
+	 * @throws SQLException
+	 *             If no connection became available in time or the database can't be reached
+	 */
+	public Connection borrow() throws SQLException {
+		if ( closed ) {
+			throw new SQLException( "Connection pool has been closed." );
+		}
+
+		final Lease lease = leases.get();
+		if ( lease != null ) {
+			lease.count++;
+			return lease.connection;
+		}
+
+		final Connection connection = acquire();
+		leases.set( new Lease( connection ) );
+		return connection;
+	}
+
+
+	/**
+	 * Borrow a connection that is not shared with the calling thread. Work done on it is independent of any
+	 * transaction the thread has open on the connection returned by {@link #borrow()}. Note that a thread holding
+	 * both kinds of connections occupies two connections of the pool. The connection must be handed back with
+	 * {@link #release(Connection)}.
+	 * 
+	 * @return A valid connection
+	 * @throws SQLException
+	 *             If no connection became available in time or the database can't be reached
+	 */
+	public Connection borrowIndependent() throws SQLException {
+		if ( closed ) {
+			throw new SQLException( "Connection pool has been closed." );
+		}
+
+		final Connection connection = acquire();
+		independent.put( connection, Boolean.TRUE );
+		return connection;
+	}
+
+
+	/**
+	 * Hand a connection back to the pool. A shared connection only becomes available to other threads once it was
+	 * released as often as it was borrowed by the current thread. Unfinished transactions are rolled back.
+	 * 
+	 * @param connection
+	 */
+	public void release( final Connection connection ) {
+		if ( connection == null ) {
+			return;
+		}
+
+		if ( independent.remove( connection ) != null ) {
+			recycle( connection );
+			return;
+		}
+
+		final Lease lease = leases.get();
+		if ( lease == null || lease.connection != connection ) {
+			throw new IllegalStateException( "Connection was not borrowed by this thread." );
+		}
+
+		if ( --lease.count > 0 ) {
+			return;
+		}
+
+		leases.remove();
+		recycle( connection );
+	}
+
+
+	/**
+	 * Close all idle connections and refuse to hand out new ones. Connections that are currently in use get closed
+	 * when they are released.
+	 */
+	public void close() {
+		closed = true;
+
+		Connection connection;
+		while ( ( connection = idle.poll() ) != null ) {
+			discard( connection );
+		}
+	}
+
+
+	private Connection acquire() throws SQLException {
+		Connection connection = idle.poll();
+
+		if ( connection == null && open.incrementAndGet() > size ) {
+			open.decrementAndGet();
+
+			try {
+				connection = idle.poll( borrowTimeout, TimeUnit.MILLISECONDS );
+			} catch ( final InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				throw new SQLException( "Interrupted while waiting for a database connection." );
+			}
+
+			if ( connection == null ) {
+				throw new SQLException( "Timed out waiting for a database connection. All " + size
+						+ " connections are in use." );
+			}
+		}
+
+		if ( connection == null ) {
+			connection = connect();
+		} else if ( !isValid( connection ) ) {
+			discard( connection );
+			open.incrementAndGet();
+			connection = connect();
+		}
+
+		return connection;
+	}
+
+
+	/**
+	 * Rolls back unfinished work and puts the connection back into the idle queue.
+	 */
+	private void recycle( final Connection connection ) {
+		try {
+			if ( !connection.getAutoCommit() ) {
+				connection.rollback();
+				connection.setAutoCommit( true );
+			}
+		} catch ( final SQLException e ) {
+			discard( connection );
+			return;
+		}
+
+		if ( closed ) {
+			discard( connection );
+			return;
+		}
+
+		idle.offer( connection );
+	}
+
+
+	private boolean isValid( final Connection connection ) {
+		try {
+			return !connection.isClosed() && connection.isValid( validationTimeout );
+		} catch ( final SQLException e ) {
+			return false;
+		}
+	}
+
+
+	private Connection connect() throws SQLException {
+		SQLException cause = null;
+
+		for ( int attempt = 1; attempt <= reconnectAttempts; attempt++ ) {
+			try {
+				return DriverManager.getConnection( url, user, pass );
+			} catch ( final SQLException e ) {
+				cause = e;
+			}
+
+			if ( attempt < reconnectAttempts ) {
+				try {
+					Thread.sleep( reconnectDelay );
+				} catch ( final InterruptedException e ) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+
+		open.decrementAndGet();
+		throw cause;
+	}
+
+
+	private void discard( final Connection connection ) {
+		open.decrementAndGet();
+
+		try {
+			connection.close();
+		} catch ( final SQLException ignore ) {
+			// Nothing we can do, the connection is gone anyway.
+		}
+	}
+
+	/**
+	 * Book keeping of the connection a thread currently holds.
+	 */
+	private static class Lease {
+		private final Connection	connection;
+		private int					count	= 1;
+
+
+		Lease( final Connection connection ) {
+			this.connection = connection;
+		}
+	}
+
+}
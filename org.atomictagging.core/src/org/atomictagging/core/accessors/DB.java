@@ -14,19 +14,22 @@
 package org.atomictagging.core.accessors;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
 
 import org.apache.commons.configuration.CombinedConfiguration;
 import org.atomictagging.core.configuration.Configuration;
 
 /**
- * A class holding the connection to the MySQL server
+ * A class holding the pool of connections to the database and its {@link Dialect}
  */
 public class DB {
-	/**
-	 * Connection to the MySQL server.
-	 */
-	public static Connection	CONN;
+
+	private static volatile ConnectionPool	POOL;
+	private static Dialect					DIALECT;
+	private static String					URL;
 
 
 	private DB() {
@@ -35,29 +38,174 @@ public class DB {
 
 
 	/**
-	 * Initializes the connection to the DB by retrieving all required data from the configuration and trying to
-	 * connect.
+	 * Initializes the connection pool by retrieving all required data from the configuration and trying to connect.
+	 * The database engine is chosen by the type, see {@link Dialect}. Afterwards the schema is brought up to date, see
+	 * {@link Migrations}. Besides the connection parameters, the following optional keys of the database section are
+	 * regarded:
+	 * <ul>
+	 * <li>poolsize - Maximum number of connections held open at the same time (default 4, at least 2 or 3 if the
+	 * {@link OrphanCollector} runs in the background)</li>
+	 * <li>validationtimeout - Seconds to wait for an idle connection to respond before replacing it (default 2)</li>
+	 * <li>reconnectattempts - How often to try to (re-)connect before giving up (default 3)</li>
+	 * <li>reconnectdelay - Milliseconds to wait between two connection attempts (default 1000)</li>
+	 * <li>borrowtimeout - Milliseconds to wait for a free connection if all are in use (default 30000)</li>
+	 * </ul>
 	 * 
 	 * @throws Exception
 	 *             If either loading of the driver or connecting to the DB failed for whatever reason
 	 */
 	public static void init() throws Exception {
-		Class.forName( "com.mysql.jdbc.Driver" );
-
 		final CombinedConfiguration conf = Configuration.get();
+		final Dialect dialect = Dialect.get( conf );
 
-		final String type = conf.getString( "database.type" );
-		final String host = conf.getString( "database.host" );
-		final String db = conf.getString( "database.db" );
-		final String user = conf.getString( "database.user" );
-		final String pass = conf.getString( "database.pass" );
+		Class.forName( dialect.getDriver() );
 
-		if ( type == null || host == null || db == null || user == null ) {
-			throw new Exception(
-					"Failed to load database configuration. Please specify valid values for database type, host, name and user." );
+		final String connectString = dialect.getUrl( conf );
+		final String user = conf.getString( "database.user", dialect.isEmbedded() ? "sa" : null );
+		final String pass = conf.getString( "database.pass", "" );
+
+		// A thread holding its shared connection may borrow an independent one, so one connection would dead lock. The
+		// background collector holds another one while it removes a batch.
+		final int minimum = conf.getBoolean( "collector.enabled", false ) ? 3 : 2;
+		final int size = Math.max( minimum, conf.getInt( "database.poolsize", 4 ) );
+		final ConnectionPool pool = new ConnectionPool( connectString, user, pass, size, conf.getInt(
+				"database.validationtimeout", 2 ), conf.getInt( "database.reconnectattempts", 3 ), conf.getLong(
+				"database.reconnectdelay", 1000 ), conf.getLong( "database.borrowtimeout", 30000 ) );
+
+		// Fail early if the database can't be reached at all.
+		pool.release( pool.borrow() );
+
+		if ( POOL != null ) {
+			POOL.close();
 		}
+		POOL = pool;
+		DIALECT = dialect;
+		URL = connectString;
+
+		Migrations.run();
+	}
+
+
+	/**
+	 * @return The dialect of the database in use or null if the database has not been initialized
+	 */
+	public static Dialect getDialect() {
+		return DIALECT;
+	}
+
 
-		final String connectString = "jdbc:" + type + "://" + host + "/" + db;
-		CONN = DriverManager.getConnection( connectString, user, pass );
+	/**
+	 * @return The JDBC URL of the database in use, which identifies it, or null if the database has not been
+	 *         initialized
+	 */
+	public static String getUrl() {
+		return URL;
+	}
+
+
+	/**
+	 * Borrows a connection from the pool. Calls from within the same thread will return the same connection until it
+	 * was released as often as it was borrowed. Hence a service can start a transaction and all services it calls will
+	 * take part in that transaction.
+	 * 
+	 * @return A valid connection to the database
+	 * @throws SQLException
+	 *             If no connection could be acquired
+	 * @see #release(Connection, Statement...)
+	 */
+	public static Connection getConnection() throws SQLException {
+		if ( POOL == null ) {
+			throw new SQLException( "Database has not been initialized." );
+		}
+		return POOL.borrow();
+	}
+
+
+	/**
+	 * Borrows a connection that is not shared with the calling thread, e.g. to commit something right away while the
+	 * thread has a transaction open on its shared connection.
+	 * 
+	 * @return A valid connection to the database
+	 * @throws SQLException
+	 *             If no connection could be acquired
+	 * @see #release(Connection, Statement...)
+	 */
+	public static Connection getIndependentConnection() throws SQLException {
+		if ( POOL == null ) {
+			throw new SQLException( "Database has not been initialized." );
+		}
+		return POOL.borrowIndependent();
+	}
+
+
+	/**
+	 * Prepares a statement that hands out its rows while they are read from the database instead of reading the whole
+	 * result into memory first. As long as such a result is open, the connection can't be used for other statements,
+	 * so it should be an independent one.
+	 * 
+	 * @param connection
+	 * @param sql
+	 * @return A forward only, read only statement
+	 * @throws SQLException
+	 * @see #getIndependentConnection()
+	 */
+	public static PreparedStatement prepareStreaming( final Connection connection, final String sql )
+			throws SQLException {
+		final PreparedStatement statement = connection.prepareStatement( sql, ResultSet.TYPE_FORWARD_ONLY,
+				ResultSet.CONCUR_READ_ONLY );
+		DIALECT.setStreaming( statement );
+		return statement;
+	}
+
+
+	/**
+	 * Closes the given statements and hands the connection back to the pool. Both the connection and any of the
+	 * statements may be null, so this can safely be called from a finally block. A connection released after
+	 * {@link #shutdown()} is closed.
+	 * 
+	 * @param connection
+	 *            The connection as returned by {@link #getConnection()} or {@link #getIndependentConnection()}
+	 * @param statements
+	 *            Statements that were created on this connection and are no longer used
+	 */
+	public static void release( final Connection connection, final Statement... statements ) {
+		for ( final Statement statement : statements ) {
+			if ( statement == null ) {
+				continue;
+			}
+
+			try {
+				statement.close();
+			} catch ( final SQLException e ) {
+				e.printStackTrace();
+			}
+		}
+
+		if ( connection == null ) {
+			return;
+		}
+
+		final ConnectionPool pool = POOL;
+		if ( pool != null ) {
+			pool.release( connection );
+			return;
+		}
+
+		try {
+			connection.close();
+		} catch ( final SQLException e ) {
+			e.printStackTrace();
+		}
+	}
+
+
+	/**
+	 * Closes all connections to the database.
+	 */
+	public static void shutdown() {
+		if ( POOL != null ) {
+			POOL.close();
+			POOL = null;
+		}
 	}
 }
@@ -13,84 +13,134 @@
  */
 package org.atomictagging.core.accessors;
 
+import java.io.IOException;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
-import org.apache.commons.lang.NotImplementedException;
 import org.atomictagging.core.services.ATService;
+import org.atomictagging.core.services.impl.Dictionaries;
+import org.atomictagging.core.services.impl.Indexes;
+import org.atomictagging.core.services.impl.InvertedIndex;
+import org.atomictagging.core.services.impl.ReadModel;
+import org.atomictagging.core.store.LogStore;
 import org.atomictagging.core.types.IAtom;
 import org.atomictagging.core.types.IMolecule;
+import org.atomictagging.utils.StringUtils;
+import org.atomictagging.utils.collections.LongObjectMap;
+import org.atomictagging.utils.collections.LongSet;
 
 /**
  * A class that handles modifications of atoms and molecules.
+ * <p>
+ * Both kinds of modifications read the IDs of the links currently stored, compare them to the given entity and write
+ * only the differences as batched statements. Everything is done in one transaction. If the calling thread already has
+ * a transaction open on its connection, the modification takes part in that transaction instead, see
+ * {@link Transaction}. The indexes and the read model are updated once the transaction is committed.
+ * </p>
  */
 public class DbModifier {
 
+	private final static String	UPDATE_ATOM			= "UPDATE atoms SET data = ?, hash = ? WHERE atomid = ?";
+	private final static String	READ_ATOM_TYPES		= "SELECT types_typeid FROM atom_has_types WHERE atoms_atomid = ?";
+	private final static String	INSERT_ATOM_TYPE	= "INSERT INTO atom_has_types (atoms_atomid, types_typeid) VALUES (?, ?)";
+	private final static String	DELETE_ATOM_TYPE	= "DELETE FROM atom_has_types WHERE atoms_atomid = ? AND types_typeid = ?";
+
+	private final static String	READ_TAGS			= "SELECT tags_tagid FROM molecule_has_tags WHERE molecules_moleculeid = ?";
+	private final static String	INSERT_TAG			= "INSERT INTO molecule_has_tags (molecules_moleculeid, tags_tagid) VALUES (?, ?)";
+	private final static String	DELETE_TAG			= "DELETE FROM molecule_has_tags WHERE molecules_moleculeid = ? AND tags_tagid = ?";
+
+	private final static String	READ_ATOMS			= "SELECT atoms_atomid FROM molecule_has_atoms WHERE molecules_moleculeid = ?";
+	private final static String	INSERT_ATOM			= "INSERT INTO molecule_has_atoms (molecules_moleculeid, atoms_atomid) VALUES (?, ?)";
+	private final static String	DELETE_ATOM			= "DELETE FROM molecule_has_atoms WHERE molecules_moleculeid = ? AND atoms_atomid = ?";
+
+
 	/**
-	 * Update a previously loaded atom.
+	 * Update a previously loaded atom, i.e. its data and its types.
 	 * 
 	 * @param atom
 	 */
 	public static void modify( final IAtom atom ) {
-		throw new NotImplementedException( "Currently not supported. Will be again soon!" );
-		// if ( atom.getId() == 0 ) {
-		// throw new IllegalArgumentException( "Can't modify atom that has no ID." );
-		// }
-		//
-		// try {
-		// final PreparedStatement statement = DB.CONN.prepareStatement( "UPDATE atoms SET data = ? WHERE atomid = ?" );
-		// statement.setString( 1, atom.getData() );
-		// statement.setLong( 2, atom.getId() );
-		// statement.execute();
-		// } catch ( final SQLException e ) {
-		// // TODO Auto-generated catch block
-		// e.printStackTrace();
-		// }
-		//
-		// try {
-		// final IAtom reference = ATService.getAtomService().find( atom.getId() );
-		//
-		// final List<String> curTags = new ArrayList<String>( atom.getTags() );
-		// final List<String> refTags = new ArrayList<String>( reference.getTags() );
-		//
-		// curTags.removeAll( reference.getTags() );
-		// refTags.removeAll( atom.getTags() );
-		//
-		// // curTags now contains tags that need to be added to the atom.
-		// // refTags now contains tags that need to be removed from the atom.
-		//
-		// // For all tags in curTags, check whether tag exists and create link to atom.
-		// for ( final String tag : curTags ) {
-		// // FIXME Gaaah!
-		// final long tagId = DbWriter.writeTag( tag );
-		// DbWriter.insertAtomTags.setLong( 1, atom.getId() );
-		// DbWriter.insertAtomTags.setLong( 2, tagId );
-		// DbWriter.insertAtomTags.execute();
-		// }
-		//
-		// // For all tags in refTags, remove link from atom and check whether the tag can be removed.
-		// final PreparedStatement removeTag = DB.CONN
-		// .prepareStatement( "DELETE FROM atom_has_tags WHERE atoms_atomid = ? AND tags_tagid = ?" );
-		//
-		// for ( final String tag : refTags ) {
-		// final long tagId = DbWriter.writeTag( tag );
-		// removeTag.setLong( 1, atom.getId() );
-		// removeTag.setLong( 2, tagId );
-		// removeTag.execute();
-		// }
-		//
-		// // TODO check for obsolete tags that need to be removed.
-		// } catch ( final SQLException e ) {
-		// // TODO Auto-generated catch block
-		// e.printStackTrace();
-		// }
+		if ( atom.getId() <= 0 ) {
+			throw new IllegalArgumentException( "Can't modify atom that has no ID." );
+		}
+
+		final LogStore store = LogStore.get();
+		if ( store != null ) {
+			try {
+				store.modifyAtom( atom );
+			} catch ( final IOException e ) {
+				e.printStackTrace();
+			}
+			return;
+		}
+
+		final LongSet wanted = new LongSet();
+		final LongSet added = new LongSet();
+		final LongSet removed = new LongSet();
+		Connection conn = null;
+		PreparedStatement updateAtom = null;
+		Transaction transaction = null;
+
+		try {
+			conn = DB.getConnection();
+			transaction = Transaction.begin( conn );
+
+			updateAtom = conn.prepareStatement( UPDATE_ATOM );
+			updateAtom.setString( 1, atom.getData() );
+			updateAtom.setString( 2, StringUtils.getHashSum( atom.getData() ) );
+			updateAtom.setLong( 3, atom.getId() );
+			updateAtom.execute();
+
+			wanted.addAll( Dictionaries.types().saveAndLock( conn, atom.getTypes() ).values() );
+
+			diff( readIds( conn, READ_ATOM_TYPES, atom.getId() ), wanted, added, removed );
+			batch( conn, INSERT_ATOM_TYPE, atom.getId(), added );
+			batch( conn, DELETE_ATOM_TYPE, atom.getId(), removed );
+
+			Changes.count( conn );
+			Transaction.afterCommit( conn, new Runnable() {
+				@Override
+				public void run() {
+					final InvertedIndex typeIndex = Indexes.types();
+					if ( typeIndex != null ) {
+						for ( int i = 0; i < added.size(); i++ ) {
+							typeIndex.add( added.get( i ), atom.getId() );
+						}
+						for ( int i = 0; i < removed.size(); i++ ) {
+							typeIndex.remove( removed.get( i ), atom.getId() );
+						}
+					}
+
+					final ReadModel model = ReadModel.get();
+					if ( model != null ) {
+						model.putAtom( atom.getId(), atom.getData(), wanted );
+					}
+				}
+			} );
+
+			transaction.commit();
+		} catch ( final SQLException e ) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+			if ( transaction != null ) {
+				transaction.rollback();
+			}
+		} finally {
+			// Releasing the connection rolls back whatever has not been committed.
+			DB.release( conn, updateAtom );
+		}
 	}
 
 
 	/**
-	 * Update a previously loaded molecule.
+	 * Update a previously loaded molecule, i.e. its tags and the atoms it consists of. Atoms that have not been saved
+	 * yet are saved first. Atoms that are no longer part of any molecule are left to the {@link OrphanCollector}, just
+	 * like unused tags, unless the catalog is kept in the {@link LogStore}, which removes them right away.
 	 * 
 	 * @param molecule
 	 */
@@ -99,75 +149,171 @@ public class DbModifier {
 			throw new IllegalArgumentException( "Can't modify molecule that has no ID." );
 		}
 
-		try {
-			final IMolecule reference = ATService.getMoleculeService().find( molecule.getId() );
+		final LogStore store = LogStore.get();
+		if ( store != null ) {
+			try {
+				store.modifyMolecule( molecule );
+			} catch ( final IOException e ) {
+				e.printStackTrace();
+			}
+			return;
+		}
 
-			final List<String> curTags = new ArrayList<String>( molecule.getTags() );
-			final List<String> refTags = new ArrayList<String>( reference.getTags() );
+		final long moleculeId = molecule.getId();
+		final LongSet addedTags = new LongSet();
+		final LongSet removedTags = new LongSet();
+		final LongSet addedAtoms = new LongSet();
+		final LongSet removedAtoms = new LongSet();
+		final LongSet wantedTags = new LongSet();
+		final LongSet wantedAtoms = new LongSet();
+		final RefCounts refCounts = new RefCounts();
+		Connection conn = null;
+		Transaction transaction = null;
 
-			curTags.removeAll( reference.getTags() );
-			refTags.removeAll( molecule.getTags() );
+		try {
+			conn = DB.getConnection();
+			transaction = Transaction.begin( conn );
 
-			// curTags now contains tags that need to be added to the molecule.
-			// refTags now contains tags that need to be removed from the molecule.
+			for ( final String tag : molecule.getTags() ) {
+				wantedTags.add( Dictionaries.tags().save( tag ) );
+			}
 
-			// For all tags in curTags, check whether tag exists and create link to atom.
-			final PreparedStatement insertTags = DB.CONN
-					.prepareStatement( "INSERT INTO molecule_has_tags (molecules_moleculeid, tags_tagid) VALUES (?, ?)" );
-			insertTags.setLong( 1, molecule.getId() );
+			diff( readIds( conn, READ_TAGS, moleculeId ), wantedTags, addedTags, removedTags );
+			atomIds( molecule.getAtoms(), wantedAtoms );
+			diff( readIds( conn, READ_ATOMS, moleculeId ), wantedAtoms, addedAtoms, removedAtoms );
 
-			for ( final String tag : curTags ) {
-				final long tagId = ATService.getTagService().save( tag );
-				insertTags.setLong( 2, tagId );
-				insertTags.execute();
+			// The reference counts lock the tags and atoms before they are linked, see RefCounts.
+			for ( int i = 0; i < addedTags.size(); i++ ) {
+				refCounts.tag( addedTags.get( i ), 1 );
+			}
+			for ( int i = 0; i < removedTags.size(); i++ ) {
+				refCounts.tag( removedTags.get( i ), -1 );
 			}
+			for ( int i = 0; i < addedAtoms.size(); i++ ) {
+				refCounts.atom( addedAtoms.get( i ), 1 );
+			}
+			for ( int i = 0; i < removedAtoms.size(); i++ ) {
+				refCounts.atom( removedAtoms.get( i ), -1 );
+			}
+			refCounts.write( conn );
+
+			batch( conn, INSERT_TAG, moleculeId, addedTags );
+			batch( conn, DELETE_TAG, moleculeId, removedTags );
+			batch( conn, INSERT_ATOM, moleculeId, addedAtoms );
+			batch( conn, DELETE_ATOM, moleculeId, removedAtoms );
+
+			Changes.count( conn );
+			Transaction.afterCommit( conn, new Runnable() {
+				@Override
+				public void run() {
+					final InvertedIndex tagIndex = Indexes.tags();
+					if ( tagIndex != null ) {
+						for ( int i = 0; i < addedTags.size(); i++ ) {
+							tagIndex.add( addedTags.get( i ), moleculeId );
+						}
+						for ( int i = 0; i < removedTags.size(); i++ ) {
+							tagIndex.remove( removedTags.get( i ), moleculeId );
+						}
+					}
 
-			// For all tags in refTags, remove link from atom and check whether the tag can be removed.
-			final PreparedStatement removeTag = DB.CONN
-					.prepareStatement( "DELETE FROM molecule_has_tags WHERE molecules_moleculeid = ? AND tags_tagid = ?" );
+					final ReadModel model = ReadModel.get();
+					if ( model != null ) {
+						final LongObjectMap<LongSet> atomIds = new LongObjectMap<LongSet>( 1 );
+						final LongObjectMap<LongSet> tagIds = new LongObjectMap<LongSet>( 1 );
+						atomIds.put( moleculeId, wantedAtoms );
+						tagIds.put( moleculeId, wantedTags );
+						model.putMolecules( atomIds, tagIds );
+					}
+				}
+			} );
 
-			for ( final String tag : refTags ) {
-				final long tagId = ATService.getTagService().save( tag );
-				removeTag.setLong( 1, molecule.getId() );
-				removeTag.setLong( 2, tagId );
-				removeTag.execute();
+			transaction.commit();
+		} catch ( final SQLException e ) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+			if ( transaction != null ) {
+				transaction.rollback();
 			}
+		} finally {
+			// Releasing the connection rolls back whatever has not been committed.
+			DB.release( conn );
+		}
+	}
+
 
-			// Update the atoms
-			final List<IAtom> curAtoms = new ArrayList<IAtom>( molecule.getAtoms() );
-			final List<IAtom> refAtoms = new ArrayList<IAtom>( reference.getAtoms() );
+	/**
+	 * Adds the IDs of the given atoms to the set, saving those first that don't have an ID yet.
+	 */
+	private static void atomIds( final Collection<IAtom> atoms, final LongSet ids ) throws SQLException {
+		final List<IAtom> unsaved = new ArrayList<IAtom>();
 
-			curAtoms.removeAll( reference.getAtoms() );
-			refAtoms.removeAll( molecule.getAtoms() );
+		for ( final IAtom atom : atoms ) {
+			if ( atom.getId() > 0 ) {
+				ids.add( atom.getId() );
+			} else {
+				unsaved.add( atom );
+			}
+		}
 
-			// curAtoms now contains atoms that need to be added to the molecule.
-			// refAtoms now contains atoms that need to be removed from the molecule.
+		if ( !unsaved.isEmpty() ) {
+			ids.addAll( ATService.getAtomService().save( unsaved ) );
+		}
+	}
 
-			final PreparedStatement addAtom = DB.CONN
-					.prepareStatement( "INSERT INTO molecule_has_atoms (molecules_moleculeid, atoms_atomid) VALUES (?, ?)" );
-			addAtom.setLong( 1, molecule.getId() );
 
-			for ( final IAtom atom : curAtoms ) {
-				addAtom.setLong( 2, atom.getId() );
-				addAtom.execute();
+	/**
+	 * Splits the differences of the two sets into the IDs that need to be added and the ones that need to be removed.
+	 */
+	private static void diff( final LongSet current, final LongSet wanted, final LongSet added, final LongSet removed ) {
+		for ( int i = 0; i < wanted.size(); i++ ) {
+			if ( !current.contains( wanted.get( i ) ) ) {
+				added.add( wanted.get( i ) );
+			}
+		}
+		for ( int i = 0; i < current.size(); i++ ) {
+			if ( !wanted.contains( current.get( i ) ) ) {
+				removed.add( current.get( i ) );
 			}
+		}
+	}
 
-			final PreparedStatement removeAtom = DB.CONN
-					.prepareStatement( "DELETE FROM molecule_has_atoms WHERE molecules_moleculeid = ? AND atoms_atomid = ?" );
-			removeAtom.setLong( 1, molecule.getId() );
 
-			for ( final IAtom atom : refAtoms ) {
-				removeAtom.setLong( 2, atom.getId() );
-				removeAtom.execute();
+	private static LongSet readIds( final Connection conn, final String sql, final long id ) throws SQLException {
+		final LongSet ids = new LongSet();
+		final PreparedStatement statement = conn.prepareStatement( sql );
+
+		try {
+			statement.setLong( 1, id );
+			final ResultSet result = statement.executeQuery();
+			while ( result.next() ) {
+				ids.add( result.getLong( 1 ) );
 			}
+		} finally {
+			statement.close();
+		}
 
-			// TODO check for obsolete tags that need to be removed.
-			// TODO check for orphan atoms that need to be removed
-			// TODO all this needs to be a transaction and of course we remove orphan atoms only at the users request
-		} catch ( final SQLException e ) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		return ids;
+	}
+
+
+	private static void batch( final Connection conn, final String sql, final long owner, final LongSet ids )
+			throws SQLException {
+		if ( ids.isEmpty() ) {
+			return;
 		}
 
+		final PreparedStatement statement = conn.prepareStatement( sql );
+
+		try {
+			statement.setLong( 1, owner );
+			for ( int i = 0; i < ids.size(); i++ ) {
+				statement.setLong( 2, ids.get( i ) );
+				statement.addBatch();
+			}
+			statement.executeBatch();
+		} finally {
+			statement.close();
+		}
 	}
+
 }
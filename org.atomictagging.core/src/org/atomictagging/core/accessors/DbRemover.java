@@ -13,13 +13,21 @@
  */
 package org.atomictagging.core.accessors;
 
+import java.io.IOException;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collection;
 
-import org.atomictagging.core.services.ATService;
-import org.atomictagging.core.types.IAtom;
-import org.atomictagging.core.types.IMolecule;
+import org.atomictagging.core.services.impl.AbstractService;
+import org.atomictagging.core.services.impl.Indexes;
+import org.atomictagging.core.services.impl.InvertedIndex;
+import org.atomictagging.core.services.impl.ReadModel;
+import org.atomictagging.core.store.LogStore;
+import org.atomictagging.utils.collections.LongList;
+import org.atomictagging.utils.collections.LongSet;
 
 /**
  * A class that handles removing atoms or molecules.
@@ -28,87 +36,178 @@ import org.atomictagging.core.types.IMolecule;
  */
 public class DbRemover {
 
+	/**
+	 * Subtracts the links of the molecules in a chunk from the reference counts. Expects the table, its ID column, the
+	 * link table and the IN list of molecule IDs, which needs to be bound twice.
+	 */
+	private final static String	RELEASE_REFERENCES	= "UPDATE %1$s SET refcount = refcount - "
+															+ "(SELECT COUNT(*) FROM %3$s WHERE %1$s_%2$s = %2$s "
+															+ "AND molecules_moleculeid IN %4$s) WHERE %2$s IN "
+															+ "(SELECT %1$s_%2$s FROM %3$s "
+															+ "WHERE molecules_moleculeid IN %4$s)";
+
+	private final static String	READ_ATOMS			= "SELECT DISTINCT atoms_atomid FROM molecule_has_atoms "
+															+ "WHERE molecules_moleculeid IN ";
+
+
 	/**
 	 * Remove the molecule specified by the given ID and all atoms that are not part of another molecule.
 	 * 
 	 * @param id
 	 */
 	public static void removeMolecule( long id ) {
+		removeMolecules( Arrays.asList( id ) );
+	}
+
+
+	/**
+	 * Remove the molecules specified by the given IDs and all atoms that are not part of another molecule afterwards.
+	 * All molecules are removed in one transaction with a fixed number of statements per chunk of
+	 * {@value AbstractService#MAX_IN_LIST} molecules, no matter how many atoms and tags they have. If the calling
+	 * thread already has a transaction open on its connection, the removal takes part in that transaction instead, see
+	 * {@link Transaction}.
+	 * 
+	 * @param ids
+	 * @return The number of molecules that were removed
+	 */
+	public static int removeMolecules( Collection<Long> ids ) {
+		final LogStore store = LogStore.get();
+		if ( store != null ) {
+			try {
+				return store.removeMolecules( ids );
+			} catch ( final IOException e ) {
+				e.printStackTrace();
+				return 0;
+			}
+		}
+
+		final LongSet moleculeIds = new LongSet( ids.size() );
+		moleculeIds.addAll( ids );
+		final LongSet candidates = new LongSet();
+		final LongList orphans = new LongList();
+		final LongList chunkOrphans = new LongList( AbstractService.MAX_IN_LIST );
+		int removed = 0;
+
+		Connection conn = null;
+		PreparedStatement statement = null;
+		Transaction transaction = null;
+
 		try {
-			DB.CONN.setAutoCommit( false );
-
-			IMolecule molecule = ATService.getMoleculeService().find( id );
-
-			// Delete all atoms that are only linked by this one molecule.
-			PreparedStatement checkAtom = DB.CONN
-					.prepareStatement( "SELECT COUNT(*) AS amount FROM molecule_has_atoms WHERE atoms_atomid = ?" );
-			PreparedStatement deleteAtom = DB.CONN.prepareStatement( "DELETE FROM atoms WHERE atomid = ?" );
-			PreparedStatement deleteAtomTags = DB.CONN
-					.prepareStatement( "DELETE FROM atom_has_tags WHERE atoms_atomid = ?" );
-
-			for ( IAtom atom : molecule.getAtoms() ) {
-				checkAtom.setLong( 1, atom.getId() );
-				ResultSet result = checkAtom.executeQuery();
-				result.next();
-				int amount = result.getInt( "amount" );
-
-				if ( amount == 0 ) {
-					DB.CONN.rollback();
-					throw new RuntimeException( "This can't be. There is no link to this atom." );
+			conn = DB.getConnection();
+			transaction = Transaction.begin( conn );
+
+			final long[] molecules = moleculeIds.toArray();
+			for ( int from = 0; from < molecules.length; from += AbstractService.MAX_IN_LIST ) {
+				final int to = Math.min( molecules.length, from + AbstractService.MAX_IN_LIST );
+				final String in = AbstractService.in( to - from );
+
+				// Remember the atoms of the molecules, they might become orphans.
+				statement = prepare( conn, READ_ATOMS + in, molecules, from, to, 1 );
+				final ResultSet atoms = statement.executeQuery();
+				while ( atoms.next() ) {
+					candidates.add( atoms.getLong( 1 ) );
 				}
+				statement.close();
+
+				final String releaseAtoms = String.format( RELEASE_REFERENCES, "atoms", "atomid", "molecule_has_atoms",
+						in );
+				statement = prepare( conn, releaseAtoms, molecules, from, to, 2 );
+				statement.execute();
+				statement.close();
+
+				final String releaseTags = String.format( RELEASE_REFERENCES, "tags", "tagid", "molecule_has_tags",
+						in );
+				statement = prepare( conn, releaseTags, molecules, from, to, 2 );
+				statement.execute();
+				statement.close();
+
+				statement = prepare( conn, "DELETE FROM molecule_has_atoms WHERE molecules_moleculeid IN " + in,
+						molecules, from, to, 1 );
+				statement.execute();
+				statement.close();
+
+				statement = prepare( conn, "DELETE FROM molecule_has_tags WHERE molecules_moleculeid IN " + in,
+						molecules, from, to, 1 );
+				statement.execute();
+				statement.close();
+
+				statement = prepare( conn, "DELETE FROM molecules WHERE moleculeid IN " + in, molecules, from, to, 1 );
+				removed += statement.executeUpdate();
+				statement.close();
+			}
 
-				// Delete all atom links.
-				// TODO This could be done more efficient by removing all links to this molecule with one query.
-				// But this must be done prior to the atom deletion (foreign key) and after the checkAtom statement
-				// (changes the result).
-				PreparedStatement deleteAtomLink = DB.CONN
-						.prepareStatement( "DELETE FROM molecule_has_atoms WHERE molecules_moleculeid = ? AND atoms_atomid = ?" );
-				deleteAtomLink.setLong( 1, molecule.getId() );
-				deleteAtomLink.setLong( 2, atom.getId() );
-				deleteAtomLink.execute();
-
-				if ( amount == 1 ) {
-					deleteAtomTags.setLong( 1, atom.getId() );
-					deleteAtomTags.execute();
-
-					deleteAtom.setLong( 1, atom.getId() );
-					deleteAtom.execute();
+			// Delete all atoms that are no longer linked by any molecule.
+			final long[] atomIds = candidates.toArray();
+			for ( int from = 0; from < atomIds.length; from += AbstractService.MAX_IN_LIST ) {
+				final int to = Math.min( atomIds.length, from + AbstractService.MAX_IN_LIST );
+
+				statement = prepare( conn, "SELECT atomid FROM atoms WHERE refcount = 0 AND atomid IN "
+						+ AbstractService.in( to - from ), atomIds, from, to, 1 );
+				chunkOrphans.clear();
+				final ResultSet result = statement.executeQuery();
+				while ( result.next() ) {
+					chunkOrphans.add( result.getLong( 1 ) );
 				}
-			}
+				statement.close();
 
-			// Delete molecule.
-			PreparedStatement deleteMoleculeTags = DB.CONN
-					.prepareStatement( "DELETE FROM molecule_has_tags WHERE molecules_moleculeid = ?" );
-			deleteMoleculeTags.setLong( 1, molecule.getId() );
-			deleteMoleculeTags.execute();
+				if ( chunkOrphans.isEmpty() ) {
+					continue;
+				}
 
-			PreparedStatement deleteMolecule = DB.CONN.prepareStatement( "DELETE FROM molecules WHERE moleculeid = ?" );
-			deleteMolecule.setLong( 1, molecule.getId() );
-			deleteMolecule.execute();
+				final long[] found = chunkOrphans.toArray();
+				final String in = AbstractService.in( found.length );
+				statement = prepare( conn, "DELETE FROM atom_has_types WHERE atoms_atomid IN " + in, found, 0,
+						found.length, 1 );
+				statement.execute();
+				statement.close();
 
-			DB.CONN.commit();
+				statement = prepare( conn, "DELETE FROM atoms WHERE atomid IN " + in, found, 0, found.length, 1 );
+				statement.execute();
+				statement.close();
+
+				for ( final long orphan : found ) {
+					orphans.add( orphan );
+				}
+			}
+
+			Changes.count( conn );
+			Transaction.afterCommit( conn, new Runnable() {
+				@Override
+				public void run() {
+					final InvertedIndex tagIndex = Indexes.tags();
+					if ( tagIndex != null ) {
+						tagIndex.removeValues( moleculeIds.asList() );
+					}
+
+					final InvertedIndex typeIndex = Indexes.types();
+					if ( typeIndex != null ) {
+						typeIndex.removeValues( orphans.asList() );
+					}
+
+					final ReadModel model = ReadModel.get();
+					if ( model != null ) {
+						model.removeMolecules( moleculeIds.asList() );
+						model.removeAtoms( orphans.asList() );
+					}
+				}
+			} );
+
+			transaction.commit();
 		} catch ( SQLException e ) {
 			// TODO Auto-generated catch block
-			try {
-				DB.CONN.rollback();
-			} catch ( SQLException e1 ) {
-				// TODO Auto-generated catch block
-				System.out.println( "rollback failed" );
-				e1.printStackTrace();
-			}
 			e.printStackTrace();
-		} finally {
-			try {
-				DB.CONN.setAutoCommit( true );
-			} catch ( SQLException e ) {
-				// TODO Auto-generated catch block
-				System.out.println( "enabling auto commit failed" );
-				e.printStackTrace();
+			if ( transaction != null ) {
+				transaction.rollback();
 			}
+			return 0;
+		} finally {
+			// Releasing the connection rolls back whatever has not been committed.
+			DB.release( conn, statement );
 		}
-		// TODO Delete tags that are only attached to these atoms
-		// TODO Delete tags that are only attached to this molecule
+
+		// Tags whose reference count dropped to zero are left to the OrphanCollector.
 		// TODO Delete binary files that are referenced by a x-fileref atom
+		return removed;
 	}
 
 
@@ -121,4 +220,20 @@ public class DbRemover {
 
 	}
 
+
+	/**
+	 * Prepares the statement and binds the IDs from (inclusive) to (exclusive) the given number of times in a row.
+	 */
+	private static PreparedStatement prepare( Connection conn, String sql, long[] ids, int from, int to, int times )
+			throws SQLException {
+		final PreparedStatement statement = conn.prepareStatement( sql );
+		int index = 1;
+		for ( int time = 0; time < times; time++ ) {
+			for ( int i = from; i < to; i++ ) {
+				statement.setLong( index++, ids[i] );
+			}
+		}
+		return statement;
+	}
+
 }
@@ -0,0 +1,108 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.core.accessors;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import org.apache.commons.configuration.CombinedConfiguration;
+
+/**
+ * Everything that differs between the database engines Atomic Tagging runs on. The queries of the services stick to
+ * SQL that all engines understand, so a dialect only has to know how to connect and a few details of the DDL.
+ * <p>
+ * The dialect is chosen by the type in the database section of the configuration. A custom dialect can be plugged in
+ * by naming its class in the key dialect of the same section.
+ * </p>
+ */
+public abstract class Dialect {
+
+	/**
+	 * Returns the dialect configured in the database section.
+	 * 
+	 * @param conf
+	 * @return The dialect, never null
+	 * @throws Exception
+	 *             If the configured dialect is unknown or can't be instantiated
+	 */
+	public static Dialect get( final CombinedConfiguration conf ) throws Exception {
+		final String dialect = conf.getString( "database.dialect" );
+		if ( dialect != null ) {
+			return (Dialect) Class.forName( dialect ).getDeclaredConstructor().newInstance();
+		}
+
+		final String type = conf.getString( "database.type" );
+		if ( "mysql".equals( type ) ) {
+			return new MySqlDialect();
+		}
+		if ( "h2".equals( type ) ) {
+			return new H2Dialect();
+		}
+
+		throw new Exception( "Unknown database type \"" + type + "\". Please use mysql or h2." );
+	}
+
+
+	/**
+	 * @return The class name of the JDBC driver
+	 */
+	public abstract String getDriver();
+
+
+	/**
+	 * Builds the JDBC URL from the configuration.
+	 * 
+	 * @param conf
+	 * @return The URL to connect to
+	 * @throws Exception
+	 *             If required keys are missing from the configuration
+	 */
+	public abstract String getUrl( CombinedConfiguration conf ) throws Exception;
+
+
+	/**
+	 * @return true if the database runs inside the application and needs neither a server nor credentials
+	 */
+	public abstract boolean isEmbedded();
+
+
+	/**
+	 * Configures a statement to hand out its rows while they are read instead of reading the whole result first.
+	 * 
+	 * @param statement
+	 * @throws SQLException
+	 */
+	public abstract void setStreaming( PreparedStatement statement ) throws SQLException;
+
+
+	/**
+	 * @return Appended to every CREATE TABLE statement, may be empty
+	 */
+	public String getTableOptions() {
+		return "";
+	}
+
+
+	/**
+	 * Builds a statement that changes the definition of an existing column.
+	 * 
+	 * @param table
+	 * @param column
+	 * @param definition
+	 *            The new type and constraints of the column
+	 * @return The statement
+	 */
+	public abstract String alterColumn( String table, String column, String definition );
+
+}
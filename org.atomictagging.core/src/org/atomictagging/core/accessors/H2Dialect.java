@@ -0,0 +1,79 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.core.accessors;
+
+import java.io.File;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import org.apache.commons.configuration.CombinedConfiguration;
+
+/**
+ * An embedded H2 database stored in a file, which needs no server at all. The file is given by the key path of the
+ * database section and defaults to a database named after the key db in the base directory. The H2 driver comes with
+ * the org.h2 bundle, which is optional to the core bundle, so it only has to be installed if H2 is used.
+ * <p>
+ * The database is opened in MVCC mode. By default H2 locks whole tables, so a name inserted on an independent
+ * connection would wait for the transaction of the calling thread that has written to the same table.
+ * </p>
+ */
+public class H2Dialect extends Dialect {
+
+	/**
+	 * Number of rows H2 fetches at once when streaming a result.
+	 */
+	private final static int	FETCH_SIZE	= 500;
+
+
+	@Override
+	public String getDriver() {
+		return "org.h2.Driver";
+	}
+
+
+	@Override
+	public String getUrl( final CombinedConfiguration conf ) throws Exception {
+		String path = conf.getString( "database.path" );
+
+		if ( path == null ) {
+			final String dir = conf.getString( "base.dir" );
+			if ( dir == null ) {
+				throw new Exception(
+						"Failed to load database configuration. Please specify the database path or the base directory." );
+			}
+			path = dir + File.separator + conf.getString( "database.db", "atomictagging" );
+		}
+
+		return "jdbc:h2:" + path + ";MVCC=TRUE";
+	}
+
+
+	@Override
+	public boolean isEmbedded() {
+		return true;
+	}
+
+
+	@Override
+	public void setStreaming( final PreparedStatement statement ) throws SQLException {
+		statement.setFetchSize( FETCH_SIZE );
+	}
+
+
+	@Override
+	public String alterColumn( final String table, final String column, final String definition ) {
+		return "ALTER TABLE " + table + " ALTER COLUMN " + column + " " + definition;
+	}
+
+}
@@ -0,0 +1,308 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.core.accessors;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.atomictagging.utils.StringUtils;
+
+/**
+ * Brings the schema of an existing database up to date with the one expected by the current code. Every migration
+ * checks whether it is needed first, so running them on an up to date database is cheap.
+ */
+public class Migrations {
+
+	/**
+	 * Number of rows that are updated and committed at once when filling a new column.
+	 */
+	private final static int		BACKFILL_CHUNK	= 1000;
+
+	/**
+	 * The tables as they were before there were migrations. Later changes are added by the migrations.
+	 */
+	private final static String[]	CREATE_SCHEMA	= {
+			"CREATE TABLE atoms (atomid INT NOT NULL AUTO_INCREMENT, data TEXT NOT NULL, PRIMARY KEY (atomid))",
+			"CREATE TABLE tags (tagid INT NOT NULL AUTO_INCREMENT, tag VARCHAR(255) NOT NULL, PRIMARY KEY (tagid), "
+														+ "CONSTRAINT tag_UNIQUE UNIQUE (tag))",
+			"CREATE TABLE molecules (moleculeid INT NOT NULL AUTO_INCREMENT, PRIMARY KEY (moleculeid))",
+			"CREATE TABLE molecule_has_tags (molecules_moleculeid INT NOT NULL, tags_tagid INT NOT NULL, "
+														+ "PRIMARY KEY (molecules_moleculeid, tags_tagid), "
+														+ "FOREIGN KEY (molecules_moleculeid) REFERENCES molecules (moleculeid), "
+														+ "FOREIGN KEY (tags_tagid) REFERENCES tags (tagid))",
+			"CREATE TABLE molecule_has_atoms (molecules_moleculeid INT NOT NULL, atoms_atomid INT NOT NULL, "
+														+ "PRIMARY KEY (molecules_moleculeid, atoms_atomid), "
+														+ "FOREIGN KEY (molecules_moleculeid) REFERENCES molecules (moleculeid), "
+														+ "FOREIGN KEY (atoms_atomid) REFERENCES atoms (atomid))",
+			"CREATE TABLE types (typeid INT NOT NULL AUTO_INCREMENT, type VARCHAR(255) NOT NULL, PRIMARY KEY (typeid), "
+														+ "CONSTRAINT type_UNIQUE UNIQUE (type))",
+			"CREATE TABLE atom_has_types (atoms_atomid INT NOT NULL, types_typeid INT NOT NULL, "
+														+ "PRIMARY KEY (atoms_atomid, types_typeid), "
+														+ "FOREIGN KEY (atoms_atomid) REFERENCES atoms (atomid), "
+														+ "FOREIGN KEY (types_typeid) REFERENCES types (typeid))" };
+
+	private final static String		ADD_ATOM_HASH	= "ALTER TABLE atoms ADD COLUMN hash CHAR(40) NULL";
+	private final static String		INDEX_ATOM_HASH	= "CREATE INDEX atoms_hash ON atoms (hash)";
+	private final static String		READ_UNHASHED	= "SELECT atomid, data FROM atoms WHERE hash IS NULL AND atomid > ? "
+														+ "ORDER BY atomid LIMIT ?";
+	private final static String		UPDATE_HASH		= "UPDATE atoms SET hash = ? WHERE atomid = ?";
+
+	private final static String		ADD_SEQUENCES	= "CREATE TABLE sequences (name VARCHAR(64) NOT NULL, next_id INT NOT NULL, "
+														+ "PRIMARY KEY (name))";
+	private final static String		CHECK_SEQUENCE	= "SELECT next_id FROM sequences WHERE name = ?";
+	private final static String		INSERT_COUNTER	= "INSERT INTO sequences (name, next_id) VALUES (?, 0)";
+
+	private final static String		ADD_REFCOUNT	= "ALTER TABLE %1$s ADD COLUMN refcount INT NULL";
+	private final static String		INDEX_REFCOUNT	= "CREATE INDEX %1$s_refcount ON %1$s (refcount)";
+	private final static String		FILL_REFCOUNT	= "UPDATE %1$s SET refcount = (SELECT COUNT(*) FROM %3$s WHERE %1$s_%2$s = %2$s) "
+														+ "WHERE refcount IS NULL";
+
+
+	private Migrations() {
+		// Utility class
+	}
+
+
+	/**
+	 * Runs all migrations.
+	 * 
+	 * @throws SQLException
+	 *             If a migration failed
+	 */
+	public static void run() throws SQLException {
+		createSchema();
+		addAtomHashes();
+		addSequences();
+		addRefCounts( "atoms", "atomid", "molecule_has_atoms" );
+		addRefCounts( "tags", "tagid", "molecule_has_tags" );
+	}
+
+
+	/**
+	 * Creates the tables of an empty database, e.g. a new embedded one. Databases created by the SQL script in the docs
+	 * already have them.
+	 */
+	private static void createSchema() throws SQLException {
+		Connection conn = null;
+		Statement createTable = null;
+
+		try {
+			conn = DB.getConnection();
+
+			if ( hasTable( conn, "atoms" ) ) {
+				return;
+			}
+
+			createTable = conn.createStatement();
+			for ( final String table : CREATE_SCHEMA ) {
+				createTable.execute( table + DB.getDialect().getTableOptions() );
+			}
+		} finally {
+			DB.release( conn, createTable );
+		}
+	}
+
+
+	/**
+	 * Adds the hash column to the atoms table, which allows for looking up atoms by their data using an index. The
+	 * hashes of existing atoms are calculated in chunks, each of which is committed on its own. Hence an interrupted
+	 * migration simply continues where it stopped the next time.
+	 */
+	private static void addAtomHashes() throws SQLException {
+		Connection conn = null;
+		Statement alterTable = null;
+		PreparedStatement readUnhashed = null;
+		PreparedStatement updateHash = null;
+
+		try {
+			conn = DB.getConnection();
+
+			if ( !hasColumn( conn, "atoms", "hash" ) ) {
+				alterTable = conn.createStatement();
+				alterTable.execute( ADD_ATOM_HASH );
+				alterTable.execute( INDEX_ATOM_HASH );
+			}
+
+			readUnhashed = conn.prepareStatement( READ_UNHASHED );
+			updateHash = conn.prepareStatement( UPDATE_HASH );
+			conn.setAutoCommit( false );
+
+			long lastId = 0;
+			int count;
+
+			do {
+				readUnhashed.setLong( 1, lastId );
+				readUnhashed.setInt( 2, BACKFILL_CHUNK );
+				final ResultSet unhashed = readUnhashed.executeQuery();
+				count = 0;
+
+				while ( unhashed.next() ) {
+					lastId = unhashed.getLong( "atomid" );
+					updateHash.setString( 1, StringUtils.getHashSum( unhashed.getString( "data" ) ) );
+					updateHash.setLong( 2, lastId );
+					updateHash.addBatch();
+					count++;
+				}
+				unhashed.close();
+
+				if ( count > 0 ) {
+					updateHash.executeBatch();
+					conn.commit();
+				}
+			} while ( count == BACKFILL_CHUNK );
+
+			conn.setAutoCommit( true );
+		} finally {
+			DB.release( conn, alterTable, readUnhashed, updateHash );
+		}
+	}
+
+
+	/**
+	 * Adds the table holding the next free IDs of atoms and molecules, which are assigned by the application instead
+	 * of the database. The sequences start right behind the highest ID in use. The table also holds the counter of
+	 * {@link Changes}.
+	 */
+	private static void addSequences() throws SQLException {
+		Connection conn = null;
+		Statement createTable = null;
+		PreparedStatement checkSequence = null;
+		PreparedStatement insertSequence = null;
+
+		try {
+			conn = DB.getConnection();
+
+			if ( !hasTable( conn, "sequences" ) ) {
+				createTable = conn.createStatement();
+				createTable.execute( ADD_SEQUENCES + DB.getDialect().getTableOptions() );
+			}
+
+			checkSequence = conn.prepareStatement( CHECK_SEQUENCE );
+
+			for ( final String[] sequence : new String[][] { { "atoms", "atomid" }, { "molecules", "moleculeid" } } ) {
+				checkSequence.setString( 1, sequence[0] );
+				final ResultSet existing = checkSequence.executeQuery();
+				final boolean exists = existing.next();
+				existing.close();
+
+				if ( !exists ) {
+					insertSequence = conn.prepareStatement( "INSERT INTO sequences (name, next_id) SELECT ?, COALESCE(MAX("
+							+ sequence[1] + "), 0) + 1 FROM " + sequence[0] );
+					insertSequence.setString( 1, sequence[0] );
+					insertSequence.execute();
+					insertSequence.close();
+				}
+			}
+
+			checkSequence.setString( 1, Changes.SEQUENCE );
+			final ResultSet counter = checkSequence.executeQuery();
+			final boolean exists = counter.next();
+			counter.close();
+
+			if ( !exists ) {
+				insertSequence = conn.prepareStatement( INSERT_COUNTER );
+				insertSequence.setString( 1, Changes.SEQUENCE );
+				insertSequence.execute();
+				insertSequence.close();
+			}
+		} finally {
+			DB.release( conn, createTable, checkSequence, insertSequence );
+		}
+	}
+
+
+	/**
+	 * Adds the reference count column to the given table and counts the existing links. The column stays nullable
+	 * until all counts are filled in, so an interrupted migration is picked up again the next time.
+	 * 
+	 * @param table
+	 *            The table getting the column
+	 * @param idColumn
+	 *            The primary key of the table
+	 * @param links
+	 *            The table linking molecules to the rows of the table
+	 */
+	private static void addRefCounts( final String table, final String idColumn, final String links )
+			throws SQLException {
+		Connection conn = null;
+		Statement statement = null;
+
+		try {
+			conn = DB.getConnection();
+			statement = conn.createStatement();
+
+			if ( !hasColumn( conn, table, "refcount" ) ) {
+				statement.execute( String.format( ADD_REFCOUNT, table ) );
+				statement.execute( String.format( INDEX_REFCOUNT, table ) );
+			}
+
+			if ( isNullable( conn, table, "refcount" ) ) {
+				statement.execute( String.format( FILL_REFCOUNT, table, idColumn, links ) );
+				statement.execute( DB.getDialect().alterColumn( table, "refcount", "INT DEFAULT 0 NOT NULL" ) );
+			}
+		} finally {
+			DB.release( conn, statement );
+		}
+	}
+
+
+	/**
+	 * Only regular tables count, the system tables of H2 include one named sequences.
+	 */
+	private static boolean hasTable( final Connection conn, final String table ) throws SQLException {
+		final ResultSet tables = conn.getMetaData().getTables( conn.getCatalog(), null, identifier( conn, table ),
+				new String[] { "TABLE" } );
+		try {
+			return tables.next();
+		} finally {
+			tables.close();
+		}
+	}
+
+
+	private static boolean hasColumn( final Connection conn, final String table, final String column )
+			throws SQLException {
+		final ResultSet columns = conn.getMetaData().getColumns( conn.getCatalog(), null, identifier( conn, table ),
+				identifier( conn, column ) );
+		try {
+			return columns.next();
+		} finally {
+			columns.close();
+		}
+	}
+
+
+	private static boolean isNullable( final Connection conn, final String table, final String column )
+			throws SQLException {
+		final ResultSet columns = conn.getMetaData().getColumns( conn.getCatalog(), null, identifier( conn, table ),
+				identifier( conn, column ) );
+		try {
+			return columns.next() && "YES".equals( columns.getString( "IS_NULLABLE" ) );
+		} finally {
+			columns.close();
+		}
+	}
+
+
+	/**
+	 * Some databases store unquoted names in upper case, their meta data needs to be asked for those.
+	 */
+	private static String identifier( final Connection conn, final String name ) throws SQLException {
+		return conn.getMetaData().storesUpperCaseIdentifiers() ? name.toUpperCase() : name;
+	}
+
+}
@@ -0,0 +1,71 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.core.accessors;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import org.apache.commons.configuration.CombinedConfiguration;
+
+/**
+ * A MySQL server, configured by host, db, user and pass of the database section.
+ */
+public class MySqlDialect extends Dialect {
+
+	@Override
+	public String getDriver() {
+		return "com.mysql.jdbc.Driver";
+	}
+
+
+	@Override
+	public String getUrl( final CombinedConfiguration conf ) throws Exception {
+		final String host = conf.getString( "database.host" );
+		final String db = conf.getString( "database.db" );
+
+		if ( host == null || db == null || conf.getString( "database.user" ) == null ) {
+			throw new Exception(
+					"Failed to load database configuration. Please specify valid values for database host, name and user." );
+		}
+
+		// Lets the driver send batches of inserts as multi-row statements instead of one round trip per row.
+		return "jdbc:mysql://" + host + "/" + db + "?rewriteBatchedStatements=true";
+	}
+
+
+	@Override
+	public boolean isEmbedded() {
+		return false;
+	}
+
+
+	@Override
+	public void setStreaming( final PreparedStatement statement ) throws SQLException {
+		// The MySQL driver streams row by row only for exactly this fetch size.
+		statement.setFetchSize( Integer.MIN_VALUE );
+	}
+
+
+	@Override
+	public String getTableOptions() {
+		return " ENGINE = InnoDB";
+	}
+
+
+	@Override
+	public String alterColumn( final String table, final String column, final String definition ) {
+		return "ALTER TABLE " + table + " MODIFY " + column + " " + definition;
+	}
+
+}
@@ -0,0 +1,503 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.core.accessors;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.configuration.CombinedConfiguration;
+import org.atomictagging.core.configuration.Configuration;
+import org.atomictagging.core.services.impl.AbstractService;
+import org.atomictagging.core.services.impl.Dictionaries;
+import org.atomictagging.core.services.impl.Indexes;
+import org.atomictagging.core.services.impl.InvertedIndex;
+import org.atomictagging.core.services.impl.ReadModel;
+import org.atomictagging.core.types.CoreTypes;
+
+/**
+ * Removes atoms that don't belong to any molecule, tags that no molecule is tagged with and types that no atom has.
+ * Modifying or removing molecules leaves those behind, since looking for them on every edit would slow down the edit.
+ * <p>
+ * The collector walks the tables in small batches ordered by ID and removes every batch in a short transaction of its
+ * own. Before a batch is removed, its rows are locked and checked again, so rows that got linked in the meantime
+ * survive. After every batch the collector pauses for a multiple of the time the batch took, hence it backs off as
+ * soon as the database gets slow. The collector either runs in the background or on demand by {@link #collect()}.
+ * </p>
+ * <p>
+ * Names are looked up in the {@link Dictionaries} before they are linked, so rows created since the previous run are
+ * left alone to give them time to get linked: only IDs up to the highest one when the previous run started are
+ * considered, or when the current run started if there was none. Removed tags and types are dropped from the
+ * dictionaries before the removal is committed. Writers update the reference counts before they link atoms and tags,
+ * which locks the rows as well, and drop names that turn out to be gone, see {@link RefCounts}. Types have no counts,
+ * their rows are locked right before they are linked instead, see Dictionary.saveAndLock().
+ * </p>
+ * Configuration in the collector section:
+ * <ul>
+ * <li>enabled - Run the collector in the background (default false)</li>
+ * <li>interval - Milliseconds between two background runs (default 600000)</li>
+ * <li>batchsize - Number of rows checked and removed at once (default 200)</li>
+ * <li>throttle - Pause after a batch as a multiple of the time the batch took (default 4)</li>
+ * </ul>
+ */
+public class OrphanCollector {
+
+	private final static Sweep[]	SWEEPS		= { new AtomSweep(), new TagSweep(), new TypeSweep() };
+	private final static Object		LOCK		= new Object();
+	private final static Report		TOTAL		= new Report();
+	private static volatile Report	lastReport	= null;
+	private static Thread			worker		= null;
+
+
+	private OrphanCollector() {
+		// Utility class
+	}
+
+
+	/**
+	 * Starts collecting in the background if the configuration asks for it. Does nothing unless the catalog is kept in
+	 * the database.
+	 */
+	public static synchronized void start() {
+		final CombinedConfiguration conf = Configuration.get();
+		if ( worker != null || DB.getDialect() == null || !conf.getBoolean( "collector.enabled", false ) ) {
+			return;
+		}
+
+		final long interval = conf.getLong( "collector.interval", 600000 );
+
+		worker = new Thread( "orphan-collector" ) {
+			@Override
+			public void run() {
+				try {
+					while ( !isInterrupted() ) {
+						collect();
+						Thread.sleep( interval );
+					}
+				} catch ( final InterruptedException e ) {
+					// Stopped
+				}
+			}
+		};
+		worker.setDaemon( true );
+		worker.start();
+	}
+
+
+	/**
+	 * Stops collecting in the background. The batch in progress is finished first.
+	 */
+	public static synchronized void stop() {
+		if ( worker == null ) {
+			return;
+		}
+
+		worker.interrupt();
+		try {
+			worker.join();
+		} catch ( final InterruptedException e ) {
+			Thread.currentThread().interrupt();
+		}
+		worker = null;
+	}
+
+
+	/**
+	 * Runs the collector once over all tables. If the collector is already running in the background, this waits for
+	 * the background run to finish first. Without a database there is nothing to collect, the log store removes
+	 * orphans right away.
+	 * 
+	 * @return What has been removed by this run
+	 * @throws InterruptedException
+	 *             If the thread was interrupted while pausing between two batches
+	 */
+	public static Report collect() throws InterruptedException {
+		if ( DB.getDialect() == null ) {
+			return new Report();
+		}
+
+		synchronized ( LOCK ) {
+			final CombinedConfiguration conf = Configuration.get();
+			final int batchSize = Math.min( 1000, Math.max( 1, conf.getInt( "collector.batchsize", 200 ) ) );
+			final double throttle = Math.max( 0, conf.getDouble( "collector.throttle", 4 ) );
+
+			final Report report = new Report();
+			final long started = System.currentTimeMillis();
+
+			try {
+				// Atoms first, removing them might leave types unused.
+				for ( final Sweep sweep : SWEEPS ) {
+					sweep.run( batchSize, throttle, report );
+				}
+			} finally {
+				report.millis = System.currentTimeMillis() - started;
+				TOTAL.add( report );
+				lastReport = report;
+			}
+
+			return report;
+		}
+	}
+
+
+	/**
+	 * @return The report of the most recent run or null if the collector didn't run yet
+	 */
+	public static Report getLastReport() {
+		return lastReport;
+	}
+
+
+	/**
+	 * @return The sum of all runs since the application started
+	 */
+	public static Report getTotalReport() {
+		synchronized ( LOCK ) {
+			final Report total = new Report();
+			total.add( TOTAL );
+			return total;
+		}
+	}
+
+
+	/**
+	 * What has been removed by the collector.
+	 */
+	public static class Report {
+		private long	atoms	= 0;
+		private long	tags	= 0;
+		private long	types	= 0;
+		private long	batches	= 0;
+		private long	errors	= 0;
+		private long	millis	= 0;
+
+
+		/**
+		 * @return Number of removed atoms
+		 */
+		public long getAtoms() {
+			return atoms;
+		}
+
+
+		/**
+		 * @return Number of removed tags
+		 */
+		public long getTags() {
+			return tags;
+		}
+
+
+		/**
+		 * @return Number of removed types
+		 */
+		public long getTypes() {
+			return types;
+		}
+
+
+		/**
+		 * @return Number of batches that failed and will be tried again by the next run
+		 */
+		public long getErrors() {
+			return errors;
+		}
+
+
+		private void add( final Report other ) {
+			atoms += other.atoms;
+			tags += other.tags;
+			types += other.types;
+			batches += other.batches;
+			errors += other.errors;
+			millis += other.millis;
+		}
+
+
+		@Override
+		public String toString() {
+			return "Removed " + atoms + " atoms, " + tags + " tags and " + types + " types in " + batches
+					+ " batches and " + millis + " ms" + ( errors > 0 ? " (" + errors + " batches failed)" : "" ) + ".";
+		}
+	}
+
+	/**
+	 * Walks a table in batches and removes the rows that are no longer referenced.
+	 */
+	private abstract static class Sweep {
+		private final String	highest;
+		private final String	candidates;
+		private final String	confirm;
+		private final String[]	deletes;
+		private long			previous	= -1;
+
+
+		/**
+		 * @param highest
+		 *            Selects the highest ID of the table
+		 * @param candidates
+		 *            Selects the IDs of possibly unreferenced rows, binding the last ID seen, the highest ID to consider
+		 *            and the batch size
+		 * @param confirm
+		 *            Selects and locks the candidates that are still unreferenced, %s being replaced by an IN list
+		 * @param deletes
+		 *            Remove the confirmed rows and everything depending on them, %s being replaced by an IN list
+		 */
+		Sweep( final String highest, final String candidates, final String confirm, final String... deletes ) {
+			this.highest = highest;
+			this.candidates = candidates;
+			this.confirm = confirm;
+			this.deletes = deletes;
+		}
+
+
+		/**
+		 * @return Names bound to the confirming query after the IDs
+		 */
+		List<String> keep() {
+			return Collections.emptyList();
+		}
+
+
+		/**
+		 * Called before the removal of the given rows is committed.
+		 */
+		void removing( final List<Long> ids ) {
+			// Nothing cached by default
+		}
+
+
+		/**
+		 * Called after the given rows have been removed.
+		 */
+		abstract void removed( List<Long> ids, Report report );
+
+
+		void run( final int batchSize, final double throttle, final Report report ) throws InterruptedException {
+			final long current;
+			try {
+				current = highest();
+			} catch ( final SQLException e ) {
+				e.printStackTrace();
+				report.errors++;
+				return;
+			}
+
+			final long watermark = previous < 0 ? current : Math.min( previous, current );
+			previous = current;
+
+			long lastId = 0;
+			List<Long> batch;
+
+			do {
+				final long started = System.currentTimeMillis();
+				batch = new ArrayList<Long>();
+				Connection conn = null;
+				PreparedStatement statement = null;
+
+				try {
+					conn = DB.getConnection();
+
+					statement = conn.prepareStatement( candidates );
+					statement.setLong( 1, lastId );
+					statement.setLong( 2, watermark );
+					statement.setInt( 3, batchSize );
+					final ResultSet result = statement.executeQuery();
+					while ( result.next() ) {
+						batch.add( result.getLong( 1 ) );
+					}
+					statement.close();
+
+					if ( batch.isEmpty() ) {
+						break;
+					}
+					lastId = batch.get( batch.size() - 1 );
+
+					conn.setAutoCommit( false );
+					final List<Long> orphans = confirm( conn, batch );
+
+					if ( !orphans.isEmpty() ) {
+						final String in = AbstractService.in( orphans.size() );
+						for ( final String delete : deletes ) {
+							statement = conn.prepareStatement( String.format( delete, in ) );
+							bind( statement, orphans, Collections.<String> emptyList() );
+							statement.execute();
+							statement.close();
+						}
+						removing( orphans );
+						Changes.increment( conn );
+					}
+
+					conn.commit();
+					conn.setAutoCommit( true );
+					report.batches++;
+
+					if ( !orphans.isEmpty() ) {
+						Changes.committed();
+						removed( orphans, report );
+					}
+				} catch ( final SQLException e ) {
+					// Releasing the connection rolls back the batch, the next run will try again.
+					e.printStackTrace();
+					report.errors++;
+				} finally {
+					DB.release( conn, statement );
+				}
+
+				Thread.sleep( Math.max( 1, (long) ( ( System.currentTimeMillis() - started ) * throttle ) ) );
+			} while ( batch.size() == batchSize );
+		}
+
+
+		private long highest() throws SQLException {
+			Connection conn = null;
+			PreparedStatement statement = null;
+
+			try {
+				conn = DB.getConnection();
+				statement = conn.prepareStatement( highest );
+				final ResultSet result = statement.executeQuery();
+				// MAX() of an empty table is NULL, which reads as 0.
+				return result.next() ? result.getLong( 1 ) : 0;
+			} finally {
+				DB.release( conn, statement );
+			}
+		}
+
+
+		private List<Long> confirm( final Connection conn, final List<Long> batch ) throws SQLException {
+			final List<Long> orphans = new ArrayList<Long>();
+			final String in = AbstractService.in( batch.size() );
+			final PreparedStatement statement = conn.prepareStatement( String.format( confirm, in ) );
+
+			try {
+				bind( statement, batch, keep() );
+				final ResultSet result = statement.executeQuery();
+				while ( result.next() ) {
+					orphans.add( result.getLong( 1 ) );
+				}
+			} finally {
+				statement.close();
+			}
+
+			return orphans;
+		}
+
+
+		private static void bind( final PreparedStatement statement, final List<Long> ids, final List<String> names )
+				throws SQLException {
+			int index = 1;
+			for ( final long id : ids ) {
+				statement.setLong( index++, id );
+			}
+			for ( final String name : names ) {
+				statement.setString( index++, name );
+			}
+		}
+	}
+
+	/**
+	 * Removes atoms without molecules including their links to types.
+	 */
+	private static class AtomSweep extends Sweep {
+		AtomSweep() {
+			super( "SELECT MAX(atomid) FROM atoms",
+					"SELECT atomid FROM atoms WHERE refcount = 0 AND atomid > ? AND atomid <= ? ORDER BY atomid LIMIT ?",
+					"SELECT atomid FROM atoms WHERE refcount = 0 AND atomid IN %s FOR UPDATE",
+					"DELETE FROM atom_has_types WHERE atoms_atomid IN %s", "DELETE FROM atoms WHERE atomid IN %s" );
+		}
+
+
+		@Override
+		void removed( final List<Long> ids, final Report report ) {
+			report.atoms += ids.size();
+
+			final InvertedIndex typeIndex = Indexes.types();
+			if ( typeIndex != null ) {
+				typeIndex.removeValues( ids );
+			}
+
+			final ReadModel model = ReadModel.get();
+			if ( model != null ) {
+				model.removeAtoms( ids );
+			}
+		}
+	}
+
+	/**
+	 * Removes tags without molecules.
+	 */
+	private static class TagSweep extends Sweep {
+		TagSweep() {
+			super( "SELECT MAX(tagid) FROM tags",
+					"SELECT tagid FROM tags WHERE refcount = 0 AND tagid > ? AND tagid <= ? ORDER BY tagid LIMIT ?",
+					"SELECT tagid FROM tags WHERE refcount = 0 AND tagid IN %s FOR UPDATE",
+					"DELETE FROM tags WHERE tagid IN %s" );
+		}
+
+
+		@Override
+		void removing( final List<Long> ids ) {
+			for ( final long id : ids ) {
+				Dictionaries.tags().remove( id );
+			}
+		}
+
+
+		@Override
+		void removed( final List<Long> ids, final Report report ) {
+			report.tags += ids.size();
+		}
+	}
+
+	/**
+	 * Removes types without atoms. Core types are kept, the application relies on their existence.
+	 */
+	private static class TypeSweep extends Sweep {
+		TypeSweep() {
+			super( "SELECT MAX(typeid) FROM types",
+					"SELECT typeid FROM types WHERE typeid > ? AND typeid <= ? AND NOT EXISTS "
+							+ "(SELECT 1 FROM atom_has_types WHERE types_typeid = typeid) ORDER BY typeid LIMIT ?",
+					"SELECT typeid FROM types WHERE typeid IN %s AND type NOT IN "
+							+ AbstractService.in( CoreTypes.asList().size() )
+							+ " AND NOT EXISTS (SELECT 1 FROM atom_has_types WHERE types_typeid = typeid) FOR UPDATE",
+					"DELETE FROM types WHERE typeid IN %s" );
+		}
+
+
+		@Override
+		List<String> keep() {
+			return CoreTypes.asList();
+		}
+
+
+		@Override
+		void removing( final List<Long> ids ) {
+			for ( final long id : ids ) {
+				Dictionaries.types().remove( id );
+			}
+		}
+
+
+		@Override
+		void removed( final List<Long> ids, final Report report ) {
+			report.types += ids.size();
+		}
+	}
+
+}
@@ -0,0 +1,136 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.core.accessors;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.atomictagging.core.services.impl.Dictionaries;
+
+/**
+ * Collects changes to the reference counts of atoms and tags and writes them in one batch per table. The reference
+ * count of an atom is the number of molecules it belongs to, the one of a tag the number of molecules tagged with it.
+ * Whoever adds or removes such a link has to write the change on the same connection, so the counts take part in the
+ * transaction of the links.
+ * <p>
+ * The counts should be written before the links are inserted. Updating a count locks the row, so the
+ * {@link OrphanCollector} can't remove it until the transaction is done, and a row it removed in the meantime is
+ * noticed before a link to it fails.
+ * </p>
+ */
+public class RefCounts {
+
+	private final static String			UPDATE_ATOMS	= "UPDATE atoms SET refcount = refcount + ? WHERE atomid = ?";
+	private final static String			UPDATE_TAGS		= "UPDATE tags SET refcount = refcount + ? WHERE tagid = ?";
+
+	// Sorted, so concurrent transactions lock the rows in the same order.
+	private final Map<Long, Integer>	atoms			= new TreeMap<Long, Integer>();
+	private final Map<Long, Integer>	tags			= new TreeMap<Long, Integer>();
+
+
+	/**
+	 * @param atomId
+	 * @param delta
+	 *            Number of links that were added to (positive) or removed from (negative) the atom
+	 */
+	public void atom( final long atomId, final int delta ) {
+		add( atoms, atomId, delta );
+	}
+
+
+	/**
+	 * @param tagId
+	 * @param delta
+	 *            Number of links that were added to (positive) or removed from (negative) the tag
+	 */
+	public void tag( final long tagId, final int delta ) {
+		add( tags, tagId, delta );
+	}
+
+
+	/**
+	 * Writes all collected changes and forgets them afterwards.
+	 * 
+	 * @param conn
+	 * @throws SQLException
+	 *             Also if some of the atoms or tags don't exist anymore. Those tags are removed from the
+	 *             {@link Dictionaries}, so saving again creates them anew.
+	 */
+	public void write( final Connection conn ) throws SQLException {
+		final List<Long> missingAtoms = write( conn, UPDATE_ATOMS, atoms );
+		final List<Long> missingTags = write( conn, UPDATE_TAGS, tags );
+
+		for ( final long tagId : missingTags ) {
+			Dictionaries.tags().remove( tagId );
+		}
+
+		if ( !missingAtoms.isEmpty() || !missingTags.isEmpty() ) {
+			throw new SQLException( "Removed concurrently, probably as orphans: atoms " + missingAtoms + ", tags "
+					+ missingTags );
+		}
+	}
+
+
+	private static void add( final Map<Long, Integer> counts, final long id, final int delta ) {
+		final Integer current = counts.get( id );
+		counts.put( id, current == null ? delta : current + delta );
+	}
+
+
+	/**
+	 * @return The IDs of the rows that don't exist
+	 */
+	private static List<Long> write( final Connection conn, final String sql, final Map<Long, Integer> counts )
+			throws SQLException {
+		final List<Long> ids = new ArrayList<Long>();
+		final List<Long> missing = new ArrayList<Long>();
+		PreparedStatement update = null;
+
+		try {
+			update = conn.prepareStatement( sql );
+
+			for ( final Map.Entry<Long, Integer> entry : counts.entrySet() ) {
+				if ( entry.getValue() == 0 ) {
+					continue;
+				}
+				update.setInt( 1, entry.getValue() );
+				update.setLong( 2, entry.getKey() );
+				update.addBatch();
+				ids.add( entry.getKey() );
+			}
+
+			if ( !ids.isEmpty() ) {
+				final int[] updated = update.executeBatch();
+				for ( int i = 0; i < updated.length; i++ ) {
+					// Drivers may report success without a count, which is fine.
+					if ( updated[i] == 0 ) {
+						missing.add( ids.get( i ) );
+					}
+				}
+			}
+			counts.clear();
+			return missing;
+		} finally {
+			if ( update != null ) {
+				update.close();
+			}
+		}
+	}
+
+}
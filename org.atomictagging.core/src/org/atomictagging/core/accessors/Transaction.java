@@ -0,0 +1,259 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.core.accessors;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A transaction on the shared connection of the calling thread, see {@link DB#getConnection()}. If the connection has
+ * no transaction open, a new one is started. Otherwise the transaction joins the open one through a savepoint, so it
+ * can be rolled back on its own without affecting the work done before.
+ * <p>
+ * Changes to what is kept in memory, like the read model and the indexes, must not become visible before the changes
+ * to the database are committed. They are handed to {@link #afterCommit(Connection, Runnable)}, which holds them back
+ * until the outermost transaction commits and drops them if the part of the transaction that made them is rolled
+ * back. If the outermost transaction joined a transaction that was opened without this class, the changes are applied
+ * as soon as the outermost transaction is done, and whoever rolls back the surrounding transaction has to reload what
+ * is kept in memory.
+ * </p>
+ * <p>
+ * The outermost transaction also updates the counter of {@link Changes} before it commits, if any part of it counted a
+ * change.
+ * </p>
+ */
+public final class Transaction {
+
+	private final static ThreadLocal<Pending>	PENDING	= new ThreadLocal<Pending>();
+
+	private final Connection					conn;
+	private final Savepoint						savepoint;
+	private final Pending						pending;
+	private final int							mark;
+	private final boolean						outermost;
+
+
+	private Transaction( final Connection conn, final Savepoint savepoint, final Pending pending,
+			final boolean outermost ) {
+		this.conn = conn;
+		this.savepoint = savepoint;
+		this.pending = pending;
+		this.mark = pending.tasks.size();
+		this.outermost = outermost;
+	}
+
+
+	/**
+	 * Starts a transaction or joins the one that is open on the connection.
+	 * 
+	 * @param conn
+	 *            The shared connection of the calling thread
+	 * @return The transaction, which has to be committed or rolled back
+	 * @throws SQLException
+	 */
+	public static Transaction begin( final Connection conn ) throws SQLException {
+		final Pending pending = pending( conn );
+		if ( pending != null ) {
+			return new Transaction( conn, conn.setSavepoint(), pending, false );
+		}
+
+		final Pending created = new Pending( conn );
+		final Savepoint savepoint;
+		if ( conn.getAutoCommit() ) {
+			conn.setAutoCommit( false );
+			savepoint = null;
+		} else {
+			savepoint = conn.setSavepoint();
+		}
+
+		PENDING.set( created );
+		return new Transaction( conn, savepoint, created, true );
+	}
+
+
+	/**
+	 * Applies a change to what is kept in memory once the outermost transaction on the connection has been committed.
+	 * Without a transaction the change is applied right away.
+	 * 
+	 * @param conn
+	 *            The connection the change was written on
+	 * @param task
+	 * @throws SQLException
+	 */
+	public static void afterCommit( final Connection conn, final Runnable task ) throws SQLException {
+		final Pending pending = pending( conn );
+		if ( pending == null ) {
+			task.run();
+		} else {
+			pending.tasks.add( task );
+		}
+	}
+
+
+	/**
+	 * Notes a change to be counted by the outermost transaction on the connection, see {@link Changes}.
+	 * 
+	 * @return False if there is no transaction, so the change has to be counted right away
+	 */
+	static boolean changed( final Connection conn ) throws SQLException {
+		final Pending pending = pending( conn );
+		if ( pending == null ) {
+			return false;
+		}
+
+		pending.changed = true;
+		return true;
+	}
+
+
+	/**
+	 * @return True if this transaction was started on a connection without an open transaction, so committing it
+	 *         really commits
+	 */
+	public boolean isOwn() {
+		return savepoint == null;
+	}
+
+
+	/**
+	 * Commits the transaction. A joined transaction only releases its savepoint and leaves everything else to the
+	 * surrounding one. The outermost transaction applies the changes that were held back.
+	 * 
+	 * @throws SQLException
+	 */
+	public void commit() throws SQLException {
+		final boolean changed = outermost && pending.changed;
+		if ( changed ) {
+			Changes.increment( conn );
+		}
+
+		if ( savepoint == null ) {
+			conn.commit();
+			conn.setAutoCommit( true );
+		} else {
+			conn.releaseSavepoint( savepoint );
+		}
+
+		if ( outermost ) {
+			PENDING.remove();
+			if ( changed ) {
+				Changes.committed();
+			}
+			pending.run();
+		}
+	}
+
+
+	/**
+	 * Commits what has been done so far and keeps the transaction open. Applies the changes that were held back. Does
+	 * nothing unless this is an own transaction.
+	 * 
+	 * @throws SQLException
+	 */
+	public void checkpoint() throws SQLException {
+		if ( savepoint != null ) {
+			return;
+		}
+
+		final boolean changed = pending.changed;
+		if ( changed ) {
+			Changes.increment( conn );
+		}
+
+		conn.commit();
+		if ( changed ) {
+			pending.changed = false;
+			Changes.committed();
+		}
+		pending.run();
+	}
+
+
+	/**
+	 * Rolls the transaction back and drops the changes it held back. A joined transaction only rolls back to its
+	 * savepoint. Errors are printed, since this is called while handling another one. Whatever could not be rolled
+	 * back is rolled back when the connection is released.
+	 */
+	public void rollback() {
+		try {
+			if ( savepoint == null ) {
+				conn.rollback();
+				conn.setAutoCommit( true );
+			} else {
+				conn.rollback( savepoint );
+			}
+		} catch ( final SQLException e ) {
+			e.printStackTrace();
+		} finally {
+			if ( outermost ) {
+				PENDING.remove();
+			} else {
+				pending.truncate( mark );
+			}
+		}
+	}
+
+
+	/**
+	 * @return The changes held back for the transaction that is open on the connection or null if there is none
+	 */
+	private static Pending pending( final Connection conn ) throws SQLException {
+		final Pending pending = PENDING.get();
+		if ( pending == null ) {
+			return null;
+		}
+
+		// Left behind by a transaction that was neither committed nor rolled back.
+		if ( pending.conn != conn || conn.getAutoCommit() ) {
+			PENDING.remove();
+			return null;
+		}
+
+		return pending;
+	}
+
+	/**
+	 * Changes held back for the transaction on one connection, in the order they were made.
+	 */
+	private static class Pending {
+		private final Connection		conn;
+		private final List<Runnable>	tasks	= new ArrayList<Runnable>();
+		private boolean					changed	= false;
+
+
+		Pending( final Connection conn ) {
+			this.conn = conn;
+		}
+
+
+		void run() {
+			final List<Runnable> run = new ArrayList<Runnable>( tasks );
+			tasks.clear();
+			for ( final Runnable task : run ) {
+				task.run();
+			}
+		}
+
+
+		void truncate( final int size ) {
+			while ( tasks.size() > size ) {
+				tasks.remove( tasks.size() - 1 );
+			}
+		}
+	}
+
+}
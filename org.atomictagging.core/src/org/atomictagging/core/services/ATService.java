@@ -13,10 +13,23 @@
  */
 package org.atomictagging.core.services;
 
+import java.io.File;
+
+import org.apache.commons.configuration.CombinedConfiguration;
+import org.atomictagging.core.accessors.DB;
+import org.atomictagging.core.configuration.Configuration;
 import org.atomictagging.core.services.impl.AtomService;
+import org.atomictagging.core.services.impl.Dictionaries;
+import org.atomictagging.core.services.impl.Indexes;
 import org.atomictagging.core.services.impl.MoleculeService;
+import org.atomictagging.core.services.impl.ReadModel;
 import org.atomictagging.core.services.impl.TagService;
 import org.atomictagging.core.services.impl.TypeService;
+import org.atomictagging.core.store.LogAtomService;
+import org.atomictagging.core.store.LogMoleculeService;
+import org.atomictagging.core.store.LogStore;
+import org.atomictagging.core.store.LogTagService;
+import org.atomictagging.core.store.LogTypeService;
 
 /**
  * Since we seem to be unable to get OSGI services to run the way we want them to, we'll be using singletons for the
@@ -32,6 +45,64 @@ public final class ATService {
 	private static IMoleculeService	moleculeService	= null;
 
 
+	/**
+	 * Prepares the services for use. The type in the store section of the configuration decides where the catalog is
+	 * kept:
+	 * <ul>
+	 * <li>sql - In the database, see {@link DB#init()}. The caches of tags and types are warmed up and the in-memory
+	 * indexes and the read model are built if they are enabled in the configuration (default). The read model is
+	 * mapped from its snapshot file if possible.</li>
+	 * <li>log - In the {@link LogStore} in the directory given by dir (default: &lt;base dir&gt;/store). Further keys
+	 * are sync, whether to force every change to disk (default true), and snapshotinterval, the number of changes
+	 * after which a snapshot is written (default 100000).</li>
+	 * </ul>
+	 * 
+	 * @throws Exception
+	 *             If the database or the store could not be opened
+	 */
+	public static void init() throws Exception {
+		final CombinedConfiguration conf = Configuration.get();
+		final String type = conf.getString( "store.type", "sql" );
+
+		if ( "log".equals( type ) ) {
+			String dir = conf.getString( "store.dir" );
+			if ( dir == null ) {
+				final String baseDir = conf.getString( "base.dir" );
+				if ( baseDir == null ) {
+					throw new Exception(
+							"Failed to load store configuration. Please specify the store directory or the base directory." );
+				}
+				dir = baseDir + File.separator + "store";
+			}
+
+			final LogStore store = LogStore.open( new File( dir ), conf.getBoolean( "store.sync", true ), conf.getInt(
+					"store.snapshotinterval", 100000 ) );
+			tagService = new LogTagService( store );
+			typeService = new LogTypeService( store );
+			atomService = new LogAtomService( store );
+			moleculeService = new LogMoleculeService( store );
+		} else if ( "sql".equals( type ) ) {
+			DB.init();
+			// The read model may fill the dictionaries from its snapshot file and the indexes are built from it.
+			ReadModel.init();
+			Dictionaries.init();
+			Indexes.init();
+		} else {
+			throw new Exception( "Unknown store type " + type + "." );
+		}
+	}
+
+
+	/**
+	 * Saves the read model, see {@link ReadModel#save()}, and closes the database or the store.
+	 */
+	public static void shutdown() {
+		ReadModel.save();
+		LogStore.close();
+		DB.shutdown();
+	}
+
+
 	/**
 	 * Get an instance that implements the {@link ITagService} interface.
 	 * <p>
@@ -14,7 +14,9 @@
 package org.atomictagging.core.services;
 
 import java.sql.SQLException;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import org.atomictagging.core.types.CoreTypes;
 import org.atomictagging.core.types.IAtom;
@@ -69,6 +71,16 @@ public interface IAtomService {
 	IAtom find( long atomId );
 
 
+	/**
+	 * Returns the atoms with the given IDs from the database. The atoms are loaded in batches, so this is much faster
+	 * than calling {@link #find(long)} for every ID.
+	 * 
+	 * @param atomIds
+	 * @return The atoms mapped by their ID. IDs without an atom are missing from the map. Never null.
+	 */
+	Map<Long, IAtom> find( Collection<Long> atomIds );
+
+
 	/**
 	 * Returns a list of atoms which are tagged with at least one of the given tags.
 	 * 
@@ -89,6 +101,19 @@ public interface IAtomService {
 	List<IAtom> find( List<String> tags, Filter filter );
 
 
+	/**
+	 * Same as {@link #find(List, Filter)} but hands the atoms to the consumer one at a time while they are read. Memory
+	 * usage doesn't depend on the number of atoms found.
+	 * 
+	 * @param types
+	 * @param filter
+	 * @param consumer
+	 *            Receives the atoms ordered by their ID and may stop the query at any time
+	 * @return The number of atoms handed to the consumer
+	 */
+	long forEachAtom( List<String> types, Filter filter, IConsumer<IAtom> consumer );
+
+
 	/**
 	 * Returns a list of atoms that are not tagged with atoms from {@link CoreTypes}. Some atoms with tags from
 	 * {@link CoreTypes} might get included into the returned list if they are tagged additionally with tags that are
@@ -0,0 +1,32 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.core.services;
+
+/**
+ * Receives the results of a query one by one, as soon as they have been read from the database.
+ * 
+ * @param <T>
+ *            The type of the results
+ */
+public interface IConsumer<T> {
+
+	/**
+	 * Handles a single result.
+	 * 
+	 * @param item
+	 * @return true to receive the next result, false to stop the query
+	 */
+	boolean accept( T item );
+
+}
@@ -13,6 +13,7 @@
  */
 package org.atomictagging.core.services;
 
+import java.util.Collection;
 import java.util.List;
 
 import org.atomictagging.core.types.IMolecule;
@@ -32,15 +33,61 @@ public interface IMoleculeService {
 
 
 	/**
-	 * Returns all molecules from the DB that are either tagged with the given tags or contain an atom that is tagged
-	 * with those tags.
+	 * Returns the molecules with the given IDs from the database. The molecules are loaded in batches, so this is much
+	 * faster than calling {@link #find(long)} for every ID.
+	 * 
+	 * @param moleculeIds
+	 * @return The molecules in the order of the given IDs. IDs without a molecule are skipped. Never null.
+	 */
+	List<IMolecule> find( Collection<Long> moleculeIds );
+
+
+	/**
+	 * Returns all molecules from the DB that are tagged with all of the given tags. If no tags are given, all molecules
+	 * are returned.
 	 * 
 	 * @param tags
-	 * @return List of molecules as read from the DB.
+	 * @return List of molecules as read from the DB, ordered by their ID. Never null.
 	 */
 	List<IMolecule> find( List<String> tags );
 
 
+	/**
+	 * Same as {@link #find(List)} but only returns the IDs of the molecules instead of loading them.
+	 * 
+	 * @param tags
+	 * @return List of molecule IDs in ascending order. Never null.
+	 */
+	List<Long> findIds( List<String> tags );
+
+
+	/**
+	 * Same as {@link #find(List)} but hands the molecules to the consumer one at a time while they are read. Memory
+	 * usage doesn't depend on the number of molecules found.
+	 * 
+	 * @param tags
+	 * @param consumer
+	 *            Receives the molecules ordered by their ID and may stop the query at any time
+	 * @return The number of molecules handed to the consumer
+	 */
+	long forEachMolecule( List<String> tags, IConsumer<IMolecule> consumer );
+
+
+	/**
+	 * Returns one page of the molecules that {@link #find(List)} would return. Pages are addressed by the ID of the
+	 * last molecule of the previous page, so every page costs the same no matter how far the caller has browsed.
+	 * 
+	 * @param tags
+	 * @param afterId
+	 *            The ID of the last molecule of the previous page or 0 for the first page
+	 * @param limit
+	 *            Maximum number of molecules on the page, must be greater 0
+	 * @return Up to limit molecules with IDs greater than afterId, ordered by their ID. An empty list if there are no
+	 *         more molecules or a database error occurred. Never null.
+	 */
+	List<IMolecule> findPage( List<String> tags, long afterId, int limit );
+
+
 	/**
 	 * Saves a molecule and returns the ID as generated by the database.
 	 * 
@@ -50,5 +97,17 @@ public interface IMoleculeService {
 	long save( IMolecule molecule );
 
 
+	/**
+	 * Saves many molecules at once. The molecules are written in a few large transactions instead of one per molecule,
+	 * which makes this the method of choice for bulk imports. If the calling thread has a transaction open already,
+	 * the molecules become part of it.
+	 * 
+	 * @param molecules
+	 * @return The IDs of the saved molecules in the order of the given molecules. Molecules that could not be saved
+	 *         get the ID 0. Never null.
+	 */
+	List<Long> save( Collection<IMolecule> molecules );
+
+
 	public List<IMolecule> findByAtomData( final String data );
 }
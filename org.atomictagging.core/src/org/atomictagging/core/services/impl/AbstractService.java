@@ -14,9 +14,8 @@
 package org.atomictagging.core.services.impl;
 
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.List;
+import java.util.Collection;
 
 import org.atomictagging.utils.StringUtils;
 
@@ -25,37 +24,86 @@ import org.atomictagging.utils.StringUtils;
  */
 public abstract class AbstractService {
 
-	protected long getAutoIncrementId( final PreparedStatement statement ) throws SQLException {
-		final ResultSet resultSet = statement.getGeneratedKeys();
+	/**
+	 * The maximum number of IDs that are put into a single IN list. Larger lists of IDs need to be split into chunks.
+	 */
+	public final static int	MAX_IN_LIST	= 500;
 
-		if ( resultSet.next() ) {
-			return resultSet.getLong( "GENERATED_KEY" );
-		}
 
-		return -1;
+	/**
+	 * Builds a list of placeholders for prepared statements with the following syntax: <br>
+	 * (?, ?, ..., ?)
+	 * 
+	 * @param count
+	 *            Number of placeholders, must be greater 0
+	 * @return (?, ?, ..., ?)
+	 */
+	public static String in( final int count ) {
+		return "(" + StringUtils.repeat( "?, ", count - 1 ) + "?)";
 	}
 
 
-	protected long getIdOfExistingEntity( final PreparedStatement statement, final String column ) throws SQLException {
-		final ResultSet possiblyExisting = statement.getResultSet();
-
-		if ( possiblyExisting.next() ) {
-			return possiblyExisting.getLong( column );
+	/**
+	 * Binds all given IDs to the statement, starting at the given parameter index.
+	 * 
+	 * @param statement
+	 * @param first
+	 *            The index of the first parameter to set
+	 * @param ids
+	 * @return The index of the next parameter that has not been set
+	 * @throws SQLException
+	 */
+	protected static int bind( final PreparedStatement statement, final int first, final Collection<Long> ids )
+			throws SQLException {
+		int index = first;
+		for ( final long id : ids ) {
+			statement.setLong( index++, id );
 		}
+		return index;
+	}
 
-		return -1;
+
+	/**
+	 * Binds all given names to the statement, starting at the given parameter index.
+	 * 
+	 * @param statement
+	 * @param first
+	 *            The index of the first parameter to set
+	 * @param names
+	 * @return The index of the next parameter that has not been set
+	 * @throws SQLException
+	 */
+	protected static int bindNames( final PreparedStatement statement, final int first, final Collection<String> names )
+			throws SQLException {
+		int index = first;
+		for ( final String name : names ) {
+			statement.setString( index++, name );
+		}
+		return index;
 	}
 
 
 	/**
-	 * Builds a query string with the following syntax: <br>
-	 * IN ( type0, type1, ..., typeN)
+	 * Binds a range of the given IDs to the statement, starting at the given parameter index.
 	 * 
-	 * @param types
-	 * @return IN ( type0, type1, ..., typeN)
+	 * @param statement
+	 * @param first
+	 *            The index of the first parameter to set
+	 * @param ids
+	 * @param from
+	 *            The first ID to bind, inclusive
+	 * @param to
+	 *            The last ID to bind, exclusive
+	 * @return The index of the next parameter that has not been set
+	 * @throws SQLException
 	 */
-	protected String in( final List<String> tags ) {
-		return " IN ('" + StringUtils.join( tags, "', '" ) + "') ";
+	protected static int bind( final PreparedStatement statement, final int first, final long[] ids, final int from,
+			final int to ) throws SQLException {
+		int index = first;
+		for ( int i = from; i < to; i++ ) {
+			statement.setLong( index++, ids[i] );
+		}
+		return index;
 	}
 
 }
@@ -13,21 +13,35 @@
  */
 package org.atomictagging.core.services.impl;
 
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.lang.NotImplementedException;
+import org.atomictagging.core.accessors.Changes;
 import org.atomictagging.core.accessors.DB;
-import org.atomictagging.core.services.ATService;
+import org.atomictagging.core.accessors.Transaction;
 import org.atomictagging.core.services.IAtomService;
+import org.atomictagging.core.services.IConsumer;
 import org.atomictagging.core.types.Atom;
 import org.atomictagging.core.types.CoreTypes;
 import org.atomictagging.core.types.IAtom;
+import org.atomictagging.utils.StringUtils;
+import org.atomictagging.utils.collections.CompressedBitmap;
+import org.atomictagging.utils.collections.LongList;
+import org.atomictagging.utils.collections.LongObjectMap;
+import org.atomictagging.utils.collections.LongSet;
 import org.eclipse.core.runtime.Assert;
 
 /**
@@ -43,27 +57,13 @@ public class AtomService extends AbstractService implements IAtomService {
 	private final static String			FROM_JOIN_WHERE	= " FROM atoms JOIN atom_has_types JOIN types "
 																+ "WHERE atomid = atoms_atomid AND types_typeid = typeid ";
 
-	private static PreparedStatement	checkAtom;
-	private static PreparedStatement	readAtom;
-	private static PreparedStatement	insertAtom;
-	private static PreparedStatement	checkAtomTypes;
-	private static PreparedStatement	insertAtomTypes;
-
-	static {
-		try {
-			checkAtom = DB.CONN.prepareStatement( "SELECT atomid FROM atoms WHERE data = ?" );
-			readAtom = DB.CONN.prepareStatement( SELECT_ALL + FROM_JOIN_WHERE
-					+ " AND types_typeid = typeid AND atomid = ?" );
-			insertAtom = DB.CONN.prepareStatement( "INSERT INTO atoms (data) VALUES (?)",
-					Statement.RETURN_GENERATED_KEYS );
-			checkAtomTypes = DB.CONN
-					.prepareStatement( "SELECT atoms_atomid FROM atom_has_types WHERE atoms_atomid = ? AND types_typeid = ?" );
-			insertAtomTypes = DB.CONN
-					.prepareStatement( "INSERT INTO atom_has_types (atoms_atomid, types_typeid) VALUES (?, ?)" );
-		} catch ( final SQLException e ) {
-			e.printStackTrace();
-		}
-	}
+	private final static String			CHECK_ATOMS			= "SELECT atomid, data FROM atoms WHERE hash IN ";
+	private final static String			READ_ATOM			= SELECT_ALL + FROM_JOIN_WHERE + " AND atomid = ?";
+	private final static String			INSERT_ATOM			= "INSERT INTO atoms (atomid, data, hash) VALUES (?, ?, ?)";
+	private final static String			READ_BY_DATA		= SELECT_ALL + FROM_JOIN_WHERE + " AND hash = ? AND data = ? ORDER BY "
+																	+ ID;
+	private final static String			CHECK_ATOM_TYPES	= "SELECT atoms_atomid, types_typeid FROM atom_has_types WHERE atoms_atomid IN ";
+	private final static String			INSERT_ATOM_TYPES	= "INSERT INTO atom_has_types (atoms_atomid, types_typeid) VALUES (?, ?)";
 
 
 	@Override
@@ -83,7 +83,22 @@ public class AtomService extends AbstractService implements IAtomService {
 
 	@Override
 	public IAtom find( final long atomId ) {
+		final ReadModel model = ReadModel.get();
+		if ( model != null ) {
+			try {
+				return model.getAtom( atomId );
+			} catch ( final SQLException e ) {
+				e.printStackTrace();
+				return null;
+			}
+		}
+
+		Connection conn = null;
+		PreparedStatement readAtom = null;
+
 		try {
+			conn = DB.getConnection();
+			readAtom = conn.prepareStatement( READ_ATOM );
 			readAtom.setLong( 1, atomId );
 			final ResultSet atomResult = readAtom.executeQuery();
 
@@ -95,12 +110,76 @@ public class AtomService extends AbstractService implements IAtomService {
 			}
 		} catch ( final SQLException e ) {
 			e.printStackTrace();
+		} finally {
+			DB.release( conn, readAtom );
 		}
 
 		return null;
 	}
 
 
+	@Override
+	public Map<Long, IAtom> find( final Collection<Long> atomIds ) {
+		final LongSet ids = new LongSet( atomIds.size() );
+		ids.addAll( atomIds );
+		return load( ids );
+	}
+
+
+	/**
+	 * Loads the atoms with the given IDs, in chunks of {@link AbstractService#MAX_IN_LIST} if they are read from the
+	 * database.
+	 * 
+	 * @param atomIds
+	 * @return The atoms that exist mapped by their IDs
+	 */
+	private Map<Long, IAtom> load( final LongSet atomIds ) {
+		final Map<Long, IAtom> atoms = new HashMap<Long, IAtom>();
+
+		if ( atomIds.isEmpty() ) {
+			return atoms;
+		}
+
+		final ReadModel model = ReadModel.get();
+		if ( model != null ) {
+			try {
+				return model.getAtoms( atomIds.asList() );
+			} catch ( final SQLException e ) {
+				e.printStackTrace();
+				return atoms;
+			}
+		}
+
+		Connection conn = null;
+		PreparedStatement readAtoms = null;
+
+		try {
+			conn = DB.getConnection();
+
+			final long[] ids = atomIds.toArray();
+			for ( int from = 0; from < ids.length; from += MAX_IN_LIST ) {
+				final int to = Math.min( ids.length, from + MAX_IN_LIST );
+
+				readAtoms = conn.prepareStatement( SELECT_ALL + FROM_JOIN_WHERE + " AND atomid IN " + in( to - from )
+						+ " ORDER BY " + ID );
+				bind( readAtoms, 1, ids, from, to );
+
+				for ( final IAtom atom : readFromResultSet( readAtoms.executeQuery() ) ) {
+					atoms.put( atom.getId(), atom );
+				}
+
+				readAtoms.close();
+			}
+		} catch ( final SQLException e ) {
+			e.printStackTrace();
+		} finally {
+			DB.release( conn, readAtoms );
+		}
+
+		return atoms;
+	}
+
+
 	@Override
 	public List<IAtom> find( final List<String> inclusiveTypes ) {
 		return find( inclusiveTypes, Filter.INCLUDE );
@@ -109,29 +188,179 @@ public class AtomService extends AbstractService implements IAtomService {
 
 	@Override
 	public List<IAtom> find( final List<String> types, final Filter filter ) {
+		final CompressedBitmap matches = matchInMemory( types, filter );
+		if ( matches != null ) {
+			return findIndexed( matches );
+		}
+
 		List<IAtom> atoms = new ArrayList<IAtom>();
+		Connection conn = null;
+		PreparedStatement readAtoms = null;
 
 		try {
-			String is = "";
-			if ( Filter.EXCLUDE == filter ) {
-				is = " NOT ";
-			}
+			conn = DB.getConnection();
+			readAtoms = conn.prepareStatement( findQuery( types, filter ) );
+			bindTypes( readAtoms, types );
+			atoms = readFromResultSet( readAtoms.executeQuery() );
+		} catch ( final SQLException e ) {
+			e.printStackTrace();
+		} finally {
+			DB.release( conn, readAtoms );
+		}
+
+		return atoms;
+	}
+
+
+	/**
+	 * Streams the atoms from an independent connection, building one atom at a time.
+	 */
+	@Override
+	public long forEachAtom( final List<String> types, final Filter filter, final IConsumer<IAtom> consumer ) {
+		final CompressedBitmap matches = matchInMemory( types, filter );
+		if ( matches != null ) {
+			return forEachIndexed( matches, consumer );
+		}
 
-			// FIXME Types need to be escaped
-			final String subQuery = "SELECT " + ID + FROM_JOIN_WHERE + " AND type " + is + in( types );
-			final String query = SELECT_ALL + FROM_JOIN_WHERE + " AND " + ID + " IN (" + subQuery + " ) ORDER BY " + ID;
+		final Counter counter = new Counter( consumer );
+		Connection conn = null;
+		PreparedStatement readAtoms = null;
 
-			final Statement stmt = DB.CONN.createStatement();
-			final ResultSet atomsResult = stmt.executeQuery( query );
-			atoms = readFromResultSet( atomsResult );
+		try {
+			conn = DB.getIndependentConnection();
+			readAtoms = DB.prepareStreaming( conn, findQuery( types, filter ) );
+			bindTypes( readAtoms, types );
+			readFromResultSet( readAtoms.executeQuery(), counter );
 		} catch ( final SQLException e ) {
 			e.printStackTrace();
+		} finally {
+			DB.release( conn, readAtoms );
+		}
+
+		return counter.count;
+	}
+
+
+	private String findQuery( final List<String> types, final Filter filter ) {
+		String is = "";
+		if ( Filter.EXCLUDE == filter ) {
+			is = " NOT ";
+		}
+
+		final String subQuery = "SELECT " + ID + FROM_JOIN_WHERE + " AND type " + is + " IN "
+				+ in( Math.max( 1, types.size() ) );
+		return SELECT_ALL + FROM_JOIN_WHERE + " AND " + ID + " IN (" + subQuery + " ) ORDER BY " + ID;
+	}
+
+
+	/**
+	 * Binds the types to the query of {@link #findQuery(List, Filter)}. No types at all are bound as a name no type has,
+	 * since an IN list can't be empty.
+	 */
+	private static void bindTypes( final PreparedStatement statement, final List<String> types ) throws SQLException {
+		if ( types.isEmpty() ) {
+			statement.setString( 1, "" );
+		} else {
+			bindNames( statement, 1, types );
+		}
+	}
+
+
+	/**
+	 * Answers {@link #find(List, Filter)} with the matches found in memory. Only the matching atoms are loaded.
+	 * 
+	 * @param matches
+	 * @return The matching atoms ordered by ID
+	 */
+	private List<IAtom> findIndexed( final CompressedBitmap matches ) {
+		final LongSet atomIds = new LongSet( matches.cardinality() );
+		final CompressedBitmap.IntIterator iterator = matches.iterator();
+		while ( iterator.hasNext() ) {
+			atomIds.add( iterator.next() );
+		}
+
+		final Map<Long, IAtom> atomsById = load( atomIds );
+		final List<IAtom> atoms = new ArrayList<IAtom>( atomsById.size() );
+
+		for ( int i = 0; i < atomIds.size(); i++ ) {
+			final IAtom atom = atomsById.get( atomIds.get( i ) );
+			if ( atom != null ) {
+				atoms.add( atom );
+			}
 		}
 
 		return atoms;
 	}
 
 
+	/**
+	 * Answers {@link #forEachAtom(List, Filter, IConsumer)} with the matches found in memory, reading the matching atoms
+	 * in chunks of {@link AbstractService#MAX_IN_LIST}.
+	 */
+	private long forEachIndexed( final CompressedBitmap matchingIds, final IConsumer<IAtom> consumer ) {
+		final CompressedBitmap.IntIterator matches = matchingIds.iterator();
+		final LongSet chunk = new LongSet( MAX_IN_LIST );
+		long count = 0;
+
+		while ( matches.hasNext() ) {
+			chunk.clear();
+			while ( matches.hasNext() && chunk.size() < MAX_IN_LIST ) {
+				chunk.add( matches.next() );
+			}
+
+			final Map<Long, IAtom> atomsById = load( chunk );
+			for ( int i = 0; i < chunk.size(); i++ ) {
+				final IAtom atom = atomsById.get( chunk.get( i ) );
+				if ( atom == null ) {
+					continue;
+				}
+
+				count++;
+				if ( !consumer.accept( atom ) ) {
+					return count;
+				}
+			}
+		}
+
+		return count;
+	}
+
+
+	/**
+	 * An atom matches INCLUDE if it has at least one of the types, that is the union of their bitmaps. It matches
+	 * EXCLUDE if it has at least one type that is not among the given ones, that is the union of the bitmaps of all
+	 * other types. The read model is asked if it is enabled, the type index otherwise.
+	 * 
+	 * @return The IDs of the matching atoms or null if neither the read model nor the type index is enabled
+	 */
+	private CompressedBitmap matchInMemory( final List<String> types, final Filter filter ) {
+		final ReadModel model = ReadModel.get();
+		final InvertedIndex typeIndex = Indexes.types();
+		if ( model == null && typeIndex == null ) {
+			return null;
+		}
+
+		final List<Long> typeIds = new ArrayList<Long>();
+
+		try {
+			for ( final String type : types ) {
+				final long typeId = Dictionaries.types().getId( type );
+				if ( typeId != -1 ) {
+					typeIds.add( typeId );
+				}
+			}
+		} catch ( final SQLException e ) {
+			e.printStackTrace();
+			return new CompressedBitmap();
+		}
+
+		if ( model != null ) {
+			return model.findAtoms( new HashSet<Long>( typeIds ), Filter.EXCLUDE == filter );
+		}
+		return Filter.EXCLUDE == filter ? typeIndex.orExcept( new HashSet<Long>( typeIds ) ) : typeIndex.or( typeIds );
+	}
+
+
 	@Override
 	public List<IAtom> findUserAtoms() {
 		return find( CoreTypes.asList(), Filter.EXCLUDE );
@@ -140,14 +369,32 @@ public class AtomService extends AbstractService implements IAtomService {
 
 	@Override
 	public List<String> getDomain() {
+		final ReadModel model = ReadModel.get();
+		if ( model != null ) {
+			try {
+				final Set<Long> coreTypeIds = new HashSet<Long>();
+				for ( final String type : CoreTypes.asList() ) {
+					coreTypeIds.add( Dictionaries.types().getId( type ) );
+				}
+				return model.getDomain( coreTypeIds );
+			} catch ( final SQLException e ) {
+				e.printStackTrace();
+				return new ArrayList<String>();
+			}
+		}
+
 		final List<String> domain = new ArrayList<String>();
+		Connection conn = null;
+		PreparedStatement readMolecules = null;
 
 		final String sql = "SELECT DISTINCT a.data FROM atoms a JOIN atom_has_types at "
-				+ "ON a.atomid = at.atoms_atomid JOIN types t ON at.types_typeid = t.typeid " + "WHERE t.type NOT "
-				+ in( CoreTypes.asList() ) + " ORDER BY data";
+				+ "ON a.atomid = at.atoms_atomid JOIN types t ON at.types_typeid = t.typeid " + "WHERE t.type NOT IN "
+				+ in( CoreTypes.asList().size() ) + " ORDER BY data";
 
 		try {
-			final PreparedStatement readMolecules = DB.CONN.prepareStatement( sql );
+			conn = DB.getConnection();
+			readMolecules = conn.prepareStatement( sql );
+			bindNames( readMolecules, 1, CoreTypes.asList() );
 
 			final ResultSet resultSet = readMolecules.executeQuery();
 
@@ -157,6 +404,8 @@ public class AtomService extends AbstractService implements IAtomService {
 
 		} catch ( final SQLException e ) {
 			e.printStackTrace();
+		} finally {
+			DB.release( conn, readMolecules );
 		}
 
 		return domain;
@@ -172,18 +421,33 @@ public class AtomService extends AbstractService implements IAtomService {
 
 	@Override
 	public IAtom findByData( final String data ) {
+		final ReadModel model = ReadModel.get();
+		if ( model != null ) {
+			try {
+				return model.findAtom( data );
+			} catch ( final SQLException e ) {
+				e.printStackTrace();
+				return null;
+			}
+		}
+
 		IAtom atom = null;
+		Connection conn = null;
+		PreparedStatement readAtom = null;
 
 		try {
-			final String query = SELECT_ALL + FROM_JOIN_WHERE + " AND types_typeid = typeid AND data = '" + data + "'";
-			final Statement stmt = DB.CONN.createStatement();
-			final ResultSet atomsResult = stmt.executeQuery( query );
-			final List<IAtom> resultSet = readFromResultSet( atomsResult );
+			conn = DB.getConnection();
+			readAtom = conn.prepareStatement( READ_BY_DATA );
+			readAtom.setString( 1, StringUtils.getHashSum( data ) );
+			readAtom.setString( 2, data );
+			final List<IAtom> resultSet = readFromResultSet( readAtom.executeQuery() );
 			if ( !resultSet.isEmpty() ) {
 				atom = resultSet.get( 0 );
 			}
 		} catch ( final SQLException e ) {
 			e.printStackTrace();
+		} finally {
+			DB.release( conn, readAtom );
 		}
 
 		return atom;
@@ -203,59 +467,268 @@ public class AtomService extends AbstractService implements IAtomService {
 	}
 
 
+	/**
+	 * Saves the atoms with a fixed number of statements, no matter how many atoms there are (apart from chunking):
+	 * <ol>
+	 * <li>Existing atoms are looked up by the hashes of their data</li>
+	 * <li>New atoms get IDs from the {@link IdAllocator} and are written as one batch</li>
+	 * <li>Existing links of existing atoms to types are read</li>
+	 * <li>Missing links are written as one batch</li>
+	 * </ol>
+	 * The type index and the read model learn about the atoms once the surrounding transaction is committed, see
+	 * {@link Transaction#afterCommit(Connection, Runnable)}.
+	 */
 	@Override
 	public List<Long> save( final List<IAtom> atoms ) throws SQLException {
-		final List<Long> atomIds = new ArrayList<Long>();
-
+		// Distinct data in order of appearance, mapped to its hash.
+		final Map<String, String> hashes = new LinkedHashMap<String, String>();
 		for ( final IAtom atom : atoms ) {
-			checkAtom.setString( 1, atom.getData() );
-			checkAtom.execute();
-			long atomId = getIdOfExistingEntity( checkAtom, "atomid" );
-
-			if ( atomId == -1 ) {
-				insertAtom.setString( 1, atom.getData() );
-				insertAtom.execute();
-				atomId = getAutoIncrementId( insertAtom );
+			if ( !hashes.containsKey( atom.getData() ) ) {
+				hashes.put( atom.getData(), StringUtils.getHashSum( atom.getData() ) );
 			}
+		}
 
-			for ( final String type : atom.getTypes() ) {
-				final long typeId = ATService.getTypeService().save( type );
+		final Map<String, Long> idsByData = new HashMap<String, Long>();
+		final Connection conn = DB.getConnection();
 
-				checkAtomTypes.setLong( 1, atomId );
-				checkAtomTypes.setLong( 2, typeId );
-				checkAtomTypes.execute();
-				final long typeCheck = getIdOfExistingEntity( checkAtomTypes, "atoms_atomid" );
+		try {
+			readExistingAtoms( conn, hashes, idsByData );
+			final LongSet existingIds = new LongSet( idsByData.size() );
+			existingIds.addAll( idsByData.values() );
+
+			final List<String> newData = new ArrayList<String>();
+			for ( final String data : hashes.keySet() ) {
+				if ( !idsByData.containsKey( data ) ) {
+					newData.add( data );
+				}
+			}
 
-				if ( typeCheck == -1 ) {
-					insertAtomTypes.setLong( 1, atomId );
-					insertAtomTypes.setLong( 2, typeId );
-					insertAtomTypes.execute();
+			insertAtoms( conn, newData, hashes, idsByData );
+			linkTypes( conn, atoms, idsByData, existingIds );
+
+			if ( ReadModel.get() != null ) {
+				final LongObjectMap<String> data = new LongObjectMap<String>( atoms.size() );
+				final LongObjectMap<LongSet> typeIds = new LongObjectMap<LongSet>( atoms.size() );
+				for ( final IAtom atom : atoms ) {
+					final long atomId = idsByData.get( atom.getData() );
+					data.put( atomId, atom.getData() );
+					for ( final String type : atom.getTypes() ) {
+						linksOf( typeIds, atomId ).add( Dictionaries.types().getId( type ) );
+					}
 				}
+
+				Transaction.afterCommit( conn, new Runnable() {
+					@Override
+					public void run() {
+						final ReadModel model = ReadModel.get();
+						if ( model != null ) {
+							model.addAtoms( data, typeIds );
+						}
+					}
+				} );
 			}
+		} finally {
+			DB.release( conn );
+		}
 
-			atomIds.add( atomId );
+		final List<Long> atomIds = new ArrayList<Long>( atoms.size() );
+		for ( final IAtom atom : atoms ) {
+			atomIds.add( idsByData.get( atom.getData() ) );
 		}
 
 		return atomIds;
 	}
 
 
+	private void readExistingAtoms( final Connection conn, final Map<String, String> hashes,
+			final Map<String, Long> idsByData ) throws SQLException {
+		final List<String> distinctHashes = new ArrayList<String>( new LinkedHashSet<String>( hashes.values() ) );
+		PreparedStatement checkAtoms = null;
+
+		try {
+			for ( int from = 0; from < distinctHashes.size(); from += MAX_IN_LIST ) {
+				final List<String> chunk = distinctHashes.subList( from, Math.min( distinctHashes.size(), from
+						+ MAX_IN_LIST ) );
+
+				checkAtoms = conn.prepareStatement( CHECK_ATOMS + in( chunk.size() ) + " ORDER BY " + ID );
+				int index = 1;
+				for ( final String hash : chunk ) {
+					checkAtoms.setString( index++, hash );
+				}
+
+				final ResultSet existing = checkAtoms.executeQuery();
+				while ( existing.next() ) {
+					// The data is compared to rule out hash collisions. Should there be duplicates, the oldest wins.
+					final String data = existing.getString( DATA );
+					if ( hashes.containsKey( data ) && !idsByData.containsKey( data ) ) {
+						idsByData.put( data, existing.getLong( ID ) );
+					}
+				}
+
+				checkAtoms.close();
+			}
+		} finally {
+			DB.release( null, checkAtoms );
+		}
+	}
+
+
+	/**
+	 * Inserts the atoms as one batch. The IDs are assigned up front, so the batch doesn't need to wait for generated
+	 * keys.
+	 */
+	private void insertAtoms( final Connection conn, final List<String> newData, final Map<String, String> hashes,
+			final Map<String, Long> idsByData ) throws SQLException {
+		if ( newData.isEmpty() ) {
+			return;
+		}
+
+		final LongList ids = IdAllocator.ATOMS.next( newData.size() );
+		PreparedStatement insertAtom = null;
+
+		try {
+			insertAtom = conn.prepareStatement( INSERT_ATOM );
+
+			for ( int i = 0; i < newData.size(); i++ ) {
+				final String data = newData.get( i );
+				insertAtom.setLong( 1, ids.get( i ) );
+				insertAtom.setString( 2, data );
+				insertAtom.setString( 3, hashes.get( data ) );
+				insertAtom.addBatch();
+				idsByData.put( data, ids.get( i ) );
+			}
+
+			insertAtom.executeBatch();
+			Changes.count( conn );
+		} finally {
+			DB.release( null, insertAtom );
+		}
+	}
+
+
+	private void linkTypes( final Connection conn, final List<IAtom> atoms, final Map<String, Long> idsByData,
+			final LongSet existingIds ) throws SQLException {
+		final InvertedIndex typeIndex = Indexes.types();
+		final LongObjectMap<LongSet> links = new LongObjectMap<LongSet>( atoms.size() );
+		PreparedStatement checkAtomTypes = null;
+		PreparedStatement insertAtomTypes = null;
+
+		try {
+			// Only atoms that existed before can already have types.
+			final long[] ids = existingIds.toArray();
+			for ( int from = 0; from < ids.length; from += MAX_IN_LIST ) {
+				final int to = Math.min( ids.length, from + MAX_IN_LIST );
+
+				checkAtomTypes = conn.prepareStatement( CHECK_ATOM_TYPES + in( to - from ) );
+				bind( checkAtomTypes, 1, ids, from, to );
+
+				final ResultSet existing = checkAtomTypes.executeQuery();
+				while ( existing.next() ) {
+					linksOf( links, existing.getLong( "atoms_atomid" ) ).add( existing.getLong( "types_typeid" ) );
+				}
+
+				checkAtomTypes.close();
+			}
+
+			final Set<String> types = new HashSet<String>();
+			for ( final IAtom atom : atoms ) {
+				types.addAll( atom.getTypes() );
+			}
+			final Map<String, Long> typeIdsByName = Dictionaries.types().saveAndLock( conn, types );
+
+			insertAtomTypes = conn.prepareStatement( INSERT_ATOM_TYPES );
+			final List<long[]> added = new ArrayList<long[]>();
+
+			for ( final IAtom atom : atoms ) {
+				final long atomId = idsByData.get( atom.getData() );
+				final LongSet typeIds = linksOf( links, atomId );
+
+				for ( final String type : atom.getTypes() ) {
+					final long typeId = typeIdsByName.get( type );
+
+					if ( typeIds.add( typeId ) ) {
+						insertAtomTypes.setLong( 1, atomId );
+						insertAtomTypes.setLong( 2, typeId );
+						insertAtomTypes.addBatch();
+						added.add( new long[] { typeId, atomId } );
+					}
+				}
+			}
+
+			if ( !added.isEmpty() ) {
+				insertAtomTypes.executeBatch();
+				Changes.count( conn );
+			}
+
+			if ( typeIndex != null && !added.isEmpty() ) {
+				Transaction.afterCommit( conn, new Runnable() {
+					@Override
+					public void run() {
+						for ( final long[] link : added ) {
+							typeIndex.add( link[0], link[1] );
+						}
+					}
+				} );
+			}
+		} finally {
+			DB.release( null, checkAtomTypes, insertAtomTypes );
+		}
+	}
+
+
+	private static LongSet linksOf( final LongObjectMap<LongSet> links, final long atomId ) {
+		LongSet typeIds = links.get( atomId );
+		if ( typeIds == null ) {
+			typeIds = new LongSet();
+			links.put( atomId, typeIds );
+		}
+		return typeIds;
+	}
+
+
 	@Override
 	public void delete( final IAtom atom ) {
 		throw new NotImplementedException( "Not yet implemented. Sorry." );
 	}
 
 
-	private List<IAtom> readFromResultSet( final ResultSet atomsResult ) throws SQLException {
+	/**
+	 * Builds atoms from a result set that contains the columns atomid, data and type. The rows must be ordered by atom
+	 * ID. The result set is closed afterwards.
+	 * 
+	 * @param atomsResult
+	 * @return The atoms in the order of the result set
+	 * @throws SQLException
+	 */
+	static List<IAtom> readFromResultSet( final ResultSet atomsResult ) throws SQLException {
 		final List<IAtom> atoms = new ArrayList<IAtom>();
 
+		readFromResultSet( atomsResult, new IConsumer<IAtom>() {
+			@Override
+			public boolean accept( final IAtom atom ) {
+				return atoms.add( atom );
+			}
+		} );
+
+		return atoms;
+	}
+
+
+	/**
+	 * Same as {@link #readFromResultSet(ResultSet)} but hands every atom to the consumer as soon as it is complete.
+	 * 
+	 * @param atomsResult
+	 * @param consumer
+	 * @throws SQLException
+	 */
+	static void readFromResultSet( final ResultSet atomsResult, final IConsumer<IAtom> consumer ) throws SQLException {
 		try {
 			// The result set contains atoms multiple times, as often as they have types.
 			// That's why the next() call is around the type retrieval. If it was in the
 			// while loop, we would loose atoms or at least types.
-			atomsResult.next();
+			boolean hasNext = atomsResult.next();
 
-			while ( !atomsResult.isAfterLast() ) {
+			while ( hasNext ) {
 				final long atomId = atomsResult.getLong( ID );
 				final String data = atomsResult.getString( DATA );
 				final String type = atomsResult.getString( TYPE );
@@ -263,20 +736,42 @@ public class AtomService extends AbstractService implements IAtomService {
 				final ArrayList<String> types = new ArrayList<String>();
 				types.add( type );
 
-				final Atom atom = (Atom) create( types, data );
+				final Atom atom = new Atom();
+				atom.setTypes( types );
+				atom.setData( data );
 				atom.setId( atomId );
 
-				while ( atomsResult.next() && atomsResult.getLong( ID ) == atomId ) {
+				while ( ( hasNext = atomsResult.next() ) && atomsResult.getLong( ID ) == atomId ) {
 					atom.addType( atomsResult.getString( TYPE ) );
 				}
 
-				atoms.add( atom );
+				if ( !consumer.accept( atom ) ) {
+					break;
+				}
 			}
 		} finally {
 			atomsResult.close();
 		}
+	}
 
-		return atoms;
+	/**
+	 * Passes atoms on to a consumer and counts them.
+	 */
+	private static class Counter implements IConsumer<IAtom> {
+		private final IConsumer<IAtom>	consumer;
+		private long					count	= 0;
+
+
+		Counter( final IConsumer<IAtom> consumer ) {
+			this.consumer = consumer;
+		}
+
+
+		@Override
+		public boolean accept( final IAtom atom ) {
+			count++;
+			return consumer.accept( atom );
+		}
 	}
 
 }
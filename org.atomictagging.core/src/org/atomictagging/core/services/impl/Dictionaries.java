@@ -0,0 +1,59 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.core.services.impl;
+
+import java.sql.SQLException;
+
+/**
+ * Holds the dictionaries of tags and types, which are shared by all services.
+ */
+public final class Dictionaries {
+
+	private final static Dictionary	TAGS	= new Dictionary( "tags", "tagid", "tag" );
+	private final static Dictionary	TYPES	= new Dictionary( "types", "typeid", "type" );
+
+
+	private Dictionaries() {
+		// Utility class
+	}
+
+
+	/**
+	 * Warms up the dictionaries by reading all tags and types, unless the {@link ReadModel} has filled them from its
+	 * snapshot file already. Needs an initialized database.
+	 * 
+	 * @throws SQLException
+	 */
+	public static void init() throws SQLException {
+		TAGS.load();
+		TYPES.load();
+	}
+
+
+	/**
+	 * @return The dictionary of tags
+	 */
+	public static Dictionary tags() {
+		return TAGS;
+	}
+
+
+	/**
+	 * @return The dictionary of types
+	 */
+	public static Dictionary types() {
+		return TYPES;
+	}
+
+}
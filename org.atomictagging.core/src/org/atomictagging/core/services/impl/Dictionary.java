@@ -0,0 +1,366 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.core.services.impl;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.atomictagging.core.accessors.DB;
+import org.atomictagging.core.accessors.OrphanCollector;
+import org.atomictagging.utils.collections.IntSet;
+import org.atomictagging.utils.collections.IntSetPool;
+
+/**
+ * A cache of a table that maps unique names to IDs, like tags or types, in both directions. Lookups that miss the cache
+ * fall back to the database and remember the result.
+ * <p>
+ * New names are inserted on a connection of their own and committed right away, regardless of any transaction the
+ * calling thread has open. Thus the cache only ever holds IDs of rows that exist for every other connection, too. A
+ * name without references that is left behind by a rolled back transaction is harmless.
+ * </p>
+ * <p>
+ * Concurrent saves of the same new name are serialized within this process. Should another process insert the name in
+ * the meantime, the unique key on the name makes the insert fail and the existing ID is read instead.
+ * </p>
+ */
+public class Dictionary {
+
+	private final static int					LOCKS	= 64;
+
+	private final String						readAll;
+	private final String						readId;
+	private final String						readName;
+	private final String						insertName;
+	private final String						lockIds;
+
+	private final ConcurrentMap<String, Long>	ids		= new ConcurrentHashMap<String, Long>();
+	private final ConcurrentMap<Long, String>	names	= new ConcurrentHashMap<Long, String>();
+	private final Object[]					locks	= new Object[LOCKS];
+	private final IntSetPool					sets	= new IntSetPool();
+
+
+	/**
+	 * @param table
+	 *            Name of the table
+	 * @param idColumn
+	 *            Column holding the ID
+	 * @param nameColumn
+	 *            Column holding the unique name
+	 */
+	Dictionary( final String table, final String idColumn, final String nameColumn ) {
+		readAll = "SELECT " + idColumn + ", " + nameColumn + " FROM " + table;
+		readId = "SELECT " + idColumn + ", " + nameColumn + " FROM " + table + " WHERE " + nameColumn + " = ?";
+		readName = "SELECT " + nameColumn + " FROM " + table + " WHERE " + idColumn + " = ?";
+		insertName = "INSERT INTO " + table + " (" + nameColumn + ") VALUES (?)";
+		lockIds = "SELECT " + idColumn + " FROM " + table + " WHERE " + idColumn + " IN %s ORDER BY " + idColumn
+				+ " FOR UPDATE";
+
+		for ( int i = 0; i < LOCKS; i++ ) {
+			locks[i] = new Object();
+		}
+	}
+
+
+	/**
+	 * Reads the whole table into the cache unless the cache has been filled already, e.g. by {@link ReadModel}.
+	 * 
+	 * @throws SQLException
+	 */
+	public void load() throws SQLException {
+		if ( !names.isEmpty() ) {
+			return;
+		}
+
+		Connection conn = null;
+		PreparedStatement readEntries = null;
+
+		try {
+			conn = DB.getConnection();
+			readEntries = conn.prepareStatement( readAll );
+			final ResultSet result = readEntries.executeQuery();
+
+			while ( result.next() ) {
+				put( result.getString( 2 ), result.getLong( 1 ) );
+			}
+		} finally {
+			DB.release( conn, readEntries );
+		}
+	}
+
+
+	/**
+	 * @param name
+	 * @return The ID of the name or -1 if it doesn't exist
+	 * @throws SQLException
+	 */
+	public long getId( final String name ) throws SQLException {
+		final Long cached = ids.get( name );
+		if ( cached != null ) {
+			return cached;
+		}
+
+		Connection conn = null;
+
+		try {
+			conn = DB.getConnection();
+			return read( conn, name );
+		} finally {
+			DB.release( conn );
+		}
+	}
+
+
+	/**
+	 * @param id
+	 * @return The name with the given ID or null if there is none
+	 * @throws SQLException
+	 */
+	public String getName( final long id ) throws SQLException {
+		final String cached = names.get( id );
+		if ( cached != null ) {
+			return cached;
+		}
+
+		Connection conn = null;
+		PreparedStatement readEntry = null;
+
+		try {
+			conn = DB.getConnection();
+			readEntry = conn.prepareStatement( readName );
+			readEntry.setLong( 1, id );
+			final ResultSet result = readEntry.executeQuery();
+
+			if ( result.next() ) {
+				final String name = result.getString( 1 );
+				put( name, id );
+				return name;
+			}
+		} finally {
+			DB.release( conn, readEntry );
+		}
+
+		return null;
+	}
+
+
+	/**
+	 * Returns the ID of the given name, inserting the name first if it doesn't exist yet.
+	 * 
+	 * @param name
+	 * @return The ID of the name
+	 * @throws SQLException
+	 */
+	public long save( final String name ) throws SQLException {
+		final Long cached = ids.get( name );
+		if ( cached != null ) {
+			return cached;
+		}
+
+		synchronized ( locks[( name.hashCode() & Integer.MAX_VALUE ) % LOCKS] ) {
+			long id = getId( name );
+			if ( id != -1 ) {
+				return id;
+			}
+
+			Connection conn = null;
+			PreparedStatement insertEntry = null;
+
+			try {
+				conn = DB.getIndependentConnection();
+				insertEntry = conn.prepareStatement( insertName, Statement.RETURN_GENERATED_KEYS );
+				insertEntry.setString( 1, name );
+				insertEntry.execute();
+
+				final ResultSet result = insertEntry.getGeneratedKeys();
+				if ( result.next() ) {
+					id = result.getLong( 1 );
+				}
+			} catch ( final SQLException e ) {
+				// Most likely another process inserted the very same name in the meantime. The connection of the
+				// calling thread may have a transaction open that doesn't see that row yet, this one does.
+				id = conn == null ? -1 : read( conn, name );
+				if ( id == -1 ) {
+					throw e;
+				}
+			} finally {
+				DB.release( conn, insertEntry );
+			}
+
+			if ( id != -1 ) {
+				put( name, id );
+			}
+			return id;
+		}
+	}
+
+
+	/**
+	 * Returns the IDs of the given names like {@link #save(String)} and locks their rows until the transaction on the
+	 * connection ends, so the {@link OrphanCollector} can't remove them before they are referenced. A name that was
+	 * removed after it had been looked up is saved once more.
+	 * 
+	 * @param conn
+	 *            Connection of the transaction that is going to reference the names
+	 * @param names
+	 * @return The IDs by name
+	 * @throws SQLException
+	 *             Also if a name has been removed again right after saving it once more
+	 */
+	public Map<String, Long> saveAndLock( final Connection conn, final Collection<String> names ) throws SQLException {
+		final Map<String, Long> saved = new HashMap<String, Long>();
+		for ( final String name : names ) {
+			saved.put( name, save( name ) );
+		}
+
+		for ( int attempt = 0; attempt < 2; attempt++ ) {
+			final TreeSet<Long> missing = new TreeSet<Long>( saved.values() );
+			missing.removeAll( lock( conn, missing ) );
+			if ( missing.isEmpty() ) {
+				return saved;
+			}
+
+			for ( final Map.Entry<String, Long> entry : saved.entrySet() ) {
+				if ( missing.contains( entry.getValue() ) ) {
+					remove( entry.getValue() );
+					if ( attempt == 0 ) {
+						entry.setValue( save( entry.getKey() ) );
+					}
+				}
+			}
+		}
+
+		throw new SQLException( "Removed concurrently, probably as orphans: " + names );
+	}
+
+
+	/**
+	 * Fills in an entry that was read from somewhere else than the table, like the snapshot file of the
+	 * {@link ReadModel}.
+	 * 
+	 * @param id
+	 * @param name
+	 */
+	public void restore( final long id, final String name ) {
+		put( name, id );
+	}
+
+
+	/**
+	 * @return A copy of all cached entries by ID
+	 */
+	public Map<Long, String> getEntries() {
+		return new HashMap<Long, String>( names );
+	}
+
+
+	/**
+	 * Forgets an entry, e.g. because it has been deleted from the database.
+	 * 
+	 * @param id
+	 */
+	public void remove( final long id ) {
+		final String name = names.remove( id );
+		if ( name != null ) {
+			ids.remove( name );
+		}
+	}
+
+
+	/**
+	 * Sets of IDs, like the tags of a molecule, are shared by everybody holding the same set. Combinations repeat a
+	 * lot, so holders need little memory and can compare sets by identity.
+	 * 
+	 * @param ids
+	 *            IDs in any order
+	 * @return The shared set of the IDs
+	 */
+	public IntSet intern( final int[] ids ) {
+		return sets.intern( ids );
+	}
+
+
+	/**
+	 * Reads the ID of the name on the given connection and caches it. The name is cached as stored, which is not
+	 * necessarily the spelling asked for, since the database may compare names case-insensitively.
+	 * 
+	 * @return The ID of the name or -1 if it doesn't exist
+	 */
+	private long read( final Connection conn, final String name ) throws SQLException {
+		final PreparedStatement readEntry = conn.prepareStatement( readId );
+
+		try {
+			readEntry.setString( 1, name );
+			final ResultSet result = readEntry.executeQuery();
+
+			if ( result.next() ) {
+				final long id = result.getLong( 1 );
+				put( result.getString( 2 ), id );
+				return id;
+			}
+		} finally {
+			readEntry.close();
+		}
+
+		return -1;
+	}
+
+
+	/**
+	 * Locks the rows of the given IDs in ascending order, so concurrent transactions can't deadlock on them.
+	 * 
+	 * @return The IDs that exist
+	 */
+	private List<Long> lock( final Connection conn, final TreeSet<Long> ids ) throws SQLException {
+		final List<Long> sorted = new ArrayList<Long>( ids );
+		final List<Long> locked = new ArrayList<Long>( sorted.size() );
+
+		for ( int from = 0; from < sorted.size(); from += AbstractService.MAX_IN_LIST ) {
+			final int to = Math.min( sorted.size(), from + AbstractService.MAX_IN_LIST );
+			final List<Long> chunk = sorted.subList( from, to );
+			final PreparedStatement lockEntries = conn.prepareStatement( String.format( lockIds,
+					AbstractService.in( chunk.size() ) ) );
+
+			try {
+				AbstractService.bind( lockEntries, 1, chunk );
+				final ResultSet result = lockEntries.executeQuery();
+
+				while ( result.next() ) {
+					locked.add( result.getLong( 1 ) );
+				}
+			} finally {
+				lockEntries.close();
+			}
+		}
+
+		return locked;
+	}
+
+
+	private void put( final String name, final long id ) {
+		names.put( id, name );
+		ids.put( name, id );
+	}
+
+}
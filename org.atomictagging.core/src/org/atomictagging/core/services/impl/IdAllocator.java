@@ -0,0 +1,115 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.core.services.impl;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.atomictagging.core.accessors.DB;
+import org.atomictagging.core.configuration.Configuration;
+import org.atomictagging.utils.collections.LongList;
+
+/**
+ * Hands out IDs for new rows, so that rows referring to them can be written right away instead of waiting for the
+ * database to report the generated key of every single insert.
+ * <p>
+ * IDs are reserved in blocks (hi/lo) from the sequences table. A reservation is committed on a connection of its own,
+ * so it is never undone by a rolled back transaction. IDs that are reserved but not used leave gaps, nothing more. The
+ * block size is configured by database.idblocksize (default 100).
+ * </p>
+ */
+class IdAllocator {
+
+	/**
+	 * IDs of atoms
+	 */
+	final static IdAllocator	ATOMS			= new IdAllocator( "atoms" );
+
+	/**
+	 * IDs of molecules
+	 */
+	final static IdAllocator	MOLECULES		= new IdAllocator( "molecules" );
+
+	private final static String	READ_SEQUENCE	= "SELECT next_id FROM sequences WHERE name = ? FOR UPDATE";
+	private final static String	UPDATE_SEQUENCE	= "UPDATE sequences SET next_id = ? WHERE name = ?";
+
+	private final String		sequence;
+	private long				next			= 0;
+	private long				limit			= 0;
+
+
+	IdAllocator( final String sequence ) {
+		this.sequence = sequence;
+	}
+
+
+	/**
+	 * @param count
+	 * @return The given number of new, unused IDs in ascending order
+	 * @throws SQLException
+	 *             If no block of IDs could be reserved
+	 */
+	synchronized LongList next( final int count ) throws SQLException {
+		final LongList ids = new LongList( count );
+
+		while ( ids.size() < count ) {
+			if ( next >= limit ) {
+				reserve( count - ids.size() );
+			}
+			ids.add( next++ );
+		}
+
+		return ids;
+	}
+
+
+	/**
+	 * Reserves a block of at least the given size.
+	 */
+	private void reserve( final int atLeast ) throws SQLException {
+		final int size = Math.max( atLeast, Configuration.get().getInt( "database.idblocksize", 100 ) );
+		Connection conn = null;
+		PreparedStatement readSequence = null;
+		PreparedStatement updateSequence = null;
+
+		try {
+			conn = DB.getIndependentConnection();
+			conn.setAutoCommit( false );
+
+			readSequence = conn.prepareStatement( READ_SEQUENCE );
+			readSequence.setString( 1, sequence );
+			final ResultSet result = readSequence.executeQuery();
+
+			if ( !result.next() ) {
+				throw new SQLException( "Sequence " + sequence + " does not exist." );
+			}
+			final long first = result.getLong( 1 );
+
+			updateSequence = conn.prepareStatement( UPDATE_SEQUENCE );
+			updateSequence.setLong( 1, first + size );
+			updateSequence.setString( 2, sequence );
+			updateSequence.execute();
+
+			conn.commit();
+
+			next = first;
+			limit = first + size;
+		} finally {
+			DB.release( conn, readSequence, updateSequence );
+		}
+	}
+
+}
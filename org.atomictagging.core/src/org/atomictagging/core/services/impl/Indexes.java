@@ -0,0 +1,96 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.core.services.impl;
+
+import java.sql.SQLException;
+import java.util.Map;
+
+import org.apache.commons.configuration.CombinedConfiguration;
+import org.atomictagging.core.configuration.Configuration;
+import org.atomictagging.utils.collections.CompressedBitmap;
+
+/**
+ * Holds the optional in-memory indexes. Every index is enabled in the index section of the configuration and built
+ * by {@link #init()}, from the {@link ReadModel} if that is enabled and from the database otherwise. As long as an
+ * index is disabled, its getter returns null and the services fall back to querying the database.
+ * <ul>
+ * <li>tags - Maps tag IDs to the molecules carrying them (default false)</li>
+ * <li>types - Maps type IDs to the atoms having them (default false)</li>
+ * </ul>
+ */
+public final class Indexes {
+
+	private final static String				TAGS_OF_MOLECULES	= "SELECT tags_tagid, molecules_moleculeid FROM molecule_has_tags "
+																	+ "ORDER BY tags_tagid, molecules_moleculeid";
+	private final static String				TYPES_OF_ATOMS		= "SELECT types_typeid, atoms_atomid FROM atom_has_types "
+																	+ "ORDER BY types_typeid, atoms_atomid";
+
+	private static volatile InvertedIndex	tags				= null;
+	private static volatile InvertedIndex	types				= null;
+
+
+	private Indexes() {
+		// Utility class
+	}
+
+
+	/**
+	 * Builds all indexes that are enabled in the configuration. Needs an initialized database and, if it is enabled,
+	 * {@link ReadModel}.
+	 * 
+	 * @throws SQLException
+	 *             If reading the data for an index failed
+	 */
+	public static void init() throws SQLException {
+		final CombinedConfiguration conf = Configuration.get();
+		final ReadModel model = ReadModel.get();
+
+		tags = conf.getBoolean( "index.tags", false ) ? build( TAGS_OF_MOLECULES, model == null ? null : model
+				.getMoleculesByTag() ) : null;
+		types = conf.getBoolean( "index.types", false ) ? build( TYPES_OF_ATOMS, model == null ? null : model
+				.getAtomsByType() ) : null;
+	}
+
+
+	/**
+	 * @return The index from tag IDs to molecule IDs or null if it is disabled
+	 */
+	public static InvertedIndex tags() {
+		return tags;
+	}
+
+
+	/**
+	 * @return The index from type IDs to atom IDs or null if it is disabled
+	 */
+	public static InvertedIndex types() {
+		return types;
+	}
+
+
+	/**
+	 * Builds an index from the given bitmaps or, if there are none, by the given query.
+	 */
+	private static InvertedIndex build( final String query, final Map<Long, CompressedBitmap> bitmaps )
+			throws SQLException {
+		final InvertedIndex index = new InvertedIndex();
+		if ( bitmaps != null ) {
+			index.load( bitmaps );
+		} else {
+			index.load( query );
+		}
+		return index;
+	}
+
+}
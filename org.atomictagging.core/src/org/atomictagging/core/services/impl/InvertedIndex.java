@@ -0,0 +1,339 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.core.services.impl;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.atomictagging.core.accessors.DB;
+import org.atomictagging.utils.collections.CompressedBitmap;
+import org.atomictagging.utils.collections.CompressedBitmap.IntIterator;
+
+/**
+ * An in-memory inverted index that maps keys (e.g. tag IDs) to the set of values (e.g. molecule IDs) they are linked
+ * to. The values of a key are held in a {@link CompressedBitmap}, so combining keys is a matter of bitmap operations
+ * instead of joins and groupings in the database.
+ * <p>
+ * The index is safe to be used by multiple threads. Bitmaps handed out are copies that may be modified freely.
+ * </p>
+ */
+public class InvertedIndex {
+
+	private final Map<Long, CompressedBitmap>	postings	= new HashMap<Long, CompressedBitmap>();
+	private final ReadWriteLock					lock		= new ReentrantReadWriteLock();
+
+
+	/**
+	 * Fills the index with the result of the given query, replacing its current content. The query has to select the
+	 * key in the first and the value in the second column.
+	 * 
+	 * @param query
+	 * @throws SQLException
+	 */
+	public void load( final String query ) throws SQLException {
+		final Map<Long, CompressedBitmap> loaded = new HashMap<Long, CompressedBitmap>();
+		Connection conn = null;
+		PreparedStatement readLinks = null;
+
+		try {
+			conn = DB.getConnection();
+			readLinks = conn.prepareStatement( query );
+			final ResultSet result = readLinks.executeQuery();
+
+			while ( result.next() ) {
+				final Long key = result.getLong( 1 );
+				CompressedBitmap bitmap = loaded.get( key );
+				if ( bitmap == null ) {
+					bitmap = new CompressedBitmap();
+					loaded.put( key, bitmap );
+				}
+				bitmap.add( toInt( result.getLong( 2 ) ) );
+			}
+		} finally {
+			DB.release( conn, readLinks );
+		}
+
+		for ( final CompressedBitmap bitmap : loaded.values() ) {
+			bitmap.runOptimize();
+		}
+
+		lock.writeLock().lock();
+		try {
+			postings.clear();
+			postings.putAll( loaded );
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Fills the index with copies of the given bitmaps, replacing its current content.
+	 * 
+	 * @param bitmaps
+	 *            Values by key
+	 */
+	public void load( final Map<Long, CompressedBitmap> bitmaps ) {
+		final Map<Long, CompressedBitmap> loaded = new HashMap<Long, CompressedBitmap>();
+		for ( final Map.Entry<Long, CompressedBitmap> entry : bitmaps.entrySet() ) {
+			if ( !entry.getValue().isEmpty() ) {
+				loaded.put( entry.getKey(), entry.getValue().copy() );
+			}
+		}
+
+		lock.writeLock().lock();
+		try {
+			postings.clear();
+			postings.putAll( loaded );
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Links a value to a key.
+	 * 
+	 * @param key
+	 * @param value
+	 */
+	public void add( final long key, final long value ) {
+		lock.writeLock().lock();
+		try {
+			CompressedBitmap bitmap = postings.get( key );
+			if ( bitmap == null ) {
+				bitmap = new CompressedBitmap();
+				postings.put( key, bitmap );
+			}
+			bitmap.add( toInt( value ) );
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Removes the link between a value and a key.
+	 * 
+	 * @param key
+	 * @param value
+	 */
+	public void remove( final long key, final long value ) {
+		lock.writeLock().lock();
+		try {
+			final CompressedBitmap bitmap = postings.get( key );
+			if ( bitmap != null ) {
+				bitmap.remove( toInt( value ) );
+				if ( bitmap.isEmpty() ) {
+					postings.remove( key );
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Removes a value from all keys, e.g. because the molecule it stands for has been deleted.
+	 * 
+	 * @param value
+	 */
+	public void removeValue( final long value ) {
+		final int intValue = toInt( value );
+
+		lock.writeLock().lock();
+		try {
+			final List<Long> emptyKeys = new ArrayList<Long>();
+			for ( final Map.Entry<Long, CompressedBitmap> entry : postings.entrySet() ) {
+				entry.getValue().remove( intValue );
+				if ( entry.getValue().isEmpty() ) {
+					emptyKeys.add( entry.getKey() );
+				}
+			}
+			postings.keySet().removeAll( emptyKeys );
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Removes many values from all keys at once.
+	 * 
+	 * @param values
+	 */
+	public void removeValues( final Collection<Long> values ) {
+		final CompressedBitmap removed = new CompressedBitmap();
+		for ( final long value : values ) {
+			removed.add( toInt( value ) );
+		}
+
+		lock.writeLock().lock();
+		try {
+			final Iterator<Map.Entry<Long, CompressedBitmap>> entries = postings.entrySet().iterator();
+			while ( entries.hasNext() ) {
+				final Map.Entry<Long, CompressedBitmap> entry = entries.next();
+				final CompressedBitmap remaining = entry.getValue().andNot( removed );
+
+				if ( remaining.isEmpty() ) {
+					entries.remove();
+				} else {
+					entry.setValue( remaining );
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+
+	/**
+	 * @param key
+	 * @return All values linked to the given key
+	 */
+	public CompressedBitmap get( final long key ) {
+		lock.readLock().lock();
+		try {
+			final CompressedBitmap bitmap = postings.get( key );
+			return bitmap == null ? new CompressedBitmap() : bitmap.copy();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Intersects the values of all given keys. The smallest bitmaps are intersected first, so the intermediate results
+	 * shrink as fast as possible.
+	 * 
+	 * @param keys
+	 * @return All values that are linked to every one of the given keys, an empty bitmap if no keys are given
+	 */
+	public CompressedBitmap and( final Collection<Long> keys ) {
+		lock.readLock().lock();
+		try {
+			final List<CompressedBitmap> bitmaps = new ArrayList<CompressedBitmap>();
+			for ( final Long key : new LinkedHashSet<Long>( keys ) ) {
+				final CompressedBitmap bitmap = postings.get( key );
+				if ( bitmap == null ) {
+					return new CompressedBitmap();
+				}
+				bitmaps.add( bitmap );
+			}
+
+			if ( bitmaps.isEmpty() ) {
+				return new CompressedBitmap();
+			}
+
+			final Map<CompressedBitmap, Integer> cardinalities = new HashMap<CompressedBitmap, Integer>();
+			for ( final CompressedBitmap bitmap : bitmaps ) {
+				cardinalities.put( bitmap, bitmap.cardinality() );
+			}
+			Collections.sort( bitmaps, new Comparator<CompressedBitmap>() {
+				@Override
+				public int compare( final CompressedBitmap a, final CompressedBitmap b ) {
+					return cardinalities.get( a ).compareTo( cardinalities.get( b ) );
+				}
+			} );
+
+			CompressedBitmap result = bitmaps.get( 0 ).copy();
+			for ( int i = 1; i < bitmaps.size() && !result.isEmpty(); i++ ) {
+				result = result.and( bitmaps.get( i ) );
+			}
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+
+	/**
+	 * @param keys
+	 * @return All values that are linked to at least one of the given keys
+	 */
+	public CompressedBitmap or( final Collection<Long> keys ) {
+		lock.readLock().lock();
+		try {
+			CompressedBitmap result = new CompressedBitmap();
+			for ( final Long key : keys ) {
+				final CompressedBitmap bitmap = postings.get( key );
+				if ( bitmap != null ) {
+					result = result.or( bitmap );
+				}
+			}
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+
+	/**
+	 * @param keys
+	 * @return All values that are linked to at least one key that is not among the given keys
+	 */
+	public CompressedBitmap orExcept( final Collection<Long> keys ) {
+		lock.readLock().lock();
+		try {
+			CompressedBitmap result = new CompressedBitmap();
+			for ( final Map.Entry<Long, CompressedBitmap> entry : postings.entrySet() ) {
+				if ( !keys.contains( entry.getKey() ) ) {
+					result = result.or( entry.getValue() );
+				}
+			}
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Converts a bitmap as returned by this index into a list of IDs.
+	 * 
+	 * @param bitmap
+	 * @return The values of the bitmap in ascending order
+	 */
+	public static List<Long> toIds( final CompressedBitmap bitmap ) {
+		final List<Long> ids = new ArrayList<Long>( bitmap.cardinality() );
+		final IntIterator iterator = bitmap.iterator();
+		while ( iterator.hasNext() ) {
+			ids.add( (long) iterator.next() );
+		}
+		return ids;
+	}
+
+
+	private static int toInt( final long value ) {
+		if ( value < 0 || value > Integer.MAX_VALUE ) {
+			throw new IllegalArgumentException( "ID " + value + " is out of the range supported by the index." );
+		}
+		return (int) value;
+	}
+
+}
@@ -0,0 +1,176 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.core.services.impl;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.atomictagging.core.accessors.DB;
+import org.atomictagging.core.types.Atom;
+import org.atomictagging.core.types.IAtom;
+import org.atomictagging.core.types.IMolecule;
+import org.atomictagging.core.types.Molecule;
+
+/**
+ * Loads complete molecules, including all atoms, their types and the tags of the molecules. The IDs are split into
+ * chunks of at most {@link AbstractService#MAX_IN_LIST} and every chunk is loaded with two queries, regardless of how
+ * many molecules and atoms it contains. Names of types and tags are taken from the {@link Dictionaries}. If the
+ * {@link ReadModel} is enabled, the molecules are taken from there instead.
+ */
+class MoleculeLoader {
+
+	private final static String	READ_ATOMS	= "SELECT ma.molecules_moleculeid AS moleculeid, a.atomid, a.data, at.types_typeid AS typeid "
+													+ "FROM molecule_has_atoms ma "
+													+ "JOIN atoms a ON ma.atoms_atomid = a.atomid "
+													+ "JOIN atom_has_types at ON a.atomid = at.atoms_atomid "
+													+ "WHERE ma.molecules_moleculeid IN ";
+	private final static String	READ_TAGS	= "SELECT molecules_moleculeid AS moleculeid, tags_tagid AS tagid "
+													+ "FROM molecule_has_tags WHERE molecules_moleculeid IN ";
+
+
+	/**
+	 * Loads the molecule with the given ID.
+	 * 
+	 * @param moleculeId
+	 * @return The molecule or null if there is no molecule with the given ID
+	 * @throws SQLException
+	 */
+	IMolecule load( final long moleculeId ) throws SQLException {
+		final List<Long> ids = new ArrayList<Long>( 1 );
+		ids.add( moleculeId );
+		return load( ids ).get( moleculeId );
+	}
+
+
+	/**
+	 * Loads all molecules with the given IDs. IDs that don't belong to a molecule are ignored.
+	 * 
+	 * @param moleculeIds
+	 * @return The molecules mapped by their ID, never null
+	 * @throws SQLException
+	 */
+	Map<Long, IMolecule> load( final Collection<Long> moleculeIds ) throws SQLException {
+		final Map<Long, IMolecule> molecules = new HashMap<Long, IMolecule>();
+		final List<Long> ids = new ArrayList<Long>( new LinkedHashSet<Long>( moleculeIds ) );
+
+		if ( ids.isEmpty() ) {
+			return molecules;
+		}
+
+		final ReadModel model = ReadModel.get();
+		if ( model != null ) {
+			return model.getMolecules( ids );
+		}
+
+		final Connection conn = DB.getConnection();
+
+		try {
+			for ( int from = 0; from < ids.size(); from += AbstractService.MAX_IN_LIST ) {
+				final List<Long> chunk = ids.subList( from, Math.min( ids.size(), from + AbstractService.MAX_IN_LIST ) );
+				readAtoms( conn, chunk, molecules );
+				readTags( conn, chunk, molecules );
+			}
+		} finally {
+			DB.release( conn );
+		}
+
+		return molecules;
+	}
+
+
+	/**
+	 * Reads all atoms of the given molecules and creates the molecules on the way. Atoms that are part of several
+	 * molecules are only created once and shared between the molecules.
+	 */
+	private void readAtoms( final Connection conn, final List<Long> chunk, final Map<Long, IMolecule> molecules )
+			throws SQLException {
+		PreparedStatement readAtoms = null;
+
+		try {
+			// Ordering by atom ID keeps all rows of an atom together and the atoms of every molecule in the same
+			// order as they have always been.
+			readAtoms = conn.prepareStatement( READ_ATOMS + AbstractService.in( chunk.size() ) + " ORDER BY a.atomid" );
+			AbstractService.bind( readAtoms, 1, chunk );
+			final ResultSet result = readAtoms.executeQuery();
+
+			final Map<Long, IAtom> atoms = new HashMap<Long, IAtom>();
+
+			while ( result.next() ) {
+				final long moleculeId = result.getLong( "moleculeid" );
+				final long atomId = result.getLong( "atomid" );
+				final String type = Dictionaries.types().getName( result.getLong( "typeid" ) );
+
+				IAtom atom = atoms.get( atomId );
+				if ( atom == null ) {
+					atom = new Atom();
+					atom.setId( atomId );
+					atom.setData( result.getString( "data" ) );
+					atoms.put( atomId, atom );
+				}
+
+				// Every type shows up once per molecule that contains the atom.
+				if ( !atom.getTypes().contains( type ) ) {
+					atom.addType( type );
+				}
+
+				IMolecule molecule = molecules.get( moleculeId );
+				if ( molecule == null ) {
+					molecule = new Molecule();
+					molecule.setId( moleculeId );
+					molecules.put( moleculeId, molecule );
+				}
+
+				// Since the rows are ordered by atom, the atom was either just added or not at all.
+				final List<IAtom> moleculeAtoms = molecule.getAtoms();
+				if ( moleculeAtoms.isEmpty() || moleculeAtoms.get( moleculeAtoms.size() - 1 ) != atom ) {
+					moleculeAtoms.add( atom );
+				}
+			}
+		} finally {
+			DB.release( null, readAtoms );
+		}
+	}
+
+
+	private void readTags( final Connection conn, final List<Long> chunk, final Map<Long, IMolecule> molecules )
+			throws SQLException {
+		PreparedStatement readTags = null;
+
+		try {
+			readTags = conn.prepareStatement( READ_TAGS + AbstractService.in( chunk.size() ) );
+			AbstractService.bind( readTags, 1, chunk );
+			final ResultSet result = readTags.executeQuery();
+
+			while ( result.next() ) {
+				final IMolecule molecule = molecules.get( result.getLong( "moleculeid" ) );
+
+				// Molecules without atoms don't exist as far as we are concerned.
+				if ( molecule != null ) {
+					molecule.getTags().add( Dictionaries.tags().getName( result.getLong( "tagid" ) ) );
+				}
+			}
+		} finally {
+			DB.release( null, readTags );
+		}
+	}
+
+}
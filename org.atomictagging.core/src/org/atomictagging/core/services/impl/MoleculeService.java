@@ -13,261 +13,610 @@
  */
 package org.atomictagging.core.services.impl;
 
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.commons.configuration.CombinedConfiguration;
+import org.atomictagging.core.accessors.Changes;
 import org.atomictagging.core.accessors.DB;
+import org.atomictagging.core.accessors.RefCounts;
+import org.atomictagging.core.accessors.Transaction;
+import org.atomictagging.core.configuration.Configuration;
 import org.atomictagging.core.services.ATService;
+import org.atomictagging.core.services.IConsumer;
 import org.atomictagging.core.services.IMoleculeService;
 import org.atomictagging.core.types.IAtom;
 import org.atomictagging.core.types.IMolecule;
-import org.atomictagging.core.types.Molecule;
 import org.atomictagging.utils.StringUtils;
+import org.atomictagging.utils.collections.CompressedBitmap;
+import org.atomictagging.utils.collections.LongList;
+import org.atomictagging.utils.collections.LongObjectMap;
+import org.atomictagging.utils.collections.LongSet;
 
 /**
  * 
  */
 public class MoleculeService extends AbstractService implements IMoleculeService {
 
-	private static PreparedStatement	readMolecule;
-	private static PreparedStatement	readMoleculeTags;
-	static {
+	private final static String		INSERT_MOLECULE		= "INSERT INTO molecules (moleculeid) VALUES (?)";
+	private final static String		INSERT_TAGS			= "INSERT INTO molecule_has_tags (molecules_moleculeid, tags_tagid) VALUES (?, ?)";
+	private final static String		INSERT_LINKS		= "INSERT INTO molecule_has_atoms (molecules_moleculeid, atoms_atomid) VALUES (?, ?)";
+	private final static String		FIND_BY_ATOM_DATA	= "SELECT DISTINCT ma.molecules_moleculeid AS moleculeid FROM molecule_has_atoms ma "
+															+ "JOIN atoms a ON ma.atoms_atomid = a.atomid WHERE a.hash = ? AND a.data = ? "
+															+ "ORDER BY moleculeid";
+
+	private final static String		ALL_MOLECULES		= "SELECT moleculeid FROM molecules ORDER BY moleculeid";
+	private final static String		MOLECULES_AFTER		= "SELECT moleculeid FROM molecules WHERE moleculeid > ? "
+															+ "ORDER BY moleculeid LIMIT ?";
+	private final static String		MOLECULES_WITH_TAGS	= "SELECT mt.molecules_moleculeid AS moleculeid FROM molecule_has_tags mt "
+															+ "JOIN tags t ON mt.tags_tagid = t.tagid WHERE t.tag IN ";
+
+	private final MoleculeLoader	loader				= new MoleculeLoader();
+
+
+	@Override
+	public IMolecule find( final long moleculeId ) {
+		if ( moleculeId <= 0 ) {
+			throw new IllegalArgumentException( "Invalid molecule ID." );
+		}
+
 		try {
-			readMolecule = DB.CONN
-					.prepareStatement( "SELECT molecules_moleculeid, atoms_atomid FROM molecule_has_atoms WHERE molecules_moleculeid = ?" );
-			readMoleculeTags = DB.CONN
-					.prepareStatement( "SELECT tagid, tag FROM tags JOIN molecule_has_tags WHERE tagid = tags_tagid AND molecules_moleculeid = ?" );
+			return loader.load( moleculeId );
 		} catch ( final SQLException e ) {
 			e.printStackTrace();
 		}
+
+		return null;
 	}
 
 
 	@Override
-	public IMolecule find( final long moleculeId ) {
-		if ( moleculeId <= 0 ) {
-			throw new IllegalArgumentException( "Invalid molecule ID." );
-		}
+	public List<IMolecule> find( final Collection<Long> moleculeIds ) {
+		final List<IMolecule> result = new ArrayList<IMolecule>();
 
 		try {
-			readMolecule.setLong( 1, moleculeId );
-			final ResultSet moleculeResult = readMolecule.executeQuery();
-			boolean first = true;
-			final IMolecule molecule = new Molecule();
-			final List<IAtom> atoms = new ArrayList<IAtom>();
+			final Map<Long, IMolecule> molecules = loader.load( moleculeIds );
 
-			while ( moleculeResult.next() ) {
-				if ( first ) {
-					molecule.setId( moleculeResult.getLong( "molecules_moleculeid" ) );
-					first = false;
+			for ( final Long moleculeId : moleculeIds ) {
+				final IMolecule molecule = molecules.get( moleculeId );
+				if ( molecule != null ) {
+					result.add( molecule );
 				}
-
-				final long atomId = moleculeResult.getLong( "atoms_atomid" );
-				atoms.add( ATService.getAtomService().find( atomId ) );
 			}
+		} catch ( final SQLException e ) {
+			e.printStackTrace();
+		}
 
-			molecule.setAtoms( atoms );
+		return result;
+	}
 
-			readMoleculeTags.setLong( 1, moleculeId );
-			final ResultSet moleculeTagResult = readMoleculeTags.executeQuery();
-			final List<String> tags = new ArrayList<String>();
 
-			while ( moleculeTagResult.next() ) {
-				tags.add( moleculeTagResult.getString( "tag" ) );
+	@Override
+	public List<IMolecule> findByAtomData( final String data ) {
+		final ReadModel model = ReadModel.get();
+		if ( model != null ) {
+			try {
+				final IAtom atom = model.findAtom( data );
+				return atom == null ? new ArrayList<IMolecule>() : find( InvertedIndex.toIds( model.findMolecules( atom
+						.getId() ) ) );
+			} catch ( final SQLException e ) {
+				e.printStackTrace();
+				return new ArrayList<IMolecule>();
 			}
+		}
 
-			molecule.setTags( tags );
+		final List<Long> moleculeIds = new ArrayList<Long>();
+		Connection conn = null;
+		PreparedStatement readMolecules = null;
 
-			// No molecule found
-			if ( first ) {
-				return null;
-			}
+		try {
+			conn = DB.getConnection();
+			readMolecules = conn.prepareStatement( FIND_BY_ATOM_DATA );
+			readMolecules.setString( 1, StringUtils.getHashSum( data ) );
+			readMolecules.setString( 2, data );
+			final ResultSet moleculeResult = readMolecules.executeQuery();
 
-			return molecule;
+			while ( moleculeResult.next() ) {
+				moleculeIds.add( moleculeResult.getLong( "moleculeid" ) );
+			}
 		} catch ( final SQLException e ) {
 			e.printStackTrace();
+		} finally {
+			DB.release( conn, readMolecules );
 		}
 
-		return null;
+		return find( moleculeIds );
 	}
 
 
 	@Override
-	public List<IMolecule> findByAtomData( final String data ) {
-		final List<IMolecule> result = new ArrayList<IMolecule>();
+	public List<IMolecule> find( final List<String> tags ) {
+		return find( findIds( tags ) );
+	}
 
-		final String sql = "SELECT ma.molecules_moleculeid moleculeid, a.atomid FROM molecules m "
-				+ "JOIN molecule_has_atoms ma on m.moleculeid=ma.molecules_moleculeid "
-				+ "JOIN atoms a on ma.atoms_atomid=a.atomid "
-				+ "WHERE moleculeid IN( "
-				+ "SELECT ma.molecules_moleculeid moleculeid FROM molecules m join molecule_has_atoms ma on m.moleculeid=ma.molecules_moleculeid join atoms a on ma.atoms_atomid=a.atomid where a.data='"
-				+ data + "' )";
 
-		try {
-			final PreparedStatement readMolecules = DB.CONN.prepareStatement( sql );
+	@Override
+	public List<Long> findIds( final List<String> tags ) {
+		final List<String> distinctTags = new ArrayList<String>( new LinkedHashSet<String>( tags ) );
+		final CompressedBitmap matches = matchInMemory( distinctTags );
+
+		if ( matches != null ) {
+			return InvertedIndex.toIds( matches );
+		}
+
+		final List<Long> moleculeIds = new ArrayList<Long>();
+		Connection conn = null;
+		PreparedStatement readMolecules = null;
 
-			// ResultSet = moleculeid, atomid
+		try {
+			conn = DB.getConnection();
+			readMolecules = conn.prepareStatement( findIdsQuery( distinctTags ) );
+			bindTags( readMolecules, distinctTags );
 			final ResultSet moleculeResult = readMolecules.executeQuery();
-			long moleculeId = -1;
-			Molecule molecule = null;
-			IAtom atom = null;
-			final Map<Long, IAtom> atoms = new HashMap<Long, IAtom>();
 
 			while ( moleculeResult.next() ) {
-				final long moleculeIdNext = moleculeResult.getLong( "moleculeid" );
+				moleculeIds.add( moleculeResult.getLong( "moleculeid" ) );
+			}
+		} catch ( final SQLException e ) {
+			e.printStackTrace();
+		} finally {
+			DB.release( conn, readMolecules );
+		}
 
-				if ( moleculeIdNext != moleculeId ) {
-					moleculeId = moleculeIdNext;
+		return moleculeIds;
+	}
 
-					molecule = new Molecule();
-					molecule.setId( moleculeId );
-					molecule.setTags( ATService.getTagService().getForMolecule( moleculeId ) );
 
-					result.add( molecule );
-				}
+	/**
+	 * Streams the IDs of the matching molecules from an independent connection and loads the molecules in chunks of
+	 * {@link AbstractService#MAX_IN_LIST} on the connection of the current thread. Hence only one chunk of molecules is
+	 * held in memory at any time.
+	 */
+	@Override
+	public long forEachMolecule( final List<String> tags, final IConsumer<IMolecule> consumer ) {
+		final List<String> distinctTags = new ArrayList<String>( new LinkedHashSet<String>( tags ) );
+		final CompressedBitmap matchingIds = matchInMemory( distinctTags );
+		final Chunks chunks = new Chunks( consumer );
 
-				final long atomId = moleculeResult.getLong( "atomid" );
+		if ( matchingIds != null ) {
+			final CompressedBitmap.IntIterator matches = matchingIds.iterator();
 
-				// FIXME What is this supposed to accomplish? There is no write to this map so
-				// this if will always be false.
-				if ( !atoms.containsKey( atomId ) ) {
-					atom = ATService.getAtomService().find( atomId );
+			try {
+				while ( matches.hasNext() && chunks.add( matches.next() ) ) {
+					// Chunks are handed to the consumer as they fill up
 				}
-
-				molecule.getAtoms().add( atom );
+				chunks.flush();
+			} catch ( final SQLException e ) {
+				e.printStackTrace();
 			}
 
+			return chunks.count;
+		}
+
+		Connection conn = null;
+		PreparedStatement readMolecules = null;
+
+		try {
+			conn = DB.getIndependentConnection();
+			readMolecules = DB.prepareStreaming( conn, findIdsQuery( distinctTags ) );
+			bindTags( readMolecules, distinctTags );
+			final ResultSet moleculeResult = readMolecules.executeQuery();
+
+			while ( moleculeResult.next() && chunks.add( moleculeResult.getLong( "moleculeid" ) ) ) {
+				// Chunks are handed to the consumer as they fill up
+			}
+			chunks.flush();
 		} catch ( final SQLException e ) {
 			e.printStackTrace();
+		} finally {
+			DB.release( conn, readMolecules );
 		}
 
-		return result;
+		return chunks.count;
 	}
 
 
+	/**
+	 * Only reads the IDs of one page, using the primary key or the tag index to start right behind the given ID.
+	 */
 	@Override
-	public List<IMolecule> find( final List<String> tags ) {
-		final List<IMolecule> result = new ArrayList<IMolecule>();
+	public List<IMolecule> findPage( final List<String> tags, final long afterId, final int limit ) {
+		if ( limit < 1 ) {
+			throw new IllegalArgumentException( "A page must hold at least one molecule." );
+		}
+
+		final List<String> distinctTags = new ArrayList<String>( new LinkedHashSet<String>( tags ) );
+		final CompressedBitmap matchingIds = matchInMemory( distinctTags );
+		final List<Long> moleculeIds = new ArrayList<Long>( limit );
+
+		if ( matchingIds != null ) {
+			// IDs beyond the range of the index can't be in there.
+			if ( afterId < Integer.MAX_VALUE ) {
+				final CompressedBitmap.IntIterator matches = matchingIds.iterator( (int) Math.max( 0, afterId + 1 ) );
+				while ( matches.hasNext() && moleculeIds.size() < limit ) {
+					moleculeIds.add( (long) matches.next() );
+				}
+			}
+			return find( moleculeIds );
+		}
+
+		Connection conn = null;
+		PreparedStatement readMolecules = null;
 
 		try {
-			final String tagFilter = StringUtils.join( tags, "' OR tag = '" );
-			String moleculeSQL;
-
-			// FIXME SQL injection! Fix this!!
-			if ( !tagFilter.isEmpty() ) {
-				moleculeSQL =
-				// TODO Select molecules with all their tags
-				"SELECT mt.molecules_moleculeid AS moleculeid "
-						+ "FROM tags JOIN molecule_has_tags AS mt ON (tagid = mt.tags_tagid) " + "WHERE tag = '"
-						+ tagFilter + "' ORDER BY moleculeid;";
-
-				throw new RuntimeException( "not yet implemented, sorry." );
+			conn = DB.getConnection();
+
+			if ( distinctTags.isEmpty() ) {
+				readMolecules = conn.prepareStatement( MOLECULES_AFTER );
+				readMolecules.setLong( 1, afterId );
+				readMolecules.setInt( 2, limit );
 			} else {
-				moleculeSQL = "SELECT molecules_moleculeid AS moleculeid, tag " //
-						+ "FROM molecule_has_tags AS mt JOIN tags ON (mt.tags_tagid = tagid)";
+				readMolecules = conn.prepareStatement( MOLECULES_WITH_TAGS + in( distinctTags.size() )
+						+ " AND mt.molecules_moleculeid > ? GROUP BY mt.molecules_moleculeid HAVING COUNT(*) = ? "
+						+ "ORDER BY moleculeid LIMIT ?" );
+
+				int index = 1;
+				for ( final String tag : distinctTags ) {
+					readMolecules.setString( index++, tag );
+				}
+				readMolecules.setLong( index++, afterId );
+				readMolecules.setInt( index++, distinctTags.size() );
+				readMolecules.setInt( index, limit );
 			}
 
-			final PreparedStatement readMolecules = DB.CONN.prepareStatement( moleculeSQL );
+			final ResultSet moleculeResult = readMolecules.executeQuery();
+			while ( moleculeResult.next() ) {
+				moleculeIds.add( moleculeResult.getLong( "moleculeid" ) );
+			}
+		} catch ( final SQLException e ) {
+			e.printStackTrace();
+		} finally {
+			DB.release( conn, readMolecules );
+		}
 
-			final String atomSQL = "SELECT atoms_atomid AS atomid "
-					+ "FROM molecule_has_atoms WHERE molecules_moleculeid = ? GROUP BY atoms_atomid";
-			final PreparedStatement readAtoms = DB.CONN.prepareStatement( atomSQL );
+		return find( moleculeIds );
+	}
 
-			final ResultSet moleculeResult = readMolecules.executeQuery();
-			IMolecule molecule = new Molecule();
-			long moleculeId = 0;
 
-			// Build molecules with all their atoms
-			while ( moleculeResult.next() ) {
-				if ( moleculeId != moleculeResult.getLong( "moleculeid" ) ) {
+	/**
+	 * @return A query for the IDs of all molecules that carry all of the given tags, in ascending order
+	 */
+	private static String findIdsQuery( final List<String> distinctTags ) {
+		if ( distinctTags.isEmpty() ) {
+			return ALL_MOLECULES;
+		}
 
-					// Whenever the molecule ID changes, but not in first iteration
-					if ( moleculeId != 0 ) {
-						result.add( molecule );
-						molecule = new Molecule();
-					}
+		// A molecule has every tag only once, so it carries all requested tags exactly if it matches as many of them
+		// as were requested.
+		return MOLECULES_WITH_TAGS + in( distinctTags.size() )
+				+ " GROUP BY mt.molecules_moleculeid HAVING COUNT(*) = ? ORDER BY moleculeid";
+	}
 
-					moleculeId = moleculeResult.getLong( "moleculeid" );
-					molecule.setId( moleculeId );
 
-					readAtoms.setLong( 1, moleculeId );
-					final ResultSet atomResult = readAtoms.executeQuery();
-					final List<IAtom> atoms = new ArrayList<IAtom>();
+	private static void bindTags( final PreparedStatement statement, final List<String> distinctTags )
+			throws SQLException {
+		if ( distinctTags.isEmpty() ) {
+			return;
+		}
 
-					while ( atomResult.next() ) {
-						final long atomId = atomResult.getLong( "atomid" );
-						atoms.add( ATService.getAtomService().find( atomId ) );
-					}
-				}
+		int index = 1;
+		for ( final String tag : distinctTags ) {
+			statement.setString( index++, tag );
+		}
+		statement.setInt( index, distinctTags.size() );
+	}
 
-				molecule.setTags( Arrays.asList( moleculeResult.getString( "tag" ) ) );
-			}
 
-			// Only if there was at least one molecule
-			if ( moleculeId != 0 ) {
-				result.add( molecule );
-			}
+	/**
+	 * Resolves the tags to their IDs and intersects their molecules in the read model or the tag index, whichever is
+	 * enabled. Only the read model knows all molecules, so without tags the tag index can't help.
+	 * 
+	 * @param distinctTags
+	 * @return The IDs of all molecules carrying every one of the tags or null if the database has to be asked
+	 */
+	private CompressedBitmap matchInMemory( final List<String> distinctTags ) {
+		final ReadModel model = ReadModel.get();
+		final InvertedIndex tagIndex = Indexes.tags();
+		if ( model == null && ( tagIndex == null || distinctTags.isEmpty() ) ) {
+			return null;
+		}
 
+		final List<Long> tagIds = new ArrayList<Long>();
+
+		try {
+			for ( final String tag : distinctTags ) {
+				final long tagId = Dictionaries.tags().getId( tag );
+
+				// An unknown tag can't be carried by any molecule.
+				if ( tagId == -1 ) {
+					return new CompressedBitmap();
+				}
+				tagIds.add( tagId );
+			}
 		} catch ( final SQLException e ) {
 			e.printStackTrace();
+			return new CompressedBitmap();
 		}
 
-		return result;
+		return model != null ? model.findMolecules( tagIds ) : tagIndex.and( tagIds );
 	}
 
 
+	/**
+	 * Saves the molecule in a transaction of its own. If the calling thread already has a transaction open on its
+	 * connection, the molecule is written as part of that transaction instead and only rolled back to a savepoint
+	 * should it fail.
+	 */
 	@Override
 	public long save( final IMolecule molecule ) {
 		long moleculeId = 0;
+		Connection conn = null;
+		Transaction transaction = null;
 
 		try {
-			DB.CONN.setAutoCommit( false );
-
-			// Write atoms
-			final List<Long> atomIds = ATService.getAtomService().save( molecule.getAtoms() );
-
-			// Write molecule
-			final PreparedStatement insertMolecule = DB.CONN.prepareStatement( "INSERT INTO molecules VALUES ()",
-					Statement.RETURN_GENERATED_KEYS );
-			insertMolecule.execute();
-			moleculeId = getAutoIncrementId( insertMolecule );
-
-			// Write molecule tags
-			final PreparedStatement insertTags = DB.CONN
-					.prepareStatement( "INSERT INTO molecule_has_tags (molecules_moleculeid, tags_tagid) VALUES (?, ?)" );
-			insertTags.setLong( 1, moleculeId );
-
-			for ( final String tag : molecule.getTags() ) {
-				final long tagId = ATService.getTagService().save( tag );
-				insertTags.setLong( 2, tagId );
-				insertTags.execute();
+			conn = DB.getConnection();
+			transaction = Transaction.begin( conn );
+			moleculeId = write( Arrays.asList( molecule ) ).get( 0 );
+			transaction.commit();
+		} catch ( final SQLException e ) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+			moleculeId = 0;
+			if ( transaction != null ) {
+				transaction.rollback();
 			}
+		} finally {
+			// Releasing the connection rolls back whatever has not been committed.
+			DB.release( conn );
+		}
 
-			// Write links between atoms and molecules
-			final PreparedStatement insertLinks = DB.CONN
-					.prepareStatement( "INSERT INTO molecule_has_atoms (molecules_moleculeid, atoms_atomid) VALUES (?, ?)" );
-			insertLinks.setLong( 1, moleculeId );
+		return moleculeId;
+	}
+
+
+	/**
+	 * Writes the molecules in groups of as many molecules as configured by database.batchsize (default 500), every
+	 * group with a handful of batched statements. A transaction is committed after database.commitsize groups (default
+	 * 10) or once it has been open for database.flushinterval milliseconds (default 5000), whichever comes first.
+	 * Should a group fail, its molecules are saved one by one, so only the broken ones get lost.
+	 * <p>
+	 * Both limits are checked between groups only, since a group is written as one batch. A transaction thus stays
+	 * open for the interval plus the time it takes to write one group, which can be a lot longer for large or slow
+	 * groups. A smaller batch size bounds it more tightly.
+	 * </p>
+	 */
+	@Override
+	public List<Long> save( final Collection<IMolecule> molecules ) {
+		final CombinedConfiguration conf = Configuration.get();
+		final int batchSize = Math.min( MAX_IN_LIST, Math.max( 1, conf.getInt( "database.batchsize", 500 ) ) );
+		final int commitSize = batchSize * Math.max( 1, conf.getInt( "database.commitsize", 10 ) );
+		final long flushInterval = conf.getLong( "database.flushinterval", 5000 );
+
+		final List<IMolecule> pending = new ArrayList<IMolecule>( molecules );
+		final List<Long> moleculeIds = new ArrayList<Long>( pending.size() );
+		Connection conn = null;
+		Transaction transaction = null;
+		int committed = 0;
 
-			for ( final long atomId : atomIds ) {
-				insertLinks.setLong( 2, atomId );
-				insertLinks.execute();
+		try {
+			conn = DB.getConnection();
+			transaction = Transaction.begin( conn );
+			long transactionStart = System.currentTimeMillis();
+
+			for ( int from = 0; from < pending.size(); from += batchSize ) {
+				final List<IMolecule> group = pending.subList( from, Math.min( pending.size(), from + batchSize ) );
+				final Transaction groupTransaction = Transaction.begin( conn );
+
+				try {
+					moleculeIds.addAll( write( group ).asList() );
+					groupTransaction.commit();
+				} catch ( final SQLException e ) {
+					e.printStackTrace();
+					groupTransaction.rollback();
+
+					for ( final IMolecule molecule : group ) {
+						moleculeIds.add( save( molecule ) );
+					}
+				}
+
+				if ( transaction.isOwn()
+						&& ( moleculeIds.size() - committed >= commitSize || System.currentTimeMillis()
+								- transactionStart >= flushInterval ) ) {
+					transaction.checkpoint();
+					committed = moleculeIds.size();
+					transactionStart = System.currentTimeMillis();
+				}
 			}
 
-			DB.CONN.commit();
-			DB.CONN.setAutoCommit( true );
+			transaction.commit();
+			committed = moleculeIds.size();
 		} catch ( final SQLException e ) {
-			// TODO Auto-generated catch block
 			e.printStackTrace();
+			// Whatever was written since the last commit is lost.
+			if ( transaction != null ) {
+				transaction.rollback();
+			}
+		} finally {
+			DB.release( conn );
 		}
 
-		return moleculeId;
+		for ( int i = committed; i < moleculeIds.size(); i++ ) {
+			moleculeIds.set( i, 0L );
+		}
+		while ( moleculeIds.size() < pending.size() ) {
+			moleculeIds.add( 0L );
+		}
+
+		return moleculeIds;
+	}
+
+
+	/**
+	 * Writes the molecules including their atoms, all links and the reference counts on the connection of the current thread. IDs are taken
+	 * from the {@link IdAllocator}, so every kind of row is written as one batch regardless of the number of molecules.
+	 * The tag index and the read model learn about the molecules once the transaction is committed, see
+	 * {@link Transaction#afterCommit(Connection, Runnable)}.
+	 * 
+	 * @param molecules
+	 * @return The IDs of the molecules in the order of the molecules
+	 * @throws SQLException
+	 */
+	private LongList write( final List<IMolecule> molecules ) throws SQLException {
+		// Write atoms. The atom service borrows the very same connection and thus takes part in the transaction.
+		final List<IAtom> atoms = new ArrayList<IAtom>();
+		for ( final IMolecule molecule : molecules ) {
+			atoms.addAll( molecule.getAtoms() );
+		}
+		final Iterator<Long> atomIds = ATService.getAtomService().save( atoms ).iterator();
+
+		final LongList moleculeIds = IdAllocator.MOLECULES.next( molecules.size() );
+		final LongObjectMap<LongSet> tagIds = new LongObjectMap<LongSet>( molecules.size() );
+		final LongObjectMap<LongSet> linkedAtomIds = new LongObjectMap<LongSet>( molecules.size() );
+		final RefCounts refCounts = new RefCounts();
+		Connection conn = null;
+		PreparedStatement insertMolecule = null;
+		PreparedStatement insertTags = null;
+		PreparedStatement insertLinks = null;
+
+		try {
+			conn = DB.getConnection();
+			insertMolecule = conn.prepareStatement( INSERT_MOLECULE );
+			insertTags = conn.prepareStatement( INSERT_TAGS );
+			insertLinks = conn.prepareStatement( INSERT_LINKS );
+
+			for ( int i = 0; i < molecules.size(); i++ ) {
+				final IMolecule molecule = molecules.get( i );
+				final long moleculeId = moleculeIds.get( i );
+
+				insertMolecule.setLong( 1, moleculeId );
+				insertMolecule.addBatch();
+
+				final LongSet moleculeTagIds = new LongSet( molecule.getTags().size() );
+				for ( final String tag : new LinkedHashSet<String>( molecule.getTags() ) ) {
+					final long tagId = ATService.getTagService().save( tag );
+					insertTags.setLong( 1, moleculeId );
+					insertTags.setLong( 2, tagId );
+					insertTags.addBatch();
+					moleculeTagIds.add( tagId );
+					refCounts.tag( tagId, 1 );
+				}
+				tagIds.put( moleculeId, moleculeTagIds );
+
+				// Atoms with the same data are the same atom, which is linked only once.
+				final LongSet moleculeAtomIds = new LongSet( molecule.getAtoms().size() );
+				for ( int j = 0; j < molecule.getAtoms().size(); j++ ) {
+					moleculeAtomIds.add( atomIds.next() );
+				}
+				linkedAtomIds.put( moleculeId, moleculeAtomIds );
+				for ( int j = 0; j < moleculeAtomIds.size(); j++ ) {
+					insertLinks.setLong( 1, moleculeId );
+					insertLinks.setLong( 2, moleculeAtomIds.get( j ) );
+					insertLinks.addBatch();
+					refCounts.atom( moleculeAtomIds.get( j ), 1 );
+				}
+			}
+
+			// Parents first, because of the foreign keys. The reference counts lock the tags and atoms before they are
+			// linked, see RefCounts.
+			insertMolecule.executeBatch();
+			refCounts.write( conn );
+			insertTags.executeBatch();
+			insertLinks.executeBatch();
+
+			Changes.count( conn );
+			Transaction.afterCommit( conn, new Runnable() {
+				@Override
+				public void run() {
+					publish( linkedAtomIds, tagIds );
+				}
+			} );
+		} finally {
+			DB.release( conn, insertMolecule, insertTags, insertLinks );
+		}
+
+		return moleculeIds;
+	}
+
+
+	/**
+	 * Adds written molecules to the tag index and the read model.
+	 */
+	private static void publish( final LongObjectMap<LongSet> atomIds, final LongObjectMap<LongSet> tagIds ) {
+		final InvertedIndex tagIndex = Indexes.tags();
+		if ( tagIndex != null ) {
+			for ( int i = 0; i < tagIds.size(); i++ ) {
+				final LongSet moleculeTagIds = tagIds.value( i );
+				for ( int j = 0; j < moleculeTagIds.size(); j++ ) {
+					tagIndex.add( moleculeTagIds.get( j ), tagIds.key( i ) );
+				}
+			}
+		}
+
+		final ReadModel model = ReadModel.get();
+		if ( model != null ) {
+			model.putMolecules( atomIds, tagIds );
+		}
+	}
+
+
+	/**
+	 * Collects molecule IDs until a chunk is full, then loads the molecules and hands them to the consumer.
+	 */
+	private class Chunks {
+		private final IConsumer<IMolecule>	consumer;
+		private final List<Long>			ids		= new ArrayList<Long>( MAX_IN_LIST );
+		private boolean						stopped	= false;
+		private long						count	= 0;
+
+
+		Chunks( final IConsumer<IMolecule> consumer ) {
+			this.consumer = consumer;
+		}
+
+
+		/**
+		 * @return false once the consumer doesn't want any more molecules
+		 */
+		boolean add( final long moleculeId ) throws SQLException {
+			ids.add( moleculeId );
+			if ( ids.size() == MAX_IN_LIST ) {
+				flush();
+			}
+			return !stopped;
+		}
+
+
+		void flush() throws SQLException {
+			if ( ids.isEmpty() || stopped ) {
+				return;
+			}
+
+			final Map<Long, IMolecule> molecules = loader.load( ids );
+
+			for ( final Long moleculeId : ids ) {
+				final IMolecule molecule = molecules.get( moleculeId );
+				if ( molecule == null ) {
+					continue;
+				}
+
+				count++;
+				if ( !consumer.accept( molecule ) ) {
+					stopped = true;
+					break;
+				}
+			}
+
+			ids.clear();
+		}
 	}
 
 }
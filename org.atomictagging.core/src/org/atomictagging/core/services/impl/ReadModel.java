@@ -0,0 +1,1391 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.core.services.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.commons.configuration.CombinedConfiguration;
+import org.atomictagging.core.accessors.Changes;
+import org.atomictagging.core.accessors.DB;
+import org.atomictagging.core.accessors.Transaction;
+import org.atomictagging.core.configuration.Configuration;
+import org.atomictagging.core.types.Atom;
+import org.atomictagging.core.types.IAtom;
+import org.atomictagging.core.types.IMolecule;
+import org.atomictagging.core.types.Molecule;
+import org.atomictagging.utils.collections.CompressedBitmap;
+import org.atomictagging.utils.collections.IntSet;
+import org.atomictagging.utils.collections.LongObjectMap;
+import org.atomictagging.utils.collections.LongSet;
+import org.atomictagging.utils.collections.PagedArray;
+import org.atomictagging.utils.collections.StringArena;
+
+/**
+ * An optional copy of the whole catalog in memory, i.e. all atoms with their types and all molecules with their atoms
+ * and tags. It is enabled by the key readmodel in the index section of the configuration (default false). Once
+ * enabled, the services answer all reads from it and only go to the database to write.
+ * <p>
+ * The content is held in an immutable snapshot that readers pick up without any locking. Writers apply their changes
+ * to a copy of the parts of the snapshot they touch and publish the result as the new snapshot, one writer at a time.
+ * Readers that started earlier keep seeing the old snapshot.
+ * </p>
+ * <p>
+ * The services hand their updates of the model to {@link Transaction#afterCommit(Connection, Runnable)}, so the
+ * model only shows committed changes and changes that are rolled back never reach it. Only code that opens a
+ * transaction without {@link Transaction} and rolls it back has to {@link #reload()} the model.
+ * </p>
+ * <p>
+ * When the application exits, the model is saved to a snapshot file, by default &lt;base dir&gt;/readmodel, which can
+ * be changed by the key snapshot in the index section. On the next start the file is mapped into memory instead of
+ * reading the whole catalog from the database. The file holds the links between molecules, atoms, tags and types in
+ * columns of IDs and the data of the atoms as the buffers of the {@link StringArena}, which are used by the model
+ * right from the mapped file. The file is deleted as soon as the model changes, or marked as outdated by a file of the
+ * same name ending in .outdated where a mapped file can't be deleted. It is written again on exit.
+ * </p>
+ * <p>
+ * The model itself only knows about changes made by this application. The file records the count of {@link Changes}
+ * the model is based on. It is only written if all changes since the model was loaded were made by this application,
+ * and it is only used if the database has not been changed since. Atoms and molecules with IDs above the highest ones
+ * in the file are read from the database nevertheless, in case they were added by an older version. The file holds
+ * the names of the {@link Dictionaries} as well, which are filled from it, and the {@link Indexes} are built from the
+ * model, so a start from the file reads none of the tables as a whole.
+ * </p>
+ * <p>
+ * IDs are kept as ints, like in the indexes. Names of tags and types are taken from the {@link Dictionaries}. The data
+ * of the atoms is kept outside of the heap in a {@link StringArena}, so the heap doesn't grow with the catalog. Atoms
+ * are found by their data through the hash of the data.
+ * </p>
+ */
+public final class ReadModel {
+
+	/**
+	 * Number of buckets the atoms are spread over for the lookup by data.
+	 */
+	private final static int			DATA_BUCKETS	= 1 << 16;
+
+	/**
+	 * The arena is copied without the data of removed atoms once that takes more than half of it and at least this
+	 * many bytes.
+	 */
+	private final static long			COMPACT_GARBAGE	= StringArena.CHUNK_SIZE;
+
+	/**
+	 * Marks a snapshot file, "ATRM".
+	 */
+	private final static int			MAGIC			= 0x4154524d;
+	private final static int			VERSION			= 3;
+	private final static Charset		UTF8			= Charset.forName( "UTF-8" );
+
+	private final static String			READ_ATOMS		= "SELECT atomid, data FROM atoms WHERE atomid > ?";
+	private final static String			READ_TYPES		= "SELECT atoms_atomid, types_typeid FROM atom_has_types "
+														+ "WHERE atoms_atomid > ?";
+	private final static String			READ_ATOM_LINKS	= "SELECT molecules_moleculeid, atoms_atomid FROM molecule_has_atoms "
+														+ "WHERE molecules_moleculeid > ?";
+	private final static String			READ_TAG_LINKS	= "SELECT molecules_moleculeid, tags_tagid FROM molecule_has_tags "
+														+ "WHERE molecules_moleculeid > ?";
+
+	private static volatile ReadModel	instance		= null;
+
+	private final File					file;
+	private final File					outdated;
+	private final Object				writeLock		= new Object();
+	private volatile Snapshot			current			= new Snapshot();
+
+	/**
+	 * Whether the model differs from the snapshot file. Guarded by the write lock.
+	 */
+	private boolean						dirty			= true;
+
+	/**
+	 * The count of {@link Changes} in the database and the one of this application when the model was loaded. Guarded
+	 * by the write lock.
+	 */
+	private long						changes			= 0;
+	private long						ownChanges		= 0;
+
+
+	private ReadModel( final File file ) {
+		this.file = file;
+		outdated = file == null ? null : new File( file.getPath() + ".outdated" );
+	}
+
+
+	/**
+	 * Loads the model if it is enabled in the configuration, from the snapshot file if there is a usable one. Needs an
+	 * initialized database. The {@link Dictionaries} are filled from the file, so they should be initialized afterwards,
+	 * as well as the {@link Indexes}, which are built from the model.
+	 * 
+	 * @throws SQLException
+	 *             If reading the catalog failed
+	 */
+	public static void init() throws SQLException {
+		final CombinedConfiguration conf = Configuration.get();
+		if ( !conf.getBoolean( "index.readmodel", false ) ) {
+			instance = null;
+			return;
+		}
+
+		String path = conf.getString( "index.snapshot" );
+		if ( path == null && conf.getString( "base.dir" ) != null ) {
+			path = conf.getString( "base.dir" ) + File.separator + "readmodel";
+		}
+
+		final ReadModel model = new ReadModel( path == null ? null : new File( path ) );
+		model.open();
+		instance = model;
+	}
+
+
+	/**
+	 * Writes the model to the snapshot file unless the file is up to date. Has to be called before the database is
+	 * shut down. Does nothing if the model is disabled.
+	 */
+	public static void save() {
+		final ReadModel model = instance;
+		if ( model == null ) {
+			return;
+		}
+
+		try {
+			model.writeFile();
+		} catch ( final IOException e ) {
+			// The file has been marked as outdated before, the next start reads the database.
+			e.printStackTrace();
+		} catch ( final SQLException e ) {
+			e.printStackTrace();
+		}
+	}
+
+
+	/**
+	 * @return The model or null if it is disabled
+	 */
+	public static ReadModel get() {
+		return instance;
+	}
+
+
+	/**
+	 * Reads the model from the database again, e.g. after a transaction has been rolled back. Does nothing if the model
+	 * is disabled.
+	 */
+	public static void reload() {
+		final ReadModel model = instance;
+		if ( model == null ) {
+			return;
+		}
+
+		try {
+			model.load();
+		} catch ( final SQLException e ) {
+			// The model can't be trusted anymore.
+			e.printStackTrace();
+			instance = null;
+		}
+	}
+
+
+	// ---- Reading ----
+
+	/**
+	 * @param atomId
+	 * @return The atom or null if there is no such atom
+	 * @throws SQLException
+	 *             If the name of a type is not cached and can't be read
+	 */
+	public IAtom getAtom( final long atomId ) throws SQLException {
+		return current.toAtom( toInt( atomId ) );
+	}
+
+
+	/**
+	 * @param atomIds
+	 * @return The atoms mapped by their IDs, IDs without an atom are missing
+	 * @throws SQLException
+	 *             If the name of a type is not cached and can't be read
+	 */
+	public Map<Long, IAtom> getAtoms( final Collection<Long> atomIds ) throws SQLException {
+		final Snapshot snapshot = current;
+		final Map<Long, IAtom> atoms = new HashMap<Long, IAtom>();
+
+		for ( final Long atomId : atomIds ) {
+			final IAtom atom = snapshot.toAtom( toInt( atomId ) );
+			if ( atom != null ) {
+				atoms.put( atomId, atom );
+			}
+		}
+
+		return atoms;
+	}
+
+
+	/**
+	 * @param data
+	 * @return The atom with exactly the given data or null
+	 * @throws SQLException
+	 *             If the name of a type is not cached and can't be read
+	 */
+	public IAtom findAtom( final String data ) throws SQLException {
+		final Snapshot snapshot = current;
+		final long[] bucket = snapshot.atomsByData.get( bucket( data.hashCode() ) );
+		if ( bucket == null ) {
+			return null;
+		}
+
+		final byte[] utf8 = StringArena.encode( data );
+		for ( final long entry : bucket ) {
+			if ( (int) ( entry >>> 32 ) == data.hashCode()
+					&& snapshot.arena.matches( snapshot.atoms.get( (int) entry ).data, utf8 ) ) {
+				return snapshot.toAtom( (int) entry );
+			}
+		}
+		return null;
+	}
+
+
+	/**
+	 * Finds atoms by their types.
+	 * 
+	 * @param typeIds
+	 * @param exclude
+	 *            If false, atoms having at least one of the types match. If true, atoms having at least one type that
+	 *            is not among the given ones match.
+	 * @return The IDs of the matching atoms
+	 */
+	public CompressedBitmap findAtoms( final Collection<Long> typeIds, final boolean exclude ) {
+		CompressedBitmap result = new CompressedBitmap();
+
+		for ( final Map.Entry<Long, CompressedBitmap> entry : current.atomsByType.entrySet() ) {
+			if ( typeIds.contains( entry.getKey() ) != exclude ) {
+				result = result.or( entry.getValue() );
+			}
+		}
+
+		return result;
+	}
+
+
+	/**
+	 * @param atomId
+	 * @return The types of the atom, empty if there is no such atom
+	 * @throws SQLException
+	 *             If the name of a type is not cached and can't be read
+	 */
+	public List<String> getTypes( final long atomId ) throws SQLException {
+		final AtomEntry atom = current.atoms.get( toInt( atomId ) );
+		return atom == null ? new ArrayList<String>() : names( Dictionaries.types(), atom.types );
+	}
+
+
+	/**
+	 * @param typeIds
+	 *            Types to leave out
+	 * @return The distinct data of all atoms having at least one type that is not among the given ones, sorted
+	 */
+	public List<String> getDomain( final Collection<Long> typeIds ) {
+		final Snapshot snapshot = current;
+		final Set<String> domain = new TreeSet<String>();
+
+		final CompressedBitmap.IntIterator atomIds = findAtoms( typeIds, true ).iterator();
+		while ( atomIds.hasNext() ) {
+			final AtomEntry atom = snapshot.atoms.get( atomIds.next() );
+			if ( atom != null ) {
+				domain.add( snapshot.arena.get( atom.data ) );
+			}
+		}
+
+		return new ArrayList<String>( domain );
+	}
+
+
+	/**
+	 * @param moleculeIds
+	 * @return The molecules mapped by their IDs, IDs without a molecule are missing
+	 * @throws SQLException
+	 *             If the name of a tag or type is not cached and can't be read
+	 */
+	public Map<Long, IMolecule> getMolecules( final Collection<Long> moleculeIds ) throws SQLException {
+		final Snapshot snapshot = current;
+		final Map<Long, IMolecule> molecules = new HashMap<Long, IMolecule>();
+		// Atoms that are part of several molecules are shared, like the loader does.
+		final Map<Integer, IAtom> atoms = new HashMap<Integer, IAtom>();
+
+		for ( final Long moleculeId : moleculeIds ) {
+			final MoleculeEntry entry = snapshot.molecules.get( toInt( moleculeId ) );
+			if ( entry == null ) {
+				continue;
+			}
+
+			final Molecule molecule = new Molecule();
+			molecule.setId( moleculeId );
+			for ( final int atomId : entry.atoms ) {
+				IAtom atom = atoms.get( atomId );
+				if ( atom == null ) {
+					atom = snapshot.toAtom( atomId );
+					atoms.put( atomId, atom );
+				}
+				if ( atom != null ) {
+					molecule.getAtoms().add( atom );
+				}
+			}
+			molecule.getTags().addAll( names( Dictionaries.tags(), entry.tags ) );
+			molecules.put( moleculeId, molecule );
+		}
+
+		return molecules;
+	}
+
+
+	/**
+	 * @param tagIds
+	 * @return The IDs of all molecules carrying all of the given tags. All molecules if no tags are given.
+	 */
+	public CompressedBitmap findMolecules( final Collection<Long> tagIds ) {
+		final Snapshot snapshot = current;
+
+		if ( tagIds.isEmpty() ) {
+			return snapshot.allMolecules.copy();
+		}
+
+		CompressedBitmap result = null;
+		for ( final Long tagId : tagIds ) {
+			final CompressedBitmap molecules = snapshot.moleculesByTag.get( tagId );
+			if ( molecules == null ) {
+				return new CompressedBitmap();
+			}
+			result = result == null ? molecules.copy() : result.and( molecules );
+		}
+
+		return result;
+	}
+
+
+	/**
+	 * @param atomId
+	 * @return The IDs of all molecules containing the atom
+	 */
+	public CompressedBitmap findMolecules( final long atomId ) {
+		final CompressedBitmap molecules = current.moleculesByAtom.get( toInt( atomId ) );
+		return molecules == null ? new CompressedBitmap() : molecules.copy();
+	}
+
+
+	/**
+	 * @param moleculeId
+	 * @return The tags of the molecule, empty if there is no such molecule
+	 * @throws SQLException
+	 *             If the name of a tag is not cached and can't be read
+	 */
+	public List<String> getTags( final long moleculeId ) throws SQLException {
+		final MoleculeEntry molecule = current.molecules.get( toInt( moleculeId ) );
+		return molecule == null ? new ArrayList<String>() : names( Dictionaries.tags(), molecule.tags );
+	}
+
+
+	/**
+	 * @return The molecules by tag, which must not be modified
+	 */
+	Map<Long, CompressedBitmap> getMoleculesByTag() {
+		return current.moleculesByTag;
+	}
+
+
+	/**
+	 * @return The atoms by type, which must not be modified
+	 */
+	Map<Long, CompressedBitmap> getAtomsByType() {
+		return current.atomsByType;
+	}
+
+
+	// ---- Writing ----
+
+	/**
+	 * Adds atoms or adds types to existing atoms.
+	 * 
+	 * @param atoms
+	 *            The data of the atoms mapped by their IDs
+	 * @param typeIds
+	 *            The types of the atoms mapped by their IDs, types the atoms already have are ignored
+	 */
+	public void addAtoms( final LongObjectMap<String> atoms, final LongObjectMap<LongSet> typeIds ) {
+		synchronized ( writeLock ) {
+			changed();
+			final Builder builder = new Builder( current );
+
+			for ( int i = 0; i < atoms.size(); i++ ) {
+				final int atomId = toInt( atoms.key( i ) );
+				final AtomEntry old = builder.atom( atomId );
+
+				builder.putAtom( atomId, atoms.value( i ), Dictionaries.types().intern( merge(
+						old == null ? new int[0] : old.types.toArray(), typeIds.get( atomId ) ) ) );
+			}
+
+			current = builder.build();
+		}
+	}
+
+
+	/**
+	 * Replaces the data and the types of an atom.
+	 * 
+	 * @param atomId
+	 * @param data
+	 * @param typeIds
+	 */
+	public void putAtom( final long atomId, final String data, final LongSet typeIds ) {
+		synchronized ( writeLock ) {
+			changed();
+			final Builder builder = new Builder( current );
+			builder.putAtom( toInt( atomId ), data, Dictionaries.types().intern( merge( new int[0], typeIds ) ) );
+			current = builder.build();
+		}
+	}
+
+
+	/**
+	 * Adds molecules or replaces their atoms and tags.
+	 * 
+	 * @param atomIds
+	 *            The atoms of the molecules mapped by their IDs
+	 * @param tagIds
+	 *            The tags of the molecules mapped by their IDs
+	 */
+	public void putMolecules( final LongObjectMap<LongSet> atomIds, final LongObjectMap<LongSet> tagIds ) {
+		synchronized ( writeLock ) {
+			changed();
+			final Builder builder = new Builder( current );
+
+			for ( int i = 0; i < atomIds.size(); i++ ) {
+				final long moleculeId = atomIds.key( i );
+				builder.putMolecule( toInt( moleculeId ), new MoleculeEntry( merge( new int[0], atomIds.value( i ) ),
+						Dictionaries.tags().intern( merge( new int[0], tagIds.get( moleculeId ) ) ) ) );
+			}
+
+			current = builder.build();
+		}
+	}
+
+
+	/**
+	 * Removes molecules.
+	 * 
+	 * @param moleculeIds
+	 */
+	public void removeMolecules( final Collection<Long> moleculeIds ) {
+		synchronized ( writeLock ) {
+			changed();
+			final Builder builder = new Builder( current );
+			for ( final Long moleculeId : moleculeIds ) {
+				builder.removeMolecule( toInt( moleculeId ) );
+			}
+			current = builder.build();
+		}
+	}
+
+
+	/**
+	 * Removes atoms including their types.
+	 * 
+	 * @param atomIds
+	 */
+	public void removeAtoms( final Collection<Long> atomIds ) {
+		synchronized ( writeLock ) {
+			changed();
+			final Builder builder = new Builder( current );
+			for ( final Long atomId : atomIds ) {
+				builder.removeAtom( toInt( atomId ) );
+			}
+			current = builder.build();
+		}
+	}
+
+
+	// ---- Loading ----
+
+	/**
+	 * Loads the model from the snapshot file if it can be used, otherwise from the database.
+	 */
+	private void open() throws SQLException {
+		synchronized ( writeLock ) {
+			if ( file != null && file.isFile() && !outdated.exists() ) {
+				try {
+					if ( readFile() ) {
+						return;
+					}
+				} catch ( final IOException e ) {
+					e.printStackTrace();
+				} catch ( final RuntimeException e ) {
+					// Damaged beyond what the checks catch.
+					e.printStackTrace();
+				}
+			}
+			load();
+		}
+	}
+
+
+	/**
+	 * Reads the whole catalog from the database.
+	 */
+	private void load() throws SQLException {
+		synchronized ( writeLock ) {
+			// Counted before reading, changes made while reading make the count outdated rather than getting lost.
+			final long loadedChanges = Changes.read();
+			final long loadedOwnChanges = Changes.own();
+
+			final Builder builder = new Builder( new Snapshot() );
+			readDatabase( builder, 0, 0 );
+			current = builder.build();
+			dirty = true;
+			changes = loadedChanges;
+			ownChanges = loadedOwnChanges;
+		}
+	}
+
+
+	/**
+	 * Reads the atoms and molecules with IDs greater than the given ones on an independent connection, so the result
+	 * sets can be streamed.
+	 * 
+	 * @return True if anything was read
+	 */
+	private static boolean readDatabase( final Builder builder, final int afterAtomId, final int afterMoleculeId )
+			throws SQLException {
+		final Map<Integer, String> data = new HashMap<Integer, String>();
+		final Map<Integer, List<Long>> types = new HashMap<Integer, List<Long>>();
+		final Map<Integer, List<Long>> atoms = new HashMap<Integer, List<Long>>();
+		final Map<Integer, List<Long>> tags = new HashMap<Integer, List<Long>>();
+		Connection conn = null;
+		PreparedStatement statement = null;
+
+		try {
+			conn = DB.getIndependentConnection();
+
+			statement = DB.prepareStreaming( conn, READ_ATOMS );
+			statement.setInt( 1, afterAtomId );
+			final ResultSet atomResult = statement.executeQuery();
+			while ( atomResult.next() ) {
+				data.put( toInt( atomResult.getLong( 1 ) ), atomResult.getString( 2 ) );
+			}
+			statement.close();
+
+			statement = DB.prepareStreaming( conn, READ_TYPES );
+			statement.setInt( 1, afterAtomId );
+			readLinks( statement, types );
+			statement = DB.prepareStreaming( conn, READ_ATOM_LINKS );
+			statement.setInt( 1, afterMoleculeId );
+			readLinks( statement, atoms );
+			statement = DB.prepareStreaming( conn, READ_TAG_LINKS );
+			statement.setInt( 1, afterMoleculeId );
+			readLinks( statement, tags );
+		} finally {
+			DB.release( conn, statement );
+		}
+
+		for ( final Map.Entry<Integer, String> atom : data.entrySet() ) {
+			final List<Long> typeIds = types.get( atom.getKey() );
+			builder.putAtom( atom.getKey(), atom.getValue(), Dictionaries.types().intern( merge( new int[0],
+					typeIds == null ? Collections.<Long> emptyList() : typeIds ) ) );
+		}
+		final boolean atomsRead = !data.isEmpty();
+		data.clear();
+		types.clear();
+
+		// Molecules without atoms don't exist as far as we are concerned.
+		for ( final Map.Entry<Integer, List<Long>> molecule : atoms.entrySet() ) {
+			final List<Long> tagIds = tags.get( molecule.getKey() );
+			builder.putMolecule( molecule.getKey(), new MoleculeEntry( merge( new int[0], molecule.getValue() ),
+					Dictionaries.tags().intern( merge( new int[0], tagIds == null ? Collections.<Long> emptyList()
+							: tagIds ) ) ) );
+		}
+
+		return atomsRead || !atoms.isEmpty();
+	}
+
+
+	/**
+	 * Reads pairs of IDs, grouping the second by the first. The statement is closed afterwards.
+	 */
+	private static void readLinks( final PreparedStatement statement, final Map<Integer, List<Long>> links )
+			throws SQLException {
+		try {
+			final ResultSet result = statement.executeQuery();
+			while ( result.next() ) {
+				final int key = toInt( result.getLong( 1 ) );
+				List<Long> values = links.get( key );
+				if ( values == null ) {
+					values = new ArrayList<Long>( 2 );
+					links.put( key, values );
+				}
+				values.add( result.getLong( 2 ) );
+			}
+		} finally {
+			statement.close();
+		}
+	}
+
+
+	// ---- Snapshot file ----
+
+	/**
+	 * Deletes the snapshot file before the first change to the model is published. The file is never written to, since
+	 * the model may still use it mapped. Where a mapped file can't be deleted, it is marked as outdated instead. Called
+	 * with the write lock held.
+	 */
+	private void changed() {
+		if ( dirty ) {
+			return;
+		}
+		dirty = true;
+
+		if ( !file.delete() ) {
+			try {
+				outdated.createNewFile();
+			} catch ( final IOException e ) {
+				// The count of changes in the file gives it away anyway once the change is committed.
+				e.printStackTrace();
+			}
+		}
+	}
+
+
+	/**
+	 * Writes the snapshot to a temporary file first, so an interrupted write leaves the old file alone. The file
+	 * consists of
+	 * <ul>
+	 * <li>a header: magic number, version, URL of the database, count of {@link Changes} and the highest IDs of atoms
+	 * and molecules,</li>
+	 * <li>the buffers of an arena holding the data of the atoms, each one preceded by its length,</li>
+	 * <li>the atoms: IDs, handles of their data in the arena, hashes of their data and their types,</li>
+	 * <li>the molecules: IDs, atoms and tags, and</li>
+	 * <li>the dictionaries of tags and types: IDs and names.</li>
+	 * </ul>
+	 * Every column is preceded by the number of rows. Types, atoms and tags are stored as one column of offsets into
+	 * one column of IDs each, names as one column of offsets into their UTF-8 bytes. Nothing is written if somebody
+	 * else changed the database since the model was loaded.
+	 */
+	private void writeFile() throws IOException, SQLException {
+		synchronized ( writeLock ) {
+			if ( file == null || !dirty ) {
+				return;
+			}
+
+			final long counted = Changes.read();
+			if ( counted != changes + Changes.own() - ownChanges ) {
+				// The file has been marked as outdated when the model changed.
+				return;
+			}
+
+			final Snapshot snapshot = current;
+			final int[] atomIds = ids( snapshot.atoms );
+			final int[] moleculeIds = ids( snapshot.molecules );
+
+			// Copying leaves out the data of removed atoms.
+			final StringArena arena = new StringArena();
+			final long[] handles = new long[atomIds.length];
+			for ( int i = 0; i < atomIds.length; i++ ) {
+				handles[i] = arena.copy( snapshot.arena, snapshot.atoms.get( atomIds[i] ).data );
+			}
+
+			final File temp = new File( file.getPath() + ".tmp" );
+			final FileOutputStream stream = new FileOutputStream( temp );
+			final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( stream ) );
+
+			try {
+				out.writeInt( MAGIC );
+				out.writeInt( VERSION );
+				out.writeUTF( DB.getUrl() );
+				out.writeLong( counted );
+				out.writeInt( atomIds.length == 0 ? 0 : atomIds[atomIds.length - 1] );
+				out.writeInt( moleculeIds.length == 0 ? 0 : moleculeIds[moleculeIds.length - 1] );
+
+				out.writeInt( arena.chunkCount() );
+				final byte[] bytes = new byte[64 * 1024];
+				for ( int i = 0; i < arena.chunkCount(); i++ ) {
+					final ByteBuffer chunk = arena.chunk( i );
+					out.writeInt( chunk.remaining() );
+					while ( chunk.hasRemaining() ) {
+						final int length = Math.min( bytes.length, chunk.remaining() );
+						chunk.get( bytes, 0, length );
+						out.write( bytes, 0, length );
+					}
+				}
+
+				out.writeInt( atomIds.length );
+				writeInts( out, atomIds );
+				for ( final long handle : handles ) {
+					out.writeLong( handle );
+				}
+				final int[][] types = new int[atomIds.length][];
+				for ( int i = 0; i < atomIds.length; i++ ) {
+					out.writeInt( snapshot.atoms.get( atomIds[i] ).hash );
+					types[i] = snapshot.atoms.get( atomIds[i] ).types.toArray();
+				}
+				writeLinks( out, types );
+
+				out.writeInt( moleculeIds.length );
+				writeInts( out, moleculeIds );
+				final int[][] atoms = new int[moleculeIds.length][];
+				final int[][] tags = new int[moleculeIds.length][];
+				for ( int i = 0; i < moleculeIds.length; i++ ) {
+					atoms[i] = snapshot.molecules.get( moleculeIds[i] ).atoms;
+					tags[i] = snapshot.molecules.get( moleculeIds[i] ).tags.toArray();
+				}
+				writeLinks( out, atoms );
+				writeLinks( out, tags );
+
+				writeNames( out, Dictionaries.tags().getEntries() );
+				writeNames( out, Dictionaries.types().getEntries() );
+
+				out.flush();
+				stream.getFD().sync();
+			} finally {
+				out.close();
+			}
+
+			// Some systems don't rename onto existing files. Both fail there while the old file is still mapped, which
+			// leaves it marked as outdated.
+			file.delete();
+			if ( !temp.renameTo( file ) ) {
+				throw new IOException( "Could not rename " + temp + " to " + file );
+			}
+			outdated.delete();
+			dirty = false;
+		}
+	}
+
+
+	/**
+	 * Maps the snapshot file and reads the atoms and molecules added since it was written from the database. Called
+	 * with the write lock held.
+	 * 
+	 * @return False if the file is outdated or belongs to another database
+	 */
+	private boolean readFile() throws IOException, SQLException {
+		final RandomAccessFile in = new RandomAccessFile( file, "r" );
+
+		try {
+			if ( in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals( DB.getUrl() ) ) {
+				return false;
+			}
+			final long counted = in.readLong();
+			if ( counted != Changes.read() ) {
+				return false;
+			}
+			final int lastAtomId = in.readInt();
+			final int lastMoleculeId = in.readInt();
+
+			final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+			for ( int i = in.readInt(); i > 0; i-- ) {
+				chunks.add( map( in, in.readInt() ) );
+			}
+
+			final int atomCount = in.readInt();
+			final IntBuffer atomIds = map( in, 4L * atomCount ).asIntBuffer();
+			final LongBuffer handles = map( in, 8L * atomCount ).asLongBuffer();
+			final IntBuffer hashes = map( in, 4L * atomCount ).asIntBuffer();
+			final IntBuffer typeOffsets = map( in, 4L * ( atomCount + 1 ) ).asIntBuffer();
+			final IntBuffer types = map( in, 4L * typeOffsets.get( atomCount ) ).asIntBuffer();
+
+			final int moleculeCount = in.readInt();
+			final IntBuffer moleculeIds = map( in, 4L * moleculeCount ).asIntBuffer();
+			final IntBuffer atomOffsets = map( in, 4L * ( moleculeCount + 1 ) ).asIntBuffer();
+			final IntBuffer atoms = map( in, 4L * atomOffsets.get( moleculeCount ) ).asIntBuffer();
+			final IntBuffer tagOffsets = map( in, 4L * ( moleculeCount + 1 ) ).asIntBuffer();
+			final IntBuffer tags = map( in, 4L * tagOffsets.get( moleculeCount ) ).asIntBuffer();
+
+			final Map<Long, String> tagNames = readNames( in );
+			final Map<Long, String> typeNames = readNames( in );
+
+			if ( in.getFilePointer() != in.length() ) {
+				throw new IOException( "Snapshot file " + file + " is damaged." );
+			}
+
+			final Builder builder = new Builder( new Snapshot( new StringArena( chunks ) ) );
+			for ( int i = 0; i < atomCount; i++ ) {
+				builder.restoreAtom( atomIds.get( i ), new AtomEntry( handles.get( i ), hashes.get( i ),
+						Dictionaries.types().intern( slice( types, typeOffsets, i ) ) ) );
+			}
+			for ( int i = 0; i < moleculeCount; i++ ) {
+				builder.putMolecule( moleculeIds.get( i ), new MoleculeEntry( slice( atoms, atomOffsets, i ),
+						Dictionaries.tags().intern( slice( tags, tagOffsets, i ) ) ) );
+			}
+
+			for ( final Map.Entry<Long, String> tag : tagNames.entrySet() ) {
+				Dictionaries.tags().restore( tag.getKey(), tag.getValue() );
+			}
+			for ( final Map.Entry<Long, String> type : typeNames.entrySet() ) {
+				Dictionaries.types().restore( type.getKey(), type.getValue() );
+			}
+
+			dirty = readDatabase( builder, lastAtomId, lastMoleculeId );
+			current = builder.build();
+			changes = counted;
+			ownChanges = Changes.own();
+			return true;
+		} finally {
+			in.close();
+		}
+	}
+
+
+	/**
+	 * Maps the next bytes of the file and skips them. The mapping stays valid after the file has been closed.
+	 */
+	private static MappedByteBuffer map( final RandomAccessFile in, final long length ) throws IOException {
+		final MappedByteBuffer buffer = in.getChannel().map( MapMode.READ_ONLY, in.getFilePointer(), length );
+		in.seek( in.getFilePointer() + length );
+		return buffer;
+	}
+
+
+	/**
+	 * @return The IDs in the row of a column written by {@link #writeLinks(DataOutputStream, int[][])}
+	 */
+	private static int[] slice( final IntBuffer ids, final IntBuffer offsets, final int row ) {
+		final int[] slice = new int[offsets.get( row + 1 ) - offsets.get( row )];
+		ids.position( offsets.get( row ) );
+		ids.get( slice );
+		return slice;
+	}
+
+
+	private static void writeLinks( final DataOutputStream out, final int[][] rows ) throws IOException {
+		int offset = 0;
+		for ( final int[] row : rows ) {
+			out.writeInt( offset );
+			offset += row.length;
+		}
+		out.writeInt( offset );
+
+		for ( final int[] row : rows ) {
+			writeInts( out, row );
+		}
+	}
+
+
+	/**
+	 * Writes the IDs of the names, the offsets of the names and the names as UTF-8.
+	 */
+	private static void writeNames( final DataOutputStream out, final Map<Long, String> names ) throws IOException {
+		final int[] ids = merge( new int[0], names.keySet() );
+		final byte[][] bytes = new byte[ids.length][];
+		for ( int i = 0; i < ids.length; i++ ) {
+			bytes[i] = names.get( (long) ids[i] ).getBytes( UTF8 );
+		}
+
+		out.writeInt( ids.length );
+		writeInts( out, ids );
+
+		int offset = 0;
+		for ( final byte[] name : bytes ) {
+			out.writeInt( offset );
+			offset += name.length;
+		}
+		out.writeInt( offset );
+
+		for ( final byte[] name : bytes ) {
+			out.write( name );
+		}
+	}
+
+
+	/**
+	 * @return The names written by {@link #writeNames(DataOutputStream, Map)} by ID
+	 */
+	private static Map<Long, String> readNames( final RandomAccessFile in ) throws IOException {
+		final int count = in.readInt();
+		final IntBuffer ids = map( in, 4L * count ).asIntBuffer();
+		final IntBuffer offsets = map( in, 4L * ( count + 1 ) ).asIntBuffer();
+		final ByteBuffer bytes = map( in, offsets.get( count ) );
+
+		final Map<Long, String> names = new HashMap<Long, String>( count * 2 );
+		for ( int i = 0; i < count; i++ ) {
+			final byte[] name = new byte[offsets.get( i + 1 ) - offsets.get( i )];
+			bytes.position( offsets.get( i ) );
+			bytes.get( name );
+			names.put( (long) ids.get( i ), new String( name, UTF8 ) );
+		}
+		return names;
+	}
+
+
+	private static void writeInts( final DataOutputStream out, final int[] values ) throws IOException {
+		for ( final int value : values ) {
+			out.writeInt( value );
+		}
+	}
+
+
+	/**
+	 * @return The indexes of all elements in ascending order
+	 */
+	private static int[] ids( final PagedArray<?> array ) {
+		final int[] ids = new int[array.size()];
+		int length = 0;
+		for ( int id = array.next( 0 ); id >= 0; id = array.next( id + 1 ) ) {
+			ids[length++] = id;
+		}
+		return length == ids.length ? ids : Arrays.copyOf( ids, length );
+	}
+
+
+	// ---- Helpers ----
+
+	private static List<String> names( final Dictionary dictionary, final IntSet ids ) throws SQLException {
+		final List<String> names = new ArrayList<String>( ids.size() );
+		for ( int i = 0; i < ids.size(); i++ ) {
+			final String name = dictionary.getName( ids.get( i ) );
+			if ( name != null ) {
+				names.add( name );
+			}
+		}
+		return names;
+	}
+
+
+	/**
+	 * @return The given IDs added to the sorted array as a new sorted array without duplicates
+	 */
+	private static int[] merge( final int[] sorted, final Collection<Long> ids ) {
+		final int[] merged = Arrays.copyOf( sorted, sorted.length + ids.size() );
+		int length = sorted.length;
+		for ( final Long id : ids ) {
+			merged[length++] = toInt( id );
+		}
+		Arrays.sort( merged );
+		return distinct( merged );
+	}
+
+
+	/**
+	 * @return The given IDs added to the sorted array as a new sorted array without duplicates, null adds nothing
+	 */
+	private static int[] merge( final int[] sorted, final LongSet ids ) {
+		if ( ids == null ) {
+			return sorted.clone();
+		}
+
+		final int[] merged = Arrays.copyOf( sorted, sorted.length + ids.size() );
+		for ( int i = 0; i < ids.size(); i++ ) {
+			merged[sorted.length + i] = toInt( ids.get( i ) );
+		}
+		Arrays.sort( merged );
+		return distinct( merged );
+	}
+
+
+	/**
+	 * @return The sorted array without duplicates, which is the array itself if it has none
+	 */
+	private static int[] distinct( final int[] sorted ) {
+		int distinct = 0;
+		for ( int i = 0; i < sorted.length; i++ ) {
+			if ( i == 0 || sorted[i] != sorted[i - 1] ) {
+				sorted[distinct++] = sorted[i];
+			}
+		}
+		return distinct == sorted.length ? sorted : Arrays.copyOf( sorted, distinct );
+	}
+
+
+	private static int bucket( final int hash ) {
+		return hash & DATA_BUCKETS - 1;
+	}
+
+
+	private static int toInt( final long id ) {
+		if ( id < 0 || id > Integer.MAX_VALUE ) {
+			throw new IllegalArgumentException( "ID out of range: " + id );
+		}
+		return (int) id;
+	}
+
+	/**
+	 * An atom as held in the model. The data is the handle of a string in the arena of the snapshot.
+	 */
+	private static class AtomEntry {
+		private final long		data;
+		private final int		hash;
+		private final IntSet	types;
+
+
+		AtomEntry( final long data, final int hash, final IntSet types ) {
+			this.data = data;
+			this.hash = hash;
+			this.types = types;
+		}
+	}
+
+	/**
+	 * A molecule as held in the model.
+	 */
+	private static class MoleculeEntry {
+		private final int[]		atoms;
+		private final IntSet	tags;
+
+
+		MoleculeEntry( final int[] atoms, final IntSet tags ) {
+			this.atoms = atoms;
+			this.tags = tags;
+		}
+	}
+
+	/**
+	 * The content of the model at one point in time. Never changes once it has been built, only the arena grows. The
+	 * atoms by data are spread over buckets by the hash of their data, every bucket holds the hashes in the upper and
+	 * the IDs in the lower half of longs.
+	 */
+	private static class Snapshot {
+		private final StringArena					arena;
+		private final PagedArray<AtomEntry>			atoms;
+		private final PagedArray<MoleculeEntry>		molecules;
+		private final PagedArray<long[]>			atomsByData;
+		private final PagedArray<CompressedBitmap>	moleculesByAtom;
+		private final Map<Long, CompressedBitmap>	moleculesByTag;
+		private final Map<Long, CompressedBitmap>	atomsByType;
+		private final CompressedBitmap				allMolecules;
+
+
+		Snapshot() {
+			this( new StringArena() );
+		}
+
+
+		Snapshot( final StringArena arena ) {
+			this( arena, new PagedArray<AtomEntry>(), new PagedArray<MoleculeEntry>(),
+					new PagedArray<long[]>(), new PagedArray<CompressedBitmap>(),
+					new HashMap<Long, CompressedBitmap>(), new HashMap<Long, CompressedBitmap>(),
+					new CompressedBitmap() );
+		}
+
+
+		Snapshot( final StringArena arena, final PagedArray<AtomEntry> atoms,
+				final PagedArray<MoleculeEntry> molecules, final PagedArray<long[]> atomsByData,
+				final PagedArray<CompressedBitmap> moleculesByAtom, final Map<Long, CompressedBitmap> moleculesByTag,
+				final Map<Long, CompressedBitmap> atomsByType, final CompressedBitmap allMolecules ) {
+			this.arena = arena;
+			this.atoms = atoms;
+			this.molecules = molecules;
+			this.atomsByData = atomsByData;
+			this.moleculesByAtom = moleculesByAtom;
+			this.moleculesByTag = moleculesByTag;
+			this.atomsByType = atomsByType;
+			this.allMolecules = allMolecules;
+		}
+
+
+		IAtom toAtom( final int atomId ) throws SQLException {
+			final AtomEntry entry = atoms.get( atomId );
+			if ( entry == null ) {
+				return null;
+			}
+
+			final Atom atom = new Atom();
+			atom.setId( atomId );
+			atom.setData( arena.get( entry.data ) );
+			atom.setTypes( names( Dictionaries.types(), entry.types ) );
+			return atom;
+		}
+	}
+
+	/**
+	 * Collects changes to a snapshot. Everything that is changed is copied first, the snapshot itself stays untouched.
+	 */
+	private static class Builder {
+		private final Snapshot							base;
+		private final Map<Integer, AtomEntry>			atoms			= new HashMap<Integer, AtomEntry>();
+		private final Map<Integer, MoleculeEntry>		molecules		= new HashMap<Integer, MoleculeEntry>();
+		private final Map<Integer, long[]>				atomsByData		= new HashMap<Integer, long[]>();
+		private final Map<Integer, CompressedBitmap>	moleculesByAtom	= new HashMap<Integer, CompressedBitmap>();
+		private final Map<Long, CompressedBitmap>		moleculesByTag	= new HashMap<Long, CompressedBitmap>();
+		private final Map<Long, CompressedBitmap>		atomsByType		= new HashMap<Long, CompressedBitmap>();
+		private CompressedBitmap						allMolecules	= null;
+
+
+		Builder( final Snapshot base ) {
+			this.base = base;
+		}
+
+
+		AtomEntry atom( final int atomId ) {
+			return atoms.containsKey( atomId ) ? atoms.get( atomId ) : base.atoms.get( atomId );
+		}
+
+
+		MoleculeEntry molecule( final int moleculeId ) {
+			return molecules.containsKey( moleculeId ) ? molecules.get( moleculeId ) : base.molecules.get( moleculeId );
+		}
+
+
+		/**
+		 * Adds the data to the arena unless the atom already has it.
+		 */
+		void putAtom( final int atomId, final String data, final IntSet types ) {
+			final AtomEntry old = atom( atomId );
+			final boolean unchanged = old != null && old.hash == data.hashCode()
+					&& base.arena.matches( old.data, StringArena.encode( data ) );
+
+			if ( old != null && !unchanged ) {
+				base.arena.free( old.data );
+			}
+			replaceAtom( atomId, old, new AtomEntry( unchanged ? old.data : base.arena.add( data ), data.hashCode(),
+					types ) );
+		}
+
+
+		/**
+		 * Adds an atom whose data is in the arena already.
+		 */
+		void restoreAtom( final int atomId, final AtomEntry entry ) {
+			replaceAtom( atomId, atom( atomId ), entry );
+		}
+
+
+		void removeAtom( final int atomId ) {
+			final AtomEntry old = atom( atomId );
+			if ( old != null ) {
+				replaceAtom( atomId, old, null );
+				base.arena.free( old.data );
+			}
+		}
+
+
+		void putMolecule( final int moleculeId, final MoleculeEntry entry ) {
+			replaceMolecule( moleculeId, molecule( moleculeId ), entry );
+		}
+
+
+		void removeMolecule( final int moleculeId ) {
+			final MoleculeEntry old = molecule( moleculeId );
+			if ( old != null ) {
+				replaceMolecule( moleculeId, old, null );
+			}
+		}
+
+
+		Snapshot build() {
+			final Map<Integer, CompressedBitmap> changedMoleculesByAtom = new HashMap<Integer, CompressedBitmap>();
+			for ( final Map.Entry<Integer, CompressedBitmap> entry : moleculesByAtom.entrySet() ) {
+				changedMoleculesByAtom.put( entry.getKey(), entry.getValue().isEmpty() ? null : entry.getValue() );
+			}
+
+			final Map<Integer, long[]> changedAtomsByData = new HashMap<Integer, long[]>();
+			for ( final Map.Entry<Integer, long[]> entry : atomsByData.entrySet() ) {
+				changedAtomsByData.put( entry.getKey(), entry.getValue().length == 0 ? null : entry.getValue() );
+			}
+
+			final Snapshot built = new Snapshot( base.arena, base.atoms.with( atoms ), base.molecules.with( molecules ),
+					base.atomsByData.with( changedAtomsByData ), base.moleculesByAtom.with( changedMoleculesByAtom ),
+					mergePostings( base.moleculesByTag, moleculesByTag ),
+					mergePostings( base.atomsByType, atomsByType ), allMolecules == null ? base.allMolecules
+							: allMolecules );
+
+			final long garbage = built.arena.garbage();
+			return garbage >= COMPACT_GARBAGE && garbage * 2 > built.arena.size() ? compact( built ) : built;
+		}
+
+
+		/**
+		 * @return The snapshot with a new arena that only holds the data of the atoms in it
+		 */
+		private static Snapshot compact( final Snapshot snapshot ) {
+			final StringArena arena = new StringArena();
+			final Map<Integer, AtomEntry> copied = new HashMap<Integer, AtomEntry>();
+
+			for ( int atomId = snapshot.atoms.next( 0 ); atomId >= 0; atomId = snapshot.atoms.next( atomId + 1 ) ) {
+				final AtomEntry entry = snapshot.atoms.get( atomId );
+				copied.put( atomId, new AtomEntry( arena.copy( snapshot.arena, entry.data ), entry.hash,
+						entry.types ) );
+			}
+
+			return new Snapshot( arena, snapshot.atoms.with( copied ), snapshot.molecules, snapshot.atomsByData,
+					snapshot.moleculesByAtom, snapshot.moleculesByTag, snapshot.atomsByType, snapshot.allMolecules );
+		}
+
+
+		/**
+		 * Moves an atom from the old entry to the new one in the lookup by data and the postings of the types. Since
+		 * type sets are interned, unchanged types are recognized by identity and keep their postings.
+		 * 
+		 * @param old
+		 *            The current entry or null if the atom is new
+		 * @param entry
+		 *            The new entry or null if the atom is removed
+		 */
+		private void replaceAtom( final int atomId, final AtomEntry old, final AtomEntry entry ) {
+			atoms.put( atomId, entry );
+
+			if ( old == null || entry == null || old.hash != entry.hash ) {
+				if ( old != null ) {
+					changeBucket( old.hash, atomId, false );
+				}
+				if ( entry != null ) {
+					changeBucket( entry.hash, atomId, true );
+				}
+			}
+
+			final IntSet oldTypes = old == null ? null : old.types;
+			final IntSet newTypes = entry == null ? null : entry.types;
+			if ( oldTypes != newTypes ) {
+				for ( int i = 0; oldTypes != null && i < oldTypes.size(); i++ ) {
+					posting( atomsByType, base.atomsByType, oldTypes.get( i ) ).remove( atomId );
+				}
+				for ( int i = 0; newTypes != null && i < newTypes.size(); i++ ) {
+					posting( atomsByType, base.atomsByType, newTypes.get( i ) ).add( atomId );
+				}
+			}
+		}
+
+
+		/**
+		 * Like {@link #replaceAtom(int, AtomEntry, AtomEntry)} for molecules, unchanged tag sets keep their postings.
+		 */
+		private void replaceMolecule( final int moleculeId, final MoleculeEntry old, final MoleculeEntry entry ) {
+			molecules.put( moleculeId, entry );
+
+			if ( old == null ) {
+				all().add( moleculeId );
+			} else if ( entry == null ) {
+				all().remove( moleculeId );
+			}
+
+			if ( old == null || entry == null || !Arrays.equals( old.atoms, entry.atoms ) ) {
+				for ( int i = 0; old != null && i < old.atoms.length; i++ ) {
+					moleculesOfAtom( old.atoms[i] ).remove( moleculeId );
+				}
+				for ( int i = 0; entry != null && i < entry.atoms.length; i++ ) {
+					moleculesOfAtom( entry.atoms[i] ).add( moleculeId );
+				}
+			}
+
+			final IntSet oldTags = old == null ? null : old.tags;
+			final IntSet newTags = entry == null ? null : entry.tags;
+			if ( oldTags != newTags ) {
+				for ( int i = 0; oldTags != null && i < oldTags.size(); i++ ) {
+					posting( moleculesByTag, base.moleculesByTag, oldTags.get( i ) ).remove( moleculeId );
+				}
+				for ( int i = 0; newTags != null && i < newTags.size(); i++ ) {
+					posting( moleculesByTag, base.moleculesByTag, newTags.get( i ) ).add( moleculeId );
+				}
+			}
+		}
+
+
+		private CompressedBitmap all() {
+			if ( allMolecules == null ) {
+				allMolecules = base.allMolecules.copy();
+			}
+			return allMolecules;
+		}
+
+
+		/**
+		 * Adds the atom to or removes it from the bucket of its hash. Buckets are small, so they are simply copied.
+		 */
+		private void changeBucket( final int hash, final int atomId, final boolean add ) {
+			final int bucket = bucket( hash );
+			long[] entries = atomsByData.get( bucket );
+			if ( entries == null ) {
+				entries = base.atomsByData.get( bucket );
+			}
+			if ( entries == null ) {
+				entries = new long[0];
+			}
+
+			final long entry = (long) hash << 32 | atomId;
+			if ( add ) {
+				entries = Arrays.copyOf( entries, entries.length + 1 );
+				entries[entries.length - 1] = entry;
+			} else {
+				final long[] remaining = new long[entries.length];
+				int length = 0;
+				for ( final long other : entries ) {
+					if ( other != entry ) {
+						remaining[length++] = other;
+					}
+				}
+				entries = Arrays.copyOf( remaining, length );
+			}
+			atomsByData.put( bucket, entries );
+		}
+
+
+		private CompressedBitmap moleculesOfAtom( final int atomId ) {
+			CompressedBitmap moleculeIds = moleculesByAtom.get( atomId );
+			if ( moleculeIds == null ) {
+				final CompressedBitmap old = base.moleculesByAtom.get( atomId );
+				moleculeIds = old == null ? new CompressedBitmap() : old.copy();
+				moleculesByAtom.put( atomId, moleculeIds );
+			}
+			return moleculeIds;
+		}
+
+
+		private static CompressedBitmap posting( final Map<Long, CompressedBitmap> changed,
+				final Map<Long, CompressedBitmap> base, final long key ) {
+			CompressedBitmap values = changed.get( key );
+			if ( values == null ) {
+				final CompressedBitmap old = base.get( key );
+				values = old == null ? new CompressedBitmap() : old.copy();
+				changed.put( key, values );
+			}
+			return values;
+		}
+
+
+		private static Map<Long, CompressedBitmap> mergePostings( final Map<Long, CompressedBitmap> base,
+				final Map<Long, CompressedBitmap> changed ) {
+			if ( changed.isEmpty() ) {
+				return base;
+			}
+
+			final Map<Long, CompressedBitmap> merged = new HashMap<Long, CompressedBitmap>( base );
+			for ( final Map.Entry<Long, CompressedBitmap> entry : changed.entrySet() ) {
+				if ( entry.getValue().isEmpty() ) {
+					merged.remove( entry.getKey() );
+				} else {
+					merged.put( entry.getKey(), entry.getValue() );
+				}
+			}
+			return Collections.unmodifiableMap( merged );
+		}
+	}
+
+}
@@ -13,10 +13,10 @@
  */
 package org.atomictagging.core.services.impl;
 
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -29,29 +29,20 @@ import org.eclipse.core.runtime.Assert;
  */
 public class TagService extends AbstractService implements ITagService {
 
-	private static PreparedStatement	allTags;
-	private static PreparedStatement	checkTag;
-	private static PreparedStatement	insertTag;
-	private static PreparedStatement	allTagsForMolecule;
-
-	static {
-		try {
-			allTags = DB.CONN.prepareStatement( "SELECT tag FROM tags" );
-			checkTag = DB.CONN.prepareStatement( "SELECT tagid FROM tags WHERE tag = ?" );
-			insertTag = DB.CONN.prepareStatement( "INSERT INTO tags (tag) VALUES (?)", Statement.RETURN_GENERATED_KEYS );
-			allTagsForMolecule = DB.CONN
-					.prepareStatement( "SELECT tag FROM molecule_has_tags mt JOIN tags t ON mt.tags_tagid=t.tagid WHERE mt.molecules_moleculeid=?" );
-		} catch ( final SQLException e ) {
-			e.printStackTrace();
-		}
-	}
+	private final static String	ALL_TAGS			= "SELECT tag FROM tags";
+	private final static String	ALL_TAGS_FOR_MOLECULE	= "SELECT tag FROM molecule_has_tags mt JOIN tags t ON mt.tags_tagid=t.tagid WHERE mt.molecules_moleculeid=?";
 
 
 	@Override
 	public List<String> getAll() {
 		final List<String> tags = new ArrayList<String>();
 
+		Connection conn = null;
+		PreparedStatement allTags = null;
+
 		try {
+			conn = DB.getConnection();
+			allTags = conn.prepareStatement( ALL_TAGS );
 			final ResultSet tagResult = allTags.executeQuery();
 
 			while ( tagResult.next() ) {
@@ -59,6 +50,8 @@ public class TagService extends AbstractService implements ITagService {
 			}
 		} catch ( final SQLException e ) {
 			e.printStackTrace();
+		} finally {
+			DB.release( conn, allTags );
 		}
 
 		return tags;
@@ -77,9 +70,24 @@ public class TagService extends AbstractService implements ITagService {
 
 	@Override
 	public List<String> getForMolecule( final long id ) {
+		final ReadModel model = ReadModel.get();
+		if ( model != null ) {
+			try {
+				return model.getTags( id );
+			} catch ( final SQLException e ) {
+				e.printStackTrace();
+				return new ArrayList<String>();
+			}
+		}
+
 		final List<String> tags = new ArrayList<String>();
 
+		Connection conn = null;
+		PreparedStatement allTagsForMolecule = null;
+
 		try {
+			conn = DB.getConnection();
+			allTagsForMolecule = conn.prepareStatement( ALL_TAGS_FOR_MOLECULE );
 			allTagsForMolecule.setLong( 1, id );
 			final ResultSet tagResult = allTagsForMolecule.executeQuery();
 
@@ -88,6 +96,8 @@ public class TagService extends AbstractService implements ITagService {
 			}
 		} catch ( final SQLException e ) {
 			e.printStackTrace();
+		} finally {
+			DB.release( conn, allTagsForMolecule );
 		}
 
 		return tags;
@@ -98,22 +108,13 @@ public class TagService extends AbstractService implements ITagService {
 	public long save( final String tag ) {
 		Assert.isTrue( tag != null && !tag.isEmpty() );
 
-		long tagId = -1;
 		try {
-			checkTag.setString( 1, tag );
-			checkTag.execute();
-			tagId = getIdOfExistingEntity( checkTag, "tagid" );
-
-			if ( tagId == -1 ) {
-				insertTag.setString( 1, tag );
-				insertTag.execute();
-				tagId = getAutoIncrementId( insertTag );
-			}
+			return Dictionaries.tags().save( tag );
 		} catch ( final SQLException e ) {
 			e.printStackTrace();
 		}
 
-		return tagId;
+		return -1;
 	}
 
 }
@@ -13,10 +13,10 @@
  */
 package org.atomictagging.core.services.impl;
 
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -29,30 +29,20 @@ import org.eclipse.core.runtime.Assert;
  */
 public class TypeService extends AbstractService implements ITypeService {
 
-	private static PreparedStatement	allTypes;
-	private static PreparedStatement	checkType;
-	private static PreparedStatement	insertType;
-	private static PreparedStatement	allTypesForAtom;
-
-	static {
-		try {
-			allTypes = DB.CONN.prepareStatement( "SELECT type FROM types" );
-			checkType = DB.CONN.prepareStatement( "SELECT typeid FROM types WHERE type = ?" );
-			insertType = DB.CONN.prepareStatement( "INSERT INTO types (type) VALUES (?)",
-					Statement.RETURN_GENERATED_KEYS );
-			allTypesForAtom = DB.CONN
-					.prepareStatement( "SELECT type FROM atom_has_types at JOIN types t ON at.types_typeid=t.typeid WHERE at.atoms_atomid=?" );
-		} catch ( final SQLException e ) {
-			e.printStackTrace();
-		}
-	}
+	private final static String	ALL_TYPES			= "SELECT type FROM types";
+	private final static String	ALL_TYPES_FOR_ATOM	= "SELECT type FROM atom_has_types at JOIN types t ON at.types_typeid=t.typeid WHERE at.atoms_atomid=?";
 
 
 	@Override
 	public List<String> getAll() {
 		final List<String> tags = new ArrayList<String>();
 
+		Connection conn = null;
+		PreparedStatement allTypes = null;
+
 		try {
+			conn = DB.getConnection();
+			allTypes = conn.prepareStatement( ALL_TYPES );
 			final ResultSet tagResult = allTypes.executeQuery();
 
 			while ( tagResult.next() ) {
@@ -60,6 +50,8 @@ public class TypeService extends AbstractService implements ITypeService {
 			}
 		} catch ( final SQLException e ) {
 			e.printStackTrace();
+		} finally {
+			DB.release( conn, allTypes );
 		}
 
 		return tags;
@@ -78,9 +70,24 @@ public class TypeService extends AbstractService implements ITypeService {
 
 	@Override
 	public List<String> getForAtom( final long id ) {
+		final ReadModel model = ReadModel.get();
+		if ( model != null ) {
+			try {
+				return model.getTypes( id );
+			} catch ( final SQLException e ) {
+				e.printStackTrace();
+				return new ArrayList<String>();
+			}
+		}
+
 		final List<String> types = new ArrayList<String>();
 
+		Connection conn = null;
+		PreparedStatement allTypesForAtom = null;
+
 		try {
+			conn = DB.getConnection();
+			allTypesForAtom = conn.prepareStatement( ALL_TYPES_FOR_ATOM );
 			allTypesForAtom.setLong( 1, id );
 			final ResultSet typeResult = allTypesForAtom.executeQuery();
 
@@ -89,6 +96,8 @@ public class TypeService extends AbstractService implements ITypeService {
 			}
 		} catch ( final SQLException e ) {
 			e.printStackTrace();
+		} finally {
+			DB.release( conn, allTypesForAtom );
 		}
 
 		return types;
@@ -99,22 +108,13 @@ public class TypeService extends AbstractService implements ITypeService {
 	public long save( final String type ) {
 		Assert.isTrue( type != null && !type.isEmpty() );
 
-		long typeId = -1;
 		try {
-			checkType.setString( 1, type );
-			checkType.execute();
-			typeId = getIdOfExistingEntity( checkType, "typeid" );
-
-			if ( typeId == -1 ) {
-				insertType.setString( 1, type );
-				insertType.execute();
-				typeId = getAutoIncrementId( insertType );
-			}
+			return Dictionaries.types().save( type );
 		} catch ( final SQLException e ) {
 			e.printStackTrace();
 		}
 
-		return typeId;
+		return -1;
 	}
 
 }
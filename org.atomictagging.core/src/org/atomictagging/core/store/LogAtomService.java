@@ -0,0 +1,193 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.core.store;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.commons.lang.NotImplementedException;
+import org.atomictagging.core.services.IAtomService;
+import org.atomictagging.core.services.IConsumer;
+import org.atomictagging.core.types.Atom;
+import org.atomictagging.core.types.CoreTypes;
+import org.atomictagging.core.types.IAtom;
+import org.atomictagging.utils.collections.CompressedBitmap;
+import org.eclipse.core.runtime.Assert;
+
+/**
+ * {@link IAtomService} on top of the {@link LogStore}.
+ */
+public class LogAtomService implements IAtomService {
+
+	/**
+	 * Number of atoms copied out of the store at once while iterating.
+	 */
+	private final static int	CHUNK	= 500;
+
+	private final LogStore		store;
+
+
+	/**
+	 * @param store
+	 */
+	public LogAtomService( final LogStore store ) {
+		this.store = store;
+	}
+
+
+	@Override
+	public IAtom create( final String type, final String data ) {
+		return create( Arrays.asList( type ), data );
+	}
+
+
+	@Override
+	public IAtom create( final List<String> types, final String data ) {
+		final Atom atom = new Atom();
+		atom.setTypes( types );
+		atom.setData( data );
+		return atom;
+	}
+
+
+	@Override
+	public IAtom find( final long atomId ) {
+		return store.getAtom( atomId );
+	}
+
+
+	@Override
+	public Map<Long, IAtom> find( final Collection<Long> atomIds ) {
+		return store.getAtoms( atomIds );
+	}
+
+
+	@Override
+	public List<IAtom> find( final List<String> inclusiveTypes ) {
+		return find( inclusiveTypes, Filter.INCLUDE );
+	}
+
+
+	@Override
+	public List<IAtom> find( final List<String> types, final Filter filter ) {
+		final List<IAtom> atoms = new ArrayList<IAtom>();
+
+		forEachAtom( types, filter, new IConsumer<IAtom>() {
+			@Override
+			public boolean accept( final IAtom atom ) {
+				atoms.add( atom );
+				return true;
+			}
+		} );
+
+		return atoms;
+	}
+
+
+	@Override
+	public long forEachAtom( final List<String> types, final Filter filter, final IConsumer<IAtom> consumer ) {
+		final List<Long> ids = LogStore.toIds( store.findAtoms( types, filter == Filter.EXCLUDE ) );
+		long count = 0;
+
+		for ( int from = 0; from < ids.size(); from += CHUNK ) {
+			final List<Long> chunk = ids.subList( from, Math.min( ids.size(), from + CHUNK ) );
+			final Map<Long, IAtom> atoms = store.getAtoms( chunk );
+
+			for ( final Long atomId : chunk ) {
+				final IAtom atom = atoms.get( atomId );
+				// Removed since the IDs were looked up
+				if ( atom == null ) {
+					continue;
+				}
+
+				count++;
+				if ( !consumer.accept( atom ) ) {
+					return count;
+				}
+			}
+		}
+
+		return count;
+	}
+
+
+	@Override
+	public List<IAtom> findUserAtoms() {
+		return find( CoreTypes.asList(), Filter.EXCLUDE );
+	}
+
+
+	@Override
+	public List<String> getDomain() {
+		final CompressedBitmap ids = store.findAtoms( CoreTypes.asList(), true );
+		final Set<String> domain = new TreeSet<String>();
+
+		for ( final IAtom atom : store.getAtoms( LogStore.toIds( ids ) ).values() ) {
+			domain.add( atom.getData() );
+		}
+
+		return new ArrayList<String>( domain );
+	}
+
+
+	@Override
+	public String[] getDomainAsArray() {
+		final List<String> domain = getDomain();
+		return domain.toArray( new String[domain.size()] );
+	}
+
+
+	@Override
+	public IAtom findByData( final String data ) {
+		return store.findAtom( data );
+	}
+
+
+	@Override
+	public long save( final IAtom atom ) {
+		try {
+			final List<Long> ids = save( Arrays.asList( atom ) );
+			Assert.isTrue( ids.size() == 1 );
+			return ids.get( 0 );
+		} catch ( final SQLException e ) {
+			e.printStackTrace();
+		}
+		return -1;
+	}
+
+
+	@Override
+	public List<Long> save( final List<IAtom> atoms ) throws SQLException {
+		try {
+			return store.saveAtoms( atoms );
+		} catch ( final IOException e ) {
+			// The interface was made for the database.
+			throw new SQLException( "Could not write to the store.", e );
+		}
+	}
+
+
+	@Override
+	public void delete( final IAtom atom ) {
+		throw new NotImplementedException( "Not yet implemented. Sorry." );
+	}
+
+}
@@ -0,0 +1,147 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.core.store;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.atomictagging.core.services.IConsumer;
+import org.atomictagging.core.services.IMoleculeService;
+import org.atomictagging.core.types.IMolecule;
+import org.atomictagging.utils.collections.CompressedBitmap;
+
+/**
+ * {@link IMoleculeService} on top of the {@link LogStore}.
+ */
+public class LogMoleculeService implements IMoleculeService {
+
+	/**
+	 * Number of molecules copied out of the store at once while iterating.
+	 */
+	private final static int	CHUNK	= 500;
+
+	private final LogStore		store;
+
+
+	/**
+	 * @param store
+	 */
+	public LogMoleculeService( final LogStore store ) {
+		this.store = store;
+	}
+
+
+	@Override
+	public IMolecule find( final long moleculeId ) {
+		if ( moleculeId <= 0 ) {
+			throw new IllegalArgumentException( "Invalid molecule ID." );
+		}
+
+		return store.getMolecule( moleculeId );
+	}
+
+
+	@Override
+	public List<IMolecule> find( final Collection<Long> moleculeIds ) {
+		return store.getMolecules( moleculeIds );
+	}
+
+
+	@Override
+	public List<IMolecule> find( final List<String> tags ) {
+		final List<IMolecule> molecules = new ArrayList<IMolecule>();
+
+		forEachMolecule( tags, new IConsumer<IMolecule>() {
+			@Override
+			public boolean accept( final IMolecule molecule ) {
+				molecules.add( molecule );
+				return true;
+			}
+		} );
+
+		return molecules;
+	}
+
+
+	@Override
+	public List<Long> findIds( final List<String> tags ) {
+		final CompressedBitmap matches = store.findMolecules( tags );
+		return matches == null ? store.page( null, 0, Integer.MAX_VALUE ) : LogStore.toIds( matches );
+	}
+
+
+	@Override
+	public long forEachMolecule( final List<String> tags, final IConsumer<IMolecule> consumer ) {
+		final CompressedBitmap matches = store.findMolecules( tags );
+		long count = 0;
+		long lastId = 0;
+		List<Long> chunk;
+
+		do {
+			chunk = store.page( matches, lastId, CHUNK );
+
+			for ( final IMolecule molecule : store.getMolecules( chunk ) ) {
+				count++;
+				if ( !consumer.accept( molecule ) ) {
+					return count;
+				}
+			}
+
+			if ( !chunk.isEmpty() ) {
+				lastId = chunk.get( chunk.size() - 1 );
+			}
+		} while ( chunk.size() == CHUNK );
+
+		return count;
+	}
+
+
+	@Override
+	public List<IMolecule> findPage( final List<String> tags, final long afterId, final int limit ) {
+		if ( limit < 1 ) {
+			throw new IllegalArgumentException( "A page must hold at least one molecule." );
+		}
+
+		return store.getMolecules( store.page( store.findMolecules( tags ), afterId, limit ) );
+	}
+
+
+	@Override
+	public long save( final IMolecule molecule ) {
+		return save( Arrays.asList( molecule ) ).get( 0 );
+	}
+
+
+	@Override
+	public List<Long> save( final Collection<IMolecule> molecules ) {
+		try {
+			return store.saveMolecules( molecules );
+		} catch ( final IOException e ) {
+			e.printStackTrace();
+		}
+
+		return new ArrayList<Long>( Collections.nCopies( molecules.size(), 0L ) );
+	}
+
+
+	@Override
+	public List<IMolecule> findByAtomData( final String data ) {
+		return store.getMolecules( store.findMoleculesByAtomData( data ) );
+	}
+
+}
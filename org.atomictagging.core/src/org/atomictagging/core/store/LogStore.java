@@ -0,0 +1,1484 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.core.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.atomictagging.core.types.Atom;
+import org.atomictagging.core.types.IAtom;
+import org.atomictagging.core.types.IMolecule;
+import org.atomictagging.core.types.Molecule;
+import org.atomictagging.utils.collections.CompressedBitmap;
+import org.atomictagging.utils.collections.IntSet;
+import org.atomictagging.utils.collections.IntSetPool;
+import org.atomictagging.utils.collections.StringArena;
+
+/**
+ * A catalog store that keeps all atoms, molecules, tags and types in memory and persists them without any database.
+ * <p>
+ * Every change is appended to a write-ahead log before other threads get to see it. Every record is framed by its
+ * length and a checksum, so a record that was only partly written when the application died is detected and cut
+ * off on the next start. Once enough records have been written, a snapshot of the whole catalog is written and the
+ * log starts over. Unused tags and types are left out of the snapshot. On start the latest snapshot is read and only
+ * the log written after it is replayed.
+ * </p>
+ * <p>
+ * Files in the store directory are numbered by a generation: snapshot.N holds the catalog as of the start of log.N.
+ * Readers share a lock, writers hold it exclusively.
+ * </p>
+ * <p>
+ * The data of the atoms is kept outside of the heap in a {@link StringArena} and atoms are found by the hash of their
+ * data. The arena is copied without the data of removed atoms when a snapshot is written. The sets of types of atoms
+ * and tags of molecules are interned, every distinct set is held once.
+ * </p>
+ */
+public class LogStore {
+
+	private final static byte					COUNTERS		= 1;
+	private final static byte					TAG				= 2;
+	private final static byte					TYPE			= 3;
+	private final static byte					ATOM			= 4;
+	private final static byte					MOLECULE		= 5;
+	private final static byte					REMOVE_MOLECULE	= 6;
+	private final static byte					REMOVE_ATOM		= 7;
+
+	private final static String					LOG				= "log.";
+	private final static String					SNAPSHOT		= "snapshot.";
+	private final static int					MAX_RECORD		= 64 * 1024 * 1024;
+
+	private static volatile LogStore			instance		= null;
+
+	private final File							dir;
+	private final boolean						sync;
+	private final int							snapshotInterval;
+	private final ReadWriteLock					lock			= new ReentrantReadWriteLock();
+
+	private final Map<Long, String>				tagNames		= new HashMap<Long, String>();
+	private final Map<String, Long>				tagIds			= new HashMap<String, Long>();
+	private final Map<Long, String>				typeNames		= new HashMap<Long, String>();
+	private final Map<String, Long>				typeIds			= new HashMap<String, Long>();
+	private final Map<Long, StoredAtom>			atoms			= new HashMap<Long, StoredAtom>();
+	private final Map<Integer, long[]>			atomsByData		= new HashMap<Integer, long[]>();
+	private StringArena							arena			= new StringArena();
+	private final IntSetPool					tagSets			= new IntSetPool();
+	private final IntSetPool					typeSets		= new IntSetPool();
+	private final TreeMap<Long, StoredMolecule>	molecules		= new TreeMap<Long, StoredMolecule>();
+	private final Map<Long, CompressedBitmap>	moleculesByTag	= new HashMap<Long, CompressedBitmap>();
+	private final Map<Long, CompressedBitmap>	moleculesByAtom	= new HashMap<Long, CompressedBitmap>();
+	private final Map<Long, CompressedBitmap>	atomsByType		= new HashMap<Long, CompressedBitmap>();
+
+	private long								nextTagId		= 1;
+	private long								nextTypeId		= 1;
+	private long								nextAtomId		= 1;
+	private long								nextMoleculeId	= 1;
+
+	private long								generation		= 0;
+	private FileOutputStream					logFile			= null;
+	private DataOutputStream					log				= null;
+	private long								logLength		= 0;
+	private int									sinceSnapshot	= 0;
+
+
+	private LogStore( final File dir, final boolean sync, final int snapshotInterval ) {
+		this.dir = dir;
+		this.sync = sync;
+		this.snapshotInterval = Math.max( 1, snapshotInterval );
+	}
+
+
+	/**
+	 * Opens the store in the given directory, creating it if necessary, and reads the catalog into memory.
+	 * 
+	 * @param dir
+	 * @param sync
+	 *            Force every change to disk before returning, otherwise a crash might lose the latest changes
+	 * @param snapshotInterval
+	 *            Number of records after which a new snapshot is written
+	 * @return The store, which is also returned by {@link #get()} from now on
+	 * @throws IOException
+	 *             If the store can't be read
+	 */
+	public static synchronized LogStore open( final File dir, final boolean sync, final int snapshotInterval )
+			throws IOException {
+		close();
+
+		if ( !dir.isDirectory() && !dir.mkdirs() ) {
+			throw new IOException( "Could not create store directory " + dir );
+		}
+
+		final LogStore store = new LogStore( dir, sync, snapshotInterval );
+		store.load();
+		instance = store;
+		return store;
+	}
+
+
+	/**
+	 * @return The open store or null if the catalog is kept in a database
+	 */
+	public static LogStore get() {
+		return instance;
+	}
+
+
+	/**
+	 * Closes the open store, if any.
+	 */
+	public static synchronized void close() {
+		final LogStore store = instance;
+		instance = null;
+
+		if ( store != null ) {
+			store.lock.writeLock().lock();
+			try {
+				store.closeLog();
+			} finally {
+				store.lock.writeLock().unlock();
+			}
+		}
+	}
+
+
+	// ---- Tags and types ----
+
+	/**
+	 * @return The names of all tags
+	 */
+	public List<String> getTags() {
+		lock.readLock().lock();
+		try {
+			return new ArrayList<String>( tagIds.keySet() );
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+
+	/**
+	 * @param moleculeId
+	 * @return The tags of the molecule, empty if there is no such molecule
+	 */
+	public List<String> getTags( final long moleculeId ) {
+		lock.readLock().lock();
+		try {
+			final StoredMolecule molecule = molecules.get( moleculeId );
+			return molecule == null ? new ArrayList<String>() : names( tagNames, molecule.tags );
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+
+	/**
+	 * @return The names of all types
+	 */
+	public List<String> getTypes() {
+		lock.readLock().lock();
+		try {
+			return new ArrayList<String>( typeIds.keySet() );
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+
+	/**
+	 * @param atomId
+	 * @return The types of the atom, empty if there is no such atom
+	 */
+	public List<String> getTypes( final long atomId ) {
+		lock.readLock().lock();
+		try {
+			final StoredAtom atom = atoms.get( atomId );
+			return atom == null ? new ArrayList<String>() : names( typeNames, atom.types );
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+
+	/**
+	 * @param tag
+	 * @return The ID of the tag, which is created if it doesn't exist yet
+	 * @throws IOException
+	 */
+	public long saveTag( final String tag ) throws IOException {
+		final Change change = begin();
+		try {
+			final long id = tagId( tag, change );
+			commit( change );
+			return id;
+		} finally {
+			end( change );
+		}
+	}
+
+
+	/**
+	 * @param type
+	 * @return The ID of the type, which is created if it doesn't exist yet
+	 * @throws IOException
+	 */
+	public long saveType( final String type ) throws IOException {
+		final Change change = begin();
+		try {
+			final long id = typeId( type, change );
+			commit( change );
+			return id;
+		} finally {
+			end( change );
+		}
+	}
+
+
+	// ---- Atoms ----
+
+	/**
+	 * @param atomId
+	 * @return The atom or null if there is no such atom
+	 */
+	public IAtom getAtom( final long atomId ) {
+		lock.readLock().lock();
+		try {
+			return toAtom( atomId );
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+
+	/**
+	 * @param atomIds
+	 * @return The atoms mapped by their IDs, IDs without an atom are missing
+	 */
+	public Map<Long, IAtom> getAtoms( final Collection<Long> atomIds ) {
+		final Map<Long, IAtom> result = new HashMap<Long, IAtom>();
+
+		lock.readLock().lock();
+		try {
+			for ( final Long atomId : atomIds ) {
+				final IAtom atom = toAtom( atomId );
+				if ( atom != null ) {
+					result.put( atomId, atom );
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		return result;
+	}
+
+
+	/**
+	 * @param data
+	 * @return The atom with exactly the given data or null
+	 */
+	public IAtom findAtom( final String data ) {
+		lock.readLock().lock();
+		try {
+			final Long atomId = atomId( data );
+			return atomId == null ? null : toAtom( atomId );
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Finds atoms by their types.
+	 * 
+	 * @param types
+	 * @param exclude
+	 *            If false, atoms having at least one of the types match. If true, atoms having at least one type that
+	 *            is not among the given ones match.
+	 * @return The IDs of the matching atoms
+	 */
+	public CompressedBitmap findAtoms( final Collection<String> types, final boolean exclude ) {
+		CompressedBitmap result = new CompressedBitmap();
+
+		lock.readLock().lock();
+		try {
+			if ( exclude ) {
+				final Set<Long> excluded = new HashSet<Long>();
+				for ( final String type : types ) {
+					final Long typeId = typeIds.get( type );
+					if ( typeId != null ) {
+						excluded.add( typeId );
+					}
+				}
+
+				for ( final Map.Entry<Long, CompressedBitmap> entry : atomsByType.entrySet() ) {
+					if ( !excluded.contains( entry.getKey() ) ) {
+						result = result.or( entry.getValue() );
+					}
+				}
+			} else {
+				for ( final String type : types ) {
+					final Long typeId = typeIds.get( type );
+					if ( typeId != null && atomsByType.containsKey( typeId ) ) {
+						result = result.or( atomsByType.get( typeId ) );
+					}
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		return result;
+	}
+
+
+	/**
+	 * Saves the atoms. Atoms with the same data as an existing atom are not duplicated, the existing atom gets the
+	 * missing types instead.
+	 * 
+	 * @param newAtoms
+	 * @return The IDs of the atoms in the order of the given atoms
+	 * @throws IOException
+	 */
+	public List<Long> saveAtoms( final List<IAtom> newAtoms ) throws IOException {
+		final Change change = begin();
+		try {
+			final List<Long> ids = atomIds( newAtoms, change );
+			commit( change );
+			return ids;
+		} finally {
+			end( change );
+		}
+	}
+
+
+	/**
+	 * Replaces the data and the types of an existing atom.
+	 * 
+	 * @param atom
+	 * @throws IOException
+	 */
+	public void modifyAtom( final IAtom atom ) throws IOException {
+		final Change change = begin();
+		try {
+			if ( !atoms.containsKey( atom.getId() ) ) {
+				throw new IllegalArgumentException( "There is no atom with ID " + atom.getId() );
+			}
+
+			final Set<Long> types = new LinkedHashSet<Long>();
+			for ( final String type : atom.getTypes() ) {
+				types.add( typeId( type, change ) );
+			}
+
+			change.add( atomRecord( atom.getId(), atom.getData(), types ) );
+			commit( change );
+		} finally {
+			end( change );
+		}
+	}
+
+
+	// ---- Molecules ----
+
+	/**
+	 * @param moleculeId
+	 * @return The molecule or null if there is no such molecule
+	 */
+	public IMolecule getMolecule( final long moleculeId ) {
+		lock.readLock().lock();
+		try {
+			return toMolecule( moleculeId );
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+
+	/**
+	 * @param moleculeIds
+	 * @return The molecules in the order of the given IDs, IDs without a molecule are skipped
+	 */
+	public List<IMolecule> getMolecules( final Collection<Long> moleculeIds ) {
+		final List<IMolecule> result = new ArrayList<IMolecule>( moleculeIds.size() );
+
+		lock.readLock().lock();
+		try {
+			for ( final Long moleculeId : moleculeIds ) {
+				final IMolecule molecule = toMolecule( moleculeId );
+				if ( molecule != null ) {
+					result.add( molecule );
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		return result;
+	}
+
+
+	/**
+	 * @param tags
+	 * @return The IDs of all molecules that carry all of the given tags or null if no tags are given, which means
+	 *         that all molecules match
+	 */
+	public CompressedBitmap findMolecules( final Collection<String> tags ) {
+		if ( tags.isEmpty() ) {
+			return null;
+		}
+
+		lock.readLock().lock();
+		try {
+			final List<CompressedBitmap> bitmaps = new ArrayList<CompressedBitmap>();
+			for ( final String tag : new HashSet<String>( tags ) ) {
+				final Long tagId = tagIds.get( tag );
+
+				// An unknown tag can't be carried by any molecule.
+				if ( tagId == null || !moleculesByTag.containsKey( tagId ) ) {
+					return new CompressedBitmap();
+				}
+				bitmaps.add( moleculesByTag.get( tagId ) );
+			}
+
+			CompressedBitmap result = bitmaps.get( 0 ).copy();
+			for ( int i = 1; i < bitmaps.size() && !result.isEmpty(); i++ ) {
+				result = result.and( bitmaps.get( i ) );
+			}
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Returns the next IDs out of the given matches in ascending order.
+	 * 
+	 * @param matches
+	 *            As returned by {@link #findMolecules(Collection)}, null for all molecules
+	 * @param afterId
+	 *            Only IDs greater than this one are returned
+	 * @param limit
+	 * @return Up to limit IDs
+	 */
+	public List<Long> page( final CompressedBitmap matches, final long afterId, final int limit ) {
+		final List<Long> ids = new ArrayList<Long>( Math.min( limit, 1024 ) );
+
+		if ( matches != null ) {
+			if ( afterId < Integer.MAX_VALUE ) {
+				final CompressedBitmap.IntIterator iterator = matches.iterator( (int) Math.max( 0, afterId + 1 ) );
+				while ( iterator.hasNext() && ids.size() < limit ) {
+					ids.add( (long) iterator.next() );
+				}
+			}
+			return ids;
+		}
+
+		lock.readLock().lock();
+		try {
+			for ( final Long moleculeId : molecules.tailMap( afterId, false ).keySet() ) {
+				if ( ids.size() == limit ) {
+					break;
+				}
+				ids.add( moleculeId );
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		return ids;
+	}
+
+
+	/**
+	 * @param data
+	 * @return The IDs of all molecules containing an atom with exactly the given data in ascending order
+	 */
+	public List<Long> findMoleculesByAtomData( final String data ) {
+		lock.readLock().lock();
+		try {
+			final Long atomId = atomId( data );
+			if ( atomId == null || !moleculesByAtom.containsKey( atomId ) ) {
+				return new ArrayList<Long>();
+			}
+			return toIds( moleculesByAtom.get( atomId ) );
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Saves the molecules as new molecules including their atoms and tags. All of them are written at once.
+	 * 
+	 * @param newMolecules
+	 * @return The IDs of the molecules in the order of the given molecules
+	 * @throws IOException
+	 */
+	public List<Long> saveMolecules( final Collection<IMolecule> newMolecules ) throws IOException {
+		final Change change = begin();
+		try {
+			final List<Long> ids = new ArrayList<Long>( newMolecules.size() );
+
+			for ( final IMolecule molecule : newMolecules ) {
+				final long moleculeId = nextMoleculeId++;
+				change.add( moleculeRecord( moleculeId, atomIds( molecule.getAtoms(), change ), tagIds(
+						molecule.getTags(), change ) ) );
+				ids.add( moleculeId );
+			}
+
+			commit( change );
+			return ids;
+		} finally {
+			end( change );
+		}
+	}
+
+
+	/**
+	 * Replaces the atoms and tags of an existing molecule. Atoms without an ID are saved first, atoms that are no
+	 * longer part of any molecule are removed.
+	 * 
+	 * @param molecule
+	 * @throws IOException
+	 */
+	public void modifyMolecule( final IMolecule molecule ) throws IOException {
+		final Change change = begin();
+		try {
+			final StoredMolecule old = molecules.get( molecule.getId() );
+			if ( old == null ) {
+				throw new IllegalArgumentException( "There is no molecule with ID " + molecule.getId() );
+			}
+
+			final List<IAtom> unsaved = new ArrayList<IAtom>();
+			final Set<Long> atomIds = new LinkedHashSet<Long>();
+
+			for ( final IAtom atom : molecule.getAtoms() ) {
+				if ( atom.getId() > 0 && atoms.containsKey( atom.getId() ) ) {
+					atomIds.add( atom.getId() );
+				} else {
+					unsaved.add( atom );
+				}
+			}
+			atomIds.addAll( atomIds( unsaved, change ) );
+
+			change.add( moleculeRecord( molecule.getId(), atomIds, tagIds( molecule.getTags(), change ) ) );
+			removeOrphans( old.atoms, change );
+
+			commit( change );
+		} finally {
+			end( change );
+		}
+	}
+
+
+	/**
+	 * Removes the molecules and all atoms that are no longer part of any molecule afterwards.
+	 * 
+	 * @param moleculeIds
+	 * @return The number of removed molecules
+	 * @throws IOException
+	 */
+	public int removeMolecules( final Collection<Long> moleculeIds ) throws IOException {
+		final Change change = begin();
+		try {
+			int removed = 0;
+
+			for ( final Long moleculeId : new LinkedHashSet<Long>( moleculeIds ) ) {
+				final StoredMolecule molecule = molecules.get( moleculeId );
+				if ( molecule == null ) {
+					continue;
+				}
+
+				change.add( idRecord( REMOVE_MOLECULE, moleculeId ) );
+				removeOrphans( molecule.atoms, change );
+				removed++;
+			}
+
+			commit( change );
+			return removed;
+		} finally {
+			end( change );
+		}
+	}
+
+
+	/**
+	 * Writes a snapshot of the catalog and starts a new log. Happens automatically every now and then.
+	 * 
+	 * @throws IOException
+	 */
+	public void snapshot() throws IOException {
+		lock.writeLock().lock();
+		try {
+			writeSnapshot();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+
+	// ---- Building records, called with the write lock held ----
+
+	private long tagId( final String tag, final Change change ) throws IOException {
+		Long id = tagIds.get( tag );
+		if ( id == null ) {
+			id = nextTagId;
+			change.add( nameRecord( TAG, id, tag ) );
+		}
+		return id;
+	}
+
+
+	private Set<Long> tagIds( final Collection<String> tags, final Change change ) throws IOException {
+		final Set<Long> ids = new LinkedHashSet<Long>();
+		for ( final String tag : tags ) {
+			ids.add( tagId( tag, change ) );
+		}
+		return ids;
+	}
+
+
+	private long typeId( final String type, final Change change ) throws IOException {
+		Long id = typeIds.get( type );
+		if ( id == null ) {
+			id = nextTypeId;
+			change.add( nameRecord( TYPE, id, type ) );
+		}
+		return id;
+	}
+
+
+	/**
+	 * Resolves the atoms to IDs, adding records for new atoms and for types missing from existing atoms.
+	 */
+	private List<Long> atomIds( final List<IAtom> newAtoms, final Change change ) throws IOException {
+		final List<Long> ids = new ArrayList<Long>( newAtoms.size() );
+
+		for ( final IAtom atom : newAtoms ) {
+			Long id = atomId( atom.getData() );
+			final Set<Long> types = new LinkedHashSet<Long>();
+			if ( id == null ) {
+				id = nextAtomId;
+			} else {
+				types.addAll( asList( atoms.get( id ).types ) );
+			}
+
+			final int before = types.size();
+			for ( final String type : atom.getTypes() ) {
+				types.add( typeId( type, change ) );
+			}
+
+			if ( !atoms.containsKey( id ) || types.size() > before ) {
+				change.add( atomRecord( id, atom.getData(), types ) );
+			}
+			ids.add( id );
+		}
+
+		return ids;
+	}
+
+
+	/**
+	 * Adds records removing those of the given atoms that are not part of any molecule anymore.
+	 */
+	private void removeOrphans( final long[] atomIds, final Change change ) throws IOException {
+		for ( final long atomId : atomIds ) {
+			if ( atoms.containsKey( atomId ) && !moleculesByAtom.containsKey( atomId ) ) {
+				change.add( idRecord( REMOVE_ATOM, atomId ) );
+			}
+		}
+	}
+
+
+	private static byte[] idRecord( final byte op, final long id ) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream( 9 );
+		final DataOutputStream out = new DataOutputStream( bytes );
+		out.writeByte( op );
+		out.writeLong( id );
+		return bytes.toByteArray();
+	}
+
+
+	private static byte[] nameRecord( final byte op, final long id, final String name ) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream( bytes );
+		out.writeByte( op );
+		out.writeLong( id );
+		writeString( out, name );
+		return bytes.toByteArray();
+	}
+
+
+	private static byte[] atomRecord( final long id, final String data, final Collection<Long> types )
+			throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream( bytes );
+		out.writeByte( ATOM );
+		out.writeLong( id );
+		writeString( out, data );
+		writeIds( out, types );
+		return bytes.toByteArray();
+	}
+
+
+	private static byte[] moleculeRecord( final long id, final Collection<Long> atomIds, final Collection<Long> tagIds )
+			throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream( bytes );
+		out.writeByte( MOLECULE );
+		out.writeLong( id );
+		writeIds( out, atomIds );
+		writeIds( out, tagIds );
+		return bytes.toByteArray();
+	}
+
+
+	private byte[] countersRecord() throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream( 33 );
+		final DataOutputStream out = new DataOutputStream( bytes );
+		out.writeByte( COUNTERS );
+		out.writeLong( nextTagId );
+		out.writeLong( nextTypeId );
+		out.writeLong( nextAtomId );
+		out.writeLong( nextMoleculeId );
+		return bytes.toByteArray();
+	}
+
+
+	// ---- Applying records ----
+
+	private void apply( final byte[] record ) throws IOException {
+		final DataInputStream in = new DataInputStream( new ByteArrayInputStream( record ) );
+		final byte op = in.readByte();
+
+		switch ( op ) {
+			case COUNTERS:
+				nextTagId = Math.max( nextTagId, in.readLong() );
+				nextTypeId = Math.max( nextTypeId, in.readLong() );
+				nextAtomId = Math.max( nextAtomId, in.readLong() );
+				nextMoleculeId = Math.max( nextMoleculeId, in.readLong() );
+				break;
+
+			case TAG: {
+				final long id = in.readLong();
+				putName( tagNames, tagIds, id, readString( in ) );
+				nextTagId = Math.max( nextTagId, id + 1 );
+				break;
+			}
+
+			case TYPE: {
+				final long id = in.readLong();
+				putName( typeNames, typeIds, id, readString( in ) );
+				nextTypeId = Math.max( nextTypeId, id + 1 );
+				break;
+			}
+
+			case ATOM: {
+				final long id = in.readLong();
+				final String data = readString( in );
+				final StoredAtom old = unlinkAtom( id );
+				final boolean unchanged = old != null && old.hash == data.hashCode()
+						&& arena.matches( old.data, StringArena.encode( data ) );
+				if ( old != null && !unchanged ) {
+					arena.free( old.data );
+				}
+
+				final StoredAtom atom = new StoredAtom( unchanged ? old.data : arena.add( data ), data.hashCode(),
+						readSet( in, typeSets ) );
+				atoms.put( id, atom );
+				addHash( atom.hash, id );
+				for ( int i = 0; i < atom.types.size(); i++ ) {
+					index( atomsByType, atom.types.get( i ), id );
+				}
+				nextAtomId = Math.max( nextAtomId, id + 1 );
+				break;
+			}
+
+			case MOLECULE: {
+				final long id = in.readLong();
+				final StoredMolecule molecule = new StoredMolecule( readIds( in ), readSet( in, tagSets ) );
+				unlinkMolecule( id );
+				molecules.put( id, molecule );
+				for ( final long atomId : molecule.atoms ) {
+					index( moleculesByAtom, atomId, id );
+				}
+				for ( int i = 0; i < molecule.tags.size(); i++ ) {
+					index( moleculesByTag, molecule.tags.get( i ), id );
+				}
+				nextMoleculeId = Math.max( nextMoleculeId, id + 1 );
+				break;
+			}
+
+			case REMOVE_MOLECULE:
+				unlinkMolecule( in.readLong() );
+				break;
+
+			case REMOVE_ATOM: {
+				final long id = in.readLong();
+				final StoredAtom old = unlinkAtom( id );
+				if ( old != null ) {
+					arena.free( old.data );
+				}
+				moleculesByAtom.remove( id );
+				break;
+			}
+
+			default:
+				throw new IOException( "Unknown record type " + op );
+		}
+	}
+
+
+	/**
+	 * Removes the atom from everything but the arena.
+	 * 
+	 * @return The removed atom or null if there is no such atom
+	 */
+	private StoredAtom unlinkAtom( final long id ) {
+		final StoredAtom old = atoms.remove( id );
+		if ( old == null ) {
+			return null;
+		}
+
+		removeHash( old.hash, id );
+		for ( int i = 0; i < old.types.size(); i++ ) {
+			unindex( atomsByType, old.types.get( i ), id );
+		}
+		return old;
+	}
+
+
+	/**
+	 * Atoms are found by the hash of their data. Since hashes rarely collide, the IDs are kept in plain arrays.
+	 */
+	private void addHash( final int hash, final long id ) {
+		final long[] old = atomsByData.get( hash );
+		final long[] ids = old == null ? new long[1] : Arrays.copyOf( old, old.length + 1 );
+		ids[ids.length - 1] = id;
+		atomsByData.put( hash, ids );
+	}
+
+
+	private void removeHash( final int hash, final long id ) {
+		final long[] old = atomsByData.get( hash );
+		if ( old == null ) {
+			return;
+		}
+
+		final long[] ids = new long[old.length];
+		int length = 0;
+		for ( final long other : old ) {
+			if ( other != id ) {
+				ids[length++] = other;
+			}
+		}
+
+		if ( length == 0 ) {
+			atomsByData.remove( hash );
+		} else {
+			atomsByData.put( hash, Arrays.copyOf( ids, length ) );
+		}
+	}
+
+
+	private void unlinkMolecule( final long id ) {
+		final StoredMolecule old = molecules.remove( id );
+		if ( old == null ) {
+			return;
+		}
+
+		for ( final long atomId : old.atoms ) {
+			unindex( moleculesByAtom, atomId, id );
+		}
+		for ( int i = 0; i < old.tags.size(); i++ ) {
+			unindex( moleculesByTag, old.tags.get( i ), id );
+		}
+	}
+
+
+	private static void index( final Map<Long, CompressedBitmap> index, final long key, final long value ) {
+		CompressedBitmap bitmap = index.get( key );
+		if ( bitmap == null ) {
+			bitmap = new CompressedBitmap();
+			index.put( key, bitmap );
+		}
+		bitmap.add( toInt( value ) );
+	}
+
+
+	private static void unindex( final Map<Long, CompressedBitmap> index, final long key, final long value ) {
+		final CompressedBitmap bitmap = index.get( key );
+		if ( bitmap != null ) {
+			bitmap.remove( toInt( value ) );
+			if ( bitmap.isEmpty() ) {
+				index.remove( key );
+			}
+		}
+	}
+
+
+	private static void putName( final Map<Long, String> names, final Map<String, Long> ids, final long id,
+			final String name ) {
+		names.put( id, name );
+		ids.put( name, id );
+	}
+
+
+	// ---- Reading, called with the read lock held ----
+
+	/**
+	 * @return The ID of the atom with exactly the given data or null
+	 */
+	private Long atomId( final String data ) {
+		final long[] ids = atomsByData.get( data.hashCode() );
+		if ( ids == null ) {
+			return null;
+		}
+
+		final byte[] utf8 = StringArena.encode( data );
+		for ( final long id : ids ) {
+			if ( arena.matches( atoms.get( id ).data, utf8 ) ) {
+				return id;
+			}
+		}
+		return null;
+	}
+
+
+	private IAtom toAtom( final long atomId ) {
+		final StoredAtom stored = atoms.get( atomId );
+		if ( stored == null ) {
+			return null;
+		}
+
+		final Atom atom = new Atom();
+		atom.setId( atomId );
+		atom.setData( arena.get( stored.data ) );
+		atom.setTypes( names( typeNames, stored.types ) );
+		return atom;
+	}
+
+
+	private IMolecule toMolecule( final long moleculeId ) {
+		final StoredMolecule stored = molecules.get( moleculeId );
+		if ( stored == null ) {
+			return null;
+		}
+
+		final Molecule molecule = new Molecule();
+		molecule.setId( moleculeId );
+		for ( final long atomId : stored.atoms ) {
+			final IAtom atom = toAtom( atomId );
+			if ( atom != null ) {
+				molecule.getAtoms().add( atom );
+			}
+		}
+		molecule.getTags().addAll( names( tagNames, stored.tags ) );
+		return molecule;
+	}
+
+
+	private static List<String> names( final Map<Long, String> names, final IntSet ids ) {
+		final List<String> result = new ArrayList<String>( ids.size() );
+		for ( int i = 0; i < ids.size(); i++ ) {
+			final String name = names.get( (long) ids.get( i ) );
+			if ( name != null ) {
+				result.add( name );
+			}
+		}
+		return result;
+	}
+
+
+	/**
+	 * @param bitmap
+	 * @return The values of the bitmap in ascending order
+	 */
+	public static List<Long> toIds( final CompressedBitmap bitmap ) {
+		final List<Long> ids = new ArrayList<Long>( bitmap.cardinality() );
+		final CompressedBitmap.IntIterator iterator = bitmap.iterator();
+		while ( iterator.hasNext() ) {
+			ids.add( (long) iterator.next() );
+		}
+		return ids;
+	}
+
+
+	private static int toInt( final long id ) {
+		if ( id < 0 || id > Integer.MAX_VALUE ) {
+			throw new IllegalArgumentException( "ID out of range: " + id );
+		}
+		return (int) id;
+	}
+
+
+	// ---- Files ----
+
+	/**
+	 * Takes the write lock for a change.
+	 */
+	private Change begin() {
+		lock.writeLock().lock();
+		return new Change();
+	}
+
+
+	/**
+	 * Releases the write lock. A change that has not been committed has been applied in memory nevertheless, so the
+	 * log is cut back to the last complete change and the catalog is read again.
+	 */
+	private void end( final Change change ) throws IOException {
+		try {
+			if ( !change.committed && !change.records.isEmpty() ) {
+				closeLog();
+				truncate( new File( dir, LOG + generation ), logLength );
+				clear();
+				load();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Appends the records of the change to the log.
+	 */
+	private void commit( final Change change ) throws IOException {
+		if ( change.records.isEmpty() ) {
+			return;
+		}
+
+		long length = logLength;
+		for ( final byte[] record : change.records ) {
+			writeRecord( log, record );
+			length += 8 + record.length;
+		}
+		log.flush();
+		if ( sync ) {
+			logFile.getFD().sync();
+		}
+
+		change.committed = true;
+		logLength = length;
+
+		sinceSnapshot += change.records.size();
+		if ( sinceSnapshot >= snapshotInterval ) {
+			try {
+				writeSnapshot();
+			} catch ( final IOException e ) {
+				// The log is still complete, the next commit will try again.
+				e.printStackTrace();
+			}
+		}
+	}
+
+
+	private void clear() {
+		tagNames.clear();
+		tagIds.clear();
+		typeNames.clear();
+		typeIds.clear();
+		atoms.clear();
+		atomsByData.clear();
+		arena = new StringArena();
+		molecules.clear();
+		moleculesByTag.clear();
+		moleculesByAtom.clear();
+		atomsByType.clear();
+		nextTagId = 1;
+		nextTypeId = 1;
+		nextAtomId = 1;
+		nextMoleculeId = 1;
+		sinceSnapshot = 0;
+	}
+
+
+	private void load() throws IOException {
+		final long snapshot = latest( SNAPSHOT );
+		if ( snapshot >= 0 ) {
+			replay( new File( dir, SNAPSHOT + snapshot ), false );
+		}
+
+		generation = Math.max( 0, snapshot );
+		final List<Long> logs = generations( LOG );
+		for ( int i = 0; i < logs.size(); i++ ) {
+			if ( logs.get( i ) >= generation ) {
+				sinceSnapshot += replay( new File( dir, LOG + logs.get( i ) ), i == logs.size() - 1 );
+			}
+		}
+
+		if ( !logs.isEmpty() ) {
+			generation = Math.max( generation, logs.get( logs.size() - 1 ) );
+		}
+		openLog();
+	}
+
+
+	/**
+	 * Applies all records of the file.
+	 * 
+	 * @param truncate
+	 *            Whether to cut off a broken record at the end, otherwise it is an error
+	 * @return The number of records
+	 */
+	private int replay( final File file, final boolean truncate ) throws IOException {
+		final DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+		final CRC32 crc = new CRC32();
+		long valid = 0;
+		int count = 0;
+
+		try {
+			while ( true ) {
+				final int length;
+				try {
+					length = in.readInt();
+				} catch ( final EOFException e ) {
+					break;
+				}
+
+				final byte[] record;
+				final int checksum;
+				try {
+					if ( length < 1 || length > MAX_RECORD ) {
+						throw new EOFException();
+					}
+					checksum = in.readInt();
+					record = new byte[length];
+					in.readFully( record );
+				} catch ( final EOFException e ) {
+					valid = broken( file, valid, truncate );
+					break;
+				}
+
+				crc.reset();
+				crc.update( record );
+				if ( (int) crc.getValue() != checksum ) {
+					valid = broken( file, valid, truncate );
+					break;
+				}
+
+				apply( record );
+				valid += 8 + length;
+				count++;
+			}
+		} finally {
+			in.close();
+		}
+
+		return count;
+	}
+
+
+	private static long broken( final File file, final long valid, final boolean truncate ) throws IOException {
+		if ( !truncate ) {
+			throw new IOException( "Store file " + file + " is corrupt after " + valid + " bytes." );
+		}
+
+		truncate( file, valid );
+		return valid;
+	}
+
+
+	private static void truncate( final File file, final long length ) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+		try {
+			raf.setLength( length );
+		} finally {
+			raf.close();
+		}
+	}
+
+
+	private static void writeRecord( final DataOutputStream out, final byte[] record ) throws IOException {
+		final CRC32 crc = new CRC32();
+		crc.update( record );
+		out.writeInt( record.length );
+		out.writeInt( (int) crc.getValue() );
+		out.write( record );
+	}
+
+
+	/**
+	 * Starts a new log generation, writes the catalog without unused tags and types and deletes the files of older
+	 * generations afterwards. Should the application die in between, the old snapshot and logs are still complete.
+	 */
+	private void writeSnapshot() throws IOException {
+		compact();
+
+		closeLog();
+		generation++;
+		openLog();
+
+		final File temp = new File( dir, SNAPSHOT + "tmp" );
+		final FileOutputStream file = new FileOutputStream( temp );
+		final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( file ) );
+
+		try {
+			writeRecord( out, countersRecord() );
+			for ( final Map.Entry<Long, String> tag : tagNames.entrySet() ) {
+				writeRecord( out, nameRecord( TAG, tag.getKey(), tag.getValue() ) );
+			}
+			for ( final Map.Entry<Long, String> type : typeNames.entrySet() ) {
+				writeRecord( out, nameRecord( TYPE, type.getKey(), type.getValue() ) );
+			}
+			for ( final Map.Entry<Long, StoredAtom> atom : atoms.entrySet() ) {
+				writeRecord( out, atomRecord( atom.getKey(), arena.get( atom.getValue().data ),
+						asList( atom.getValue().types ) ) );
+			}
+			for ( final Map.Entry<Long, StoredMolecule> molecule : molecules.entrySet() ) {
+				writeRecord( out, moleculeRecord( molecule.getKey(), asList( molecule.getValue().atoms ),
+						asList( molecule.getValue().tags ) ) );
+			}
+			out.flush();
+			file.getFD().sync();
+		} finally {
+			out.close();
+		}
+
+		final File target = new File( dir, SNAPSHOT + generation );
+		if ( !temp.renameTo( target ) ) {
+			throw new IOException( "Could not rename " + temp + " to " + target );
+		}
+
+		for ( final long old : generations( SNAPSHOT ) ) {
+			if ( old < generation ) {
+				new File( dir, SNAPSHOT + old ).delete();
+			}
+		}
+		for ( final long old : generations( LOG ) ) {
+			if ( old < generation ) {
+				new File( dir, LOG + old ).delete();
+			}
+		}
+
+		sinceSnapshot = 0;
+	}
+
+
+	/**
+	 * Forgets tags and types that are not used anymore and moves the data of the atoms to a new arena if removed atoms
+	 * take up more than half of the old one.
+	 */
+	private void compact() {
+		if ( arena.garbage() * 2 > arena.size() ) {
+			final StringArena compacted = new StringArena();
+			for ( final Map.Entry<Long, StoredAtom> atom : atoms.entrySet() ) {
+				final StoredAtom old = atom.getValue();
+				atom.setValue( new StoredAtom( compacted.copy( arena, old.data ), old.hash, old.types ) );
+			}
+			arena = compacted;
+		}
+
+		for ( final Long tagId : new ArrayList<Long>( tagNames.keySet() ) ) {
+			if ( !moleculesByTag.containsKey( tagId ) ) {
+				tagIds.remove( tagNames.remove( tagId ) );
+			}
+		}
+		for ( final Long typeId : new ArrayList<Long>( typeNames.keySet() ) ) {
+			if ( !atomsByType.containsKey( typeId ) ) {
+				typeIds.remove( typeNames.remove( typeId ) );
+			}
+		}
+	}
+
+
+	private void openLog() throws IOException {
+		final File file = new File( dir, LOG + generation );
+		logFile = new FileOutputStream( file, true );
+		log = new DataOutputStream( new BufferedOutputStream( logFile ) );
+		logLength = file.length();
+	}
+
+
+	private void closeLog() {
+		if ( log == null ) {
+			return;
+		}
+
+		try {
+			log.close();
+		} catch ( final IOException e ) {
+			e.printStackTrace();
+		}
+		log = null;
+		logFile = null;
+	}
+
+
+	/**
+	 * @return The generations of all files with the given prefix in ascending order
+	 */
+	private List<Long> generations( final String prefix ) {
+		final Set<Long> result = new TreeSet<Long>();
+		final String[] names = dir.list();
+
+		if ( names != null ) {
+			for ( final String name : names ) {
+				if ( name.startsWith( prefix ) ) {
+					try {
+						result.add( Long.parseLong( name.substring( prefix.length() ) ) );
+					} catch ( final NumberFormatException e ) {
+						// Not one of ours, e.g. an unfinished snapshot
+					}
+				}
+			}
+		}
+
+		return new ArrayList<Long>( result );
+	}
+
+
+	private long latest( final String prefix ) {
+		final List<Long> all = generations( prefix );
+		return all.isEmpty() ? -1 : all.get( all.size() - 1 );
+	}
+
+
+	private static void writeString( final DataOutputStream out, final String value ) throws IOException {
+		final byte[] bytes = value.getBytes( "UTF-8" );
+		out.writeInt( bytes.length );
+		out.write( bytes );
+	}
+
+
+	private static String readString( final DataInputStream in ) throws IOException {
+		final byte[] bytes = new byte[in.readInt()];
+		in.readFully( bytes );
+		try {
+			return new String( bytes, "UTF-8" );
+		} catch ( final UnsupportedEncodingException e ) {
+			throw new IllegalStateException( e );
+		}
+	}
+
+
+	private static void writeIds( final DataOutputStream out, final Collection<Long> ids ) throws IOException {
+		out.writeInt( ids.size() );
+		for ( final long id : ids ) {
+			out.writeLong( id );
+		}
+	}
+
+
+	private static long[] readIds( final DataInputStream in ) throws IOException {
+		final long[] ids = new long[in.readInt()];
+		for ( int i = 0; i < ids.length; i++ ) {
+			ids[i] = in.readLong();
+		}
+		return ids;
+	}
+
+
+	/**
+	 * Reads IDs like {@link #readIds(DataInputStream)} and interns them.
+	 */
+	private static IntSet readSet( final DataInputStream in, final IntSetPool pool ) throws IOException {
+		final int[] ids = new int[in.readInt()];
+		for ( int i = 0; i < ids.length; i++ ) {
+			ids[i] = toInt( in.readLong() );
+		}
+		return pool.intern( ids );
+	}
+
+
+	private static List<Long> asList( final IntSet ids ) {
+		final List<Long> list = new ArrayList<Long>( ids.size() );
+		for ( int i = 0; i < ids.size(); i++ ) {
+			list.add( (long) ids.get( i ) );
+		}
+		return Collections.unmodifiableList( list );
+	}
+
+
+	private static List<Long> asList( final long[] ids ) {
+		final List<Long> list = new ArrayList<Long>( ids.length );
+		for ( final long id : ids ) {
+			list.add( id );
+		}
+		return Collections.unmodifiableList( list );
+	}
+
+	/**
+	 * The records of one change. Every record is applied as soon as it is added, so later records of the same change
+	 * see the effects of the earlier ones. Readers don't see anything before the change is committed, since the write
+	 * lock is held all along.
+	 */
+	private class Change {
+		private final List<byte[]>	records		= new ArrayList<byte[]>();
+		private boolean				committed	= false;
+
+
+		void add( final byte[] record ) throws IOException {
+			records.add( record );
+			apply( record );
+		}
+	}
+
+	/**
+	 * An atom as held in memory. The data is the handle of a string in the arena.
+	 */
+	private static class StoredAtom {
+		private final long		data;
+		private final int		hash;
+		private final IntSet	types;
+
+
+		StoredAtom( final long data, final int hash, final IntSet types ) {
+			this.data = data;
+			this.hash = hash;
+			this.types = types;
+		}
+	}
+
+	/**
+	 * A molecule as held in memory.
+	 */
+	private static class StoredMolecule {
+		private final long[]	atoms;
+		private final IntSet	tags;
+
+
+		StoredMolecule( final long[] atoms, final IntSet tags ) {
+			this.atoms = atoms;
+			this.tags = tags;
+		}
+	}
+
+}
@@ -0,0 +1,70 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.core.store;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.atomictagging.core.services.ITagService;
+import org.eclipse.core.runtime.Assert;
+
+/**
+ * {@link ITagService} on top of the {@link LogStore}.
+ */
+public class LogTagService implements ITagService {
+
+	private final LogStore	store;
+
+
+	/**
+	 * @param store
+	 */
+	public LogTagService( final LogStore store ) {
+		this.store = store;
+	}
+
+
+	@Override
+	public List<String> getAll() {
+		return store.getTags();
+	}
+
+
+	@Override
+	public String[] getAllAsArray() {
+		final List<String> tags = getAll();
+		return tags.toArray( new String[tags.size()] );
+	}
+
+
+	@Override
+	public List<String> getForMolecule( final long id ) {
+		return store.getTags( id );
+	}
+
+
+	@Override
+	public long save( final String tag ) {
+		Assert.isTrue( tag != null && !tag.isEmpty() );
+
+		try {
+			return store.saveTag( tag );
+		} catch ( final IOException e ) {
+			e.printStackTrace();
+		}
+
+		return -1;
+	}
+
+}
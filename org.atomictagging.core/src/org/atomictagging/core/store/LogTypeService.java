@@ -0,0 +1,70 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.core.store;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.atomictagging.core.services.ITypeService;
+import org.eclipse.core.runtime.Assert;
+
+/**
+ * {@link ITypeService} on top of the {@link LogStore}.
+ */
+public class LogTypeService implements ITypeService {
+
+	private final LogStore	store;
+
+
+	/**
+	 * @param store
+	 */
+	public LogTypeService( final LogStore store ) {
+		this.store = store;
+	}
+
+
+	@Override
+	public List<String> getAll() {
+		return store.getTypes();
+	}
+
+
+	@Override
+	public String[] getAllAsArray() {
+		final List<String> types = getAll();
+		return types.toArray( new String[types.size()] );
+	}
+
+
+	@Override
+	public List<String> getForAtom( final long id ) {
+		return store.getTypes( id );
+	}
+
+
+	@Override
+	public long save( final String type ) {
+		Assert.isTrue( type != null && !type.isEmpty() );
+
+		try {
+			return store.saveType( type );
+		} catch ( final IOException e ) {
+			e.printStackTrace();
+		}
+
+		return -1;
+	}
+
+}
@@ -14,7 +14,11 @@ DROP TABLE IF EXISTS `atomictagging`.`atoms` ;
 CREATE  TABLE IF NOT EXISTS `atomictagging`.`atoms` (
   `atomid` INT NOT NULL AUTO_INCREMENT ,
   `data` TEXT NOT NULL ,
-  PRIMARY KEY (`atomid`) )
+  `hash` CHAR(40) NULL ,
+  `refcount` INT NOT NULL DEFAULT 0 ,
+  PRIMARY KEY (`atomid`) ,
+  INDEX `atoms_hash` (`hash` ASC) ,
+  INDEX `atoms_refcount` (`refcount` ASC) )
 ENGINE = InnoDB;
 
 
@@ -26,8 +30,10 @@ DROP TABLE IF EXISTS `atomictagging`.`tags` ;
 CREATE  TABLE IF NOT EXISTS `atomictagging`.`tags` (
   `tagid` INT NOT NULL AUTO_INCREMENT ,
   `tag` VARCHAR(255) NOT NULL ,
+  `refcount` INT NOT NULL DEFAULT 0 ,
   PRIMARY KEY (`tagid`) ,
-  UNIQUE INDEX `tag_UNIQUE` (`tag` ASC) )
+  UNIQUE INDEX `tag_UNIQUE` (`tag` ASC) ,
+  INDEX `tags_refcount` (`refcount` ASC) )
 ENGINE = InnoDB;
 
 
@@ -127,6 +133,19 @@ CREATE  TABLE IF NOT EXISTS `atomictagging`.`atom_has_types` (
 ENGINE = InnoDB;
 
 
+-- -----------------------------------------------------
+-- Table `atomictagging`.`sequences`
+-- -----------------------------------------------------
+DROP TABLE IF EXISTS `atomictagging`.`sequences` ;
+
+CREATE  TABLE IF NOT EXISTS `atomictagging`.`sequences` (
+  `name` VARCHAR(64) NOT NULL ,
+  `next_id` INT NOT NULL ,
+  PRIMARY KEY (`name`) )
+ENGINE = InnoDB;
+
+INSERT INTO `atomictagging`.`sequences` (`name`, `next_id`) VALUES ('atoms', 1), ('molecules', 1), ('changes', 0);
+
 
 SET SQL_MODE=@OLD_SQL_MODE;
 SET FOREIGN_KEY_CHECKS=@OLD_FOREIGN_KEY_CHECKS;
@@ -64,4 +64,14 @@ public interface IShell {
 	 * @return An unmodifiable list of all registered commands. Will be a new list every time it is called.
 	 */
 	Collection<ICommand> getCommands();
+
+
+	/**
+	 * Asks the user for a line of input, e.g. to continue paging through a long output.
+	 * 
+	 * @param prompt
+	 *            Printed before waiting for the input
+	 * @return The line entered by the user or null if the input has been closed
+	 */
+	String readLine( String prompt );
 }
@@ -21,12 +21,14 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
-import org.atomictagging.core.accessors.DB;
+import org.atomictagging.core.accessors.OrphanCollector;
 import org.atomictagging.core.configuration.Configuration;
 import org.atomictagging.core.moleculehandler.MoleculeHandlerFactory;
+import org.atomictagging.core.services.ATService;
 import org.atomictagging.moleculehandler.base.RemoteMoleculeViewer;
 import org.atomictagging.moleculehandler.image.ImageMoleculeImporter;
 import org.atomictagging.moleculehandler.video.IMDBMoleculeImporter;
+import org.atomictagging.shell.commands.CollectCommand;
 import org.atomictagging.shell.commands.EditCommand;
 import org.atomictagging.shell.commands.HelpCommand;
 import org.atomictagging.shell.commands.ICommand;
@@ -68,7 +70,8 @@ public class Shell implements IShell {
 		}
 
 		try {
-			DB.init();
+			ATService.init();
+			OrphanCollector.start();
 		} catch ( final Exception e ) {
 			System.err.println( "Could not connect to database." );
 			System.err.println( "Cause: " + e.getMessage() );
@@ -94,6 +97,7 @@ public class Shell implements IShell {
 		register( new EditCommand( this ) );
 		register( new NewCommand( this ) );
 		register( new RemoveCommand( this ) );
+		register( new CollectCommand( this ) );
 	}
 
 
@@ -145,6 +149,13 @@ public class Shell implements IShell {
 	}
 
 
+	@Override
+	public String readLine( final String prompt ) {
+		System.out.print( prompt );
+		return readInput();
+	}
+
+
 	public void run() {
 		printWelcomeMessage();
 		boolean run = true;
@@ -164,6 +175,8 @@ public class Shell implements IShell {
 			}
 		}
 
+		OrphanCollector.stop();
+		ATService.shutdown();
 		printGoodByeMessage();
 	}
 
@@ -14,6 +14,8 @@
 package org.atomictagging.shell.commands;
 
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.atomictagging.core.services.ATService;
 import org.atomictagging.core.types.IMolecule;
@@ -54,6 +56,35 @@ public abstract class AbstractCommand implements ICommand {
 	}
 
 
+	/**
+	 * Combines the current scope of the shell with the given tag path.
+	 * 
+	 * @param input
+	 *            Tags separated by slashes, may be null
+	 * @return The tags of the scope followed by the given tags. Never null.
+	 */
+	protected List<String> getScopedTags( String input ) {
+		List<String> tags = new ArrayList<String>();
+
+		String scope = shell.getEnvironment( "scope" );
+		scope = ( scope == null ) ? "" : scope;
+
+		if ( input != null && !input.isEmpty() ) {
+			scope += "/" + input;
+		}
+
+		if ( !scope.isEmpty() ) {
+			for ( String tag : scope.split( "/" ) ) {
+				if ( !tag.isEmpty() ) {
+					tags.add( tag );
+				}
+			}
+		}
+
+		return tags;
+	}
+
+
 	protected static long validateAndParseId( String input, PrintStream stdout ) {
 		if ( input.trim().isEmpty() ) {
 			stdout.println( "Please specifiy a molecule ID." );
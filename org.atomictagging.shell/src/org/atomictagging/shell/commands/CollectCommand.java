@@ -0,0 +1,73 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.shell.commands;
+
+import java.io.PrintStream;
+
+import org.atomictagging.core.accessors.OrphanCollector;
+import org.atomictagging.core.accessors.OrphanCollector.Report;
+import org.atomictagging.shell.IShell;
+
+/**
+ * Command to remove orphaned atoms, tags and types and to show what has been removed so far.
+ */
+public class CollectCommand extends AbstractCommand {
+
+	/**
+	 * @param shell
+	 */
+	public CollectCommand( IShell shell ) {
+		super( shell );
+	}
+
+
+	@Override
+	public String getCommandString() {
+		return "gc";
+	}
+
+
+	@Override
+	public String getHelpMessage() {
+		return "gc [status]\t- Remove orphaned atoms, tags and types";
+	}
+
+
+	@Override
+	public String getVerboseHelpMessage() {
+		return getHelpMessage() + "\n"
+				+ "gc status\t- Show what has been removed by the last run and since the start";
+	}
+
+
+	@Override
+	public int handleInput( String input, PrintStream stdout ) {
+		if ( input.trim().equals( "status" ) ) {
+			Report last = OrphanCollector.getLastReport();
+			stdout.println( "Last run: " + ( last == null ? "None yet." : last ) );
+			stdout.println( "Total: " + OrphanCollector.getTotalReport() );
+			return 0;
+		}
+
+		try {
+			stdout.println( OrphanCollector.collect() );
+		} catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			stdout.println( "Interrupted." );
+			return 1;
+		}
+		return 0;
+	}
+
+}
@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 
 import org.atomictagging.core.accessors.DbModifier;
@@ -296,27 +297,34 @@ public class EditCommand extends AbstractModifyCommand {
 			e.printStackTrace();
 		}
 
+		temp.delete();
+
 		final MoleculeBuilder mBuilder = molecule.modify();
 		mBuilder.replaceTags( tags );
 		mBuilder.deleteAtoms();
 
+		final List<Long> atomIds = new ArrayList<Long>();
 		for ( final String atomId : atoms ) {
 			try {
-				final IAtom atom = ATService.getAtomService().find( Long.parseLong( atomId ) );
-
-				if ( atom == null ) {
-					stdout.println( "Unknown atom with ID: " + atomId );
-					return 1;
-				}
-
-				mBuilder.withAtom( atom );
+				atomIds.add( Long.parseLong( atomId ) );
 			} catch ( final NumberFormatException e ) {
 				e.printStackTrace();
-			} finally {
-				temp.delete();
 			}
 		}
 
+		final Map<Long, IAtom> atomsById = ATService.getAtomService().find( atomIds );
+
+		for ( final Long atomId : atomIds ) {
+			final IAtom atom = atomsById.get( atomId );
+
+			if ( atom == null ) {
+				stdout.println( "Unknown atom with ID: " + atomId );
+				return 1;
+			}
+
+			mBuilder.withAtom( atom );
+		}
+
 		DbModifier.modify( mBuilder.buildWithAtomsAndTags() );
 
 		return 0;
@@ -14,13 +14,13 @@
 package org.atomictagging.shell.commands;
 
 import java.io.PrintStream;
-import java.util.ArrayList;
 import java.util.List;
 
 import org.atomictagging.core.moleculehandler.IMoleculeViewer;
 import org.atomictagging.core.moleculehandler.MoleculeHandlerFactory;
 import org.atomictagging.core.moleculehandler.IMoleculeViewer.VERBOSITY;
 import org.atomictagging.core.services.ATService;
+import org.atomictagging.core.services.IConsumer;
 import org.atomictagging.core.types.IMolecule;
 import org.atomictagging.shell.IShell;
 
@@ -31,6 +31,12 @@ import org.atomictagging.shell.IShell;
  */
 public class ListCommand extends AbstractCommand {
 
+	/**
+	 * Number of molecules on a page if paging is requested without a limit.
+	 */
+	private final static int	PAGE_SIZE	= 20;
+
+
 	/**
 	 * @param shell
 	 */
@@ -53,36 +59,85 @@ public class ListCommand extends AbstractCommand {
 
 	@Override
 	public String getVerboseHelpMessage() {
-		return getHelpMessage();
+		return getHelpMessage() + "\n" + "\t\t  Options: --limit N to list N molecules, --after ID to start behind the\n"
+				+ "\t\t  molecule with the given ID, --more to page through the molecules N at a time.";
 	}
 
 
 	@Override
-	public int handleInput( String input, PrintStream stdout ) {
-		List<String> tags = new ArrayList<String>();
+	public int handleInput( String input, final PrintStream stdout ) {
+		int limit = 0;
+		long afterId = 0;
+		boolean more = false;
+		StringBuilder path = new StringBuilder();
+
+		String[] parts = input.trim().split( "\\s+" );
+		try {
+			for ( int i = 0; i < parts.length; i++ ) {
+				if ( parts[i].equals( "--limit" ) && i + 1 < parts.length ) {
+					limit = Integer.parseInt( parts[++i] );
+				} else if ( parts[i].equals( "--after" ) && i + 1 < parts.length ) {
+					afterId = Long.parseLong( parts[++i] );
+				} else if ( parts[i].equals( "--more" ) ) {
+					more = true;
+				} else {
+					// Tags may contain spaces.
+					path.append( path.length() == 0 ? "" : " " ).append( parts[i] );
+				}
+			}
+		} catch ( NumberFormatException e ) {
+			stdout.println( "Invalid number: " + e.getMessage() );
+			return 1;
+		}
 
-		String scope = shell.getEnvironment( "scope" );
-		scope = ( scope == null ) ? "" : scope;
+		List<String> tags = getScopedTags( path.toString() );
 
-		if ( input != null && !input.isEmpty() ) {
-			scope += "/" + input;
+		if ( limit == 0 && afterId == 0 && !more ) {
+			// Print the molecules while they are read, large scopes don't fit into memory as a whole.
+			ATService.getMoleculeService().forEachMolecule( tags, new IConsumer<IMolecule>() {
+				@Override
+				public boolean accept( IMolecule molecule ) {
+					print( molecule, stdout );
+					return true;
+				}
+			} );
+			return 0;
 		}
 
-		if ( !scope.isEmpty() ) {
-			for ( String tag : scope.split( "/" ) ) {
-				if ( !tag.isEmpty() ) {
-					tags.add( tag );
-				}
-			}
+		if ( limit < 1 ) {
+			limit = PAGE_SIZE;
 		}
 
-		List<IMolecule> molecules = ATService.getMoleculeService().find( tags );
+		while ( true ) {
+			List<IMolecule> page = ATService.getMoleculeService().findPage( tags, afterId, limit );
 
-		for ( IMolecule molecule : molecules ) {
-			IMoleculeViewer viewer = MoleculeHandlerFactory.getInstance().getViewer( molecule );
-			stdout.println( viewer.getTextRepresentation( molecule, MAX_LENGTH, VERBOSITY.DEFAULT ) );
+			for ( IMolecule molecule : page ) {
+				print( molecule, stdout );
+				afterId = molecule.getId();
+			}
+
+			if ( page.size() < limit ) {
+				return 0;
+			}
+
+			if ( !more ) {
+				String arguments = path.length() == 0 ? "" : path + " ";
+				stdout.println( "-- Continue with: ls " + arguments + "--limit " + limit + " --after " + afterId
+						+ " --" );
+				return 0;
+			}
+
+			String answer = shell.readLine( "-- More -- (Enter for the next page, q to quit) " );
+			if ( answer == null || answer.trim().equals( "q" ) ) {
+				return 0;
+			}
 		}
-		return 0;
+	}
+
+
+	private void print( IMolecule molecule, PrintStream stdout ) {
+		IMoleculeViewer viewer = MoleculeHandlerFactory.getInstance().getViewer( molecule );
+		stdout.println( viewer.getTextRepresentation( molecule, MAX_LENGTH, VERBOSITY.DEFAULT ) );
 	}
 
 }
@@ -14,8 +14,11 @@
 package org.atomictagging.shell.commands;
 
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.atomictagging.core.accessors.DbRemover;
+import org.atomictagging.core.services.ATService;
 import org.atomictagging.shell.IShell;
 
 /**
@@ -45,6 +48,33 @@ public class RemoveCommand extends AbstractModifyCommand {
 	}
 
 
+	@Override
+	public String getVerboseHelpMessage() {
+		return getHelpMessage() + "\n"
+				+ "rm molecule <ID> <ID> ...\t- Remove all molecules in the given list of IDs\n"
+				+ "rm scope [tag1/tag2]\t- Remove all molecules in the current scope (with the given tags)";
+	}
+
+
+	@Override
+	public int handleInput( String input, PrintStream stdout ) {
+		String[] parts = input.trim().split( "\\s+", 2 );
+
+		if ( parts[0].equals( "scope" ) ) {
+			return handleScope( parts.length == 2 ? parts[1].trim() : "", stdout );
+		}
+
+		if ( parts[0].equals( "molecule" ) && parts.length == 2 ) {
+			String[] ids = parts[1].trim().split( "[\\s,]+" );
+			if ( ids.length > 1 ) {
+				return handleMolecules( ids, stdout );
+			}
+		}
+
+		return super.handleInput( input, stdout );
+	}
+
+
 	@Override
 	protected int handleAtom( long id, PrintStream stdout ) {
 		DbRemover.removeAtom( id );
@@ -58,4 +88,35 @@ public class RemoveCommand extends AbstractModifyCommand {
 		return 0;
 	}
 
+
+	private int handleMolecules( String[] input, PrintStream stdout ) {
+		List<Long> ids = new ArrayList<Long>( input.length );
+
+		for ( String id : input ) {
+			try {
+				ids.add( Long.parseLong( id ) );
+			} catch ( NumberFormatException e ) {
+				stdout.println( "Invalid ID: " + id );
+				return 1;
+			}
+		}
+
+		stdout.println( "Removed " + DbRemover.removeMolecules( ids ) + " molecules." );
+		return 0;
+	}
+
+
+	private int handleScope( String input, PrintStream stdout ) {
+		List<String> tags = getScopedTags( input );
+
+		if ( tags.isEmpty() ) {
+			stdout.println( "Refusing to remove all molecules. Please set a scope or specify tags." );
+			return 1;
+		}
+
+		List<Long> ids = ATService.getMoleculeService().findIds( tags );
+		stdout.println( "Removed " + DbRemover.removeMolecules( ids ) + " molecules." );
+		return 0;
+	}
+
 }
@@ -14,12 +14,15 @@
 package org.atomictagging.shell.commands;
 
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import org.atomictagging.core.services.ATService;
 import org.atomictagging.core.services.IMoleculeService;
 import org.atomictagging.core.types.Atom;
 import org.atomictagging.core.types.IAtom;
+import org.atomictagging.core.types.IMolecule;
 import org.atomictagging.core.types.Molecule;
 import org.atomictagging.shell.IShell;
 
@@ -53,6 +56,7 @@ public class TestDataCommand extends AbstractCommand {
 	@Override
 	public int handleInput( final String input, final PrintStream stdout ) {
 		final IMoleculeService service = ATService.getMoleculeService();
+		final List<IMolecule> molecules = new ArrayList<IMolecule>();
 
 		IAtom artist = Atom.build().withData( "A Perfect Circle" ).withType( "artist" ).buildWithDataAndType();
 		IAtom title = Atom.build().withData( "The Noose" ).withType( "title" ).buildWithDataAndType();
@@ -60,21 +64,21 @@ public class TestDataCommand extends AbstractCommand {
 		final IAtom rock = Atom.build().withData( "Rock" ).withType( "genre" ).buildWithDataAndType();
 		final IAtom metal = Atom.build().withData( "Metal" ).withType( "genre" ).buildWithDataAndType();
 
-		service.save( Molecule.build().withAtoms( Arrays.asList( artist, title, album, rock, metal ) )
+		molecules.add( Molecule.build().withAtoms( Arrays.asList( artist, title, album, rock, metal ) )
 				.withTag( "audio" ).withTag( "favorite" ).buildWithAtomsAndTags() );
 
 		title = Atom.build().withData( "The Outsider" ).withType( "title" ).buildWithDataAndType();
-		service.save( Molecule.build().withAtoms( Arrays.asList( artist, title, album, rock, metal ) )
+		molecules.add( Molecule.build().withAtoms( Arrays.asList( artist, title, album, rock, metal ) )
 				.withTag( "audio" ).buildWithAtomsAndTags() );
 
 		artist = Atom.build().withData( "Led Zeppelin" ).withType( "artist" ).buildWithDataAndType();
 		title = Atom.build().withData( "The Battle of Evermore" ).withType( "title" ).buildWithDataAndType();
 		album = Atom.build().withData( "Led Zeppelin IV" ).withType( "album" ).buildWithDataAndType();
-		service.save( Molecule.build().withAtoms( Arrays.asList( artist, title, album, rock ) ).withTag( "audio" )
+		molecules.add( Molecule.build().withAtoms( Arrays.asList( artist, title, album, rock ) ).withTag( "audio" )
 				.withTag( "favorite" ).buildWithAtomsAndTags() );
 
 		title = Atom.build().withData( "Stairway to Heaven" ).withType( "title" ).buildWithDataAndType();
-		service.save( Molecule.build().withAtoms( Arrays.asList( artist, title, album, rock ) ).withTag( "audio" )
+		molecules.add( Molecule.build().withAtoms( Arrays.asList( artist, title, album, rock ) ).withTag( "audio" )
 				.buildWithAtomsAndTags() );
 
 		IAtom author1 = Atom.build().withData( "Erich Gamma" ).withType( "author" ).buildWithDataAndType();
@@ -84,16 +88,17 @@ public class TestDataCommand extends AbstractCommand {
 		IAtom date = Atom.build().withData( "1995" ).withType( "release-year" ).buildWithDataAndType();
 		IAtom bookTitle = Atom.build().withData( "Design Patterns: Elements of Reusable Object-Oriented Software" )
 				.withType( "title" ).buildWithDataAndType();
-		service.save( Molecule.build().withAtoms( Arrays.asList( author1, author2, author3, author4, bookTitle, date ) )
+		molecules.add( Molecule.build().withAtoms( Arrays.asList( author1, author2, author3, author4, bookTitle, date ) )
 				.withTags( Arrays.asList( "document", "book", "software", "favorite" ) ).buildWithAtomsAndTags() );
 
 		author1 = Atom.build().withData( "Mark Pilgrim" ).withType( "author" ).buildWithDataAndType();
 		date = Atom.build().withData( "2004" ).withType( "release-year" ).buildWithDataAndType();
 		bookTitle = Atom.build().withData( "Dive Into Python - Python from novice to pro" ).withType( "title" )
 				.buildWithDataAndType();
-		service.save( Molecule.build().withAtoms( Arrays.asList( author1, date, bookTitle ) )
+		molecules.add( Molecule.build().withAtoms( Arrays.asList( author1, date, bookTitle ) )
 				.withTags( Arrays.asList( "document", "book", "python" ) ).buildWithAtomsAndTags() );
 
+		service.save( molecules );
 		return 0;
 	}
 
@@ -0,0 +1,244 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.utils.collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.util.BitSet;
+import java.util.Random;
+
+import org.atomictagging.utils.collections.CompressedBitmap.IntIterator;
+import org.junit.Test;
+
+/**
+ * Tests the {@link CompressedBitmap}, in particular the conversions between its kinds of containers.
+ */
+public class CompressedBitmapTest {
+
+	@Test
+	public void arrayBecomesBitmapAboveMaxArray() throws Exception {
+		final CompressedBitmap bitmap = new CompressedBitmap();
+		for ( int i = 0; i < CompressedBitmap.MAX_ARRAY; i++ ) {
+			bitmap.add( i * 2 );
+		}
+		assertEquals( "ArrayContainer", container( bitmap, 0 ) );
+
+		bitmap.add( 1 );
+		assertEquals( "BitmapContainer", container( bitmap, 0 ) );
+		assertEquals( CompressedBitmap.MAX_ARRAY + 1, bitmap.cardinality() );
+		assertTrue( bitmap.contains( 1 ) );
+		assertTrue( bitmap.contains( ( CompressedBitmap.MAX_ARRAY - 1 ) * 2 ) );
+		assertFalse( bitmap.contains( 3 ) );
+	}
+
+
+	@Test
+	public void bitmapBecomesArrayWhenValuesAreRemoved() throws Exception {
+		final CompressedBitmap bitmap = new CompressedBitmap();
+		for ( int i = 0; i <= CompressedBitmap.MAX_ARRAY; i++ ) {
+			bitmap.add( i );
+		}
+		assertEquals( "BitmapContainer", container( bitmap, 0 ) );
+
+		bitmap.remove( 7 );
+		assertEquals( "ArrayContainer", container( bitmap, 0 ) );
+		assertEquals( CompressedBitmap.MAX_ARRAY, bitmap.cardinality() );
+		assertFalse( bitmap.contains( 7 ) );
+		assertTrue( bitmap.contains( 8 ) );
+	}
+
+
+	@Test
+	public void runOptimizePicksTheSmallestContainer() throws Exception {
+		final CompressedBitmap runs = new CompressedBitmap();
+		for ( int i = 0; i < 10000; i++ ) {
+			runs.add( i );
+		}
+		runs.runOptimize();
+		assertEquals( "RunContainer", container( runs, 0 ) );
+		assertEquals( 10000, runs.cardinality() );
+		assertTrue( runs.contains( 9999 ) );
+		assertFalse( runs.contains( 10000 ) );
+
+		final CompressedBitmap sparse = new CompressedBitmap();
+		for ( int i = 0; i < 100; i++ ) {
+			sparse.add( i * 3 );
+		}
+		sparse.runOptimize();
+		assertEquals( "ArrayContainer", container( sparse, 0 ) );
+
+		final CompressedBitmap dense = new CompressedBitmap();
+		for ( int i = 0; i < 30000; i++ ) {
+			dense.add( i * 2 );
+		}
+		dense.runOptimize();
+		assertEquals( "BitmapContainer", container( dense, 0 ) );
+	}
+
+
+	@Test
+	public void runContainerIsConvertedBackWhenModified() throws Exception {
+		final CompressedBitmap small = new CompressedBitmap();
+		for ( int i = 0; i < 100; i++ ) {
+			small.add( i );
+		}
+		small.runOptimize();
+
+		small.remove( 50 );
+		assertEquals( "ArrayContainer", container( small, 0 ) );
+		assertEquals( 99, small.cardinality() );
+		assertFalse( small.contains( 50 ) );
+
+		final CompressedBitmap large = new CompressedBitmap();
+		for ( int i = 0; i < 10000; i++ ) {
+			large.add( i );
+		}
+		large.runOptimize();
+
+		// Values already present leave the runs alone.
+		large.add( 5 );
+		assertEquals( "RunContainer", container( large, 0 ) );
+
+		large.add( 20000 );
+		assertEquals( "BitmapContainer", container( large, 0 ) );
+		assertEquals( 10001, large.cardinality() );
+	}
+
+
+	@Test
+	public void valuesAreSpreadOverChunks() {
+		final CompressedBitmap bitmap = new CompressedBitmap();
+		bitmap.add( 1 << 30 );
+		bitmap.add( 65536 );
+		bitmap.add( 1 );
+		bitmap.add( 65535 );
+
+		assertArrayEquals( new int[] { 1, 65535, 65536, 1 << 30 }, bitmap.toArray() );
+
+		final IntIterator iterator = bitmap.iterator( 65536 );
+		assertEquals( 65536, iterator.next() );
+		assertEquals( 1 << 30, iterator.next() );
+		assertFalse( iterator.hasNext() );
+
+		bitmap.remove( 65536 );
+		assertArrayEquals( new int[] { 1, 65535, 1 << 30 }, bitmap.toArray() );
+	}
+
+
+	@Test( expected = IllegalArgumentException.class )
+	public void negativeValuesAreRejected() {
+		new CompressedBitmap().add( -1 );
+	}
+
+
+	@Test
+	public void setOperationsMatchBitSet() {
+		final Random random = new Random( 42 );
+
+		// Dense, sparse and run containers in overlapping and separate chunks.
+		final CompressedBitmap a = new CompressedBitmap();
+		final CompressedBitmap b = new CompressedBitmap();
+		final BitSet x = new BitSet();
+		final BitSet y = new BitSet();
+
+		for ( int i = 0; i < 20000; i++ ) {
+			add( a, x, i );
+		}
+		for ( int i = 0; i < 40000; i += 2 ) {
+			add( b, y, i );
+		}
+		for ( int i = 0; i < 3000; i++ ) {
+			add( a, x, 65536 + random.nextInt( 65536 ) );
+			add( b, y, 65536 + random.nextInt( 65536 ) );
+		}
+		for ( int i = 0; i < 100; i++ ) {
+			add( b, y, 3 * 65536 + i );
+		}
+		a.runOptimize();
+		b.runOptimize();
+
+		final BitSet and = (BitSet) x.clone();
+		and.and( y );
+		final BitSet or = (BitSet) x.clone();
+		or.or( y );
+		final BitSet andNot = (BitSet) x.clone();
+		andNot.andNot( y );
+
+		assertArrayEquals( toArray( and ), a.and( b ).toArray() );
+		assertArrayEquals( toArray( or ), a.or( b ).toArray() );
+		assertArrayEquals( toArray( andNot ), a.andNot( b ).toArray() );
+
+		// The operands are left untouched.
+		assertArrayEquals( toArray( x ), a.toArray() );
+		assertArrayEquals( toArray( y ), b.toArray() );
+	}
+
+
+	@Test
+	public void randomChangesMatchBitSet() {
+		final Random random = new Random( 7 );
+		final CompressedBitmap bitmap = new CompressedBitmap();
+		final BitSet expected = new BitSet();
+
+		for ( int i = 0; i < 200000; i++ ) {
+			// Few chunks, so containers fill up and drain again.
+			final int value = random.nextInt( 3 * 65536 );
+			if ( random.nextInt( 3 ) == 0 ) {
+				bitmap.remove( value );
+				expected.clear( value );
+			} else {
+				bitmap.add( value );
+				expected.set( value );
+			}
+			if ( i % 50000 == 0 ) {
+				bitmap.runOptimize();
+			}
+		}
+
+		assertEquals( expected.cardinality(), bitmap.cardinality() );
+		assertArrayEquals( toArray( expected ), bitmap.toArray() );
+		assertArrayEquals( bitmap.toArray(), bitmap.copy().toArray() );
+	}
+
+
+	private static void add( final CompressedBitmap bitmap, final BitSet bits, final int value ) {
+		bitmap.add( value );
+		bits.set( value );
+	}
+
+
+	private static int[] toArray( final BitSet bits ) {
+		final int[] values = new int[bits.cardinality()];
+		int length = 0;
+		for ( int value = bits.nextSetBit( 0 ); value >= 0; value = bits.nextSetBit( value + 1 ) ) {
+			values[length++] = value;
+		}
+		return values;
+	}
+
+
+	/**
+	 * @return The simple class name of the container at the given index
+	 */
+	private static String container( final CompressedBitmap bitmap, final int index ) throws Exception {
+		final Field containers = CompressedBitmap.class.getDeclaredField( "containers" );
+		containers.setAccessible( true );
+		return ( (Object[]) containers.get( bitmap ) )[index].getClass().getSimpleName();
+	}
+
+}
@@ -0,0 +1,124 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.utils.collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests the interning of the {@link IntSetPool}.
+ */
+public class IntSetPoolTest {
+
+	@Test
+	public void equalValuesGiveTheSameSet() {
+		final IntSetPool pool = new IntSetPool();
+		final IntSet first = pool.intern( new int[] { 3, 1, 2 } );
+		final IntSet second = pool.intern( new int[] { 2, 3, 1, 3 } );
+
+		assertSame( first, second );
+		assertEquals( first.id(), second.id() );
+		assertEquals( 1, pool.size() );
+	}
+
+
+	@Test
+	public void differentValuesGiveDifferentSets() {
+		final IntSetPool pool = new IntSetPool();
+		final IntSet first = pool.intern( new int[] { 1, 2 } );
+		final IntSet second = pool.intern( new int[] { 1, 2, 3 } );
+		final IntSet empty = pool.intern( new int[0] );
+
+		assertNotSame( first, second );
+		assertFalse( first.id() == second.id() );
+		assertEquals( 0, empty.size() );
+		assertSame( empty, pool.intern( new int[0] ) );
+		assertEquals( 3, pool.size() );
+	}
+
+
+	@Test
+	public void valuesAreSortedWithoutDuplicates() {
+		final IntSetPool pool = new IntSetPool();
+		final int[] values = { 5, -1, 5, 0, 42, -1 };
+		final IntSet set = pool.intern( values );
+
+		assertArrayEquals( new int[] { -1, 0, 5, 42 }, set.toArray() );
+		assertEquals( 4, set.size() );
+		assertEquals( 42, set.get( 3 ) );
+		assertTrue( set.contains( 0 ) );
+		assertFalse( set.contains( 1 ) );
+
+		// Neither the given array nor the returned one are shared with the set.
+		assertArrayEquals( new int[] { 5, -1, 5, 0, 42, -1 }, values );
+		set.toArray()[0] = 100;
+		assertEquals( -1, set.get( 0 ) );
+	}
+
+
+	@Test
+	public void unusedSetsAreDroppedAndTheirIdsNotReused() throws InterruptedException {
+		final IntSetPool pool = new IntSetPool();
+		final int id = pool.intern( new int[] { 1, 2, 3 } ).id();
+
+		for ( int i = 0; i < 50 && pool.size() > 0; i++ ) {
+			System.gc();
+			Thread.sleep( 10 );
+		}
+
+		assertEquals( 0, pool.size() );
+		assertTrue( pool.intern( new int[] { 1, 2, 3 } ).id() > id );
+	}
+
+
+	@Test
+	public void threadsShareTheSameSets() throws InterruptedException {
+		final IntSetPool pool = new IntSetPool();
+		final IntSet[][] results = new IntSet[8][100];
+		final List<Thread> threads = new ArrayList<Thread>();
+
+		for ( int t = 0; t < results.length; t++ ) {
+			final IntSet[] result = results[t];
+			final Thread thread = new Thread() {
+				@Override
+				public void run() {
+					for ( int i = 0; i < result.length; i++ ) {
+						result[i] = pool.intern( new int[] { i % 10, i % 7 } );
+					}
+				}
+			};
+			threads.add( thread );
+			thread.start();
+		}
+		for ( final Thread thread : threads ) {
+			thread.join();
+		}
+
+		for ( int t = 1; t < results.length; t++ ) {
+			for ( int i = 0; i < results[t].length; i++ ) {
+				assertSame( results[0][i], results[t][i] );
+			}
+		}
+	}
+
+}
@@ -0,0 +1,76 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.utils.collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link LongList}.
+ */
+public class LongListTest {
+
+	@Test
+	public void growsAndKeepsDuplicates() {
+		final LongList list = new LongList( 1 );
+		for ( long i = 0; i < 1000; i++ ) {
+			list.add( i % 10 );
+		}
+
+		assertEquals( 1000, list.size() );
+		assertEquals( 9, list.get( 999 ) );
+		assertEquals( 1000, list.toArray().length );
+		assertEquals( Long.valueOf( 3 ), list.asList().get( 13 ) );
+	}
+
+
+	@Test
+	public void toArrayIsACopy() {
+		final LongList list = new LongList();
+		list.add( Long.MIN_VALUE );
+		list.add( Long.MAX_VALUE );
+
+		final long[] array = list.toArray();
+		array[0] = 0;
+
+		assertArrayEquals( new long[] { Long.MIN_VALUE, Long.MAX_VALUE }, list.toArray() );
+		assertEquals( Arrays.asList( Long.MIN_VALUE, Long.MAX_VALUE ), list.asList() );
+	}
+
+
+	@Test
+	public void canBeReusedAfterClear() {
+		final LongList list = new LongList();
+		list.add( 1 );
+		list.clear();
+
+		assertTrue( list.isEmpty() );
+		list.add( 2 );
+		assertArrayEquals( new long[] { 2 }, list.toArray() );
+	}
+
+
+	@Test( expected = IndexOutOfBoundsException.class )
+	public void getChecksTheSize() {
+		final LongList list = new LongList( 16 );
+		list.add( 1 );
+		list.get( 1 );
+	}
+
+}
@@ -0,0 +1,116 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.utils.collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link LongObjectMap}.
+ */
+public class LongObjectMapTest {
+
+	@Test
+	public void putReplacesAndReturnsTheOldValue() {
+		final LongObjectMap<String> map = new LongObjectMap<String>();
+		assertNull( map.put( 7, "a" ) );
+		assertEquals( "a", map.put( 7, "b" ) );
+
+		assertEquals( "b", map.get( 7 ) );
+		assertEquals( 1, map.size() );
+		assertNull( map.get( 8 ) );
+	}
+
+
+	@Test
+	public void nullValuesAreEntries() {
+		final LongObjectMap<String> map = new LongObjectMap<String>();
+		map.put( 1, null );
+
+		assertTrue( map.containsKey( 1 ) );
+		assertNull( map.get( 1 ) );
+		assertFalse( map.containsKey( 2 ) );
+	}
+
+
+	@Test
+	public void iteratesInTheOrderOfInsertion() {
+		final LongObjectMap<String> map = new LongObjectMap<String>( 1 );
+		map.put( 30, "thirty" );
+		map.put( -1, "minus one" );
+		map.put( 10, "ten" );
+		map.put( 30, "THIRTY" );
+
+		assertEquals( 3, map.size() );
+		assertEquals( 30, map.key( 0 ) );
+		assertEquals( "THIRTY", map.value( 0 ) );
+		assertEquals( -1, map.key( 1 ) );
+		assertEquals( "ten", map.value( 2 ) );
+	}
+
+
+	@Test( expected = IndexOutOfBoundsException.class )
+	public void valueChecksTheSize() {
+		final LongObjectMap<String> map = new LongObjectMap<String>( 16 );
+		map.put( 1, "one" );
+		map.value( 1 );
+	}
+
+
+	@Test
+	public void clearKeepsNoValues() {
+		final LongObjectMap<String> map = new LongObjectMap<String>();
+		for ( long i = 0; i < 100; i++ ) {
+			map.put( i, "value " + i );
+		}
+		map.clear();
+
+		assertTrue( map.isEmpty() );
+		assertNull( map.get( 5 ) );
+		map.put( 5, "five" );
+		assertEquals( 5, map.key( 0 ) );
+		assertEquals( "five", map.value( 0 ) );
+	}
+
+
+	@Test
+	public void growsLikeAHashMap() {
+		final Random random = new Random( 11 );
+		final LongObjectMap<Integer> map = new LongObjectMap<Integer>();
+		final Map<Long, Integer> expected = new LinkedHashMap<Long, Integer>();
+
+		for ( int i = 0; i < 100000; i++ ) {
+			final long key = random.nextInt( 30000 ) * 1000003L;
+			assertEquals( expected.put( key, i ), map.put( key, i ) );
+		}
+
+		assertEquals( expected.size(), map.size() );
+		int index = 0;
+		for ( final Map.Entry<Long, Integer> entry : expected.entrySet() ) {
+			assertEquals( entry.getKey().longValue(), map.key( index ) );
+			assertEquals( entry.getValue(), map.value( index ) );
+			assertEquals( entry.getValue(), map.get( entry.getKey() ) );
+			index++;
+		}
+	}
+
+}
@@ -0,0 +1,120 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.utils.collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link LongSet}.
+ */
+public class LongSetTest {
+
+	@Test
+	public void keepsTheOrderOfInsertion() {
+		final LongSet set = new LongSet();
+		assertTrue( set.add( 30 ) );
+		assertTrue( set.add( 10 ) );
+		assertTrue( set.add( 20 ) );
+		assertFalse( set.add( 10 ) );
+
+		assertArrayEquals( new long[] { 30, 10, 20 }, set.toArray() );
+		assertEquals( 1, set.indexOf( 10 ) );
+		assertEquals( -1, set.indexOf( 40 ) );
+		assertEquals( Arrays.asList( 30L, 10L, 20L ), set.asList() );
+		assertTrue( set.asList().contains( 20L ) );
+		assertFalse( set.asList().contains( "20" ) );
+	}
+
+
+	@Test
+	public void handlesExtremeAndCollidingValues() {
+		final LongSet set = new LongSet( 1 );
+		final long[] values = { 0, -1, Long.MIN_VALUE, Long.MAX_VALUE, 1L << 32, 1L << 33, 1L << 34, -( 1L << 32 ) };
+
+		for ( final long value : values ) {
+			assertTrue( set.add( value ) );
+		}
+		for ( final long value : values ) {
+			assertTrue( set.contains( value ) );
+			assertFalse( set.add( value ) );
+		}
+		assertEquals( values.length, set.size() );
+		assertFalse( set.contains( 1 ) );
+	}
+
+
+	@Test
+	public void addAllReportsChanges() {
+		final LongSet set = new LongSet();
+		assertTrue( set.addAll( Arrays.asList( 1L, 2L, 2L ) ) );
+		assertFalse( set.addAll( Arrays.asList( 2L, 1L ) ) );
+		assertEquals( 2, set.size() );
+	}
+
+
+	@Test
+	public void canBeReusedAfterClear() {
+		final LongSet set = new LongSet();
+		for ( long i = 0; i < 1000; i++ ) {
+			set.add( i );
+		}
+		set.clear();
+
+		assertTrue( set.isEmpty() );
+		assertFalse( set.contains( 5 ) );
+		assertTrue( set.add( 5 ) );
+		assertEquals( 0, set.indexOf( 5 ) );
+	}
+
+
+	@Test( expected = IndexOutOfBoundsException.class )
+	public void getChecksTheSize() {
+		final LongSet set = new LongSet( 16 );
+		set.add( 1 );
+		set.get( 1 );
+	}
+
+
+	@Test
+	public void growsLikeAHashSet() {
+		final Random random = new Random( 3 );
+		final LongSet set = new LongSet();
+		final Set<Long> expected = new LinkedHashSet<Long>();
+
+		for ( int i = 0; i < 100000; i++ ) {
+			// Sequential IDs and random ones, some of them twice.
+			final long value = i % 2 == 0 ? i / 4 : random.nextLong() % 50000;
+			assertEquals( expected.add( value ), set.add( value ) );
+		}
+
+		assertEquals( expected.size(), set.size() );
+		int index = 0;
+		for ( final long value : expected ) {
+			assertEquals( value, set.get( index ) );
+			assertEquals( index, set.indexOf( value ) );
+			index++;
+		}
+	}
+
+}
@@ -0,0 +1,155 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.utils.collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link StringArena}, in particular that handles stay valid when chunks are added, when the arena is
+ * compacted by copying and when its chunks are handed to a new arena.
+ */
+public class StringArenaTest {
+
+	@Test
+	public void handlesEncodeChunkAndOffset() {
+		final StringArena arena = new StringArena();
+
+		final long first = arena.add( "abc" );
+		final long second = arena.add( "defg" );
+		assertEquals( 0, first );
+		assertEquals( 4 + 3, second );
+
+		// Doesn't fit into the first chunk anymore.
+		final long large = arena.add( repeat( 'x', 100 * 1024 ) );
+		assertEquals( 1, large >>> 32 );
+		assertEquals( 0, (int) large );
+		assertEquals( 2, arena.chunkCount() );
+
+		assertEquals( "abc", arena.get( first ) );
+		assertEquals( "defg", arena.get( second ) );
+		assertEquals( 100 * 1024, arena.get( large ).length() );
+		assertEquals( 4 + 3 + 4 + 4 + 4 + 100 * 1024, arena.size() );
+	}
+
+
+	@Test
+	public void storesAnyString() {
+		final StringArena arena = new StringArena();
+		final String[] strings = { "", "plain", "Grüße", "日本語", "😀 emoji" };
+		final long[] handles = new long[strings.length];
+
+		for ( int i = 0; i < strings.length; i++ ) {
+			handles[i] = arena.add( strings[i] );
+		}
+		for ( int i = 0; i < strings.length; i++ ) {
+			assertEquals( strings[i], arena.get( handles[i] ) );
+		}
+	}
+
+
+	@Test
+	public void matchesComparesWithoutCreatingTheString() {
+		final StringArena arena = new StringArena();
+		final long handle = arena.add( "Grüße" );
+
+		assertTrue( arena.matches( handle, StringArena.encode( "Grüße" ) ) );
+		assertFalse( arena.matches( handle, StringArena.encode( "Grüsse" ) ) );
+		assertFalse( arena.matches( handle, StringArena.encode( "Grüßx" ) ) );
+		assertFalse( arena.matches( handle, StringArena.encode( "" ) ) );
+	}
+
+
+	@Test
+	public void compactionKeepsLiveStrings() {
+		final StringArena arena = new StringArena();
+		final List<Long> handles = new ArrayList<Long>();
+		for ( int i = 0; i < 50000; i++ ) {
+			handles.add( arena.add( "atom " + i ) );
+		}
+
+		long freed = 0;
+		for ( int i = 0; i < handles.size(); i += 2 ) {
+			arena.free( handles.get( i ) );
+			freed += 4 + ( "atom " + i ).length();
+		}
+		assertEquals( freed, arena.garbage() );
+
+		final StringArena compacted = new StringArena();
+		final List<Long> moved = new ArrayList<Long>();
+		for ( int i = 1; i < handles.size(); i += 2 ) {
+			moved.add( compacted.copy( arena, handles.get( i ) ) );
+		}
+
+		assertEquals( arena.size() - freed, compacted.size() );
+		assertEquals( 0, compacted.garbage() );
+		for ( int i = 1; i < handles.size(); i += 2 ) {
+			assertEquals( "atom " + i, compacted.get( moved.get( i / 2 ) ) );
+			// Readers still holding the old arena are not affected.
+			assertEquals( "atom " + i, arena.get( handles.get( i ) ) );
+		}
+
+		// Freed strings stay readable as well.
+		assertEquals( "atom 0", arena.get( handles.get( 0 ) ) );
+	}
+
+
+	@Test
+	public void adoptedChunksKeepTheirHandles() {
+		final StringArena arena = new StringArena();
+		final List<Long> handles = new ArrayList<Long>();
+		for ( int i = 0; i < 20000; i++ ) {
+			handles.add( arena.add( "string " + i ) );
+		}
+
+		// Like saving the chunks to a file and mapping them again.
+		final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+		for ( int i = 0; i < arena.chunkCount(); i++ ) {
+			final ByteBuffer chunk = arena.chunk( i );
+			final ByteBuffer copy = ByteBuffer.allocate( chunk.remaining() );
+			copy.put( chunk );
+			copy.flip();
+			chunks.add( copy );
+		}
+
+		final StringArena adopted = new StringArena( chunks );
+		assertEquals( arena.size(), adopted.size() );
+		for ( int i = 0; i < handles.size(); i++ ) {
+			assertEquals( "string " + i, adopted.get( handles.get( i ) ) );
+		}
+
+		// New strings go to a new chunk and don't touch the adopted ones.
+		final long added = adopted.add( "new" );
+		assertEquals( chunks.size(), added >>> 32 );
+		assertEquals( "new", adopted.get( added ) );
+		assertEquals( "string 0", adopted.get( handles.get( 0 ) ) );
+	}
+
+
+	private static String repeat( final char c, final int count ) {
+		final StringBuilder builder = new StringBuilder( count );
+		for ( int i = 0; i < count; i++ ) {
+			builder.append( c );
+		}
+		return builder.toString();
+	}
+
+}
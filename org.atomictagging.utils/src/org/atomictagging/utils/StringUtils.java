@@ -16,6 +16,8 @@ package org.atomictagging.utils;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.apache.commons.codec.digest.DigestUtils;
+
 /**
  * Some helper methods for handling strings
  * 
@@ -94,4 +96,15 @@ public class StringUtils {
 
 		return list;
 	}
+
+
+	/**
+	 * Calculates the SHA-1 hash sum of the UTF-8 representation of a string.
+	 * 
+	 * @param string
+	 * @return The hash sum as 40 hexadecimal characters
+	 */
+	public static String getHashSum( final String string ) {
+		return DigestUtils.shaHex( org.apache.commons.codec.binary.StringUtils.getBytesUtf8( string ) );
+	}
 }
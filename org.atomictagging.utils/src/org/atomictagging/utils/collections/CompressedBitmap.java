@@ -0,0 +1,903 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.utils.collections;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A compressed set of non-negative integers, organized like a Roaring bitmap.
+ * <p>
+ * The value range is split into chunks of 2^16 values by the upper 16 bits of a value. Every chunk that contains at
+ * least one value is stored in a container that fits its content best:
+ * </p>
+ * <ul>
+ * <li>A sorted array of the lower 16 bits for sparse chunks (up to {@value #MAX_ARRAY} values)</li>
+ * <li>A plain bitmap of 2^16 bits for dense chunks</li>
+ * <li>A list of runs of consecutive values, created by {@link #runOptimize()} where this is the smallest variant</li>
+ * </ul>
+ * <p>
+ * Instances are not thread safe. The set operations {@link #and(CompressedBitmap)}, {@link #or(CompressedBitmap)} and
+ * {@link #andNot(CompressedBitmap)} leave their operands untouched and return a new bitmap.
+ * </p>
+ */
+public class CompressedBitmap {
+
+	/**
+	 * The maximum number of values an array container holds before it is converted into a bitmap container.
+	 */
+	public static final int	MAX_ARRAY	= 4096;
+
+	private char[]			keys		= new char[4];
+	private Container[]		containers	= new Container[4];
+	private int				size		= 0;
+
+	/**
+	 * Iterator over the values of a bitmap in ascending order that doesn't box the values.
+	 */
+	public interface IntIterator {
+
+		/**
+		 * @return Whether there are more values
+		 */
+		boolean hasNext();
+
+
+		/**
+		 * @return The next value
+		 * @throws NoSuchElementException
+		 *             If there are no more values
+		 */
+		int next();
+	}
+
+
+	/**
+	 * Adds a value to the bitmap.
+	 * 
+	 * @param value
+	 *            A number greater or equal 0
+	 */
+	public void add( final int value ) {
+		if ( value < 0 ) {
+			throw new IllegalArgumentException( "Only non-negative values can be stored in a bitmap." );
+		}
+
+		final char key = high( value );
+		final int index = indexOf( key );
+
+		if ( index >= 0 ) {
+			containers[index] = containers[index].add( low( value ) );
+		} else {
+			insert( -index - 1, key, new ArrayContainer().add( low( value ) ) );
+		}
+	}
+
+
+	/**
+	 * Removes a value from the bitmap. Nothing happens if the value is not part of the bitmap.
+	 * 
+	 * @param value
+	 */
+	public void remove( final int value ) {
+		if ( value < 0 ) {
+			return;
+		}
+
+		final int index = indexOf( high( value ) );
+		if ( index < 0 ) {
+			return;
+		}
+
+		final Container container = containers[index].remove( low( value ) );
+		if ( container.cardinality() == 0 ) {
+			removeAt( index );
+		} else {
+			containers[index] = container;
+		}
+	}
+
+
+	/**
+	 * @param value
+	 * @return Whether the value is part of the bitmap
+	 */
+	public boolean contains( final int value ) {
+		if ( value < 0 ) {
+			return false;
+		}
+
+		final int index = indexOf( high( value ) );
+		return index >= 0 && containers[index].contains( low( value ) );
+	}
+
+
+	/**
+	 * @return The number of values in the bitmap
+	 */
+	public int cardinality() {
+		int cardinality = 0;
+		for ( int i = 0; i < size; i++ ) {
+			cardinality += containers[i].cardinality();
+		}
+		return cardinality;
+	}
+
+
+	/**
+	 * @return Whether the bitmap contains no values at all
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+
+	/**
+	 * Removes all values from the bitmap.
+	 */
+	public void clear() {
+		keys = new char[4];
+		containers = new Container[4];
+		size = 0;
+	}
+
+
+	/**
+	 * @param other
+	 * @return A new bitmap holding all values that are part of this and the other bitmap
+	 */
+	public CompressedBitmap and( final CompressedBitmap other ) {
+		final CompressedBitmap result = new CompressedBitmap();
+		int i = 0;
+		int j = 0;
+
+		while ( i < size && j < other.size ) {
+			if ( keys[i] < other.keys[j] ) {
+				i++;
+			} else if ( keys[i] > other.keys[j] ) {
+				j++;
+			} else {
+				final Container container = and( containers[i], other.containers[j] );
+				if ( container.cardinality() > 0 ) {
+					result.append( keys[i], container );
+				}
+				i++;
+				j++;
+			}
+		}
+
+		return result;
+	}
+
+
+	/**
+	 * @param other
+	 * @return A new bitmap holding all values that are part of this or the other bitmap
+	 */
+	public CompressedBitmap or( final CompressedBitmap other ) {
+		final CompressedBitmap result = new CompressedBitmap();
+		int i = 0;
+		int j = 0;
+
+		while ( i < size || j < other.size ) {
+			if ( j == other.size || ( i < size && keys[i] < other.keys[j] ) ) {
+				result.append( keys[i], containers[i].copy() );
+				i++;
+			} else if ( i == size || keys[i] > other.keys[j] ) {
+				result.append( other.keys[j], other.containers[j].copy() );
+				j++;
+			} else {
+				result.append( keys[i], or( containers[i], other.containers[j] ) );
+				i++;
+				j++;
+			}
+		}
+
+		return result;
+	}
+
+
+	/**
+	 * @param other
+	 * @return A new bitmap holding all values of this bitmap that are not part of the other bitmap
+	 */
+	public CompressedBitmap andNot( final CompressedBitmap other ) {
+		final CompressedBitmap result = new CompressedBitmap();
+		int j = 0;
+
+		for ( int i = 0; i < size; i++ ) {
+			while ( j < other.size && other.keys[j] < keys[i] ) {
+				j++;
+			}
+
+			if ( j < other.size && other.keys[j] == keys[i] ) {
+				final Container container = andNot( containers[i], other.containers[j] );
+				if ( container.cardinality() > 0 ) {
+					result.append( keys[i], container );
+				}
+			} else {
+				result.append( keys[i], containers[i].copy() );
+			}
+		}
+
+		return result;
+	}
+
+
+	/**
+	 * Converts every container into the representation that takes the least memory, including run containers. Worth
+	 * calling after many values have been added, e.g. after a bitmap was built initially.
+	 */
+	public void runOptimize() {
+		for ( int i = 0; i < size; i++ ) {
+			containers[i] = containers[i].optimize();
+		}
+	}
+
+
+	/**
+	 * @return An independent copy of this bitmap
+	 */
+	public CompressedBitmap copy() {
+		final CompressedBitmap copy = new CompressedBitmap();
+		copy.keys = Arrays.copyOf( keys, Math.max( 4, size ) );
+		copy.containers = new Container[copy.keys.length];
+		for ( int i = 0; i < size; i++ ) {
+			copy.containers[i] = containers[i].copy();
+		}
+		copy.size = size;
+		return copy;
+	}
+
+
+	/**
+	 * @return An iterator over all values in ascending order
+	 */
+	public IntIterator iterator() {
+		return iterator( 0 );
+	}
+
+
+	/**
+	 * @param from
+	 *            The smallest value to return
+	 * @return An iterator over all values greater or equal the given value in ascending order
+	 */
+	public IntIterator iterator( final int from ) {
+		return new BitmapIterator( Math.max( 0, from ) );
+	}
+
+
+	/**
+	 * @return All values in ascending order
+	 */
+	public int[] toArray() {
+		final int[] values = new int[cardinality()];
+		final IntIterator iterator = iterator();
+		for ( int i = 0; i < values.length; i++ ) {
+			values[i] = iterator.next();
+		}
+		return values;
+	}
+
+
+	@Override
+	public String toString() {
+		final StringBuilder builder = new StringBuilder( "{" );
+		final IntIterator iterator = iterator();
+		while ( iterator.hasNext() ) {
+			builder.append( iterator.next() );
+			if ( iterator.hasNext() ) {
+				builder.append( ", " );
+			}
+		}
+		return builder.append( "}" ).toString();
+	}
+
+
+	private static char high( final int value ) {
+		return (char) ( value >>> 16 );
+	}
+
+
+	private static char low( final int value ) {
+		return (char) value;
+	}
+
+
+	private int indexOf( final char key ) {
+		// Appending in ascending order is by far the most common case.
+		if ( size > 0 && keys[size - 1] == key ) {
+			return size - 1;
+		}
+		return Arrays.binarySearch( keys, 0, size, key );
+	}
+
+
+	private void insert( final int index, final char key, final Container container ) {
+		if ( size == keys.length ) {
+			keys = Arrays.copyOf( keys, size * 2 );
+			containers = Arrays.copyOf( containers, size * 2 );
+		}
+
+		System.arraycopy( keys, index, keys, index + 1, size - index );
+		System.arraycopy( containers, index, containers, index + 1, size - index );
+		keys[index] = key;
+		containers[index] = container;
+		size++;
+	}
+
+
+	private void append( final char key, final Container container ) {
+		insert( size, key, container );
+	}
+
+
+	private void removeAt( final int index ) {
+		System.arraycopy( keys, index + 1, keys, index, size - index - 1 );
+		System.arraycopy( containers, index + 1, containers, index, size - index - 1 );
+		containers[--size] = null;
+	}
+
+
+	private static Container and( final Container a, final Container b ) {
+		if ( a instanceof ArrayContainer ) {
+			return ( (ArrayContainer) a ).filter( b, true );
+		}
+		if ( b instanceof ArrayContainer ) {
+			return ( (ArrayContainer) b ).filter( a, true );
+		}
+
+		final long[] x = a.toBitmap().words;
+		final long[] y = b.toBitmap().words;
+		final long[] words = new long[BitmapContainer.WORDS];
+		for ( int i = 0; i < words.length; i++ ) {
+			words[i] = x[i] & y[i];
+		}
+		return new BitmapContainer( words ).shrink();
+	}
+
+
+	private static Container or( final Container a, final Container b ) {
+		if ( a instanceof ArrayContainer && b instanceof ArrayContainer
+				&& a.cardinality() + b.cardinality() <= MAX_ARRAY ) {
+			return ( (ArrayContainer) a ).merge( (ArrayContainer) b );
+		}
+
+		final long[] x = a.toBitmap().words;
+		final long[] y = b.toBitmap().words;
+		final long[] words = new long[BitmapContainer.WORDS];
+		for ( int i = 0; i < words.length; i++ ) {
+			words[i] = x[i] | y[i];
+		}
+		return new BitmapContainer( words ).shrink();
+	}
+
+
+	private static Container andNot( final Container a, final Container b ) {
+		if ( a instanceof ArrayContainer ) {
+			return ( (ArrayContainer) a ).filter( b, false );
+		}
+
+		final long[] x = a.toBitmap().words;
+		final long[] y = b.toBitmap().words;
+		final long[] words = new long[BitmapContainer.WORDS];
+		for ( int i = 0; i < words.length; i++ ) {
+			words[i] = x[i] & ~y[i];
+		}
+		return new BitmapContainer( words ).shrink();
+	}
+
+	/**
+	 * Iterates all containers one after another.
+	 */
+	private class BitmapIterator implements IntIterator {
+		private int	index;
+		private int	next	= -1;
+
+
+		BitmapIterator( final int from ) {
+			index = Arrays.binarySearch( keys, 0, size, high( from ) );
+
+			if ( index >= 0 ) {
+				advance( low( from ) );
+			} else {
+				index = -index - 1;
+				advance( 0 );
+			}
+		}
+
+
+		@Override
+		public boolean hasNext() {
+			return next >= 0;
+		}
+
+
+		@Override
+		public int next() {
+			if ( next < 0 ) {
+				throw new NoSuchElementException();
+			}
+
+			final int value = next;
+			final int nextLow = low( value ) + 1;
+
+			if ( nextLow > Character.MAX_VALUE ) {
+				index++;
+				advance( 0 );
+			} else {
+				advance( nextLow );
+			}
+
+			return value;
+		}
+
+
+		private void advance( final int fromLow ) {
+			int from = fromLow;
+
+			while ( index < size ) {
+				final int value = containers[index].nextValue( from );
+				if ( value >= 0 ) {
+					next = ( keys[index] << 16 ) | value;
+					return;
+				}
+				index++;
+				from = 0;
+			}
+
+			next = -1;
+		}
+	}
+
+	/**
+	 * The values of one chunk of 2^16 values, addressed by their lower 16 bits.
+	 */
+	private static abstract class Container {
+
+		/**
+		 * Adds a value. Returns the container that holds the values afterwards, which might be a new one.
+		 */
+		abstract Container add( char value );
+
+
+		/**
+		 * Removes a value. Returns the container that holds the values afterwards, which might be a new one.
+		 */
+		abstract Container remove( char value );
+
+
+		abstract boolean contains( char value );
+
+
+		abstract int cardinality();
+
+
+		/**
+		 * Returns the smallest value greater or equal the given one or -1 if there is none.
+		 */
+		abstract int nextValue( int from );
+
+
+		/**
+		 * Returns the values as a bitmap container. Callers must not modify the result.
+		 */
+		abstract BitmapContainer toBitmap();
+
+
+		abstract Container copy();
+
+
+		/**
+		 * Returns the representation of the values that takes the least memory.
+		 */
+		Container optimize() {
+			final int cardinality = cardinality();
+			int runs = 0;
+			int last = -2;
+
+			for ( int value = nextValue( 0 ); value >= 0; value = nextValue( value + 1 ) ) {
+				if ( value != last + 1 ) {
+					runs++;
+				}
+				last = value;
+			}
+
+			// Sizes in chars: two per run, one per array value, 4096 for a bitmap.
+			final int runSize = 2 * runs;
+			final int otherSize = Math.min( cardinality, BitmapContainer.WORDS * 4 );
+
+			if ( runSize < otherSize ) {
+				return RunContainer.of( this, runs );
+			}
+			if ( cardinality <= MAX_ARRAY ) {
+				return ArrayContainer.of( this, cardinality );
+			}
+			return toBitmap();
+		}
+	}
+
+	/**
+	 * Sorted array of values for sparse chunks.
+	 */
+	private static class ArrayContainer extends Container {
+		private char[]	values;
+		private int		cardinality;
+
+
+		ArrayContainer() {
+			this( new char[4], 0 );
+		}
+
+
+		ArrayContainer( final char[] values, final int cardinality ) {
+			this.values = values;
+			this.cardinality = cardinality;
+		}
+
+
+		static ArrayContainer of( final Container container, final int cardinality ) {
+			final char[] values = new char[Math.max( 4, cardinality )];
+			int i = 0;
+			for ( int value = container.nextValue( 0 ); value >= 0; value = container.nextValue( value + 1 ) ) {
+				values[i++] = (char) value;
+			}
+			return new ArrayContainer( values, cardinality );
+		}
+
+
+		@Override
+		Container add( final char value ) {
+			// Appending in ascending order is by far the most common case.
+			int index = cardinality > 0 && values[cardinality - 1] < value ? -cardinality - 1 : Arrays.binarySearch(
+					values, 0, cardinality, value );
+			if ( index >= 0 ) {
+				return this;
+			}
+
+			if ( cardinality == MAX_ARRAY ) {
+				return toBitmap().add( value );
+			}
+
+			if ( cardinality == values.length ) {
+				values = Arrays.copyOf( values, Math.min( MAX_ARRAY, cardinality * 2 ) );
+			}
+
+			index = -index - 1;
+			System.arraycopy( values, index, values, index + 1, cardinality - index );
+			values[index] = value;
+			cardinality++;
+			return this;
+		}
+
+
+		@Override
+		Container remove( final char value ) {
+			final int index = Arrays.binarySearch( values, 0, cardinality, value );
+			if ( index >= 0 ) {
+				System.arraycopy( values, index + 1, values, index, cardinality - index - 1 );
+				cardinality--;
+			}
+			return this;
+		}
+
+
+		@Override
+		boolean contains( final char value ) {
+			return Arrays.binarySearch( values, 0, cardinality, value ) >= 0;
+		}
+
+
+		@Override
+		int cardinality() {
+			return cardinality;
+		}
+
+
+		@Override
+		int nextValue( final int from ) {
+			if ( from > Character.MAX_VALUE ) {
+				return -1;
+			}
+
+			int index = Arrays.binarySearch( values, 0, cardinality, (char) from );
+			if ( index < 0 ) {
+				index = -index - 1;
+			}
+			return index < cardinality ? values[index] : -1;
+		}
+
+
+		@Override
+		BitmapContainer toBitmap() {
+			final BitmapContainer bitmap = new BitmapContainer( new long[BitmapContainer.WORDS] );
+			for ( int i = 0; i < cardinality; i++ ) {
+				bitmap.add( values[i] );
+			}
+			return bitmap;
+		}
+
+
+		@Override
+		Container copy() {
+			return new ArrayContainer( Arrays.copyOf( values, Math.max( 4, cardinality ) ), cardinality );
+		}
+
+
+		/**
+		 * Returns the values that are (keep = true) or are not (keep = false) part of the other container.
+		 */
+		ArrayContainer filter( final Container other, final boolean keep ) {
+			final char[] result = new char[Math.max( 4, cardinality )];
+			int count = 0;
+
+			for ( int i = 0; i < cardinality; i++ ) {
+				if ( other.contains( values[i] ) == keep ) {
+					result[count++] = values[i];
+				}
+			}
+
+			return new ArrayContainer( result, count );
+		}
+
+
+		ArrayContainer merge( final ArrayContainer other ) {
+			final char[] result = new char[Math.max( 4, cardinality + other.cardinality )];
+			int i = 0;
+			int j = 0;
+			int count = 0;
+
+			while ( i < cardinality || j < other.cardinality ) {
+				if ( j == other.cardinality || ( i < cardinality && values[i] < other.values[j] ) ) {
+					result[count++] = values[i++];
+				} else if ( i == cardinality || values[i] > other.values[j] ) {
+					result[count++] = other.values[j++];
+				} else {
+					result[count++] = values[i++];
+					j++;
+				}
+			}
+
+			return new ArrayContainer( result, count );
+		}
+	}
+
+	/**
+	 * Plain bitmap for dense chunks.
+	 */
+	private static class BitmapContainer extends Container {
+		static final int	WORDS	= 1024;
+
+		private final long[]	words;
+		private int				cardinality;
+
+
+		BitmapContainer( final long[] words ) {
+			this.words = words;
+			for ( final long word : words ) {
+				cardinality += Long.bitCount( word );
+			}
+		}
+
+
+		@Override
+		Container add( final char value ) {
+			final long bit = 1L << value;
+			if ( ( words[value >>> 6] & bit ) == 0 ) {
+				words[value >>> 6] |= bit;
+				cardinality++;
+			}
+			return this;
+		}
+
+
+		@Override
+		Container remove( final char value ) {
+			final long bit = 1L << value;
+			if ( ( words[value >>> 6] & bit ) != 0 ) {
+				words[value >>> 6] &= ~bit;
+				cardinality--;
+			}
+			return shrink();
+		}
+
+
+		@Override
+		boolean contains( final char value ) {
+			return ( words[value >>> 6] & ( 1L << value ) ) != 0;
+		}
+
+
+		@Override
+		int cardinality() {
+			return cardinality;
+		}
+
+
+		@Override
+		int nextValue( final int from ) {
+			if ( from > Character.MAX_VALUE ) {
+				return -1;
+			}
+
+			int index = from >>> 6;
+			long word = words[index] & ( -1L << from );
+
+			while ( true ) {
+				if ( word != 0 ) {
+					return index * 64 + Long.numberOfTrailingZeros( word );
+				}
+				if ( ++index == WORDS ) {
+					return -1;
+				}
+				word = words[index];
+			}
+		}
+
+
+		@Override
+		BitmapContainer toBitmap() {
+			return this;
+		}
+
+
+		@Override
+		Container copy() {
+			return new BitmapContainer( words.clone() );
+		}
+
+
+		/**
+		 * Returns an array container if there are few enough values, this container otherwise.
+		 */
+		Container shrink() {
+			if ( cardinality <= MAX_ARRAY ) {
+				return ArrayContainer.of( this, cardinality );
+			}
+			return this;
+		}
+	}
+
+	/**
+	 * Runs of consecutive values. Only created by {@link CompressedBitmap#runOptimize()} and converted back into one of
+	 * the other containers on modification.
+	 */
+	private static class RunContainer extends Container {
+		private final char[]	starts;
+		private final char[]	ends;
+		private final int		cardinality;
+
+
+		RunContainer( final char[] starts, final char[] ends ) {
+			this.starts = starts;
+			this.ends = ends;
+
+			int count = 0;
+			for ( int i = 0; i < starts.length; i++ ) {
+				count += ends[i] - starts[i] + 1;
+			}
+			cardinality = count;
+		}
+
+
+		static RunContainer of( final Container container, final int runs ) {
+			final char[] starts = new char[runs];
+			final char[] ends = new char[runs];
+			int run = -1;
+			int last = -2;
+
+			for ( int value = container.nextValue( 0 ); value >= 0; value = container.nextValue( value + 1 ) ) {
+				if ( value != last + 1 ) {
+					starts[++run] = (char) value;
+				}
+				ends[run] = (char) value;
+				last = value;
+			}
+
+			return new RunContainer( starts, ends );
+		}
+
+
+		@Override
+		Container add( final char value ) {
+			if ( contains( value ) ) {
+				return this;
+			}
+			return mutable().add( value );
+		}
+
+
+		@Override
+		Container remove( final char value ) {
+			if ( !contains( value ) ) {
+				return this;
+			}
+			return mutable().remove( value );
+		}
+
+
+		@Override
+		boolean contains( final char value ) {
+			final int run = runOf( value );
+			return run >= 0 && value <= ends[run];
+		}
+
+
+		@Override
+		int cardinality() {
+			return cardinality;
+		}
+
+
+		@Override
+		int nextValue( final int from ) {
+			if ( from > Character.MAX_VALUE ) {
+				return -1;
+			}
+
+			final int run = runOf( (char) from );
+			if ( run >= 0 && from <= ends[run] ) {
+				return from;
+			}
+			return run + 1 < starts.length ? starts[run + 1] : -1;
+		}
+
+
+		@Override
+		BitmapContainer toBitmap() {
+			final long[] words = new long[BitmapContainer.WORDS];
+			for ( int i = 0; i < starts.length; i++ ) {
+				for ( int value = starts[i]; value <= ends[i]; value++ ) {
+					words[value >>> 6] |= 1L << value;
+				}
+			}
+			return new BitmapContainer( words );
+		}
+
+
+		@Override
+		Container copy() {
+			// Run containers are never modified in place.
+			return this;
+		}
+
+
+		@Override
+		Container optimize() {
+			return this;
+		}
+
+
+		private Container mutable() {
+			if ( cardinality < MAX_ARRAY ) {
+				return ArrayContainer.of( this, cardinality );
+			}
+			return toBitmap();
+		}
+
+
+		/**
+		 * Returns the index of the last run starting at or before the given value or -1 if there is none.
+		 */
+		private int runOf( final char value ) {
+			int index = Arrays.binarySearch( starts, value );
+			if ( index < 0 ) {
+				index = -index - 2;
+			}
+			return index;
+		}
+	}
+
+}
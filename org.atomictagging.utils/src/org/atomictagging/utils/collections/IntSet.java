@@ -0,0 +1,103 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.utils.collections;
+
+import java.util.Arrays;
+
+/**
+ * An immutable sorted set of ints without duplicates, e.g. the IDs of the tags of a molecule. Sets are created by an
+ * {@link IntSetPool}, which hands out one instance per distinct content. Thus sets of the same pool are equal exactly
+ * if they are the same instance, i.e. if their IDs are equal.
+ */
+public final class IntSet {
+
+	private final int	id;
+	private final int[]	values;
+
+
+	IntSet( final int id, final int[] values ) {
+		this.id = id;
+		this.values = values;
+	}
+
+
+	/**
+	 * @return The ID of the set, unique within its pool
+	 */
+	public int id() {
+		return id;
+	}
+
+
+	/**
+	 * @return The number of values
+	 */
+	public int size() {
+		return values.length;
+	}
+
+
+	/**
+	 * @param index
+	 * @return The value at the index in ascending order
+	 */
+	public int get( final int index ) {
+		return values[index];
+	}
+
+
+	/**
+	 * @param value
+	 * @return True if the set contains the value
+	 */
+	public boolean contains( final int value ) {
+		return Arrays.binarySearch( values, value ) >= 0;
+	}
+
+
+	/**
+	 * @return The values in ascending order as a new array
+	 */
+	public int[] toArray() {
+		return values.clone();
+	}
+
+
+	/**
+	 * Compares the values, which only the pool needs. Sets taken from the same pool can be compared by their IDs.
+	 */
+	@Override
+	public boolean equals( final Object obj ) {
+		if ( this == obj ) {
+			return true;
+		}
+		if ( obj == null || getClass() != obj.getClass() ) {
+			return false;
+		}
+		return Arrays.equals( values, ( (IntSet) obj ).values );
+	}
+
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode( values );
+	}
+
+
+	@Override
+	public String toString() {
+		return Arrays.toString( values );
+	}
+
+}
@@ -0,0 +1,76 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.utils.collections;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Interns sets of ints: every distinct set is kept once and shared by everybody who asks for it. Worth it if there are
+ * many objects but few distinct sets among them, e.g. the tags of molecules or the types of atoms.
+ * <p>
+ * Sets nobody refers to anymore are dropped by the garbage collector. Their IDs are not reused. The pool may be used
+ * by any number of threads.
+ * </p>
+ */
+public final class IntSetPool {
+
+	private final Map<IntSet, WeakReference<IntSet>>	sets	= new WeakHashMap<IntSet, WeakReference<IntSet>>();
+	private int											nextId	= 0;
+
+
+	/**
+	 * @param values
+	 *            The values of the set in any order, duplicates are dropped. The array is not changed.
+	 * @return The shared set with exactly these values
+	 */
+	public IntSet intern( final int[] values ) {
+		final int[] sorted = values.clone();
+		Arrays.sort( sorted );
+
+		int length = 0;
+		for ( int i = 0; i < sorted.length; i++ ) {
+			if ( i == 0 || sorted[i] != sorted[i - 1] ) {
+				sorted[length++] = sorted[i];
+			}
+		}
+
+		return lookup( length == sorted.length ? sorted : Arrays.copyOf( sorted, length ) );
+	}
+
+
+	/**
+	 * @return The number of distinct sets in use
+	 */
+	public synchronized int size() {
+		return sets.size();
+	}
+
+
+	private synchronized IntSet lookup( final int[] sorted ) {
+		final IntSet candidate = new IntSet( nextId, sorted );
+		final WeakReference<IntSet> existing = sets.get( candidate );
+		final IntSet set = existing == null ? null : existing.get();
+		if ( set != null ) {
+			return set;
+		}
+
+		nextId++;
+		sets.put( candidate, new WeakReference<IntSet>( candidate ) );
+		return candidate;
+	}
+
+}
@@ -0,0 +1,130 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.utils.collections;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A growable list of longs, e.g. IDs, that stores its elements in a plain array instead of boxing each of them.
+ */
+public final class LongList {
+
+	private long[]	values;
+	private int		size	= 0;
+
+
+	/**
+	 * Creates an empty list.
+	 */
+	public LongList() {
+		this( 16 );
+	}
+
+
+	/**
+	 * Creates an empty list with room for the given number of elements.
+	 * 
+	 * @param capacity
+	 */
+	public LongList( final int capacity ) {
+		values = new long[Math.max( 1, capacity )];
+	}
+
+
+	/**
+	 * @param value
+	 */
+	public void add( final long value ) {
+		if ( size == values.length ) {
+			values = Arrays.copyOf( values, size * 2 );
+		}
+		values[size++] = value;
+	}
+
+
+	/**
+	 * @param index
+	 * @return The element at the index
+	 */
+	public long get( final int index ) {
+		if ( index >= size ) {
+			throw new IndexOutOfBoundsException( "Index: " + index + ", size: " + size );
+		}
+		return values[index];
+	}
+
+
+	/**
+	 * @return The number of elements
+	 */
+	public int size() {
+		return size;
+	}
+
+
+	/**
+	 * @return True if the list has no elements
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+
+	/**
+	 * Removes all elements but keeps the array, so the list can be refilled without allocating.
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+
+	/**
+	 * @return The elements as a new array
+	 */
+	public long[] toArray() {
+		return Arrays.copyOf( values, size );
+	}
+
+
+	/**
+	 * Wraps the list for APIs that take collections. Elements are boxed on every access, so the view should only be
+	 * handed over, not used for lookups.
+	 * 
+	 * @return An unmodifiable view of the list that reflects later changes
+	 */
+	public List<Long> asList() {
+		return new AbstractList<Long>() {
+
+			@Override
+			public Long get( final int index ) {
+				return LongList.this.get( index );
+			}
+
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+
+	@Override
+	public String toString() {
+		return Arrays.toString( toArray() );
+	}
+
+}
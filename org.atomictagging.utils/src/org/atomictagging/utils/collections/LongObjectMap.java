@@ -0,0 +1,140 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.utils.collections;
+
+import java.util.Arrays;
+
+/**
+ * A map from longs, e.g. IDs, to objects that keeps its entries in the order they were added.
+ * <p>
+ * The keys are held by a {@link LongSet}, the values by an array in the same order, so keys are not boxed and no entry
+ * objects are allocated. Like the set, the map doesn't support removing single entries.
+ * </p>
+ * 
+ * @param <V>
+ *            Type of the values
+ */
+public final class LongObjectMap<V> {
+
+	private final LongSet	keys;
+	private Object[]		values;
+
+
+	/**
+	 * Creates an empty map.
+	 */
+	public LongObjectMap() {
+		this( 16 );
+	}
+
+
+	/**
+	 * Creates an empty map with room for the given number of entries.
+	 * 
+	 * @param capacity
+	 */
+	public LongObjectMap( final int capacity ) {
+		keys = new LongSet( capacity );
+		values = new Object[Math.max( 1, capacity )];
+	}
+
+
+	/**
+	 * @param key
+	 * @param value
+	 * @return The value previously mapped to the key or null if there was none
+	 */
+	public V put( final long key, final V value ) {
+		final int index = keys.indexOf( key );
+		if ( index >= 0 ) {
+			final V old = value( index );
+			values[index] = value;
+			return old;
+		}
+
+		keys.add( key );
+		if ( keys.size() > values.length ) {
+			values = Arrays.copyOf( values, values.length * 2 );
+		}
+		values[keys.size() - 1] = value;
+		return null;
+	}
+
+
+	/**
+	 * @param key
+	 * @return The value mapped to the key or null if there is none
+	 */
+	public V get( final long key ) {
+		final int index = keys.indexOf( key );
+		return index < 0 ? null : value( index );
+	}
+
+
+	/**
+	 * @param key
+	 * @return True if the map has an entry for the key
+	 */
+	public boolean containsKey( final long key ) {
+		return keys.contains( key );
+	}
+
+
+	/**
+	 * @return The number of entries
+	 */
+	public int size() {
+		return keys.size();
+	}
+
+
+	/**
+	 * @return True if the map has no entries
+	 */
+	public boolean isEmpty() {
+		return keys.isEmpty();
+	}
+
+
+	/**
+	 * @param index
+	 * @return The key of the entry at the position in the order of insertion
+	 */
+	public long key( final int index ) {
+		return keys.get( index );
+	}
+
+
+	/**
+	 * @param index
+	 * @return The value of the entry at the position in the order of insertion
+	 */
+	@SuppressWarnings( "unchecked" )
+	public V value( final int index ) {
+		if ( index >= keys.size() ) {
+			throw new IndexOutOfBoundsException( "Index: " + index + ", size: " + keys.size() );
+		}
+		return (V) values[index];
+	}
+
+
+	/**
+	 * Removes all entries but keeps the arrays, so the map can be refilled without allocating.
+	 */
+	public void clear() {
+		Arrays.fill( values, 0, keys.size(), null );
+		keys.clear();
+	}
+
+}
@@ -0,0 +1,228 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.utils.collections;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A set of longs, e.g. IDs, that keeps its elements in the order they were added.
+ * <p>
+ * The elements are stored in a plain array in that order. A hash table of ints with open addressing points into it, so
+ * neither the elements nor the table entries are boxed. Elements can't be removed one by one, which keeps the array
+ * dense and the probing simple. Sets that need to shrink are rebuilt or cleared.
+ * </p>
+ */
+public final class LongSet {
+
+	private long[]	values;
+	private int		size	= 0;
+
+	/**
+	 * Index of the element plus one per slot, 0 marks an empty slot. At most half of the slots are used.
+	 */
+	private int[]	table;
+
+
+	/**
+	 * Creates an empty set.
+	 */
+	public LongSet() {
+		this( 16 );
+	}
+
+
+	/**
+	 * Creates an empty set with room for the given number of elements.
+	 * 
+	 * @param capacity
+	 */
+	public LongSet( final int capacity ) {
+		values = new long[Math.max( 1, capacity )];
+		table = new int[tableSize( values.length )];
+	}
+
+
+	/**
+	 * @param value
+	 * @return True if the value was not in the set before
+	 */
+	public boolean add( final long value ) {
+		int slot = slot( value );
+		while ( table[slot] != 0 ) {
+			if ( values[table[slot] - 1] == value ) {
+				return false;
+			}
+			slot = slot + 1 & table.length - 1;
+		}
+
+		if ( size == values.length ) {
+			grow();
+			slot = slot( value );
+			while ( table[slot] != 0 ) {
+				slot = slot + 1 & table.length - 1;
+			}
+		}
+
+		values[size++] = value;
+		table[slot] = size;
+		return true;
+	}
+
+
+	/**
+	 * @param values
+	 * @return True if at least one of the values was not in the set before
+	 */
+	public boolean addAll( final Collection<Long> values ) {
+		boolean changed = false;
+		for ( final long value : values ) {
+			changed |= add( value );
+		}
+		return changed;
+	}
+
+
+	/**
+	 * @param value
+	 * @return True if the value is in the set
+	 */
+	public boolean contains( final long value ) {
+		return indexOf( value ) >= 0;
+	}
+
+
+	/**
+	 * @param value
+	 * @return The position of the value in the order of insertion or -1 if it is not in the set
+	 */
+	public int indexOf( final long value ) {
+		for ( int slot = slot( value ); table[slot] != 0; slot = slot + 1 & table.length - 1 ) {
+			if ( values[table[slot] - 1] == value ) {
+				return table[slot] - 1;
+			}
+		}
+		return -1;
+	}
+
+
+	/**
+	 * @param index
+	 * @return The element at the position in the order of insertion
+	 */
+	public long get( final int index ) {
+		if ( index >= size ) {
+			throw new IndexOutOfBoundsException( "Index: " + index + ", size: " + size );
+		}
+		return values[index];
+	}
+
+
+	/**
+	 * @return The number of elements
+	 */
+	public int size() {
+		return size;
+	}
+
+
+	/**
+	 * @return True if the set has no elements
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+
+	/**
+	 * Removes all elements but keeps the arrays, so the set can be refilled without allocating.
+	 */
+	public void clear() {
+		Arrays.fill( table, 0 );
+		size = 0;
+	}
+
+
+	/**
+	 * @return The elements in the order of insertion as a new array
+	 */
+	public long[] toArray() {
+		return Arrays.copyOf( values, size );
+	}
+
+
+	/**
+	 * Wraps the set for APIs that take collections. Elements are boxed on every access, so the view should only be
+	 * handed over, not used for lookups.
+	 * 
+	 * @return An unmodifiable view of the elements in the order of insertion that reflects later changes
+	 */
+	public List<Long> asList() {
+		return new AbstractList<Long>() {
+
+			@Override
+			public Long get( final int index ) {
+				return LongSet.this.get( index );
+			}
+
+
+			@Override
+			public int size() {
+				return size;
+			}
+
+
+			@Override
+			public boolean contains( final Object o ) {
+				return o instanceof Long && LongSet.this.contains( (Long) o );
+			}
+		};
+	}
+
+
+	@Override
+	public String toString() {
+		return Arrays.toString( toArray() );
+	}
+
+
+	private void grow() {
+		values = Arrays.copyOf( values, values.length * 2 );
+		table = new int[tableSize( values.length )];
+
+		for ( int i = 0; i < size; i++ ) {
+			int slot = slot( values[i] );
+			while ( table[slot] != 0 ) {
+				slot = slot + 1 & table.length - 1;
+			}
+			table[slot] = i + 1;
+		}
+	}
+
+
+	/**
+	 * Spreads the bits of the value, since IDs are mostly consecutive and would otherwise fill neighbouring slots.
+	 */
+	private int slot( final long value ) {
+		return (int) ( value * 0x9E3779B97F4A7C15L >>> 32 ) & table.length - 1;
+	}
+
+
+	private static int tableSize( final int capacity ) {
+		return Integer.highestOneBit( capacity ) << 2;
+	}
+
+}
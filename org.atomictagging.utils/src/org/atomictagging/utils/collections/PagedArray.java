@@ -0,0 +1,151 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.utils.collections;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * An immutable sparse array indexed by non-negative integers, e.g. IDs.
+ * <p>
+ * The elements are stored in pages of {@value #PAGE_SIZE} slots. Changing elements returns a new array that shares
+ * all pages that were not touched with the old one, so the cost of a change depends on the number of pages it touches
+ * instead of the size of the array. Since instances never change, they can be read by any number of threads without
+ * locking.
+ * </p>
+ * 
+ * @param <V>
+ *            Type of the elements
+ */
+public final class PagedArray<V> {
+
+	/**
+	 * Number of slots per page.
+	 */
+	public static final int		PAGE_SIZE	= 1024;
+
+	private static final int	PAGE_BITS	= 10;
+
+	private final Object[][]	pages;
+	private final int			size;
+
+
+	/**
+	 * Creates an empty array.
+	 */
+	public PagedArray() {
+		this( new Object[0][], 0 );
+	}
+
+
+	private PagedArray( final Object[][] pages, final int size ) {
+		this.pages = pages;
+		this.size = size;
+	}
+
+
+	/**
+	 * @param index
+	 * @return The element at the index or null if there is none
+	 */
+	@SuppressWarnings( "unchecked" )
+	public V get( final int index ) {
+		final int page = index >>> PAGE_BITS;
+		if ( index < 0 || page >= pages.length || pages[page] == null ) {
+			return null;
+		}
+		return (V) pages[page][index & PAGE_SIZE - 1];
+	}
+
+
+	/**
+	 * @return The number of elements
+	 */
+	public int size() {
+		return size;
+	}
+
+
+	/**
+	 * Finds the next element in ascending order of the indexes.
+	 * 
+	 * @param from
+	 * @return The smallest index greater or equal from that holds an element or -1 if there is none
+	 */
+	public int next( final int from ) {
+		for ( int index = Math.max( 0, from ); index >>> PAGE_BITS < pages.length; ) {
+			final Object[] page = pages[index >>> PAGE_BITS];
+
+			if ( page == null ) {
+				index = ( ( index >>> PAGE_BITS ) + 1 ) << PAGE_BITS;
+				continue;
+			}
+
+			for ( int slot = index & PAGE_SIZE - 1; slot < PAGE_SIZE; slot++, index++ ) {
+				if ( page[slot] != null ) {
+					return index;
+				}
+			}
+		}
+
+		return -1;
+	}
+
+
+	/**
+	 * Returns a copy of this array with the given changes applied. This array stays as it is.
+	 * 
+	 * @param changes
+	 *            The new elements mapped by their index, null to remove an element
+	 * @return The changed array
+	 */
+	public PagedArray<V> with( final Map<Integer, V> changes ) {
+		if ( changes.isEmpty() ) {
+			return this;
+		}
+
+		int maxPage = pages.length - 1;
+		for ( final Integer index : changes.keySet() ) {
+			if ( index < 0 ) {
+				throw new IllegalArgumentException( "Only non-negative indexes can be used in a paged array." );
+			}
+			maxPage = Math.max( maxPage, index >>> PAGE_BITS );
+		}
+
+		final Object[][] newPages = Arrays.copyOf( pages, maxPage + 1 );
+		final boolean[] copied = new boolean[newPages.length];
+		int newSize = size;
+
+		for ( final Map.Entry<Integer, V> change : changes.entrySet() ) {
+			final int page = change.getKey() >>> PAGE_BITS;
+			final int slot = change.getKey() & PAGE_SIZE - 1;
+
+			if ( !copied[page] ) {
+				newPages[page] = newPages[page] == null ? new Object[PAGE_SIZE] : newPages[page].clone();
+				copied[page] = true;
+			}
+
+			if ( newPages[page][slot] != null ) {
+				newSize--;
+			}
+			newPages[page][slot] = change.getValue();
+			if ( change.getValue() != null ) {
+				newSize++;
+			}
+		}
+
+		return new PagedArray<V>( newPages, newSize );
+	}
+
+}
@@ -0,0 +1,226 @@
+/**
+ * This file is part of Atomic Tagging.
+ * 
+ * Atomic Tagging is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Atomic Tagging is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Atomic Tagging. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.atomictagging.utils.collections;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stores strings as UTF-8 outside of the Java heap, e.g. the data of millions of atoms, so they neither count against
+ * the heap nor have to be traced by the garbage collector. Every string added is identified by a handle, a long that
+ * is all a caller has to keep. The string is only created again when it is asked for.
+ * <p>
+ * The strings are appended to direct buffers, each one prefixed by its length. The buffers double in size up to
+ * {@value #CHUNK_SIZE} bytes, so small arenas stay small. Strings
+ * are never moved or overwritten, so handles stay valid for the lifetime of the arena and any number of threads may
+ * read while one thread appends. A handle has to be passed to the reading thread in a thread safe way, though.
+ * Strings that are not needed anymore are only accounted for by {@link #free(long)}. Their space is reclaimed by
+ * copying the remaining strings into a new arena, see {@link #copy(StringArena, long)}.
+ * </p>
+ * <p>
+ * The buffers can be saved, see {@link #chunk(int)}, and handed to a new arena later, e.g. mapped from a file. The
+ * handles of the strings stay the same.
+ * </p>
+ * <p>
+ * The memory is limited by the option -XX:MaxDirectMemorySize of the JVM, which defaults to the maximum heap size.
+ * </p>
+ */
+public final class StringArena {
+
+	/**
+	 * Maximum size of the buffers in bytes. Longer strings get a buffer of their own.
+	 */
+	public static final int			CHUNK_SIZE	= 16 * 1024 * 1024;
+
+	private static final int		FIRST_CHUNK	= 64 * 1024;
+
+	private static final Charset	UTF8		= Charset.forName( "UTF-8" );
+
+	private volatile ByteBuffer[]	chunks		= new ByteBuffer[0];
+	private ByteBuffer				tail		= null;
+	private long					size		= 0;
+	private long					garbage		= 0;
+
+
+	/**
+	 * Creates an empty arena.
+	 */
+	public StringArena() {
+		// Nothing to adopt
+	}
+
+
+	/**
+	 * Creates an arena that starts out with the given buffers. They are only read, strings added later go to new
+	 * buffers.
+	 * 
+	 * @param chunks
+	 *            Buffers as returned by {@link #chunk(int)} of another arena, in the same order
+	 */
+	public StringArena( final List<ByteBuffer> chunks ) {
+		final ByteBuffer[] adopted = new ByteBuffer[chunks.size()];
+		for ( int i = 0; i < adopted.length; i++ ) {
+			adopted[i] = chunks.get( i ).duplicate();
+			adopted[i].position( adopted[i].limit() );
+			size += adopted[i].limit();
+		}
+		this.chunks = adopted;
+	}
+
+
+	/**
+	 * @param string
+	 * @return The handle of the string
+	 */
+	public long add( final String string ) {
+		return add( string.getBytes( UTF8 ) );
+	}
+
+
+	/**
+	 * Adds a string held by another arena without creating it on the heap.
+	 * 
+	 * @param other
+	 * @param handle
+	 *            Handle of the string in the other arena
+	 * @return The handle of the string in this arena
+	 */
+	public long copy( final StringArena other, final long handle ) {
+		return add( other.bytes( handle ) );
+	}
+
+
+	/**
+	 * @param handle
+	 * @return The string
+	 */
+	public String get( final long handle ) {
+		return new String( bytes( handle ), UTF8 );
+	}
+
+
+	/**
+	 * Compares a stored string to the given one without creating the stored one.
+	 * 
+	 * @param handle
+	 * @param utf8
+	 *            The string to compare with, encoded by {@link #encode(String)}
+	 * @return True if they are equal
+	 */
+	public boolean matches( final long handle, final byte[] utf8 ) {
+		final ByteBuffer buffer = buffer( handle );
+		if ( buffer.getInt() != utf8.length ) {
+			return false;
+		}
+		for ( final byte b : utf8 ) {
+			if ( buffer.get() != b ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Marks a string as no longer needed. It stays readable, only the statistics change.
+	 * 
+	 * @param handle
+	 */
+	public synchronized void free( final long handle ) {
+		garbage += 4 + buffer( handle ).getInt();
+	}
+
+
+	/**
+	 * @return The number of bytes taken by all strings added so far
+	 */
+	public synchronized long size() {
+		return size;
+	}
+
+
+	/**
+	 * @return The number of bytes taken by strings that have been freed
+	 */
+	public synchronized long garbage() {
+		return garbage;
+	}
+
+
+	/**
+	 * @return The number of buffers
+	 */
+	public int chunkCount() {
+		return chunks.length;
+	}
+
+
+	/**
+	 * @param index
+	 * @return A read-only view of the used part of the buffer
+	 */
+	public ByteBuffer chunk( final int index ) {
+		final ByteBuffer view = chunks[index].duplicate();
+		view.flip();
+		return view.asReadOnlyBuffer();
+	}
+
+
+	/**
+	 * @param string
+	 * @return The string encoded like the arena stores it
+	 */
+	public static byte[] encode( final String string ) {
+		return string.getBytes( UTF8 );
+	}
+
+
+	private synchronized long add( final byte[] bytes ) {
+		final int length = 4 + bytes.length;
+		if ( tail == null || tail.remaining() < length ) {
+			final int capacity = tail == null ? FIRST_CHUNK : Math.min( CHUNK_SIZE, tail.capacity() * 2 );
+			tail = ByteBuffer.allocateDirect( Math.max( capacity, length ) );
+			final ByteBuffer[] grown = Arrays.copyOf( chunks, chunks.length + 1 );
+			grown[grown.length - 1] = tail;
+			chunks = grown;
+		}
+
+		final long handle = (long) ( chunks.length - 1 ) << 32 | tail.position();
+		tail.putInt( bytes.length );
+		tail.put( bytes );
+		size += length;
+		return handle;
+	}
+
+
+	private byte[] bytes( final long handle ) {
+		final ByteBuffer buffer = buffer( handle );
+		final byte[] bytes = new byte[buffer.getInt()];
+		buffer.get( bytes );
+		return bytes;
+	}
+
+
+	/**
+	 * @return A view of the chunk holding the string positioned at its length, so readers don't disturb each other
+	 */
+	private ByteBuffer buffer( final long handle ) {
+		final ByteBuffer buffer = chunks[(int) ( handle >>> 32 )].duplicate();
+		buffer.position( (int) handle );
+		return buffer;
+	}
+
+}